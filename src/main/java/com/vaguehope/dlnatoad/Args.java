@@ -13,6 +13,8 @@ import org.apache.commons.io.FileUtils;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
+import com.vaguehope.dlnatoad.util.HashHelper;
+
 public class Args {
 
 	@Option(name = "-h", aliases = { "--help" }, usage = "Print this help text.") private boolean help;
@@ -28,7 +30,12 @@ public class Args {
 	@Option(name = "--sessiondir", usage = "Path for droping metadata import files into.") private String sessionDir;
 	@Option(name = "--adduser", usage = "Interactivly add user to userfile.") private boolean addUser;
 	@Option(name = "--db", usage = "Path for metadata DB.") private String db;
+	@Option(name = "--treesnapshot", usage = "Path for saving the media tree to so it can be browsed straight away on the next start while the dirs are rescanned.") private String treeSnapshot;
 	@Option(name = "--thumbs", usage = "Path for caching image thumbnails.") private String thumbsDir;
+	@Option(name = "--hashthreads", usage = "Max files to hash at once, defaults to number of CPUs.") private int hashThreads;
+	@Option(name = "--hashperdevice", usage = "Max files to hash at once on the same disk, defaults to 1.  Raise for SSDs.") private int hashesPerDevice;
+	@Option(name = "--scanthreads", usage = "Max dirs to list at once in each root dir during the initial scan, defaults to 1.  Raise for network storage.") private int scanThreads;
+	@Option(name = "--hashmapwindow", metaVar = "<MB>", usage = "Memory map large files this many MB at a time while hashing, defaults to 0 which reads through a small buffer.") private int hashMapWindowMb;
 	@Option(name = "--dropdir", usage = "Path for droping metadata import files into.") private String dropDir;
 	@Option(name = "--remote", usage = "HTTP(S) address of remote instance.", metaVar = "https://example.com/") private List<String> remotes;
 	@Option(name = "--tagdeterminer", usage = "HTTP(S) address of remote a TagDeterminer and query for which items it should be offered.", metaVar = "https://example.com/|f~mydir/path") private List<String> tagDeterminers;
@@ -133,10 +140,32 @@ public class Args {
 		return this.db != null ? new File(this.db) : null;
 	}
 
+	public File getTreeSnapshot() {
+		return this.treeSnapshot != null ? new File(this.treeSnapshot) : null;
+	}
+
 	public File getThumbsDir() throws ArgsException {
 		return checkIsDirOrNull(this.thumbsDir);
 	}
 
+	public int getHashThreads() {
+		return this.hashThreads > 0 ? this.hashThreads : Runtime.getRuntime().availableProcessors();
+	}
+
+	public int getHashesPerDevice() {
+		return this.hashesPerDevice > 0 ? this.hashesPerDevice : 1;
+	}
+
+	public int getScanThreads() {
+		return this.scanThreads > 0 ? this.scanThreads : 1;
+	}
+
+	public long getHashMapWindow() throws ArgsException {
+		final long bytes = this.hashMapWindowMb * 1024L * 1024L;
+		if (bytes < 0 || bytes > HashHelper.MAX_MAP_WINDOW) throw new ArgsException("--hashmapwindow must be between 0 and " + (HashHelper.MAX_MAP_WINDOW / 1024 / 1024) + ".");
+		return bytes;
+	}
+
 	public File getDropDir() throws ArgsException {
 		if (this.dropDir != null && this.db == null) throw new ArgsException("--dropdir requires --db to be set.");
 		return checkIsDirOrNull(this.dropDir);
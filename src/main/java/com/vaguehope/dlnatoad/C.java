@@ -37,6 +37,7 @@ public interface C {
 	String TAGS_PATH = "tags";
 
 	long DEVICE_SEARCH_INTERVAL_MINUTES = 15;
+	long TREE_SNAPSHOT_INTERVAL_MINUTES = 60;
 
 	Pattern USERNAME_PATTERN = Pattern.compile("^[a-zA-Z0-9]+$");
 
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.net.BindException;
 import java.net.InetAddress;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
@@ -47,6 +48,7 @@ import com.vaguehope.dlnatoad.importer.MetadataImporter;
 import com.vaguehope.dlnatoad.media.ContentServingHistory;
 import com.vaguehope.dlnatoad.media.ContentServlet;
 import com.vaguehope.dlnatoad.media.ContentTree;
+import com.vaguehope.dlnatoad.media.ContentTreeSnapshot;
 import com.vaguehope.dlnatoad.media.ExternalUrls;
 import com.vaguehope.dlnatoad.media.MediaFormat;
 import com.vaguehope.dlnatoad.media.MediaId;
@@ -73,6 +75,7 @@ import com.vaguehope.dlnatoad.ui.UpnpServlet;
 import com.vaguehope.dlnatoad.ui.WebdavDivertingHandler;
 import com.vaguehope.dlnatoad.ui.WebdavServlet;
 import com.vaguehope.dlnatoad.util.ExecutorHelper;
+import com.vaguehope.dlnatoad.util.HashHelper;
 import com.vaguehope.dlnatoad.util.JettyPrometheusServlet;
 import com.vaguehope.dlnatoad.util.LogHelper;
 import com.vaguehope.dlnatoad.util.NetHelper;
@@ -146,7 +149,8 @@ public final class Main {
 		final ScheduledExecutorService dbEx = ExecutorHelper.newScheduledExecutor(1, "db");
 
 		// Only for hashing files.
-		final ExecutorService fsEx = ExecutorHelper.newExecutor(1, "fs");
+		final ExecutorService fsEx = ExecutorHelper.newExecutor(args.getHashThreads(), "fs");
+		HashHelper.setMapWindow(args.getHashMapWindow());
 
 		final File thumbsDir = args.getThumbsDir();
 		final ThumbnailGenerator thumbnailGenerator =
@@ -163,9 +167,21 @@ public final class Main {
 			LOG.info("DB: {}", dbFile.getAbsolutePath());
 			mediaDb = new MediaDb(dbFile);
 			dbCache = new DbCache(mediaDb, dbEx, args.isVerboseLog());
-			mediaMetadataStore = new MediaMetadataStore(mediaDb, dbEx, fsEx, args.isVerboseLog());
+			mediaMetadataStore = new MediaMetadataStore(mediaDb, dbEx, fsEx, args.getHashesPerDevice(), args.isVerboseLog());
 			mediaMetadataStore.registerMetrics(PrometheusRegistry.defaultRegistry);
+			mediaMetadataStore.loadStatSnapshot();
 			tagAutocompleter = new TagAutocompleter(mediaDb, dbEx);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					try {
+						mediaDb.close();
+					}
+					catch (final SQLException e) {
+						LOG.warn("Failed to close DB: {}", e.toString());
+					}
+				}
+			});
 		}
 		else {
 			mediaDb = null;
@@ -179,10 +195,20 @@ public final class Main {
 		final ContentTree contentTree = new ContentTree();
 		contentTree.registerMetrics(PrometheusRegistry.defaultRegistry);
 
+		final HierarchyMode hierarchyMode = args.isSimplifyHierarchy() ? HierarchyMode.FLATTERN : HierarchyMode.PRESERVE;
+		LOG.info("hierarchyMode: {}", hierarchyMode);
+
+		final File treeSnapshotFile = args.getTreeSnapshot();
+		final ContentTreeSnapshot treeSnapshot = treeSnapshotFile != null
+				? new ContentTreeSnapshot(treeSnapshotFile, contentTree, hierarchyMode)
+				: null;
+
 		final File dropDir = args.getDropDir();
 		final TagDeterminerController tagDeterminerController = new TagDeterminerController(args, contentTree, mediaDb);
 		final Runnable afterInitialScanIdsAllFiles = () -> {
+			if (treeSnapshot != null) treeSnapshot.initialScanComplete();
 			if (mediaDb != null) {
+				mediaMetadataStore.discardStatSnapshot();
 				new DbCleaner(contentTree, mediaDb, args.isVerboseLog()).start(dbEx);
 				if (dropDir != null) {
 					new MetadataImporter(dropDir, mediaDb, args.isVerboseLog()).start(dbEx);
@@ -214,11 +240,20 @@ public final class Main {
 
 		final NodeConverter nodeConverter = new NodeConverter(externalUrls);
 
-		final HierarchyMode hierarchyMode = args.isSimplifyHierarchy() ? HierarchyMode.FLATTERN : HierarchyMode.PRESERVE;
-		LOG.info("hierarchyMode: {}", hierarchyMode);
-
 		final MediaIndex index = new MediaIndex(contentTree, hierarchyMode, mediaId, mediaInfo);
 
+		if (treeSnapshot != null) {
+			treeSnapshot.load();
+			ExecutorHelper.newScheduledExecutor(1, "snapshot").scheduleWithFixedDelay(
+					treeSnapshot::saveIfReady, C.TREE_SNAPSHOT_INTERVAL_MINUTES, C.TREE_SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					treeSnapshot.saveIfReady();
+				}
+			});
+		}
+
 		final Thread watcherThread = new Thread(new RunWatcher(args, index, afterInitialScanFindsAllDirs));
 		watcherThread.setName("watcher");
 		watcherThread.setDaemon(true);
@@ -423,12 +458,14 @@ public final class Main {
 
 		private final List<File> roots;
 		private final boolean verboseLog;
+		private final int scanThreads;
 		private final MediaIndex index;
 		private final Runnable prescanCompleteListener;
 
 		public RunWatcher (final Args args, final MediaIndex index, final Runnable prescanCompleteListener) throws ArgsException, IOException {
 			this.roots = args.getDirs();  // Trigger validation in main thread.
 			this.verboseLog = args.isVerboseLog();
+			this.scanThreads = args.getScanThreads();
 			this.index = index;
 			this.prescanCompleteListener = prescanCompleteListener;
 		}
@@ -437,7 +474,7 @@ public final class Main {
 		public void run () {
 			try {
 				final Watcher w = new Watcher(this.roots, MediaFormat.MediaFileFilter.INSTANCE,
-						new ProgressLogFileListener(this.index, this.verboseLog));
+						new ProgressLogFileListener(this.index, this.verboseLog), this.scanThreads);
 				w.addPrescanCompleteListener(this.prescanCompleteListener);
 				w.run();
 				LOG.error("Watcher thread exited.");
@@ -0,0 +1,152 @@
+package com.vaguehope.dlnatoad.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.metrics.core.datapoints.DistributionDataPoint;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.core.metrics.Histogram;
+import io.prometheus.metrics.model.snapshots.Unit;
+
+/**
+ * Bounded pool of DB connections.
+ * Connections are opened lazily and kept open until the pool is closed.
+ */
+public class ConnectionPool {
+
+	private static final long BORROW_TIMEOUT_SECONDS = 30;  // Same as the DB busy timeout.
+	private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+	// Keyed by DB and name, so pools for different DBs in the same JVM do not replace each other.
+	private static final Map<String, ConnectionPool> POOLS = new ConcurrentHashMap<>();
+
+	@SuppressWarnings("unused")
+	private static final GaugeWithCallback SIZE_METRIC = GaugeWithCallback.builder()
+			.name("db_connection_pool_size")
+			.labelNames("db", "name", "state")
+			.help("number of open DB connections in a pool, by whether they are idle or borrowed.")
+			.callback((cb) -> {
+				for (final ConnectionPool p : POOLS.values()) {
+					final int idle = p.idle.size();
+					cb.call(idle, p.db, p.name, "idle");
+					cb.call(p.opened.get() - idle, p.db, p.name, "active");
+				}
+			})
+			.register();
+
+	private static final Histogram WAIT_METRIC = Histogram.builder()
+			.name("db_connection_pool_wait")
+			.labelNames("db", "name")
+			.unit(Unit.SECONDS)
+			.classicExponentialUpperBounds(0.0001, 4, 10)  // [0.0001, 0.0004, 0.0016, 0.0064, 0.0256, 0.1024, 0.4096, 1.6384, 6.5536, 26.2144]
+			.help("Time spent waiting to borrow a DB connection from a pool.")
+			.register();
+
+	public interface ConnectionFactory {
+		Connection make() throws SQLException;
+	}
+
+	private final String db;
+	private final String name;
+	private final int maxSize;
+	private final ConnectionFactory factory;
+	private final Semaphore permits;
+	private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger opened = new AtomicInteger(0);
+	private final DistributionDataPoint waitMetric;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param db what the connections are to, eg the DB file path.
+	 * @param name which pool for that DB, eg "read" or "write".
+	 */
+	public ConnectionPool(final String db, final String name, final int maxSize, final ConnectionFactory factory) {
+		if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1: " + maxSize);
+		this.db = db;
+		this.name = name;
+		this.maxSize = maxSize;
+		this.factory = factory;
+		this.permits = new Semaphore(maxSize, true);
+		this.waitMetric = WAIT_METRIC.labelValues(db, name);
+		POOLS.put(poolKey(db, name), this);
+	}
+
+	private static String poolKey(final String db, final String name) {
+		return db + '\0' + name;
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * Must be closed to return it to the pool.
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (this.closed) throw new SQLException(this.name + " DB connection pool is closed.");
+		final long startTime = System.nanoTime();
+		try {
+			if (!this.permits.tryAcquire(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				throw new SQLException("Timed out waiting for " + this.name + " DB connection.");
+			}
+		}
+		catch (final InterruptedException e) {
+			throw new SQLException("Interrupted waiting for " + this.name + " DB connection.", e);
+		}
+		finally {
+			this.waitMetric.observe(Unit.nanosToSeconds(System.nanoTime() - startTime));
+		}
+
+		try {
+			final PooledConnection c = this.idle.pollFirst();
+			if (c != null) return c;
+			final PooledConnection n = new PooledConnection(this, this.factory.make());
+			this.opened.incrementAndGet();
+			return n;
+		}
+		catch (final SQLException | RuntimeException e) {
+			this.permits.release();
+			throw e;
+		}
+	}
+
+	void release(final PooledConnection c) {
+		if (this.closed) {
+			discard(c);
+			return;
+		}
+		// Most recently used first so a quiet server only keeps one connection warm.
+		this.idle.addFirst(c);
+		this.permits.release();
+	}
+
+	void discard(final PooledConnection c) {
+		this.opened.decrementAndGet();
+		c.closeConnection();
+		this.permits.release();
+	}
+
+	/**
+	 * Closes idle connections now, and borrowed ones when they are returned.
+	 */
+	public void close() {
+		this.closed = true;
+		POOLS.remove(poolKey(this.db, this.name), this);
+		PooledConnection c;
+		while ((c = this.idle.pollFirst()) != null) {
+			this.opened.decrementAndGet();
+			c.closeConnection();
+		}
+		LOG.debug("Closed {} DB connection pool: {}", this.name, this.db);
+	}
+
+}
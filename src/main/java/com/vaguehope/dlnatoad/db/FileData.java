@@ -11,6 +11,11 @@ import com.vaguehope.dlnatoad.util.HashHelper.Md5AndSha1;
 
 public class FileData {
 
+	/**
+	 * Hashes with this prefix are quick fingerprints, not a full SHA1 of the file.
+	 */
+	public static final String QUICK_HASH_PREFIX = "quick-";
+
 	private final long size;
 	private final long modified;
 	private final String hash;
@@ -65,6 +70,13 @@ public class FileData {
 		return this.md5;
 	}
 
+	/**
+	 * True if the hash is only a quick fingerprint and the full hash is still to be generated.
+	 */
+	public boolean isProvisional() {
+		return this.hash.startsWith(QUICK_HASH_PREFIX);
+	}
+
 	public String getId () {
 		if (this.id == null) throw new IllegalStateException("ID not set.");
 		return this.id;
@@ -117,6 +129,20 @@ public class FileData {
 				format != null ? format.getMime() : null);
 	}
 
+	/**
+	 * Only reads a few samples of the file, the hash is a fingerprint and there is no MD5.
+	 */
+	public static FileData forFileQuick (final File file) throws IOException {
+		final BigInteger fingerprint = HashHelper.quickFingerprint(file);
+		final MediaFormat format = MediaFormat.identify(file);
+		return new FileData(
+				file.length(),
+				file.lastModified(),
+				QUICK_HASH_PREFIX + fingerprint.toString(16),
+				null,
+				format != null ? format.getMime() : null);
+	}
+
 	@Override
 	public String toString() {
 		return String.format("FileData{%s, %s, %s, %s, %s, %s, %s, %s}",
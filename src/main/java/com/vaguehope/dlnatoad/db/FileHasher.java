@@ -0,0 +1,190 @@
+package com.vaguehope.dlnatoad.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.model.registry.PrometheusRegistry;
+
+/**
+ * Runs FileData.forFile() for many files at once on a shared pool of threads,
+ * but only starts up to perDeviceLimit files on each device so that spinning disks
+ * are not made to seek back and forth between files.
+ * Files waiting for their device do not hold a thread.
+ * Background files only start on a device when no other files are waiting for it.
+ */
+class FileHasher {
+
+	private static final Object UNKNOWN_DEVICE = new Object();
+	private static final Logger LOG = LoggerFactory.getLogger(FileHasher.class);
+
+	private static final Counter FILES_METRIC = Counter.builder()
+			.name("db_hash_files")
+			.help("count of files hashed.")
+			.register();
+	private static final Counter BYTES_METRIC = Counter.builder()
+			.name("db_hash_bytes")
+			.help("count of bytes read while hashing files.")
+			.register();
+
+	private static final Counter QUICK_FILES_METRIC = Counter.builder()
+			.name("db_hash_quick_files")
+			.help("count of files given a quick fingerprint instead of a full hash.")
+			.register();
+
+	// NOTE: this will fail is more than once instance of FileHasher exists.
+	private final GaugeWithCallback pendingMetric = GaugeWithCallback.builder()
+			.name("db_hash_queue_size")
+			.help("number of files waiting to be hashed or being hashed.")
+			.callback((cb) -> cb.call(pendingCount()))
+			.build();
+
+	private final ExecutorService ex;
+	private final int perDeviceLimit;
+	private final Map<Object, Device> devices = new HashMap<>();
+
+	FileHasher(final ExecutorService ex, final int perDeviceLimit) {
+		if (perDeviceLimit < 1) throw new IllegalArgumentException("perDeviceLimit must be positive: " + perDeviceLimit);
+		this.ex = ex;
+		this.perDeviceLimit = perDeviceLimit;
+	}
+
+	void registerMetrics(final PrometheusRegistry registry) {
+		registry.register(this.pendingMetric);
+	}
+
+	interface Callback {
+		void onResult(FileData fileData) throws InterruptedException;
+		void onError(IOException e);
+	}
+
+	void hash(final File file, final Callback callback) {
+		submit(new Job(file, deviceKey(file.toPath()), false, callback), false);
+	}
+
+	/**
+	 * Result only has a quick fingerprint, see FileData.forFileQuick().
+	 */
+	void hashQuick(final File file, final Callback callback) {
+		submit(new Job(file, deviceKey(file.toPath()), true, callback), false);
+	}
+
+	void hashInBackground(final File file, final Callback callback) {
+		submit(new Job(file, deviceKey(file.toPath()), false, callback), true);
+	}
+
+	private synchronized void submit(final Job job, final boolean background) {
+		final Device device = this.devices.computeIfAbsent(job.deviceKey, k -> new Device());
+		(background ? device.background : device.waiting).add(job);
+		startNextUnlocked(job.deviceKey, device);
+	}
+
+	private void startNextUnlocked(final Object deviceKey, final Device device) {
+		while (device.running < this.perDeviceLimit) {
+			Job job = device.waiting.poll();
+			if (job == null) job = device.background.poll();
+			if (job == null) break;
+			device.running += 1;
+			this.ex.execute(job);
+		}
+		if (device.running < 1 && device.waiting.isEmpty() && device.background.isEmpty()) this.devices.remove(deviceKey, device);
+	}
+
+	private synchronized void finished(final Job job) {
+		final Device device = this.devices.get(job.deviceKey);
+		device.running -= 1;
+		startNextUnlocked(job.deviceKey, device);
+	}
+
+	synchronized int pendingCount() {
+		int count = 0;
+		for (final Device d : this.devices.values()) {
+			count += d.running + d.waiting.size() + d.background.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Device ID where the platform has one, otherwise all files share one limit.
+	 */
+	private static Object deviceKey(final Path path) {
+		try {
+			final Object dev = Files.getAttribute(path, "unix:dev");
+			if (dev != null) return dev;
+		}
+		catch (final UnsupportedOperationException | IllegalArgumentException | IOException e) {
+			LOG.debug("Could not read device for {}: {}", path, e.toString());
+		}
+		return UNKNOWN_DEVICE;
+	}
+
+	private static class Device {
+		final Queue<Job> waiting = new ArrayDeque<>();
+		final Queue<Job> background = new ArrayDeque<>();
+		int running = 0;
+	}
+
+	private class Job implements Runnable {
+		private final File file;
+		private final Object deviceKey;
+		private final boolean quick;
+		private final Callback callback;
+
+		Job(final File file, final Object deviceKey, final boolean quick, final Callback callback) {
+			this.file = file;
+			this.deviceKey = deviceKey;
+			this.quick = quick;
+			this.callback = callback;
+		}
+
+		@Override
+		public void run() {
+			FileData fileData = null;
+			try {
+				if (this.quick) {
+					fileData = FileData.forFileQuick(this.file);
+					QUICK_FILES_METRIC.inc();
+				}
+				else {
+					fileData = FileData.forFile(this.file);  // Slow.
+					FILES_METRIC.inc();
+					BYTES_METRIC.inc(fileData.getSize());
+				}
+			}
+			catch (final IOException e) {
+				this.callback.onError(e);
+			}
+			catch (final Exception e) {
+				this.callback.onError(new IOException(e));
+			}
+			finally {
+				// Let the next file on this device start before waiting on the callback.
+				finished(this);
+			}
+
+			if (fileData == null) return;
+			try {
+				this.callback.onResult(fileData);
+			}
+			catch (final InterruptedException e) {
+				this.callback.onError(new IOException("Interupted while waiting to return hash for: " + this.file.getAbsolutePath(), e));
+				Thread.currentThread().interrupt();
+			}
+			catch (final Exception e) {
+				this.callback.onError(new IOException(e));
+			}
+		}
+	}
+
+}
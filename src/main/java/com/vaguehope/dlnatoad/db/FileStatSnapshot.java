@@ -0,0 +1,67 @@
+package com.vaguehope.dlnatoad.db;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Size, modified time and canonical ID of every file that was up to date in the DB when it was loaded.
+ * During the initial scan this lets unchanged files get their ID without a DB lookup each.
+ * Each file can only be looked up once, entries are removed as they are used so the snapshot shrinks as the scan progresses.
+ */
+class FileStatSnapshot {
+
+	private final Map<String, Stat> stats = new HashMap<>();
+	private final Map<String, String> auths = new HashMap<>();  // So that each distinct auth string is only held once.
+	private int hits = 0;
+	private int misses = 0;
+
+	void put(final String file, final long size, final long modified, final String auth, final String id) {
+		final String a = this.auths.computeIfAbsent(auth, k -> k);
+		this.stats.put(file, new Stat(size, modified, a, id));
+	}
+
+	synchronized int size() {
+		return this.stats.size();
+	}
+
+	synchronized int hits() {
+		return this.hits;
+	}
+
+	synchronized int misses() {
+		return this.misses;
+	}
+
+	/**
+	 * Returns null if the file is not in the snapshot or has changed since, in which case it must be looked up in the DB.
+	 */
+	synchronized String idForUnchangedFile(final File file, final BigInteger auth) {
+		final Stat s = this.stats.remove(file.getAbsolutePath());
+		if (s != null
+				&& s.size == file.length()
+				&& s.modified == file.lastModified()
+				&& s.auth.equals(auth.toString(16))) {
+			this.hits += 1;
+			return s.id;
+		}
+		this.misses += 1;
+		return null;
+	}
+
+	private static class Stat {
+		final long size;
+		final long modified;
+		final String auth;
+		final String id;
+
+		Stat(final long size, final long modified, final String auth, final String id) {
+			this.size = size;
+			this.modified = modified;
+			this.auth = auth;
+			this.id = id;
+		}
+	}
+
+}
@@ -9,7 +9,8 @@ class FileTask {
 
 	public enum Action {
 		ID,
-		GONE
+		GONE,
+		RECONCILE
 	}
 
 	private final Action action;
@@ -86,6 +87,13 @@ class FileTask {
 		return new FileTask(this.action, this.file, this.auth, this.callback, data, this.genericCallback);
 	}
 
+	/**
+	 * For replacing a provisional hash with a full hash, callback is told if the ID changes.
+	 */
+	public FileTask forReconcile(final FileData fullFileData) {
+		return new FileTask(Action.RECONCILE, this.file, this.auth, this.callback, fullFileData, null);
+	}
+
 	@Override
 	public String toString() {
 		return String.format("FileTask{%s, %s, %s, %s, %s}", this.action, this.file, this.auth, this.callback, this.genericCallback);
@@ -19,6 +19,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteConfig.Encoding;
+import org.sqlite.SQLiteConfig.JournalMode;
 import org.sqlite.SQLiteConfig.TransactionMode;
 
 public class MediaDb {
@@ -26,19 +27,38 @@ public class MediaDb {
 	public static final String COL_FILE = "file";
 	public static final String COL_TAG = "tag";
 
-	private final String dbPath;
-	private final Connection dbConn;
+	// Readers do not block each other or the writer in WAL mode, so no point having many more than there are cores.
+	private static final int READ_POOL_SIZE = Math.min(Math.max(Runtime.getRuntime().availableProcessors(), 2), 8);
+	// Only one write transaction can happen at a time, so these are kept just so their statement caches are reused.
+	private static final int WRITE_POOL_SIZE = 2;
+
+	private final Connection dbConn;  // For schema changes, and keeps in-memory DBs alive.
+	private final ConnectionPool readPool;
+	private final ConnectionPool writePool;
 	protected final AtomicLong writeCounter = new AtomicLong(0L);
+	private final TagIndex tagIndex = new TagIndex();
 
 	public MediaDb (final File dbFile) throws SQLException {
 		this("jdbc:sqlite:" + dbFile.getAbsolutePath());
 	}
 
 	protected MediaDb(final String dbPath) throws SQLException {
-		this.dbPath = dbPath;
 		this.dbConn = makeDbConnection(dbPath);
 		makeSchema();
 		executeSql("PRAGMA optimize;");  // https://sqlite.org/lang_analyze.html
+		this.tagIndex.load(this.dbConn);
+		this.readPool = new ConnectionPool(dbPath, "read", READ_POOL_SIZE, () -> makeReadOnlyDbConnection(dbPath));
+		this.writePool = new ConnectionPool(dbPath, "write", WRITE_POOL_SIZE, () -> makeDbConnection(dbPath));
+	}
+
+	/**
+	 * Closes both connection pools then the DB.
+	 * Connections still borrowed are closed when they are returned.
+	 */
+	public void close() throws SQLException {
+		this.readPool.close();
+		this.writePool.close();
+		this.dbConn.close();
 	}
 
 	private void makeSchema () throws SQLException {
@@ -102,20 +122,27 @@ public class MediaDb {
 
 	@SuppressWarnings("resource")
 	public WritableMediaDb getWritable() throws SQLException {
-		final Connection c = makeDbConnection(this.dbPath);
-		c.setAutoCommit(false);
-		return new WritableMediaDb(c, this.writeCounter);
-	}
-
-	public PreparedStatement prepare(final String sql) throws SQLException {
+		final PooledConnection c = this.writePool.borrow();
 		try {
-			return this.dbConn.prepareStatement(sql);
+			return new WritableMediaDb(c, this.writeCounter, this.tagIndex);
 		}
-		catch (final SQLException e) {
-			throw new SQLException("Failed to compile query (sql='" + sql + "').", e);
+		catch (final SQLException | RuntimeException e) {
+			c.discard();
+			throw e;
 		}
 	}
 
+	public TagIndex getTagIndex() {
+		return this.tagIndex;
+	}
+
+	/**
+	 * Must be closed to return the connection to the pool.
+	 */
+	public PooledConnection getReadConnection() throws SQLException {
+		return this.readPool.borrow();
+	}
+
 	public long getWriteCount() {
 		return this.writeCounter.get();
 	}
@@ -128,7 +155,8 @@ public class MediaDb {
 	 */
 	// TODO replace with readFileData() ?
 	BigInteger readFileAuth(final File file) throws SQLException {
-		try (final PreparedStatement st = this.dbConn.prepareStatement("SELECT auth FROM files WHERE file=?;")) {
+		try (final PooledConnection c = this.readPool.borrow()) {
+			final PreparedStatement st = c.prepare("SELECT auth FROM files WHERE file=?;");
 			st.setString(1, file.getAbsolutePath());
 			st.setMaxRows(2);
 			try (final ResultSet rs = st.executeQuery()) {
@@ -141,7 +169,8 @@ public class MediaDb {
 	}
 
 	public String getFilePathForId(final String id) throws SQLException {
-		try (final PreparedStatement st = this.dbConn.prepareStatement("SELECT file FROM files WHERE id=?;")) {
+		try (final PooledConnection c = this.readPool.borrow()) {
+			final PreparedStatement st = c.prepare("SELECT file FROM files WHERE id=?;");
 			st.setString(1, id);
 			st.setMaxRows(2);
 			try (final ResultSet rs = st.executeQuery()) {
@@ -154,32 +183,34 @@ public class MediaDb {
 	}
 
 	public FileData getFileData(final File file) throws SQLException {
-		return readFileDataFromConn(this.dbConn, file);
+		try (final PooledConnection c = this.readPool.borrow()) {
+			return readFileDataFromConn(c.getStatements(), file);
+		}
 	}
 
-	protected static FileData readFileDataFromConn(final Connection conn, final File file) throws SQLException {
-		try (final PreparedStatement st = conn.prepareStatement("SELECT size, modified, hash, md5, mimetype, id, auth, missing FROM files WHERE file=?;")) {
-			st.setString(1, file.getAbsolutePath());
-			st.setMaxRows(2);
-			try (final ResultSet rs = st.executeQuery()) {
-				if (!rs.next()) return null;
-				final FileData fileData = new FileData(
-						rs.getLong(1),
-						rs.getLong(2),
-						rs.getString(3),
-						rs.getString(4),
-						rs.getString(5),
-						rs.getString(6),
-						new BigInteger(rs.getString(7), 16),
-						rs.getInt(8) != 0);
-				if (rs.next()) throw new SQLException("Query for file '" + file.getAbsolutePath() + "' retured more than one result.");
-				return fileData;
-			}
+	protected static FileData readFileDataFromConn(final StatementCache statements, final File file) throws SQLException {
+		final PreparedStatement st = statements.prepare("SELECT size, modified, hash, md5, mimetype, id, auth, missing FROM files WHERE file=?;");
+		st.setString(1, file.getAbsolutePath());
+		st.setMaxRows(2);
+		try (final ResultSet rs = st.executeQuery()) {
+			if (!rs.next()) return null;
+			final FileData fileData = new FileData(
+					rs.getLong(1),
+					rs.getLong(2),
+					rs.getString(3),
+					rs.getString(4),
+					rs.getString(5),
+					rs.getString(6),
+					new BigInteger(rs.getString(7), 16),
+					rs.getInt(8) != 0);
+			if (rs.next()) throw new SQLException("Query for file '" + file.getAbsolutePath() + "' retured more than one result.");
+			return fileData;
 		}
 	}
 
 	public Collection<String> getAllFilesThatAreNotMarkedAsMissing() throws SQLException {
-		try (final PreparedStatement st = this.dbConn.prepareStatement("SELECT file FROM files WHERE missing=0;")) {
+		try (final PooledConnection c = this.readPool.borrow()) {
+			final PreparedStatement st = c.prepare("SELECT file FROM files WHERE missing=0;");
 			try (final ResultSet rs = st.executeQuery()) {
 				final Collection<String> ret = new ArrayList<>();
 				while (rs.next()) {
@@ -190,10 +221,32 @@ public class MediaDb {
 		}
 	}
 
+	/**
+	 * Only includes files that would come back unchanged from MediaMetadataStore.idForFile(),
+	 * ie they are their own canonical file and have nothing waiting to be back filled.
+	 */
+	FileStatSnapshot readFileStatSnapshot() throws SQLException {
+		try (final PooledConnection c = this.readPool.borrow()) {
+			final PreparedStatement st = c.prepare("SELECT f.file, f.size, f.modified, f.auth, h.id"
+					+ " FROM files AS f INNER JOIN hashes AS h ON f.hash=h.hash"
+					+ " WHERE f.missing=0 AND f.id=h.id AND f.md5 IS NOT NULL AND f.mimetype IS NOT NULL AND f.hash NOT LIKE ?;");
+			st.setString(1, FileData.QUICK_HASH_PREFIX + "%");
+			try (final ResultSet rs = st.executeQuery()) {
+				final FileStatSnapshot ret = new FileStatSnapshot();
+				while (rs.next()) {
+					ret.put(rs.getString(1), rs.getLong(2), rs.getLong(3), rs.getString(4), rs.getString(5));
+				}
+				return ret;
+			}
+		}
+	}
+
 	public Collection<String> getFilesWithHash(final Set<BigInteger> authIds, final String hash) throws SQLException {
 		final String sql = "SELECT file FROM files WHERE missing=0 AND hash=? AND " + SqlFragments.makeWhereAuth(authIds) + " ORDER BY file ASC;";
-		try (final PreparedStatement st = this.dbConn.prepareStatement(sql)) {
+		try (final PooledConnection c = this.readPool.borrow()) {
+			final PreparedStatement st = c.prepare(sql);
 			st.setString(1, hash);
+			SqlFragments.setAuthParams(st, 2, authIds);
 			try (final ResultSet rs = st.executeQuery()) {
 				final Collection<String> ret = new ArrayList<>();
 				while (rs.next()) {
@@ -208,13 +261,12 @@ public class MediaDb {
 	// File Info; duration, width, height.
 
 	protected FileInfo readInfoCheckingFileSize (final String fileId, final long expectedSize) throws SQLException {
-		final PreparedStatement st = this.dbConn.prepareStatement(
-				"SELECT size, duration, width, height FROM infos WHERE file_id=?;");
-		try {
+		try (final PooledConnection c = this.readPool.borrow()) {
+			final PreparedStatement st = c.prepare(
+					"SELECT size, duration, width, height FROM infos WHERE file_id=?;");
 			st.setString(1, fileId);
 			st.setMaxRows(2);
-			final ResultSet rs = st.executeQuery();
-			try {
+			try (final ResultSet rs = st.executeQuery()) {
 				if (!rs.next()) return null;
 
 				final long storedSize = rs.getLong(1);
@@ -227,12 +279,6 @@ public class MediaDb {
 
 				return new FileInfo(duration, width, height);
 			}
-			finally {
-				rs.close();
-			}
-		}
-		finally {
-			st.close();
 		}
 	}
 
@@ -240,31 +286,24 @@ public class MediaDb {
 	// Hashes.
 
 	public String canonicalIdForHash (final String hash) throws SQLException {
-		return MediaDb.canonicalIdForHashFromConn(this.dbConn, hash);
+		try (final PooledConnection c = this.readPool.borrow()) {
+			return MediaDb.canonicalIdForHashFromConn(c.getStatements(), hash);
+		}
 	}
 
 	/**
 	 * hash is lower case hex, from BigInteger.toString(16).
 	 */
-	protected static String canonicalIdForHashFromConn (final Connection conn, final String hash) throws SQLException {
-		final PreparedStatement st = conn.prepareStatement(
+	protected static String canonicalIdForHashFromConn (final StatementCache statements, final String hash) throws SQLException {
+		final PreparedStatement st = statements.prepare(
 				"SELECT id FROM hashes WHERE hash=?;");
-		try {
-			st.setString(1, hash);
-			st.setMaxRows(2);
-			final ResultSet rs = st.executeQuery();
-			try {
-				if (!rs.next()) return null;
-				final String id = rs.getString(1);
-				if (rs.next()) throw new SQLException("Query for hash '" + hash + "' retured more than one result.");
-				return id;
-			}
-			finally {
-				rs.close();
-			}
-		}
-		finally {
-			st.close();
+		st.setString(1, hash);
+		st.setMaxRows(2);
+		try (final ResultSet rs = st.executeQuery()) {
+			if (!rs.next()) return null;
+			final String id = rs.getString(1);
+			if (rs.next()) throw new SQLException("Query for hash '" + hash + "' retured more than one result.");
+			return id;
 		}
 	}
 
@@ -272,27 +311,27 @@ public class MediaDb {
 	// Tags.
 
 	public Collection<Tag> getTags(final String fileId, final boolean inclideHidden, final boolean includeDeleted) throws SQLException {
-		return getTagsFromConn(this.dbConn, fileId, inclideHidden, includeDeleted);
+		try (final PooledConnection c = this.readPool.borrow()) {
+			return getTagsFromConn(c.getStatements(), fileId, inclideHidden, includeDeleted);
+		}
 	}
 
-	protected static Collection<Tag> getTagFromConn(final Connection conn, final String fileId, final String tag, final String cls) throws SQLException {
-		try (final PreparedStatement st = conn.prepareStatement(SELECT_FROM_TAGS + "file_id=? AND tag=? AND cls=?")) {
-			st.setString(1, fileId);
-			st.setString(2, tag);
-			st.setString(3, cls);
-			return readTagsResultSet(st);
-		}
+	protected static Collection<Tag> getTagFromConn(final StatementCache statements, final String fileId, final String tag, final String cls) throws SQLException {
+		final PreparedStatement st = statements.prepare(SELECT_FROM_TAGS + "file_id=? AND tag=? AND cls=?");
+		st.setString(1, fileId);
+		st.setString(2, tag);
+		st.setString(3, cls);
+		return readTagsResultSet(st);
 	}
 
-	protected static Collection<Tag> getTagsFromConn(final Connection conn, final String fileId, final boolean inclideHidden, final boolean includeDeleted) throws SQLException {
+	protected static Collection<Tag> getTagsFromConn(final StatementCache statements, final String fileId, final boolean inclideHidden, final boolean includeDeleted) throws SQLException {
 		String query = SELECT_FROM_TAGS + "file_id=?";
 		if (!inclideHidden) query += " AND cls NOT LIKE '.%'";
 		if (!includeDeleted) query += " AND deleted=0";
 		query += " ORDER BY tag ASC, cls ASC";
-		try (final PreparedStatement st = conn.prepareStatement(query)) {
-			st.setString(1, fileId);
-			return readTagsResultSet(st);
-		}
+		final PreparedStatement st = statements.prepare(query);
+		st.setString(1, fileId);
+		return readTagsResultSet(st);
 	}
 
 	private static final String SELECT_FROM_TAGS = "SELECT tag,cls,modified,deleted FROM tags WHERE ";
@@ -315,7 +354,8 @@ public class MediaDb {
 		}
 		SqlFragments.appendWhereAuth(sql, authIds);
 		sql.append(" GROUP BY tag ORDER BY freq DESC, tag ASC LIMIT ?;");
-		try (final PreparedStatement st = this.dbConn.prepareStatement(sql.toString())) {
+		try (final PooledConnection c = this.readPool.borrow()) {
+			final PreparedStatement st = c.prepare(sql.toString());
 			int param = 1;
 			if (pathPrefix != null) {
 				String pathLike = pathPrefix;
@@ -324,6 +364,7 @@ public class MediaDb {
 				st.setString(param++, Sqlite.escapeSearch(pathLike) + "%");
 				st.setString(param++, Sqlite.SEARCH_ESC);
 			}
+			param = SqlFragments.setAuthParams(st, param, authIds);
 			st.setInt(param++, countLimit);
 			st.setMaxRows(countLimit);
 			return readTagFrequencyResultSet(countLimit, st);
@@ -339,8 +380,9 @@ public class MediaDb {
 				+ " AND deleted=0"
 				+ " AND cls NOT LIKE '.%'"
 				+ " GROUP BY tag"
-				+ " ORDER BY tag ASC, freq DESC;";  // Sort order depended on by TagAutocompleter.
-		try (final PreparedStatement st = this.dbConn.prepareStatement(sql.toString())) {
+				+ " ORDER BY tag ASC, freq DESC;";
+		try (final PooledConnection c = this.readPool.borrow()) {
+			final PreparedStatement st = c.prepare(sql);
 			return readTagFrequencyResultSet(1000, st);
 		}
 	}
@@ -360,7 +402,8 @@ public class MediaDb {
 
 	public Map<String, String> getNodePrefs(final String nodeId) throws SQLException {
 		final Map<String, String> ret = new HashMap<>();
-		try (final PreparedStatement st = this.dbConn.prepareStatement("SELECT key, value FROM nodeprefs WHERE id=?;")) {
+		try (final PooledConnection c = this.readPool.borrow()) {
+			final PreparedStatement st = c.prepare("SELECT key, value FROM nodeprefs WHERE id=?;");
 			st.setString(1, nodeId);
 			try (final ResultSet rs = st.executeQuery()) {
 				while (rs.next()) {
@@ -373,7 +416,8 @@ public class MediaDb {
 
 	public Map<String, String> getAllNodePref(final String key) throws SQLException {
 		final Map<String, String> ret = new HashMap<>();
-		try (final PreparedStatement st = this.dbConn.prepareStatement("SELECT id, value FROM nodeprefs WHERE key=?;")) {
+		try (final PooledConnection c = this.readPool.borrow()) {
+			final PreparedStatement st = c.prepare("SELECT id, value FROM nodeprefs WHERE key=?;");
 			st.setString(1, key);
 			try (final ResultSet rs = st.executeQuery()) {
 				while (rs.next()) {
@@ -391,6 +435,7 @@ public class MediaDb {
 		final SQLiteConfig c = new SQLiteConfig();
 		c.setEncoding(Encoding.UTF8);
 		c.setSharedCache(true);
+		c.setJournalMode(JournalMode.WAL);  // So readers do not block the writer or each other.
 		c.setTransactionMode(TransactionMode.IMMEDIATE);
 		c.enforceForeignKeys(true);
 		c.setBusyTimeout((int) TimeUnit.SECONDS.toMillis(30));  // Should be longer than MediaMetadataStore.FILE_BATCH_MAX_DURATION.
@@ -401,6 +446,15 @@ public class MediaDb {
 		return DriverManager.getConnection(dbPath, makeDbConfig().toProperties());
 	}
 
+	// Private cache as shared cache connections serialise on table locks.
+	// In-memory DBs for tests ask for shared cache in the URI, so still work.
+	private static Connection makeReadOnlyDbConnection (final String dbPath) throws SQLException {
+		final SQLiteConfig c = makeDbConfig();
+		c.setSharedCache(false);
+		c.setReadOnly(true);
+		return DriverManager.getConnection(dbPath, c.toProperties());
+	}
+
 	private boolean tableExists (final String tableName) throws SQLException {
 		final Statement st = this.dbConn.createStatement();
 		try {
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
@@ -33,6 +34,10 @@ public class MediaMetadataStore {
 	private static final long FILE_BATCH_START_DELAY_MILLIS = 100;  // Yield to other activities / DB writers.
 	private static final long FILE_BATCH_MAX_DURATION_NANOS = TimeUnit.SECONDS.toNanos(10);
 	private static final int INFO_WRITE_INTERVAL_SECONDS = 30;
+	private static final int HASHED_QUEUE_MAX_SIZE = 1000;
+	private static final int DEFAULT_HASHES_PER_DEVICE = 1;
+	// Files this big get a provisional ID from a quick fingerprint so they can be served before the full hash is done.
+	private static final long QUICK_HASH_MIN_FILE_SIZE = 1024L * 1024L * 1024L; // 1gb.
 	private static final Logger LOG = LoggerFactory.getLogger(MediaMetadataStore.class);
 
 	// NOTE: this will fail is more than once instance of Watcher exists.
@@ -47,20 +52,38 @@ public class MediaMetadataStore {
 			.help("number of files that are inaccessable or very recently modified.")
 			.callback((cb) -> cb.call(this.storeInfoQueue.size()))
 			.build();
+	private final GaugeWithCallback hashedQueueMetric = GaugeWithCallback.builder()
+			.name("db_update_hashed_queue_size")
+			.help("number of hashed files waiting to be written to the DB.")
+			.callback((cb) -> cb.call(this.hashedQueue.size()))
+			.build();
 
 	private final BlockingQueue<FileTask> fileQueue = new LinkedBlockingQueue<>();
+	// Bounded so that hashing can not get too far ahead of the DB writer, hash workers block when it is full.
+	private final BlockingQueue<FileTask> hashedQueue = new LinkedBlockingQueue<>(HASHED_QUEUE_MAX_SIZE);
 	private final AtomicBoolean fileIdWorkerRunning = new AtomicBoolean(false);
+	private final Set<File> fullHashPending = ConcurrentHashMap.newKeySet();
 	private final BlockingQueue<FileIdAndInfo> storeInfoQueue = new LinkedBlockingQueue<>();
 
 	private final MediaDb mediaDb;
 	private final ScheduledExecutorService dbEx;
-	private final ExecutorService fsEx;
+	private final FileHasher fileHasher;
 	private final boolean verboseLog;
+	private volatile long quickHashMinFileSize = QUICK_HASH_MIN_FILE_SIZE;
+	private volatile FileStatSnapshot statSnapshot;
 
 	public MediaMetadataStore(final MediaDb mediaDb, final ScheduledExecutorService dbEx, final ExecutorService fsEx, final boolean verboseLog) {
+		this(mediaDb, dbEx, fsEx, DEFAULT_HASHES_PER_DEVICE, verboseLog);
+	}
+
+	/**
+	 * @param fsEx threads for hashing files.
+	 * @param hashesPerDevice max files hashed at once on one disk.
+	 */
+	public MediaMetadataStore(final MediaDb mediaDb, final ScheduledExecutorService dbEx, final ExecutorService fsEx, final int hashesPerDevice, final boolean verboseLog) {
 		this.mediaDb = mediaDb;
 		this.dbEx = dbEx;
-		this.fsEx = fsEx;
+		this.fileHasher = new FileHasher(fsEx, hashesPerDevice);
 		this.verboseLog = verboseLog;
 		dbEx.scheduleWithFixedDelay(new InfoWorker(), 0, INFO_WRITE_INTERVAL_SECONDS, TimeUnit.SECONDS);
 	}
@@ -68,14 +91,49 @@ public class MediaMetadataStore {
 	public void registerMetrics(final PrometheusRegistry registry) {
 		registry.register(this.fileQueueMetric);
 		registry.register(this.infoQueueMetric);
+		registry.register(this.hashedQueueMetric);
+		this.fileHasher.registerMetrics(registry);
+	}
+
+	void setQuickHashMinFileSize(final long bytes) {
+		this.quickHashMinFileSize = bytes;
 	}
 
 	public MediaDb getMediaDb() {
 		return this.mediaDb;
 	}
 
+	/**
+	 * Until discardStatSnapshot() is called, files that have not changed since this was called
+	 * get their ID straight away without going through the DB queue.
+	 * Intended for use during the initial scan.
+	 */
+	public void loadStatSnapshot() throws SQLException {
+		final long startTime = System.nanoTime();
+		final FileStatSnapshot snapshot = this.mediaDb.readFileStatSnapshot();
+		this.statSnapshot = snapshot;
+		LOG.info("Loaded stat snapshot of {} files in {}ms.", snapshot.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+	}
+
+	public void discardStatSnapshot() {
+		final FileStatSnapshot snapshot = this.statSnapshot;
+		if (snapshot == null) return;
+		this.statSnapshot = null;
+		LOG.info("Discarded stat snapshot: hits={} misses={} unused={}.", snapshot.hits(), snapshot.misses(), snapshot.size());
+	}
+
 	public void idForFile(final File file, final BigInteger auth, final MediaIdCallback callback) throws IOException, InterruptedException {
 		if (!file.isFile()) throw new IOException("Not a file: " + file.getAbsolutePath());
+
+		final FileStatSnapshot snapshot = this.statSnapshot;
+		if (snapshot != null) {
+			final String id = snapshot.idForUnchangedFile(file, auth);
+			if (id != null) {
+				callback.onResult(id);
+				return;
+			}
+		}
+
 		this.fileQueue.put(new FileTask(file, auth, callback));
 		scheduleFileIdBatchIfNeeded();
 	}
@@ -126,10 +184,14 @@ public class MediaMetadataStore {
 		try (final WritableMediaDb w = this.mediaDb.getWritable()) {
 			FileTask f = null;
 			do {
-				try {
-					f = this.fileQueue.poll(10, TimeUnit.MILLISECONDS);
+				// Finish files that have already been hashed first.
+				f = this.hashedQueue.poll();
+				if (f == null) {
+					try {
+						f = this.fileQueue.poll(10, TimeUnit.MILLISECONDS);
+					}
+					catch (final InterruptedException e) {/* ignore */}
 				}
-				catch (final InterruptedException e) {/* ignore */}
 				if (f != null) {
 					genericCallback = f.getGenericCallback();
 					if (genericCallback != null) break;
@@ -142,7 +204,7 @@ public class MediaMetadataStore {
 			// we have said we are not running anymore, any new work added to the queue
 			// will add a new batch.  if there is any work still on the queue, schedule a
 			// a batch to cover that.
-			if (this.fileQueue.size() > 0) {
+			if (this.fileQueue.size() > 0 || this.hashedQueue.size() > 0) {
 				scheduleFileIdBatchIfNeeded();
 			}
 		}
@@ -159,6 +221,9 @@ public class MediaMetadataStore {
 			case ID:
 				addOrUpdateFileData(w, task);
 				break;
+			case RECONCILE:
+				reconcileFullHash(w, task);
+				break;
 			case GONE:
 				// This is best effort as the file might have already been merged into another depending on message order.
 				w.setFileMissing(task.getFile().getAbsolutePath(), true, /* dbMustChange= */false);
@@ -192,12 +257,14 @@ public class MediaMetadataStore {
 			if (newFileData == null) return;  // This signals work has been put back on the queue.
 
 			id = canonicaliseAndStoreId(w, newFileData);
+			if (newFileData.isProvisional()) generateFullHashAsync(task);
 		}
 		else if (file.exists() && !oldFileData.upToDate(file)) {
 			final FileData updatedFileData = generateUpdatedFileData(w, oldFileData, task);
 			if (updatedFileData == null) return;  // This signals work has been put back on the queue.
 
 			id = canonicaliseAndStoreId(w, updatedFileData);
+			if (updatedFileData.isProvisional()) generateFullHashAsync(task);
 		}
 		else {
 			if (file.exists()) {
@@ -206,8 +273,12 @@ public class MediaMetadataStore {
 					w.setFileMissing(file.getAbsolutePath(), false);
 				}
 
+				// Provisional files get their MD5 with their full hash.
+				if (oldFileData.isProvisional()) {
+					generateFullHashAsync(task);
+				}
 				// Back fill MD5 if needed.
-				if (oldFileData.getMd5() == null) {
+				else if (oldFileData.getMd5() == null) {
 					final String md5 = HashHelper.md5(file).toString(16);  // slow.
 					w.updateFileData(file, oldFileData.withMd5(md5));
 				}
@@ -249,21 +320,95 @@ public class MediaMetadataStore {
 	}
 
 	private void generateFileDataAsync(final File file, final FileTask task) {
-		this.fsEx.execute(() -> {
-			try {
-				final FileData fileData = FileData.forFile(file);  // Slow.
-				this.fileQueue.put(task.withNewFileData(fileData));
+		final FileHasher.Callback callback = new FileHasher.Callback() {
+			@Override
+			public void onResult(final FileData fileData) throws InterruptedException {
+				MediaMetadataStore.this.hashedQueue.put(task.withNewFileData(fileData));
 				scheduleFileIdBatchIfNeeded();
 			}
-			catch (final IOException e) {
+
+			@Override
+			public void onError(final IOException e) {
 				task.getCallback().onError(e);
 			}
-			catch (final Exception e) {
-				task.getCallback().onError(new IOException(e));
+		};
+		if (file.length() >= this.quickHashMinFileSize) {
+			this.fileHasher.hashQuick(file, callback);
+		}
+		else {
+			this.fileHasher.hash(file, callback);
+		}
+	}
+
+	private void generateFullHashAsync(final FileTask task) {
+		final File file = task.getFile();
+		if (!this.fullHashPending.add(file)) return;
+		this.fileHasher.hashInBackground(file, new FileHasher.Callback() {
+			@Override
+			public void onResult(final FileData fileData) throws InterruptedException {
+				MediaMetadataStore.this.hashedQueue.put(task.forReconcile(fileData));
+				scheduleFileIdBatchIfNeeded();
+			}
+
+			@Override
+			public void onError(final IOException e) {
+				MediaMetadataStore.this.fullHashPending.remove(file);
+				LOG.warn("Failed to generate full hash for {}: {}", file.getAbsolutePath(), e.toString());
 			}
 		});
 	}
 
+	/**
+	 * Replaces a provisional hash with the full hash, merging into an existing ID the same way a new file would.
+	 * If the file has changed since it was hashed this does nothing as a newer task will have scheduled another full hash.
+	 */
+	private void reconcileFullHash(final WritableMediaDb w, final FileTask task) throws SQLException, IOException {
+		final File file = task.getFile();
+		this.fullHashPending.remove(file);
+
+		final FileData fullFileData = task.getNewFileData();
+		final FileData oldFileData = w.readFileData(file);
+		if (oldFileData == null || !oldFileData.isProvisional()
+				|| oldFileData.getSize() != fullFileData.getSize()
+				|| oldFileData.getModified() != fullFileData.getModified()) return;
+
+		final String provisionalId = w.canonicalIdForHash(oldFileData.getHash());
+		FileData fileData = fullFileData.withId(oldFileData.getId());
+		Collection<FileAndId> filesToRemove = null;
+
+		final Collection<FileAndId> otherFiles = w.filesWithHash(fullFileData.getHash());
+		excludeFilesThatStillExist(otherFiles);
+		final Set<String> otherIds = distinctIds(otherFiles);
+		if (otherIds.size() == 1) {
+			fileData = fullFileData.withId(otherIds.iterator().next());
+			filesToRemove = otherFiles;
+		}
+
+		w.updateFileData(file, fileData);
+		if (filesToRemove != null) {
+			removeFiles(w, filesToRemove);
+		}
+		if (w.filesWithHash(oldFileData.getHash()).size() < 1) {
+			w.removeCanonicalId(oldFileData.getHash());
+		}
+
+		final String id = canonicaliseAndStoreId(w, fileData);
+		if (this.verboseLog) {
+			LOG.info("Reconciled [merged={} id={}]: {}",
+					filesToRemove != null ? filesToRemove.size() : 0,
+					id.equals(provisionalId) ? "same" : provisionalId + "-->" + id,
+					file.getAbsolutePath());
+		}
+		if (!id.equals(provisionalId)) {
+			// Keep anything done to the item while it had its provisional ID,
+			// unless another file with the same fingerprint still has that ID.
+			if (provisionalId != null && w.hashesForId(provisionalId).size() < 1) {
+				w.moveTags(provisionalId, id);
+			}
+			task.getCallback().onIdChanged(id);
+		}
+	}
+
 	// returns null if work is being processed async.
 	private FileData generateNewFileData(final WritableMediaDb w, final FileTask task) throws IOException, SQLException {
 		final File file = task.getFile();
@@ -0,0 +1,75 @@
+package com.vaguehope.dlnatoad.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A connection borrowed from a ConnectionPool, closing it returns it to the pool.
+ * Statements from prepare() are cached per connection and must not be closed,
+ * but their ResultSets must be closed before this is.
+ */
+public class PooledConnection implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PooledConnection.class);
+
+	private final ConnectionPool pool;
+	private final Connection conn;
+	private final StatementCache statements;
+
+	PooledConnection(final ConnectionPool pool, final Connection conn) {
+		this.pool = pool;
+		this.conn = conn;
+		this.statements = new StatementCache(conn);
+	}
+
+	public Connection getConnection() {
+		return this.conn;
+	}
+
+	public StatementCache getStatements() {
+		return this.statements;
+	}
+
+	public PreparedStatement prepare(final String sql) throws SQLException {
+		return this.statements.prepare(sql);
+	}
+
+	@Override
+	public void close() {
+		boolean healthy;
+		try {
+			healthy = !this.conn.isClosed();
+		}
+		catch (final SQLException e) {
+			healthy = false;
+		}
+		if (healthy) {
+			this.pool.release(this);
+		}
+		else {
+			this.pool.discard(this);
+		}
+	}
+
+	/**
+	 * For connections left in an unknown state, closes it instead of returning it to the pool.
+	 */
+	void discard() {
+		this.pool.discard(this);
+	}
+
+	void closeConnection() {
+		this.statements.clear();
+		try {
+			this.conn.close();
+		}
+		catch (final SQLException e) {
+			LOG.warn("Failed to close DB connection.", e);
+		}
+	}
+
+}
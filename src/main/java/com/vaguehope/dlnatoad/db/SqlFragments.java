@@ -1,18 +1,21 @@
 package com.vaguehope.dlnatoad.db;
 
 import java.math.BigInteger;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.Set;
 
 public class SqlFragments {
 
+	/**
+	 * Adds a placeholder for each auth ID, so that the SQL only varies with the number of IDs.
+	 * This pairs with setAuthParams().
+	 */
 	public static void appendWhereAuth(final StringBuilder sql, final Set<BigInteger> authIds) {
 		sql.append(" auth IN ('0'");
 		if (authIds != null) {
-			for (final BigInteger authId : authIds) {
-				sql.append(",'");
-				sql.append(authId.toString(16));
-				sql.append("'");
-
+			for (int i = 0; i < authIds.size(); i++) {
+				sql.append(",?");
 			}
 		}
 		sql.append(")");
@@ -24,4 +27,18 @@ public class SqlFragments {
 		return a.toString();
 	}
 
+	/**
+	 * This pairs with appendWhereAuth().
+	 * Returns the next parameter index.
+	 */
+	public static int setAuthParams(final PreparedStatement st, final int firstParam, final Set<BigInteger> authIds) throws SQLException {
+		int param = firstParam;
+		if (authIds != null) {
+			for (final BigInteger authId : authIds) {
+				st.setString(param++, authId.toString(16));
+			}
+		}
+		return param;
+	}
+
 }
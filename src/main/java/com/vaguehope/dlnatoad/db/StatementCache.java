@@ -0,0 +1,103 @@
+package com.vaguehope.dlnatoad.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.metrics.Counter;
+
+/**
+ * Keeps compiled statements for a single connection, keyed by SQL text.
+ * Not thread safe, same as the Connection it wraps.
+ * Statements returned by prepare() must not be closed by the caller.
+ */
+public class StatementCache {
+
+	private static final int DEFAULT_MAX_SIZE = 100;
+	private static final Logger LOG = LoggerFactory.getLogger(StatementCache.class);
+
+	private static final Counter CACHE_METRIC = Counter.builder()
+			.name("db_statement_cache")
+			.labelNames("result")
+			.help("count of statement prepares by whether an already compiled statement was reused.")
+			.register();
+	private static final CounterDataPoint CACHE_HIT_METRIC = CACHE_METRIC.labelValues("hit");
+	private static final CounterDataPoint CACHE_MISS_METRIC = CACHE_METRIC.labelValues("miss");
+
+	private final Connection conn;
+	private final Map<String, PreparedStatement> statements;
+
+	public StatementCache(final Connection conn) {
+		this(conn, DEFAULT_MAX_SIZE);
+	}
+
+	public StatementCache(final Connection conn, final int maxSize) {
+		this.conn = conn;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Entry<String, PreparedStatement> eldest) {
+				if (size() <= maxSize) return false;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	public Connection getConnection() {
+		return this.conn;
+	}
+
+	public PreparedStatement prepare(final String sql) throws SQLException {
+		PreparedStatement st = this.statements.get(sql);
+		if (st != null) {
+			if (!st.isClosed()) {
+				st.clearParameters();
+				st.clearBatch();
+				st.setMaxRows(0);
+				CACHE_HIT_METRIC.inc();
+				return st;
+			}
+			this.statements.remove(sql);
+		}
+		CACHE_MISS_METRIC.inc();
+
+		try {
+			st = this.conn.prepareStatement(sql);
+		}
+		catch (final SQLException e) {
+			throw new SQLException("Failed to compile query (sql='" + sql + "').", e);
+		}
+		this.statements.put(sql, st);
+		return st;
+	}
+
+	public int size() {
+		return this.statements.size();
+	}
+
+	public void clear() {
+		for (final PreparedStatement st : this.statements.values()) {
+			closeQuietly(st);
+		}
+		this.statements.clear();
+	}
+
+	private static void closeQuietly(final PreparedStatement st) {
+		try {
+			st.close();
+		}
+		catch (final SQLException e) {
+			LOG.warn("Failed to close statement.", e);
+		}
+	}
+
+}
@@ -3,27 +3,27 @@ package com.vaguehope.dlnatoad.db;
 import java.io.PrintWriter;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
+import com.vaguehope.dlnatoad.db.TagTrie.TagCount;
 
-/*
- * Binary search and then step backwards/forwards inspired by:
- * https://stackoverflow.com/questions/9543046/implement-binary-search-with-string-prefix
+/**
+ * Suggests tags by prefix of the whole tag or of any fragment (suffix) of it.
+ * Built in full by generateIndex(), after which count changes are applied in place
+ * to only the parts of the tries they affect, so suggestions never need sorting.
  */
 public class TagAutocompleter {
 
@@ -34,8 +34,10 @@ public class TagAutocompleter {
 	private final MediaDb db;
 	private final ScheduledExecutorService schExSvc;
 
-	private FragmentAndTag[] tagsArr;
-	private FragmentAndTag[] fragmentsArr;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private Map<String, TagCount> counts;
+	private TagTrie tagsTrie;
+	private TagTrie fragmentsTrie;
 
 	public TagAutocompleter(final MediaDb db, final ScheduledExecutorService schExSvc) {
 		this.db = db;
@@ -62,332 +64,173 @@ public class TagAutocompleter {
 	}
 
 	public void addOrIncrementTag(final String tag) {
-		this.schExSvc.execute(() -> {
-			internalAddOrIncrementTag(tag, 1);
-		});
+		changeTagCount(tag, 1);
 	}
 
 	public void decrementTag(final String tag) {
-		this.schExSvc.execute(() -> {
-			internalAddOrIncrementTag(tag, -1);
-		});
+		changeTagCount(tag, -1);
 	}
 
 	public void changeTagCount(final String tag, final int delta) {
 		this.schExSvc.execute(() -> {
-			internalAddOrIncrementTag(tag, delta);
+			applyTagCountChange(tag, delta);
 		});
 	}
 
 	public List<TagFrequency> suggestTags(final String input) {
-		return binarySearch(this.tagsArr, input);
+		return suggest(input, false);
 	}
 
 	public List<TagFrequency> suggestFragments(final String input) {
-		return binarySearch(this.fragmentsArr, input);
+		return suggest(input, true);
 	}
 
-	public void dumpTo(final PrintWriter w) {
-		if (this.tagsArr != null) {
-			w.println("tagsArr:");
-			for (final FragmentAndTag f : this.tagsArr) {
-				printFragment(w, f);
-			}
+	private List<TagFrequency> suggest(final String input, final boolean fragments) {
+		final String inputIndexForm = indexForm(input);
+		this.lock.readLock().lock();
+		try {
+			final TagTrie trie = fragments ? this.fragmentsTrie : this.tagsTrie;
+			if (trie == null) return Collections.emptyList();
+			return trie.suggest(inputIndexForm);
 		}
-		w.println();
-		if (this.fragmentsArr != null) {
-			w.println("fragmentsArr:");
-			for (final FragmentAndTag f : this.fragmentsArr) {
-				printFragment(w, f);
-			}
+		finally {
+			this.lock.readLock().unlock();
 		}
 	}
 
-	private static void printFragment(final PrintWriter w, final FragmentAndTag f) {
-		w.print(StringUtils.rightPad(f.fragment, 40));
-		w.print("  ");
-		w.print(StringUtils.rightPad(f.tag, 40));
-		w.print("  ");
-		w.println(f.fileCount);
+	public void dumpTo(final PrintWriter w) {
+		this.lock.readLock().lock();
+		try {
+			if (this.tagsTrie != null) {
+				w.println("tags:");
+				this.tagsTrie.dumpTo(w);
+			}
+			w.println();
+			if (this.fragmentsTrie != null) {
+				w.println("fragments:");
+				this.fragmentsTrie.dumpTo(w);
+			}
+		}
+		finally {
+			this.lock.readLock().unlock();
+		}
 	}
 
 	/**
-	 * the index arrays should only contain lowercase so that they are sorted correctly for case-insensitive binary searches.
+	 * the index tries should only contain lowercase so that lookups are case-insensitive.
 	 */
 	private static String indexForm(final String tag) {
 		return tag.toLowerCase();
 	}
 
-	private static List<TagFrequency> binarySearch(final FragmentAndTag[] idx, final String input) {
-		if (idx == null) return Collections.emptyList();
-		final String inputIndexForm = indexForm(input);
-
-		final Range range = searchIndexArray(idx, inputIndexForm);
-		if (!range.found) return Collections.emptyList();
-
-		final FragmentAndTag[] matches = Arrays.copyOfRange(idx, range.start, range.end);
-		Arrays.sort(matches, FragmentAndTag.Order.COUNT_DESC);
-
-		// set to remove duplicates, eg: searching "2" will match "123923" as both "23923" and "23" fragments.
-		final Set<TagFrequency> ret = new LinkedHashSet<>();
-		for (int i = 0; i < matches.length && i < MAX_SUGGESTIONS; i++) {
-			final FragmentAndTag f = matches[i];
-			ret.add(new TagFrequency(f.tag, f.fileCount));
-		}
-		return new ArrayList<>(ret);
-	}
-
-	private static class FragmentPrefixComp implements Comparator<FragmentAndTag> {
-		private final String prefix;
-
-		public FragmentPrefixComp(final String prefix) {
-			this.prefix = prefix;
-		}
-
-		@Override
-		public int compare(final FragmentAndTag o1, final FragmentAndTag o2) {
-			final String p1;
-			if (o1.fragment.length() < this.prefix.length()) {
-				p1 = o1.fragment;
-			}
-			else {
-				p1 = o1.fragment.substring(0, this.prefix.length());
-			}
-			return p1.compareTo(o2.fragment);
-		}
-	}
-
 	public void generateIndex() throws SQLException {
-		final List<TagFrequency> tags = this.db.getAllTagsNotMissingNotDeleted();
-		generateTagsIndex(tags);
-		generateFragmentsIndex(tags);
+		generateIndex(this.db.getAllTagsNotMissingNotDeleted());
 	}
 
-	private void generateTagsIndex(final List<TagFrequency> tags) {
-		final List<FragmentAndTag> idx = new ArrayList<>(tags.size());
+	void generateIndex(final List<TagFrequency> tags) {
+		final Map<String, TagCount> counts = new HashMap<>(tags.size());
 		for (final TagFrequency tf : tags) {
-			final String tagForIndex = indexForm(tf.getTag());
-			idx.add(new FragmentAndTag(tagForIndex, tf.getTag(), tf.getCount()));
-
-			final String without = StringUtils.stripAccents(tagForIndex);
-			if (!without.equals(tagForIndex)) {
-				idx.add(new FragmentAndTag(without, tf.getTag(), tf.getCount()));
-			}
-		}
-		// Ensure sort is consistent with lookup, sqlite can sort slightly differently sometimes.
-		idx.sort(FragmentAndTag.Order.FRAGMENT_ASC);
-		LOG.info("Tags index: {}", idx.size());
-		this.tagsArr = idx.toArray(new FragmentAndTag[idx.size()]);
-	}
-
-	private void generateFragmentsIndex(final List<TagFrequency> tags) {
-		final List<FragmentAndTag> fragments = makeFragments(tags);
-		LOG.info("Fragments index: {}", fragments.size());
-
-		fragments.sort(FragmentAndTag.Order.FRAGMENT_ASC);
-		final Multiset<String> fragmentCounts = HashMultiset.create();
-		for (final Iterator<FragmentAndTag> i = fragments.iterator(); i.hasNext();) {
-			final FragmentAndTag n = i.next();
-			if (fragmentCounts.count(n.fragment) < MAX_SUGGESTIONS) {
-				fragmentCounts.add(n.fragment);
+			final TagCount c = counts.get(tf.getTag());
+			if (c != null) {
+				c.count += tf.getCount();
 			}
 			else {
-				i.remove();
+				counts.put(tf.getTag(), new TagCount(tf.getTag(), tf.getCount()));
 			}
 		}
 
-		LOG.info("Top fragments: {}", fragments.size());
-		this.fragmentsArr = fragments.toArray(new FragmentAndTag[fragments.size()]);
-	}
-
-	private static List<FragmentAndTag> makeFragments(final List<TagFrequency> allTags) {
-		final List<FragmentAndTag> allFragments = new ArrayList<>();
-		for (final TagFrequency tf : allTags) {
-			final String tagIndexForm = indexForm(tf.getTag());
-			allFragments.addAll(makeFragments(tagIndexForm, tf.getTag(), tf.getCount()));
-
-			final String without = StringUtils.stripAccents(tagIndexForm);
-			if (!without.equals(tagIndexForm)) {
-				allFragments.addAll(makeFragments(without, tf.getTag(), tf.getCount()));
+		final TagTrie newTagsTrie = new TagTrie(MAX_SUGGESTIONS);
+		final TagTrie newFragmentsTrie = new TagTrie(MAX_SUGGESTIONS);
+		for (final TagCount c : counts.values()) {
+			for (final String key : tagKeys(c.tag)) {
+				newTagsTrie.putWithoutTops(key, c);
+			}
+			for (final String key : fragmentKeys(c.tag)) {
+				newFragmentsTrie.putWithoutTops(key, c);
 			}
 		}
-		return allFragments;
-	}
+		newTagsTrie.rebuildTops();
+		newFragmentsTrie.rebuildTops();
+		LOG.info("Tags index: {}", newTagsTrie.keyCount());
+		LOG.info("Fragments index: {}", newFragmentsTrie.keyCount());
 
-	static List<FragmentAndTag> makeFragments(final String tagToFragment, final String realTag, final int fileCount) {
-		if (tagToFragment.length() < 2) return Collections.emptyList();
-		final List<FragmentAndTag> ret = new ArrayList<>(); // TODO would simple array be faster?
-		for (int i = 1; i < tagToFragment.length(); i++) {
-			final String frag = tagToFragment.substring(i);
-			if (Character.isWhitespace(frag.charAt(0))) continue;
-			ret.add(new FragmentAndTag(frag, realTag, fileCount));
+		this.lock.writeLock().lock();
+		try {
+			this.counts = counts;
+			this.tagsTrie = newTagsTrie;
+			this.fragmentsTrie = newFragmentsTrie;
 		}
-		return ret;
-	}
-
-	private void internalAddOrIncrementTag(final String tag, final int delta) {
-		addOrIncrementExactTag(tag, delta);
-		addOrIncrementFragments(tag, delta);
-	}
-
-	// Only synchronized to stop it interleaving with itself.
-	private synchronized void addOrIncrementExactTag(final String tag, final int delta) {
-		if (this.tagsArr == null) return;
-		final String tagIndexForm = indexForm(tag);
-
-		final Range range = searchIndexArray(this.tagsArr, tagIndexForm);
-		boolean incremented = false;
-		if (range.found) {
-			incremented = incrementRange(this.tagsArr, range, tag, tagIndexForm, delta);
-		}
-
-		if (!incremented && delta > 0) {
-			final int newIndex = range.randomIndex >= 0 ? range.randomIndex : 0 - range.randomIndex - 1;
-			final FragmentAndTag[] newTagsArr = new FragmentAndTag[this.tagsArr.length + 1];
-			System.arraycopy(this.tagsArr, 0, newTagsArr, 0, newIndex);
-			System.arraycopy(this.tagsArr, newIndex, newTagsArr, newIndex + 1, this.tagsArr.length - newIndex);
-			newTagsArr[newIndex] = new FragmentAndTag(tagIndexForm, tag, delta);
-			this.tagsArr = newTagsArr;
+		finally {
+			this.lock.writeLock().unlock();
 		}
 	}
 
-	// Only synchronized to stop it interleaving with itself.
-	private synchronized void addOrIncrementFragments(final String tag, final int delta) {
-		if (this.fragmentsArr == null) return;
+	/**
+	 * The tag and, if different, the tag without accents.
+	 */
+	private static Set<String> tagKeys(final String tag) {
 		final String tagIndexForm = indexForm(tag);
-
-		final List<String> fragments = new ArrayList<>();
-		for (int i = 1; i < tag.length(); i++) {
-			final String frag = tagIndexForm.substring(i);
-			if (Character.isWhitespace(frag.charAt(0))) continue;
-			fragments.add(frag);
-		}
-
-		for (final String frag : fragments) {
-			final Range range = searchIndexArray(this.fragmentsArr, frag);
-
-			// TODO atm this only increments fragments already in the index.
-			// it does not insert new fragments, as that would require re-ranking them etc.
-			if (!range.found) continue;
-
-			incrementRange(this.fragmentsArr, range, tag, frag, delta);
-		}
+		final Set<String> ret = new LinkedHashSet<>(2);
+		ret.add(tagIndexForm);
+		ret.add(StringUtils.stripAccents(tagIndexForm));
+		return ret;
 	}
 
-	private static Range searchIndexArray(final FragmentAndTag[] idx, final String inputIndexForm) {
-		if (idx == null) throw new IllegalArgumentException("null idx");
-
-		final FragmentPrefixComp comp = new FragmentPrefixComp(inputIndexForm);
-		final int randomIndex = Arrays.binarySearch(idx, new FragmentAndTag(inputIndexForm, "unused", -1), comp);
-		if (randomIndex < 0) return new Range(randomIndex);
-
-		int start = randomIndex;
-		while (start > -1 && idx[start].fragment.startsWith(inputIndexForm)) {
-			start--;
-		}
-		start += 1;
-
-		int end = randomIndex;
-		while (end < idx.length && idx[end].fragment.startsWith(inputIndexForm)) {
-			end++;
+	private static Set<String> fragmentKeys(final String tag) {
+		final Set<String> ret = new LinkedHashSet<>();
+		for (final String key : tagKeys(tag)) {
+			ret.addAll(makeFragments(key));
 		}
-
-		return new Range(start, end, randomIndex);
+		return ret;
 	}
 
-	private static boolean incrementRange(FragmentAndTag[] ixd, final Range range, final String tag, final String frag, final int delta) {
-		boolean found = false;
-		for (int i = range.start; i < range.end; i++) {
-			final FragmentAndTag match = ixd[i];
-			if (tag.equals(match.tag) && frag.equals(match.fragment)) {
-				found = true;
-				ixd[i] = match.changeCount(delta);
-			}
+	static List<String> makeFragments(final String tagToFragment) {
+		if (tagToFragment.length() < 2) return Collections.emptyList();
+		final List<String> ret = new ArrayList<>(tagToFragment.length() - 1);
+		for (int i = 1; i < tagToFragment.length(); i++) {
+			if (Character.isWhitespace(tagToFragment.charAt(i))) continue;
+			ret.add(tagToFragment.substring(i));
 		}
-		return found;
+		return ret;
 	}
 
-	static class FragmentAndTag {
-		final String fragment;
-		final String tag;
-		final int fileCount;
-
-		public FragmentAndTag(final String fragment, final String tag, final int fileCount) {
-			if (fragment == null) throw new IllegalArgumentException("fragment is null.");
-			if (tag == null) throw new IllegalArgumentException("tag is null.");
-			this.fragment = fragment;
-			this.tag = tag;
-			this.fileCount = fileCount;
-		}
-
-		public FragmentAndTag changeCount(final int delta) {
-			return new FragmentAndTag(this.fragment, this.tag, Math.max(this.fileCount + delta, 0));
-		}
-
-		@Override
-		public String toString() {
-			return String.format("FragmentAndTag{%s, %s, %s}", this.fragment, this.tag, this.fileCount);
-		}
-
-		@Override
-		public int hashCode() {
-			return Objects.hash(this.fragment, this.tag, this.fileCount);
-		}
-
-		@Override
-		public boolean equals(final Object obj) {
-			if (obj == null) return false;
-			if (this == obj) return true;
-			if (!(obj instanceof FragmentAndTag)) return false;
-			final FragmentAndTag that = (FragmentAndTag) obj;
-			return Objects.equals(this.fragment, that.fragment)
-					&& Objects.equals(this.tag, that.tag)
-					&& Objects.equals(this.fileCount, that.fileCount);
-		}
-
-		public enum Order implements Comparator<FragmentAndTag> {
-			FRAGMENT_ASC {
-				@Override
-				public int compare(final FragmentAndTag a, final FragmentAndTag b) {
-					final int c = a.fragment.compareTo(b.fragment);
-					if (c != 0) return c;
-					return COUNT_DESC.compare(a, b);
-				}
-			},
-			COUNT_DESC {
-				@Override
-				public int compare(final FragmentAndTag a, final FragmentAndTag b) {
-					final int c = Long.compare(b.fileCount, a.fileCount);
-					if (c != 0) return c;
-					return TAG_ASC.compare(a, b);
+	/**
+	 * Changes the count in place and adjusts only the trie nodes above the tag's keys.
+	 * Tags not yet in the index are added if delta is positive.
+	 */
+	void applyTagCountChange(final String tag, final int delta) {
+		if (delta == 0) return;
+		this.lock.writeLock().lock();
+		try {
+			if (this.counts == null) return;
+
+			final TagCount existing = this.counts.get(tag);
+			if (existing == null) {
+				if (delta < 0) return;
+				final TagCount c = new TagCount(tag, delta);
+				this.counts.put(tag, c);
+				for (final String key : tagKeys(tag)) {
+					this.tagsTrie.add(key, c);
 				}
-			},
-			TAG_ASC {
-				@Override
-				public int compare(final FragmentAndTag a, final FragmentAndTag b) {
-					return a.tag.compareTo(b.tag);
+				for (final String key : fragmentKeys(tag)) {
+					this.fragmentsTrie.add(key, c);
 				}
+				return;
 			}
-		}
-	}
-
-	static class Range {
-		final boolean found;
-		final int start;
-		final int end;
-		final int randomIndex;
 
-		public Range(final int start, final int end, int randomIndex) {
-			this.found = true;
-			this.start = start;
-			this.end = end;
-			this.randomIndex = randomIndex;
+			final int newCount = Math.max(existing.count + delta, 0);
+			if (newCount == existing.count) return;
+			final boolean increased = newCount > existing.count;
+			existing.count = newCount;
+			for (final String key : tagKeys(tag)) {
+				this.tagsTrie.countChanged(key, existing, increased);
+			}
+			for (final String key : fragmentKeys(tag)) {
+				this.fragmentsTrie.countChanged(key, existing, increased);
+			}
 		}
-		public Range(int randomIndex) {
-			this.found = false;
-			this.start = Integer.MIN_VALUE;
-			this.end = Integer.MIN_VALUE;
-			this.randomIndex = randomIndex;
+		finally {
+			this.lock.writeLock().unlock();
 		}
 	}
 
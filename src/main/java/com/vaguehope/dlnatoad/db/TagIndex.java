@@ -0,0 +1,202 @@
+package com.vaguehope.dlnatoad.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.vaguehope.dlnatoad.util.CompressedBitmap;
+
+/**
+ * In-memory inverted index of the not deleted rows of the tags table,
+ * from each tag to a bitmap of the file IDs that have it.
+ * File IDs are mapped to ordinals in the order they are first seen.
+ * Tags are matched ignoring ASCII case, the same as the tags table's NOCASE collation and LIKE.
+ * Updated by WritableMediaDb after each transaction commits.
+ */
+public class TagIndex {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TagIndex.class);
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, Integer> ordinals = new HashMap<>();
+	private final List<String> ids = new ArrayList<>();
+	private final Map<String, Map<String, CompressedBitmap>> tags = new HashMap<>();  // tag -> cls -> file ordinals.
+
+	void load(final Connection conn) throws SQLException {
+		final Stopwatch stopwatch = Stopwatch.createStarted();
+		int count = 0;
+		this.lock.writeLock().lock();
+		try (final Statement st = conn.createStatement()) {
+			try (final ResultSet rs = st.executeQuery("SELECT file_id,tag,cls FROM tags WHERE deleted=0")) {
+				while (rs.next()) {
+					setTagUnlocked(rs.getString(1), rs.getString(2), rs.getString(3), true);
+					count += 1;
+				}
+			}
+		}
+		finally {
+			this.lock.writeLock().unlock();
+		}
+		LOG.info("Loaded {} tags into index in {}.", count, stopwatch);
+	}
+
+	void apply(final List<TagChange> changes) {
+		if (changes.size() < 1) return;
+		this.lock.writeLock().lock();
+		try {
+			for (final TagChange c : changes) {
+				setTagUnlocked(c.fileId, c.tag, c.cls, c.present);
+			}
+		}
+		finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private void setTagUnlocked(final String fileId, final String tag, final String cls, final boolean present) {
+		final String tagKey = foldCase(tag);
+		final String clsKey = foldCase(cls);
+		if (present) {
+			Integer ordinal = this.ordinals.get(fileId);
+			if (ordinal == null) {
+				ordinal = this.ids.size();
+				this.ids.add(fileId);
+				this.ordinals.put(fileId, ordinal);
+			}
+			this.tags.computeIfAbsent(tagKey, k -> new HashMap<>(2))
+					.computeIfAbsent(clsKey, k -> new CompressedBitmap())
+					.add(ordinal);
+		}
+		else {
+			final Integer ordinal = this.ordinals.get(fileId);
+			if (ordinal == null) return;
+			final Map<String, CompressedBitmap> byCls = this.tags.get(tagKey);
+			if (byCls == null) return;
+			final CompressedBitmap b = byCls.get(clsKey);
+			if (b == null) return;
+			b.remove(ordinal);
+			if (b.isEmpty()) {
+				byCls.remove(clsKey);
+				if (byCls.isEmpty()) this.tags.remove(tagKey);
+			}
+		}
+	}
+
+	/**
+	 * Files with exactly this tag, of any cls.
+	 */
+	public CompressedBitmap filesWithTag(final String tag) {
+		this.lock.readLock().lock();
+		try {
+			return union(this.tags.get(foldCase(tag)), new CompressedBitmap());
+		}
+		finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Files with a tag containing the fragment, or starting or ending with it if anchored.
+	 */
+	public CompressedBitmap filesWithTagMatching(final String fragment, final boolean anchorStart, final boolean anchorEnd) {
+		final String f = foldCase(fragment);
+		final Predicate<String> matcher;
+		if (anchorStart && anchorEnd) {
+			matcher = (t) -> t.equals(f);
+		}
+		else if (anchorStart) {
+			matcher = (t) -> t.startsWith(f);
+		}
+		else if (anchorEnd) {
+			matcher = (t) -> t.endsWith(f);
+		}
+		else {
+			matcher = (t) -> t.contains(f);
+		}
+
+		this.lock.readLock().lock();
+		try {
+			CompressedBitmap ret = new CompressedBitmap();
+			for (final Map.Entry<String, Map<String, CompressedBitmap>> e : this.tags.entrySet()) {
+				if (matcher.test(e.getKey())) ret = union(e.getValue(), ret);
+			}
+			return ret;
+		}
+		finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	private static CompressedBitmap union(final Map<String, CompressedBitmap> byCls, final CompressedBitmap into) {
+		if (byCls == null) return into;
+		CompressedBitmap ret = into;
+		for (final CompressedBitmap b : byCls.values()) {
+			ret = ret.isEmpty() ? b.copy() : ret.or(b);
+		}
+		return ret;
+	}
+
+	public List<String> idsFor(final CompressedBitmap files) {
+		final List<String> ret = new ArrayList<>(files.cardinality());
+		this.lock.readLock().lock();
+		try {
+			files.forEach(o -> ret.add(this.ids.get(o)));
+		}
+		finally {
+			this.lock.readLock().unlock();
+		}
+		return ret;
+	}
+
+	public int tagCount() {
+		this.lock.readLock().lock();
+		try {
+			return this.tags.size();
+		}
+		finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Same as SQLite's NOCASE and LIKE, which only fold ASCII.
+	 */
+	static String foldCase(final String s) {
+		char[] ret = null;
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				if (ret == null) ret = s.toCharArray();
+				ret[i] = (char) (c + ('a' - 'A'));
+			}
+		}
+		return ret != null ? new String(ret) : s;
+	}
+
+	static class TagChange {
+		final String fileId;
+		final String tag;
+		final String cls;
+		final boolean present;
+
+		TagChange(final String fileId, final String tag, final String cls, final boolean present) {
+			this.fileId = fileId;
+			this.tag = tag;
+			this.cls = cls;
+			this.present = present;
+		}
+	}
+
+}
@@ -0,0 +1,397 @@
+package com.vaguehope.dlnatoad.db;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Compressed prefix tree from lowercase keys to the tags they were made from.
+ * Every node with children keeps the top tags of its whole subtree by file count,
+ * so a lookup only walks the prefix and then reads one precomputed list.
+ * A tag can be under many keys, so its count is held once in a shared TagCount,
+ * and after changing it countChanged() must be called for each of its keys.
+ * Not thread safe.
+ */
+class TagTrie {
+
+	private final int topSize;
+	private final Node root = new Node("");
+	private int keyCount = 0;
+
+	TagTrie(final int topSize) {
+		if (topSize < 1) throw new IllegalArgumentException("topSize must be positive: " + topSize);
+		this.topSize = topSize;
+	}
+
+	int keyCount() {
+		return this.keyCount;
+	}
+
+	/**
+	 * For bulk loading, rebuildTops() must be called before the trie is next read.
+	 * Adding the same tag twice under the same key is allowed.
+	 */
+	void putWithoutTops(final String key, final TagCount tag) {
+		insert(key).appendTerminal(tag);
+	}
+
+	void rebuildTops() {
+		rebuildTops(this.root);
+	}
+
+	private void rebuildTops(final Node node) {
+		node.sortTerminals();
+		for (int i = 0; i < node.childCount; i++) {
+			rebuildTops(node.children[i]);
+		}
+		if (node.childCount > 0) recomputeTop(node);
+	}
+
+	/**
+	 * Add a tag under a key, keeping top lists correct for the tag's current count.
+	 */
+	void add(final String key, final TagCount tag) {
+		final Node end = insert(key);
+		if (end.indexOfTerminal(tag) < 0) {
+			end.appendTerminal(tag);
+			bubble(end.terminals, end.terminalCount, end.terminalCount - 1);
+		}
+		updateTopsOnPath(key, tag, true);
+	}
+
+	/**
+	 * Call after changing the count of a tag previously added under this key.
+	 */
+	void countChanged(final String key, final TagCount tag, final boolean increased) {
+		final List<Node> path = path(key);
+		if (path == null) return;
+
+		final Node end = path.get(path.size() - 1);
+		final int i = end.indexOfTerminal(tag);
+		if (i >= 0) bubble(end.terminals, end.terminalCount, i);
+
+		updateTops(path, tag, increased);
+	}
+
+	/**
+	 * Top tags for all keys starting with prefix, highest count first.
+	 */
+	List<TagFrequency> suggest(final String prefix) {
+		final Node node = findPrefix(prefix);
+		if (node == null) return Collections.emptyList();
+
+		final TagCount[] top = node.top();
+		final int size = Math.min(node.topCount(), this.topSize);
+		final List<TagFrequency> ret = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			ret.add(new TagFrequency(top[i].tag, top[i].count));
+		}
+		return ret;
+	}
+
+	void dumpTo(final PrintWriter w) {
+		dumpTo(w, this.root, "");
+	}
+
+	private static void dumpTo(final PrintWriter w, final Node node, final String prefix) {
+		final String key = prefix + node.label;
+		for (int i = 0; i < node.terminalCount; i++) {
+			w.print(StringUtils.rightPad(key, 40));
+			w.print("  ");
+			w.print(StringUtils.rightPad(node.terminals[i].tag, 40));
+			w.print("  ");
+			w.println(node.terminals[i].count);
+		}
+		for (int i = 0; i < node.childCount; i++) {
+			dumpTo(w, node.children[i], key);
+		}
+	}
+
+	private Node insert(final String key) {
+		Node node = this.root;
+		int k = 0;
+		while (k < key.length()) {
+			final int ci = node.indexOfChild(key.charAt(k));
+			if (ci < 0) {
+				final Node leaf = new Node(key.substring(k));
+				addChild(node, -ci - 1, leaf);
+				this.keyCount += 1;
+				return leaf;
+			}
+
+			final Node child = node.children[ci];
+			final int common = commonPrefixLength(child.label, key, k);
+			if (common < child.label.length()) {
+				final Node mid = new Node(child.label.substring(0, common));
+				child.label = child.label.substring(common);
+				addChild(mid, 0, child);
+				node.children[ci] = mid;
+				node = mid;
+			}
+			else {
+				node = child;
+			}
+			k += common;
+		}
+		if (node.terminalCount == 0) this.keyCount += 1;
+		return node;
+	}
+
+	private void addChild(final Node parent, final int index, final Node child) {
+		parent.insertChild(index, child);
+		if (parent.childCount == 1) recomputeTop(parent);  // Was a leaf, so had no top of its own.
+	}
+
+	private static int commonPrefixLength(final String label, final String key, final int keyOffset) {
+		final int max = Math.min(label.length(), key.length() - keyOffset);
+		int i = 0;
+		while (i < max && label.charAt(i) == key.charAt(keyOffset + i)) {
+			i++;
+		}
+		return i;
+	}
+
+	private Node findPrefix(final String prefix) {
+		Node node = this.root;
+		int k = 0;
+		while (k < prefix.length()) {
+			final int ci = node.indexOfChild(prefix.charAt(k));
+			if (ci < 0) return null;
+			final Node child = node.children[ci];
+			final int common = commonPrefixLength(child.label, prefix, k);
+			if (k + common == prefix.length()) return child;  // Prefix ends at or inside this child's label.
+			if (common < child.label.length()) return null;
+			node = child;
+			k += common;
+		}
+		return node;
+	}
+
+	/**
+	 * Nodes from the root to the node for exactly this key, or null if key is not present.
+	 */
+	private List<Node> path(final String key) {
+		final List<Node> ret = new ArrayList<>();
+		Node node = this.root;
+		ret.add(node);
+		int k = 0;
+		while (k < key.length()) {
+			final int ci = node.indexOfChild(key.charAt(k));
+			if (ci < 0) return null;
+			node = node.children[ci];
+			if (!key.startsWith(node.label, k)) return null;
+			ret.add(node);
+			k += node.label.length();
+		}
+		return ret;
+	}
+
+	private void updateTopsOnPath(final String key, final TagCount tag, final boolean increased) {
+		final List<Node> path = path(key);
+		if (path != null) updateTops(path, tag, increased);
+	}
+
+	private void updateTops(final List<Node> path, final TagCount tag, final boolean increased) {
+		for (int p = path.size() - 1; p >= 0; p--) {
+			final Node node = path.get(p);
+			if (node.childCount > 0) updateTop(node, tag, increased);
+		}
+	}
+
+	/**
+	 * A list shorter than topSize holds every tag in the subtree, so only a tag
+	 * falling out of a full list needs the list recomputed from the children.
+	 */
+	private void updateTop(final Node node, final TagCount tag, final boolean increased) {
+		final int i = indexOf(node.top, node.topCount, tag);
+		if (i >= 0) {
+			if (increased || node.topCount < this.topSize) {
+				bubble(node.top, node.topCount, i);
+			}
+			else {
+				recomputeTop(node);
+			}
+		}
+		else if (increased) {
+			if (node.topCount < this.topSize) {
+				node.top[node.topCount] = tag;
+				node.topCount += 1;
+				bubble(node.top, node.topCount, node.topCount - 1);
+			}
+			else if (TagCount.Order.COUNT_DESC.compare(tag, node.top[node.topCount - 1]) < 0) {
+				node.top[node.topCount - 1] = tag;
+				bubble(node.top, node.topCount, node.topCount - 1);
+			}
+		}
+	}
+
+	private void recomputeTop(final Node node) {
+		final TagCount[] top = node.top != null ? node.top : new TagCount[this.topSize];
+		int size = 0;
+		size = mergeInto(top, size, node.terminals, node.terminalCount);
+		for (int i = 0; i < node.childCount; i++) {
+			final Node child = node.children[i];
+			size = mergeInto(top, size, child.top(), child.topCount());
+		}
+		Arrays.fill(top, size, top.length, null);
+		node.top = top;
+		node.topCount = size;
+	}
+
+	/**
+	 * Candidates must be sorted best first.
+	 */
+	private int mergeInto(final TagCount[] top, final int topCount, final TagCount[] candidates, final int candidateCount) {
+		int size = topCount;
+		for (int i = 0; i < candidateCount && i < this.topSize; i++) {
+			final TagCount c = candidates[i];
+			if (size >= this.topSize && TagCount.Order.COUNT_DESC.compare(c, top[size - 1]) >= 0) break;
+			if (indexOf(top, size, c) >= 0) continue;
+			if (size < this.topSize) {
+				top[size] = c;
+				size += 1;
+			}
+			else {
+				top[size - 1] = c;
+			}
+			bubble(top, size, size - 1);
+		}
+		return size;
+	}
+
+	private static int indexOf(final TagCount[] arr, final int size, final TagCount tag) {
+		for (int i = 0; i < size; i++) {
+			if (arr[i] == tag) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Move the element at i forwards or backwards until arr is sorted again.
+	 */
+	private static void bubble(final TagCount[] arr, final int size, final int i) {
+		int x = i;
+		while (x > 0 && TagCount.Order.COUNT_DESC.compare(arr[x], arr[x - 1]) < 0) {
+			swap(arr, x, x - 1);
+			x--;
+		}
+		while (x < size - 1 && TagCount.Order.COUNT_DESC.compare(arr[x], arr[x + 1]) > 0) {
+			swap(arr, x, x + 1);
+			x++;
+		}
+	}
+
+	private static void swap(final TagCount[] arr, final int a, final int b) {
+		final TagCount t = arr[a];
+		arr[a] = arr[b];
+		arr[b] = t;
+	}
+
+	private static class Node {
+		private static final char[] NO_CHARS = new char[0];
+		private static final Node[] NO_NODES = new Node[0];
+		private static final TagCount[] NO_TAGS = new TagCount[0];
+
+		String label;
+		char[] childChars = NO_CHARS;
+		Node[] children = NO_NODES;
+		int childCount = 0;
+		TagCount[] terminals = NO_TAGS;  // Tags with exactly this key, sorted best first.
+		int terminalCount = 0;
+		TagCount[] top;  // Only for nodes with children, leaves use terminals.
+		int topCount = 0;
+
+		Node(final String label) {
+			this.label = label;
+		}
+
+		TagCount[] top() {
+			return this.childCount > 0 ? this.top : this.terminals;
+		}
+
+		int topCount() {
+			return this.childCount > 0 ? this.topCount : this.terminalCount;
+		}
+
+		/**
+		 * Returns (-(insertion point) - 1) if not found, same as Arrays.binarySearch().
+		 */
+		int indexOfChild(final char c) {
+			return Arrays.binarySearch(this.childChars, 0, this.childCount, c);
+		}
+
+		void insertChild(final int index, final Node child) {
+			if (this.childCount == this.children.length) {
+				final int newLength = Math.max(2, this.childCount * 2);
+				this.childChars = Arrays.copyOf(this.childChars, newLength);
+				this.children = Arrays.copyOf(this.children, newLength);
+			}
+			System.arraycopy(this.childChars, index, this.childChars, index + 1, this.childCount - index);
+			System.arraycopy(this.children, index, this.children, index + 1, this.childCount - index);
+			this.childChars[index] = child.label.charAt(0);
+			this.children[index] = child;
+			this.childCount += 1;
+		}
+
+		int indexOfTerminal(final TagCount tag) {
+			return indexOf(this.terminals, this.terminalCount, tag);
+		}
+
+		void appendTerminal(final TagCount tag) {
+			if (this.terminalCount == this.terminals.length) {
+				this.terminals = Arrays.copyOf(this.terminals, Math.max(1, this.terminalCount * 2));
+			}
+			this.terminals[this.terminalCount] = tag;
+			this.terminalCount += 1;
+		}
+
+		/**
+		 * Also removes duplicates, which end up next to each other.
+		 */
+		void sortTerminals() {
+			if (this.terminalCount < 1) return;
+			Arrays.sort(this.terminals, 0, this.terminalCount, TagCount.Order.COUNT_DESC);
+			int size = 1;
+			for (int i = 1; i < this.terminalCount; i++) {
+				if (this.terminals[i] != this.terminals[size - 1]) {
+					this.terminals[size] = this.terminals[i];
+					size += 1;
+				}
+			}
+			Arrays.fill(this.terminals, size, this.terminalCount, null);
+			this.terminalCount = size;
+		}
+	}
+
+	static class TagCount {
+		final String tag;
+		int count;
+
+		TagCount(final String tag, final int count) {
+			this.tag = tag;
+			this.count = count;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("TagCount{%s, %s}", this.tag, this.count);
+		}
+
+		public enum Order implements Comparator<TagCount> {
+			COUNT_DESC {
+				@Override
+				public int compare(final TagCount a, final TagCount b) {
+					final int c = Integer.compare(b.count, a.count);
+					if (c != 0) return c;
+					return a.tag.compareTo(b.tag);
+				}
+			}
+		}
+	}
+
+}
@@ -18,6 +18,8 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vaguehope.dlnatoad.db.TagIndex.TagChange;
+
 import io.prometheus.metrics.core.metrics.Histogram;
 import io.prometheus.metrics.model.snapshots.Unit;
 
@@ -32,51 +34,71 @@ public class WritableMediaDb implements Closeable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(WritableMediaDb.class);
 
+	private final PooledConnection pooledConn;
 	private final Connection conn;
+	private final StatementCache statements;
 	private final AtomicLong writeCounter;
+	private final TagIndex tagIndex;
+	private final List<TagChange> tagChanges = new ArrayList<>();
 	private final long startTime;
 
-	protected WritableMediaDb(final Connection conn, final AtomicLong writeCounter) throws SQLException {
+	/**
+	 * Starts the transaction.
+	 */
+	protected WritableMediaDb(final PooledConnection pooledConn, final AtomicLong writeCounter, final TagIndex tagIndex) throws SQLException {
 		this.writeCounter = writeCounter;
-		if (conn.getAutoCommit()) {
-			throw new IllegalArgumentException("AutoCommit must not be enabled.");
-		}
-		this.conn = conn;
+		this.tagIndex = tagIndex;
+		pooledConn.getConnection().setAutoCommit(false);
+		this.pooledConn = pooledConn;
+		this.conn = pooledConn.getConnection();
+		this.statements = pooledConn.getStatements();
 		this.startTime = System.nanoTime();
 	}
 
 	@Override
 	public void close() throws IOException {
-		boolean committed = false;
+		boolean reusable = false;
 		try {
-			commitOrRollback();
-			committed = true;
+			this.conn.commit();
+			this.writeCounter.incrementAndGet();
+			reusable = true;
+			this.tagIndex.apply(this.tagChanges);
+		}
+		catch (final SQLException e) {
+			reusable = rollback();
+			throw new IOException("Failed to commit.", e);
 		}
 		finally {
 			TRANSACTION_DURATION.observe(Unit.nanosToSeconds(System.nanoTime() - this.startTime));
+			releaseConnection(reusable);
+		}
+	}
+
+	// commit() and rollback() immediately begin the next transaction, so end it before returning
+	// the connection to the pool or the idle connection would block all other writers.
+	// A connection that could not be rolled back is in an unknown state so is not reused.
+	private void releaseConnection(final boolean reusable) {
+		if (reusable) {
 			try {
-				this.conn.close();
+				this.conn.setAutoCommit(true);
+				this.pooledConn.close();
+				return;
 			}
 			catch (final SQLException e) {
-				if (committed) throw new IOException("Failed to close DB connection.", e);
-				LOG.error("Failed to close DB connection", e);
+				LOG.warn("Failed to end transaction, discarding DB connection.", e);
 			}
 		}
+		this.pooledConn.discard();
 	}
 
-	private void commitOrRollback() throws IOException {
+	private boolean rollback() {
 		try {
-			this.conn.commit();
-			this.writeCounter.incrementAndGet();
+			this.conn.rollback();
+			return true;
 		}
 		catch (final SQLException e) {
-			try {
-				this.conn.rollback();
-			}
-			catch (final SQLException e1) {
-				LOG.error("Failed to rollback transaction.", e1);
-			}
-			throw new IOException("Failed to commit.", e);
+			LOG.error("Failed to rollback transaction.", e);
+			return false;
 		}
 	}
 
@@ -85,63 +107,52 @@ public class WritableMediaDb implements Closeable {
 	// The read methods are here so they are reading from the same transaction as the writes around them.
 
 	protected FileData readFileData (final File file) throws SQLException {
-		return MediaDb.readFileDataFromConn(this.conn, file);
+		return MediaDb.readFileDataFromConn(this.statements, file);
 	}
 
 	protected Collection<File> filesWithId(final String id) throws SQLException {
-		try (final PreparedStatement st = this.conn.prepareStatement("SELECT file FROM files WHERE id=?;")) {
-			st.setString(1, id);
-			try (final ResultSet rs = st.executeQuery()) {
-				final Collection<File> ret = new ArrayList<>();
-				while (rs.next()) {
-					ret.add(new File(rs.getString(1)));
-				}
-				return ret;
+		final PreparedStatement st = this.statements.prepare("SELECT file FROM files WHERE id=?;");
+		st.setString(1, id);
+		try (final ResultSet rs = st.executeQuery()) {
+			final Collection<File> ret = new ArrayList<>();
+			while (rs.next()) {
+				ret.add(new File(rs.getString(1)));
 			}
+			return ret;
 		}
 	}
 
 	protected Collection<FileAndId> filesWithHash(final String hash) throws SQLException {
-		try (final PreparedStatement st = this.conn.prepareStatement("SELECT file,id FROM files WHERE hash=?;")) {
-			st.setString(1, hash);
-			try (final ResultSet rs = st.executeQuery()) {
-				final Collection<FileAndId> ret = new ArrayList<>();
-				while (rs.next()) {
-					ret.add(new FileAndId(new File(rs.getString(1)), rs.getString(2)));
-				}
-				return ret;
+		final PreparedStatement st = this.statements.prepare("SELECT file,id FROM files WHERE hash=?;");
+		st.setString(1, hash);
+		try (final ResultSet rs = st.executeQuery()) {
+			final Collection<FileAndId> ret = new ArrayList<>();
+			while (rs.next()) {
+				ret.add(new FileAndId(new File(rs.getString(1)), rs.getString(2)));
 			}
+			return ret;
 		}
 	}
 
 	public String canonicalIdForHash (final String hash) throws SQLException {
-		return MediaDb.canonicalIdForHashFromConn(this.conn, hash);
+		return MediaDb.canonicalIdForHashFromConn(this.statements, hash);
 	}
 
 	protected Collection<String> hashesForId (final String id) throws SQLException {
-		final PreparedStatement st = this.conn.prepareStatement(
+		final PreparedStatement st = this.statements.prepare(
 				"SELECT hash FROM hashes WHERE id=?;");
-		try {
-			st.setString(1, id);
-			final ResultSet rs = st.executeQuery();
-			try {
-				final Collection<String> ret = new ArrayList<>();
-				while(rs.next()) {
-					ret.add(rs.getString(1));
-				}
-				return ret;
-			}
-			finally {
-				rs.close();
+		st.setString(1, id);
+		try (final ResultSet rs = st.executeQuery()) {
+			final Collection<String> ret = new ArrayList<>();
+			while(rs.next()) {
+				ret.add(rs.getString(1));
 			}
-		}
-		finally {
-			st.close();
+			return ret;
 		}
 	}
 
 	protected void storeFileData (final File file, final FileData fileData) throws SQLException {
-		final PreparedStatement st = this.conn.prepareStatement(
+		final PreparedStatement st = this.statements.prepare(
 				"INSERT INTO files (file,size,modified,hash,md5,mimetype,id) VALUES (?,?,?,?,?,?,?);");
 		try {
 			st.setString(1, file.getAbsolutePath());
@@ -157,13 +168,10 @@ public class WritableMediaDb implements Closeable {
 		catch (final SQLException e) {
 			throw new SQLException(String.format("Failed to store new data for file %s \"%s\".", file, fileData), e);
 		}
-		finally {
-			st.close();
-		}
 	}
 
 	protected void updateFileData (final File file, final FileData fileData) throws SQLException {
-		final PreparedStatement st = this.conn.prepareStatement(
+		final PreparedStatement st = this.statements.prepare(
 				"UPDATE files SET size=?,modified=?,hash=?,md5=?,mimetype=?,id=?,missing=? WHERE file=?;");
 		try {
 			st.setLong(1, fileData.getSize());
@@ -180,13 +188,10 @@ public class WritableMediaDb implements Closeable {
 		catch (final SQLException e) {
 			throw new SQLException(String.format("Failed to update data for file %s to \"%s\".", file, fileData), e);
 		}
-		finally {
-			st.close();
-		}
 	}
 
 	protected void updateFileAuth(final File file, final BigInteger auth) throws SQLException {
-		final PreparedStatement st = this.conn.prepareStatement(
+		final PreparedStatement st = this.statements.prepare(
 				"UPDATE files SET auth=? WHERE file=?;");
 		try {
 			st.setString(1, auth.toString(16));
@@ -197,9 +202,6 @@ public class WritableMediaDb implements Closeable {
 		catch (final SQLException e) {
 			throw new SQLException(String.format("Failed to update auth for file %s to \"%s\".", file, auth.toString(16)), e);
 		}
-		finally {
-			st.close();
-		}
 	}
 
 	protected void setFileMissing(final String file, final boolean missing) throws SQLException {
@@ -207,7 +209,8 @@ public class WritableMediaDb implements Closeable {
 	}
 
 	protected void setFileMissing(final String file, final boolean missing, final boolean dbMustChange) throws SQLException {
-		try (final PreparedStatement st = this.conn.prepareStatement("UPDATE files SET missing=? WHERE file=?;")) {
+		try {
+			final PreparedStatement st = this.statements.prepare("UPDATE files SET missing=? WHERE file=?;");
 			st.setBoolean(1, missing);
 			st.setString(2, file);
 			final int n = st.executeUpdate();
@@ -219,7 +222,7 @@ public class WritableMediaDb implements Closeable {
 	}
 
 	protected void removeFile (final File file) throws SQLException {
-		final PreparedStatement st = this.conn.prepareStatement(
+		final PreparedStatement st = this.statements.prepare(
 				"DELETE FROM files WHERE file=?;");
 		try {
 			st.setString(1, file.getAbsolutePath());
@@ -229,13 +232,10 @@ public class WritableMediaDb implements Closeable {
 		catch (final SQLException e) {
 			throw new SQLException(String.format("Failed to remove file \"%s\".", file), e);
 		}
-		finally {
-			st.close();
-		}
 	}
 
 	protected void storeCanonicalId (final String hash, final String id) throws SQLException {
-		final PreparedStatement st = this.conn.prepareStatement(
+		final PreparedStatement st = this.statements.prepare(
 				"INSERT INTO hashes (hash,id) VALUES (?,?);");
 		try {
 			st.setString(1, hash);
@@ -246,21 +246,29 @@ public class WritableMediaDb implements Closeable {
 		catch (final SQLException e) {
 			throw new SQLException(String.format("Failed to store canonical ID '%s' for hash '%s'.", id, hash), e);
 		}
-		finally {
-			st.close();
+	}
+
+	protected void removeCanonicalId (final String hash) throws SQLException {
+		final PreparedStatement st = this.statements.prepare(
+				"DELETE FROM hashes WHERE hash=?;");
+		try {
+			st.setString(1, hash);
+			st.executeUpdate();
+		}
+		catch (final SQLException e) {
+			throw new SQLException(String.format("Failed to remove canonical ID for hash '%s'.", hash), e);
 		}
 	}
 
 	public Collection<String> hashesForMd5(final String md5) throws SQLException {
-		try (final PreparedStatement st = this.conn.prepareStatement("SELECT hash FROM files WHERE md5=?;")) {
-			st.setString(1, md5);
-			try (final ResultSet rs = st.executeQuery()) {
-				final Collection<String> ret = new ArrayList<>();
-				while (rs.next()) {
-					ret.add(rs.getString(1));
-				}
-				return ret;
+		final PreparedStatement st = this.statements.prepare("SELECT hash FROM files WHERE md5=?;");
+		st.setString(1, md5);
+		try (final ResultSet rs = st.executeQuery()) {
+			final Collection<String> ret = new ArrayList<>();
+			while (rs.next()) {
+				ret.add(rs.getString(1));
 			}
+			return ret;
 		}
 	}
 
@@ -270,57 +278,47 @@ public class WritableMediaDb implements Closeable {
 	protected void storeInfos(final List<FileIdAndInfo> toStore) throws SQLException {
 		final List<FileIdAndInfo> toInsert = new ArrayList<>();
 
-		final PreparedStatement stUpdate = this.conn.prepareStatement(
+		final PreparedStatement stUpdate = this.statements.prepare(
 				"UPDATE infos SET size=?,duration=?,width=?,height=? WHERE file_id=?;");
-		try {
-			for (final FileIdAndInfo fai : toStore) {
-				stUpdate.setLong(1, fai.getFile().length());
-				stUpdate.setLong(2, fai.getInfo().getDurationMillis());
-				stUpdate.setInt(3, fai.getInfo().getWidth());
-				stUpdate.setInt(4, fai.getInfo().getHeight());
-				stUpdate.setString(5, fai.getFileId());
-				stUpdate.addBatch();
-			}
-			final int[] nUpdated = stUpdate.executeBatch();
-
-			for (int i = 0; i < nUpdated.length; i++) {
-				if (nUpdated[i] < 1) {
-					toInsert.add(toStore.get(i));
-				}
+		for (final FileIdAndInfo fai : toStore) {
+			stUpdate.setLong(1, fai.getFile().length());
+			stUpdate.setLong(2, fai.getInfo().getDurationMillis());
+			stUpdate.setInt(3, fai.getInfo().getWidth());
+			stUpdate.setInt(4, fai.getInfo().getHeight());
+			stUpdate.setString(5, fai.getFileId());
+			stUpdate.addBatch();
+		}
+		final int[] nUpdated = stUpdate.executeBatch();
+
+		for (int i = 0; i < nUpdated.length; i++) {
+			if (nUpdated[i] < 1) {
+				toInsert.add(toStore.get(i));
 			}
 		}
-		finally {
-			stUpdate.close();
-		}
 
 		final Set<String> insertedIds = new HashSet<>();
-		final PreparedStatement stInsert = this.conn.prepareStatement(
+		final PreparedStatement stInsert = this.statements.prepare(
 				"INSERT INTO infos (file_id,size,duration,width,height) VALUES (?,?,?,?,?);");
-		try {
-			for (final FileIdAndInfo fai : toInsert) {
-				if (insertedIds.contains(fai.getFileId())) {
-					LOG.info("Skipping writing info duplicate file_id into infos table in same batch: {}", fai.getFileId());
-					continue;
-				}
-				insertedIds.add(fai.getFileId());
-
-				stInsert.setString(1, fai.getFileId());
-				stInsert.setLong(2, fai.getFile().length());
-				stInsert.setLong(3, fai.getInfo().getDurationMillis());
-				stInsert.setInt(4, fai.getInfo().getWidth());
-				stInsert.setInt(5, fai.getInfo().getHeight());
-				stInsert.addBatch();
+		for (final FileIdAndInfo fai : toInsert) {
+			if (insertedIds.contains(fai.getFileId())) {
+				LOG.info("Skipping writing info duplicate file_id into infos table in same batch: {}", fai.getFileId());
+				continue;
 			}
-			final int[] nInserted = stInsert.executeBatch();
+			insertedIds.add(fai.getFileId());
 
-			for (int i = 0; i < nInserted.length; i++) {
-				if (nInserted[i] < 1) {
-					LOG.error("No insert occured inserting key '{}'.", toInsert.get(i).getFile().getAbsolutePath());
-				}
-			}
+			stInsert.setString(1, fai.getFileId());
+			stInsert.setLong(2, fai.getFile().length());
+			stInsert.setLong(3, fai.getInfo().getDurationMillis());
+			stInsert.setInt(4, fai.getInfo().getWidth());
+			stInsert.setInt(5, fai.getInfo().getHeight());
+			stInsert.addBatch();
 		}
-		finally {
-			stInsert.close();
+		final int[] nInserted = stInsert.executeBatch();
+
+		for (int i = 0; i < nInserted.length; i++) {
+			if (nInserted[i] < 1) {
+				LOG.error("No insert occured inserting key '{}'.", toInsert.get(i).getFile().getAbsolutePath());
+			}
 		}
 	}
 
@@ -348,8 +346,32 @@ public class WritableMediaDb implements Closeable {
 		return mergeTag(fileId, tag, cls, modifiled, /* deleted= */deleted, /* updateModified= */true, /* insertOnly= */false);
 	}
 
+	/**
+	 * Merge every tag, including deleted ones, from one ID into another then remove them from the first ID.
+	 */
+	protected void moveTags(final String fromFileId, final String toFileId) throws SQLException {
+		final Collection<Tag> tags = MediaDb.getTagsFromConn(this.statements, fromFileId, true, true);
+		if (tags.size() < 1) return;
+
+		for (final Tag t : tags) {
+			mergeTag(toFileId, t.getTag(), t.getCls(), t.getModified(), t.isDeleted());
+		}
+
+		try {
+			final PreparedStatement st = this.statements.prepare("DELETE FROM tags WHERE file_id=?");
+			st.setString(1, fromFileId);
+			st.executeUpdate();
+		}
+		catch (final SQLException e) {
+			throw new SQLException(String.format("Failed to remove tags for id=%s", fromFileId), e);
+		}
+		for (final Tag t : tags) {
+			if (!t.isDeleted()) this.tagChanges.add(new TagChange(fromFileId, t.getTag(), t.getCls(), false));
+		}
+	}
+
 	private boolean mergeTag(final String fileId, final String tag, final String cls, final long modifiled, final boolean deleted, final boolean updateModified, final boolean insertOnly) throws SQLException {
-		final Collection<Tag> existing = MediaDb.getTagFromConn(this.conn, fileId, tag, cls);
+		final Collection<Tag> existing = MediaDb.getTagFromConn(this.statements, fileId, tag, cls);
 		if (existing.size() > 1) throw new IllegalStateException(String.format("DB UNIQUE(file_id, tag) constraint failed: id=%s tag='%s'", fileId, tag));
 		if (existing.size() > 0) {
 			if (insertOnly) return false;
@@ -367,8 +389,9 @@ public class WritableMediaDb implements Closeable {
 			return true;
 		}
 
-		try (final PreparedStatement st = this.conn.prepareStatement(
-				"INSERT INTO tags (file_id,tag,cls,modified,deleted) VALUES (?,?,?,?,?)")) {
+		try {
+			final PreparedStatement st = this.statements.prepare(
+					"INSERT INTO tags (file_id,tag,cls,modified,deleted) VALUES (?,?,?,?,?)");
 			st.setString(1, fileId);
 			st.setString(2, tag);
 			st.setString(3, cls);
@@ -376,6 +399,7 @@ public class WritableMediaDb implements Closeable {
 			st.setBoolean(5, deleted);  // Yes first write might be recoding a deletion.
 			final int n = st.executeUpdate();
 			if (n < 1) throw new SQLException(String.format("No update occured inserting tag for id=%s: tag='%s' cls='%s'", fileId, tag, cls));
+			if (!deleted) this.tagChanges.add(new TagChange(fileId, tag, cls, true));
 			return true;
 		}
 		catch (final SQLException e) {
@@ -384,7 +408,8 @@ public class WritableMediaDb implements Closeable {
 	}
 
 	public void setTagModifiedAndDeleted(final String fileId, final String tag, final String cls, final boolean deleted, final long modifiled) throws SQLException {
-		try (final PreparedStatement st = this.conn.prepareStatement("UPDATE tags SET deleted=?,modified=? WHERE file_id=? AND tag=? AND cls=?")) {
+		try {
+			final PreparedStatement st = this.statements.prepare("UPDATE tags SET deleted=?,modified=? WHERE file_id=? AND tag=? AND cls=?");
 			st.setInt(1, deleted ? 1 : 0);
 			st.setLong(2, modifiled);
 			st.setString(3, fileId);
@@ -392,6 +417,7 @@ public class WritableMediaDb implements Closeable {
 			st.setString(5, cls);
 			final int n = st.executeUpdate();
 			if (n < 1) throw new SQLException(String.format("No update occured setting tag deleted=%s: id=%s tag='%s' cls='%s'", deleted, fileId, tag, cls));
+			this.tagChanges.add(new TagChange(fileId, tag, cls, !deleted));
 		}
 		catch (final SQLException e) {
 			throw new SQLException(String.format("Failed to set tag deleted=%s: id=%s tag='%s' cls='%s'", deleted, fileId, tag, cls), e);
@@ -399,7 +425,8 @@ public class WritableMediaDb implements Closeable {
 	}
 
 	public void updateTagString(final String fileId, final String tag, final String cls) throws SQLException {
-		try (final PreparedStatement st = this.conn.prepareStatement("UPDATE tags SET tag=? WHERE file_id=? AND tag=? AND cls=?")) {
+		try {
+			final PreparedStatement st = this.statements.prepare("UPDATE tags SET tag=? WHERE file_id=? AND tag=? AND cls=?");
 			st.setString(1, tag);
 			st.setString(2, fileId);
 			st.setString(3, tag);
@@ -416,7 +443,8 @@ public class WritableMediaDb implements Closeable {
 	// prefs:
 
 	public void setNodePref(final String nodeId, final String key, final String value) throws SQLException {
-		try (final PreparedStatement st = this.conn.prepareStatement("DELETE FROM nodeprefs WHERE id=? AND key=?")) {
+		try {
+			final PreparedStatement st = this.statements.prepare("DELETE FROM nodeprefs WHERE id=? AND key=?");
 			st.setString(1, nodeId);
 			st.setString(2, key);
 			st.executeUpdate();
@@ -427,7 +455,8 @@ public class WritableMediaDb implements Closeable {
 
 		if (value == null) return;
 
-		try (final PreparedStatement st = this.conn.prepareStatement("INSERT INTO nodeprefs (id,key,value) VALUES(?,?,?)")) {
+		try {
+			final PreparedStatement st = this.statements.prepare("INSERT INTO nodeprefs (id,key,value) VALUES(?,?,?)");
 			st.setString(1, nodeId);
 			st.setString(2, key);
 			st.setString(3, value);
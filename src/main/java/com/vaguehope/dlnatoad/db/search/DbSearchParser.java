@@ -4,14 +4,26 @@ import java.math.BigInteger;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Supplier;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.vaguehope.dlnatoad.db.MediaDb;
+import com.vaguehope.dlnatoad.db.PooledConnection;
 import com.vaguehope.dlnatoad.db.SqlFragments;
 import com.vaguehope.dlnatoad.db.Sqlite;
 import com.vaguehope.dlnatoad.db.TagFrequency;
+import com.vaguehope.dlnatoad.db.TagIndex;
+import com.vaguehope.dlnatoad.util.CompressedBitmap;
+
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.metrics.Counter;
 
 public class DbSearchParser {
 
@@ -22,15 +34,20 @@ public class DbSearchParser {
 	private static final String _SQL_MEDIAFILES_SELECT =
 			"SELECT DISTINCT id FROM files INNER JOIN hashes USING (id) WHERE missing=0";
 
+	private static final String _SQL_MEDIAFILES_KEYSET_SELECT =
+			"SELECT id, SORTKEY AS sortkey FROM files INNER JOIN hashes USING (id) WHERE missing=0";
+
 	private static final String _SQL_TAG_FREQUENCY_SELECT =
 			"SELECT DISTINCT tag, COUNT(DISTINCT file_id) AS freq"
 			+ " FROM files, tags"
 			+ " WHERE id=file_id AND missing=0 AND deleted=0 AND cls NOT LIKE '.%' AND id IN (FILEQUERY)"
 			+ " GROUP BY tag"
-			+ " ORDER BY freq DESC, tag ASC;";
+			+ " ORDER BY freq DESC, tag ASC";
 
 	private static final String _SQL_AND = " AND";
 	private static final String _SQL_OR = " OR";
+	private static final String _SQL_OPEN = " ( ";
+	private static final String _SQL_CLOSE = " ) ";
 
 	private static final String _SQL_MEDIAFILES_WHERES_FILE =
 			" (file LIKE ? ESCAPE ?)";
@@ -63,6 +80,35 @@ public class DbSearchParser {
 	private static final String _SQL_MEDIAFILES_WHERES_FILEORTAG =
 			" (file LIKE ? ESCAPE ? OR id IN (SELECT file_id FROM tags WHERE tag LIKE ? ESCAPE ? AND deleted=0))";
 
+	private static final String _SQL_MEDIAFILES_WHERES_INDEXED =
+			" (id IN (SELECT value FROM json_each(?)))";
+
+	private static final String _SQL_MEDIAFILES_WHERES_NOT_INDEXED =
+			" NOT " + _SQL_MEDIAFILES_WHERES_INDEXED;
+
+	// Past this binding the IDs as JSON costs more than the LIKE subqueries it replaces.
+	private static final int MAX_INDEXED_FILES = 100000;
+
+	private static final Cache<String, String> SQL_CACHE = CacheBuilder.newBuilder()
+			.maximumSize(1000L)
+			.build();
+
+	private static final Counter SQL_CACHE_METRIC = Counter.builder()
+			.name("db_search_plan_cache")
+			.labelNames("result")
+			.help("count of search SQL lookups by whether a query with the same shape had been built before.")
+			.register();
+	private static final CounterDataPoint SQL_CACHE_HIT_METRIC = SQL_CACHE_METRIC.labelValues("hit");
+	private static final CounterDataPoint SQL_CACHE_MISS_METRIC = SQL_CACHE_METRIC.labelValues("miss");
+
+	private static final Counter TAG_INDEX_METRIC = Counter.builder()
+			.name("db_search_tag_index")
+			.labelNames("result")
+			.help("count of tag only searches by whether they were answered by the in-memory tag index or fell back to SQL.")
+			.register();
+	private static final CounterDataPoint TAG_INDEX_HIT_METRIC = TAG_INDEX_METRIC.labelValues("index");
+	private static final CounterDataPoint TAG_INDEX_FALLBACK_METRIC = TAG_INDEX_METRIC.labelValues("sql");
+
 	private DbSearchParser () {
 		throw new AssertionError();
 	}
@@ -87,129 +133,416 @@ public class DbSearchParser {
 			final SortOrder[] sort) {
 		if (sort == null || sort.length < 1) throw new IllegalArgumentException("Sort must be specified");
 
-		final StringBuilder sql = new StringBuilder(_SQL_MEDIAFILES_SELECT);
-		if (!bypassAuthChecks) {
-			sql.append(_SQL_AND);
-			SqlFragments.appendWhereAuth(sql, authIds);
-		}
-
 		final List<String> terms = QuerySplitter.split(allTerms, MAX_SEARCH_TERMS);
-		appendWhereTerms(sql, terms, authIds);
+		final List<TermType> types = TermType.classify(terms);
+
+		final SqlBuilder builder = (mode) -> {
+			final StringBuilder key = new StringBuilder("files|").append(mode).append("|");
+			if (bypassAuthChecks) {
+				key.append("noauth|");
+			}
+			else {
+				key.append(authCount(authIds)).append("|");
+			}
+			for (final SortOrder s : sort) {
+				key.append(s.toSql()).append(",");
+			}
+			return cachedSql(key, terms, types, () -> {
+				final StringBuilder b = new StringBuilder(_SQL_MEDIAFILES_SELECT);
+				appendFileWheres(b, terms, types, authIds, bypassAuthChecks, mode);
+
+				b.append(" ORDER BY ");
+				for (int i = 0; i < sort.length; i++) {
+					if (i > 0) b.append(",");
+					b.append(sort[i].toSql());
+				}
+				return b.toString();
+			});
+		};
 
-		sql.append(" ORDER BY ");
-		for (int i = 0; i < sort.length; i++) {
-			if (i > 0) sql.append(",");
-			sql.append(sort[i].toSql());
+		return new DbSearch(builder, terms, types, bypassAuthChecks ? null : authIds, !bypassAuthChecks, sort[0]);
+	}
+
+	/**
+	 * Rows are grouped by ID so each ID has one sort key, then ID breaks ties between equal keys.
+	 * When paging backwards the order is reversed and the caller reverses the results.
+	 */
+	private static String keysetSql(
+			final List<String> terms,
+			final List<TermType> types,
+			final Set<BigInteger> authIds,
+			final boolean bypassAuthChecks,
+			final SortOrder sort,
+			final boolean hasCursor,
+			final boolean backwards,
+			final WhereMode mode) {
+		final StringBuilder key = new StringBuilder("keyset|").append(mode).append("|");
+		key.append(hasCursor ? "cursor|" : "start|");
+		key.append(backwards ? "before|" : "after|");
+		if (bypassAuthChecks) {
+			key.append("noauth|");
 		}
+		else {
+			key.append(authCount(authIds)).append("|");
+		}
+		key.append(sort.toSql()).append("|");
+		return cachedSql(key, terms, types, () -> {
+			final boolean descending = sort.isDescending() != backwards;
+			final StringBuilder b = new StringBuilder(_SQL_MEDIAFILES_KEYSET_SELECT.replace("SORTKEY", sort.keyAggregateSql()));
+			appendFileWheres(b, terms, types, authIds, bypassAuthChecks, mode);
+			b.append(" GROUP BY id");
+			if (hasCursor) {
+				final String sortKey = sort.collated("sortkey");
+				b.append(" HAVING (").append(sortKey).append(descending ? " < ?" : " > ?")
+						.append(" OR (").append(sortKey).append(" = ? AND id").append(backwards ? " < ?" : " > ?").append("))");
+			}
+			b.append(" ORDER BY ").append(sort.collated("sortkey")).append(descending ? " DESC" : " ASC")
+					.append(", id").append(backwards ? " DESC" : " ASC");
+			b.append(" LIMIT ?");
+			return b.toString();
+		});
+	}
 
-		return new DbSearch(sql.toString(), terms);
+	private static void appendFileWheres(
+			final StringBuilder b,
+			final List<String> terms,
+			final List<TermType> types,
+			final Set<BigInteger> authIds,
+			final boolean bypassAuthChecks,
+			final WhereMode mode) {
+		if (!bypassAuthChecks) {
+			b.append(_SQL_AND);
+			SqlFragments.appendWhereAuth(b, authIds);
+		}
+		appendWhereTerms(b, terms, types, authIds, mode);
 	}
 
 	public static TagFrequencySearch parseSearchForTags (
 			final String allTerms,
 			final Set<BigInteger> authIds) {
+		final List<String> terms = QuerySplitter.split(allTerms, MAX_SEARCH_TERMS);
+		final List<TermType> types = TermType.classify(terms);
+
+		final SqlBuilder builder = (mode) -> {
+			final StringBuilder key = new StringBuilder("tags|").append(mode).append("|").append(authCount(authIds)).append("|");
+			return cachedSql(key, terms, types, () -> {
+				final StringBuilder fileQuery = new StringBuilder(_SQL_MEDIAFILES_SELECT);
+				appendFileWheres(fileQuery, terms, types, authIds, false, mode);
+				return _SQL_TAG_FREQUENCY_SELECT.replace("FILEQUERY", fileQuery.toString());
+			});
+		};
+
+		return new TagFrequencySearch(builder, terms, types, authIds, true);
+	}
 
-		final StringBuilder fileQuery = new StringBuilder(_SQL_MEDIAFILES_SELECT);
-		fileQuery.append(_SQL_AND);
-		SqlFragments.appendWhereAuth(fileQuery, authIds);
+	private static int authCount(final Set<BigInteger> authIds) {
+		return authIds != null ? authIds.size() : 0;
+	}
 
-		final List<String> terms = QuerySplitter.split(allTerms, MAX_SEARCH_TERMS);
-		appendWhereTerms(fileQuery, terms, authIds);
+	/**
+	 * The SQL only depends on the type of each term and the number of auth IDs,
+	 * the terms and IDs themselves are bound as parameters, so queries with the same shape share SQL
+	 * and so also share compiled statements in the StatementCache.
+	 */
+	private static String cachedSql(final StringBuilder key, final List<String> terms, final List<TermType> types, final Supplier<String> builder) {
+		for (int i = 0; i < types.size(); i++) {
+			final TermType type = types.get(i);
+			key.append(type.name());
+			if (type == TermType.WIDTH_OR_HEIGHT) key.append(DbSearchSyntax.widthOrHeight(terms.get(i)));
+			key.append(" ");
+		}
 
-		final String tagQuery = _SQL_TAG_FREQUENCY_SELECT.replace("FILEQUERY", fileQuery.toString());
-		return new TagFrequencySearch(tagQuery, terms);
+		final String k = key.toString();
+		final String cached = SQL_CACHE.getIfPresent(k);
+		if (cached != null) {
+			SQL_CACHE_HIT_METRIC.inc();
+			return cached;
+		}
+		SQL_CACHE_MISS_METRIC.inc();
+
+		final String sql = builder.get();
+		SQL_CACHE.put(k, sql);
+		return sql;
 	}
 
-	private static void appendWhereTerms (final StringBuilder sql, final List<String> terms, final Set<BigInteger> authIds) {
+	private static void appendWhereTerms (final StringBuilder sql, final List<String> terms, final List<TermType> types, final Set<BigInteger> authIds, final WhereMode mode) {
 		if (terms.size() > 0) {
 			sql.append(_SQL_AND);
-			sql.append(" ( ");
-			int openBrackets = 0;
-			for (int i = 0; i < terms.size(); i++) {
-				final String term = terms.get(i);
-				final String prevTerm = i > 0 ? terms.get(i - 1) : null;
-				final String nextTerm = i < terms.size() - 1 ? terms.get(i + 1) : null;
-
-				if ("OR".equals(term)) {
-					if (prevTerm == null || nextTerm == null) continue; // Ignore leading and trailing.
-					if ("OR".equals(prevTerm)) continue;
-					if ("AND".equals(prevTerm)) continue;
-					if ("(".equals(prevTerm)) continue;
-					if (")".equals(nextTerm)) continue;
-					sql.append(_SQL_OR);
-					continue;
+			sql.append(_SQL_OPEN);
+			if (mode == WhereMode.SQL) {
+				for (final Object token : whereTokens(types)) {
+					if (token instanceof Integer) {
+						final int i = (Integer) token;
+						appendWhereTerm(sql, terms.get(i), types.get(i), authIds);
+					}
+					else {
+						sql.append((String) token);
+					}
 				}
+			}
+			else {
+				sql.append(mode == WhereMode.NOT_INDEXED ? _SQL_MEDIAFILES_WHERES_NOT_INDEXED : _SQL_MEDIAFILES_WHERES_INDEXED);
+			}
+			sql.append(_SQL_CLOSE);
+		}
+	}
 
-				if ("AND".equals(term)) {
-					if (prevTerm == null || nextTerm == null) continue; // Ignore leading and trailing.
-					if ("OR".equals(prevTerm)) continue;
-					if ("AND".equals(prevTerm)) continue;
-					if ("(".equals(prevTerm)) continue;
-					if (")".equals(nextTerm)) continue;
-					sql.append(_SQL_AND);
-					continue;
-				}
+	/**
+	 * The terms as a sequence of _SQL_AND, _SQL_OR, _SQL_OPEN, _SQL_CLOSE and the Integer index of each term,
+	 * so the same structure can be rendered as SQL or evaluated against the TagIndex.
+	 */
+	private static List<Object> whereTokens (final List<TermType> types) {
+		final List<Object> tokens = new ArrayList<>();
+		int openBrackets = 0;
+		for (int i = 0; i < types.size(); i++) {
+			final TermType type = types.get(i);
+			final TermType prevType = i > 0 ? types.get(i - 1) : null;
+			final TermType nextType = i < types.size() - 1 ? types.get(i + 1) : null;
+
+			if (type == TermType.OR) {
+				if (prevType == null || nextType == null) continue; // Ignore leading and trailing.
+				if (prevType == TermType.OR) continue;
+				if (prevType == TermType.AND) continue;
+				if (prevType == TermType.OPEN) continue;
+				if (nextType == TermType.CLOSE) continue;
+				tokens.add(_SQL_OR);
+				continue;
+			}
 
-				if (")".equals(term)) {
-					if (openBrackets > 0) {
-						sql.append(" ) ");
-						openBrackets -= 1;
-					}
-					continue;
+			if (type == TermType.AND) {
+				if (prevType == null || nextType == null) continue; // Ignore leading and trailing.
+				if (prevType == TermType.OR) continue;
+				if (prevType == TermType.AND) continue;
+				if (prevType == TermType.OPEN) continue;
+				if (nextType == TermType.CLOSE) continue;
+				tokens.add(_SQL_AND);
+				continue;
+			}
+
+			if (type == TermType.CLOSE) {
+				if (openBrackets > 0) {
+					tokens.add(_SQL_CLOSE);
+					openBrackets -= 1;
 				}
+				continue;
+			}
 
-				if (i > 0) {
-					// Not the first term and not following OR or AND.
-					if (!"OR".equals(prevTerm) && !"AND".equals(prevTerm) && !"(".equals(prevTerm)) {
-						sql.append(_SQL_AND);
-					}
+			if (i > 0) {
+				// Not the first term and not following OR or AND.
+				if (prevType != TermType.OR && prevType != TermType.AND && prevType != TermType.OPEN) {
+					tokens.add(_SQL_AND);
 				}
+			}
 
-				String woh;
+			if (type == TermType.OPEN) {
+				tokens.add(_SQL_OPEN);
+				openBrackets += 1;
+			}
+			else {
+				tokens.add(i);
+			}
+		}
 
-				if ("(".equals(term)) {
-					sql.append(" ( ");
-					openBrackets += 1;
-				}
-				else if (DbSearchSyntax.isFileMatchPartial(term)) {
-					sql.append(_SQL_MEDIAFILES_WHERES_FILE);
-				}
-				else if (DbSearchSyntax.isFileNotMatchPartial(term)) {
-					sql.append(_SQL_MEDIAFILES_WHERES_NOT_FILE);
-				}
-				else if (DbSearchSyntax.isTypeMatchExactOrPartial(term)) {
-					sql.append(_SQL_MEDIAFILES_WHERES_TYPE);
-				}
-				else if (DbSearchSyntax.isTagMatchPartial(term) || DbSearchSyntax.isTagMatchExact(term)) {
-					sql.append(_SQL_MEDIAFILES_WHERES_TAG);
-				}
-				else if (DbSearchSyntax.isTagNotMatchPartial(term) || DbSearchSyntax.isTagNotMatchExact(term)) {
-					sql.append(_SQL_MEDIAFILES_WHERES_NOT_TAG);
-				}
-				else if (DbSearchSyntax.isTagCountLessThan(term)) {
-					sql.append(_SQL_MEDIAFILES_WHERES_TAG_COUNT_LESS_THAN);
+		// Tidy any unclosed brackets.
+		for (int i = 0; i < openBrackets; i++) {
+			tokens.add(_SQL_CLOSE);
+		}
+		return tokens;
+	}
+
+	private static void appendWhereTerm (final StringBuilder sql, final String term, final TermType type, final Set<BigInteger> authIds) {
+		switch (type) {
+		case FILE_PARTIAL:
+			sql.append(_SQL_MEDIAFILES_WHERES_FILE);
+			break;
+		case NOT_FILE_PARTIAL:
+			sql.append(_SQL_MEDIAFILES_WHERES_NOT_FILE);
+			break;
+		case TYPE:
+			sql.append(_SQL_MEDIAFILES_WHERES_TYPE);
+			break;
+		case TAG_PARTIAL:
+		case TAG_EXACT:
+			sql.append(_SQL_MEDIAFILES_WHERES_TAG);
+			break;
+		case NOT_TAG_PARTIAL:
+		case NOT_TAG_EXACT:
+			sql.append(_SQL_MEDIAFILES_WHERES_NOT_TAG);
+			break;
+		case TAG_COUNT_LESS_THAN:
+			sql.append(_SQL_MEDIAFILES_WHERES_TAG_COUNT_LESS_THAN);
+			break;
+		case TAG_COUNT_GREATER_THAN:
+			sql.append(_SQL_MEDIAFILES_WHERES_TAG_COUNT_GREATER_THAN);
+			break;
+		case WIDTH_OR_HEIGHT:
+			sql.append(_SQL_MEDIAFILES_WHERE_INFOS.replace("WOH", DbSearchSyntax.widthOrHeight(term)));
+			break;
+		case DUPE_COUNT_GREATER_THAN:
+			sql.append(_SQL_MEDIAFILES_WHERES_DUPE_COUNT_GREATER_THAN.replace("AUTH", SqlFragments.makeWhereAuth(authIds)));
+			break;
+		default:
+			sql.append(_SQL_MEDIAFILES_WHERES_FILEORTAG);
+		}
+	}
+
+	/**
+	 * Evaluates tag only searches against the TagIndex, with AND binding tighter than OR the same as in SQL.
+	 * Sets are kept with a negated flag so NOT terms never need the set of all files.
+	 * Returns null if the search has terms the index can not answer.
+	 */
+	static IndexMatch matchWithIndex (final TagIndex index, final List<String> terms, final List<TermType> types) {
+		if (index == null || !isTagOnly(types)) return null;
+
+		final Deque<IndexMatch> values = new ArrayDeque<>();
+		final Deque<String> ops = new ArrayDeque<>();
+		for (final Object token : whereTokens(types)) {
+			if (token instanceof Integer) {
+				final int i = (Integer) token;
+				values.push(matchTerm(index, terms.get(i), types.get(i)));
+			}
+			else if (token == _SQL_OPEN) {
+				ops.push(_SQL_OPEN);
+			}
+			else if (token == _SQL_CLOSE) {
+				while (!ops.isEmpty() && ops.peek() != _SQL_OPEN) {
+					if (!applyOp(ops.pop(), values)) return null;
 				}
-				else if (DbSearchSyntax.isTagCountGreaterThan(term)) {
-					sql.append(_SQL_MEDIAFILES_WHERES_TAG_COUNT_GREATER_THAN);
+				if (ops.isEmpty()) return null;
+				ops.pop();
+			}
+			else {
+				// AND binds tighter than OR, and both are left associative.
+				while (!ops.isEmpty() && ops.peek() != _SQL_OPEN && (ops.peek() == _SQL_AND || token == _SQL_OR)) {
+					if (!applyOp(ops.pop(), values)) return null;
 				}
-				else if ((woh = DbSearchSyntax.widthOrHeight(term)) != null) {
-					sql.append(_SQL_MEDIAFILES_WHERE_INFOS.replace("WOH", woh));
+				ops.push((String) token);
+			}
+		}
+		while (!ops.isEmpty()) {
+			final String op = ops.pop();
+			if (op == _SQL_OPEN) return null;
+			if (!applyOp(op, values)) return null;
+		}
+		if (values.size() != 1) return null;  // Malformed, let SQL report it.
+		return values.pop();
+	}
+
+	private static boolean isTagOnly (final List<TermType> types) {
+		boolean hasTag = false;
+		for (final TermType type : types) {
+			switch (type) {
+			case TAG_EXACT:
+			case TAG_PARTIAL:
+			case NOT_TAG_EXACT:
+			case NOT_TAG_PARTIAL:
+				hasTag = true;
+				break;
+			case OPEN:
+			case CLOSE:
+			case OR:
+			case AND:
+				break;
+			default:
+				return false;
+			}
+		}
+		return hasTag;
+	}
+
+	private static IndexMatch matchTerm (final TagIndex index, final String term, final TermType type) {
+		final String tag = QuoteRemover.unquote(DbSearchSyntax.removeMatchOperator(term));
+		switch (type) {
+		case TAG_EXACT:
+			return new IndexMatch(index.filesWithTag(tag), false);
+		case NOT_TAG_EXACT:
+			return new IndexMatch(index.filesWithTag(tag), true);
+		case TAG_PARTIAL:
+		case NOT_TAG_PARTIAL:
+			// Same anchors as anchoredOrWildcardEnds().
+			String fragment = tag;
+			final boolean anchorStart = fragment.startsWith("^");
+			if (anchorStart) fragment = fragment.substring(1);
+			final boolean anchorEnd = fragment.endsWith("$");
+			if (anchorEnd) fragment = fragment.substring(0, fragment.length() - 1);
+			return new IndexMatch(index.filesWithTagMatching(fragment, anchorStart, anchorEnd), type == TermType.NOT_TAG_PARTIAL);
+		default:
+			throw new IllegalArgumentException("Not a tag term: " + type);
+		}
+	}
+
+	private static boolean applyOp (final String op, final Deque<IndexMatch> values) {
+		if (values.size() < 2) return false;
+		final IndexMatch b = values.pop();
+		final IndexMatch a = values.pop();
+		values.push(op == _SQL_AND ? a.and(b) : a.or(b));
+		return true;
+	}
+
+	static class IndexMatch {
+		final CompressedBitmap files;
+		final boolean negated;
+
+		IndexMatch(final CompressedBitmap files, final boolean negated) {
+			this.files = files;
+			this.negated = negated;
+		}
+
+		IndexMatch and(final IndexMatch that) {
+			if (!this.negated && !that.negated) return new IndexMatch(this.files.and(that.files), false);
+			if (!this.negated) return new IndexMatch(this.files.andNot(that.files), false);
+			if (!that.negated) return new IndexMatch(that.files.andNot(this.files), false);
+			return new IndexMatch(this.files.or(that.files), true);  // NOT a AND NOT b = NOT (a OR b).
+		}
+
+		IndexMatch or(final IndexMatch that) {
+			if (!this.negated && !that.negated) return new IndexMatch(this.files.or(that.files), false);
+			if (!this.negated) return new IndexMatch(that.files.andNot(this.files), true);  // a OR NOT b = NOT (b AND NOT a).
+			if (!that.negated) return new IndexMatch(this.files.andNot(that.files), true);
+			return new IndexMatch(this.files.and(that.files), true);  // NOT a OR NOT b = NOT (a AND b).
+		}
+
+		WhereMode getMode() {
+			return this.negated ? WhereMode.NOT_INDEXED : WhereMode.INDEXED;
+		}
+	}
+
+	/**
+	 * How the search terms are turned into SQL.
+	 */
+	enum WhereMode {
+		/** Each term is its own SQL condition. */
+		SQL,
+		/** The matching files were found by the TagIndex and are bound as one JSON array parameter. */
+		INDEXED,
+		/** As INDEXED, but for the files that do not match. */
+		NOT_INDEXED
+	}
+
+	private interface SqlBuilder {
+		String build(WhereMode mode);
+	}
+
+	private static String toJsonArray (final List<String> values) {
+		final StringBuilder s = new StringBuilder(values.size() * 40).append('[');
+		for (final String v : values) {
+			if (s.length() > 1) s.append(',');
+			s.append('"');
+			for (int i = 0; i < v.length(); i++) {
+				final char c = v.charAt(i);
+				if (c == '"' || c == '\\') {
+					s.append('\\').append(c);
 				}
-				else if (DbSearchSyntax.isDupeCountGreaterThan(term)) {
-					sql.append(_SQL_MEDIAFILES_WHERES_DUPE_COUNT_GREATER_THAN.replace("AUTH", SqlFragments.makeWhereAuth(authIds)));
+				else if (c < 0x20) {
+					s.append(String.format("\\u%04x", (int) c));
 				}
 				else {
-					sql.append(_SQL_MEDIAFILES_WHERES_FILEORTAG);
+					s.append(c);
 				}
 			}
-
-			// Tidy any unclosed brackets.
-			for (int i = 0; i < openBrackets; i++) {
-				sql.append(" ) ");
-			}
-
-			sql.append(" ) ");
+			s.append('"');
 		}
+		return s.append(']').toString();
 	}
 
 	protected static String anchoredOrWildcardEnds (final String term) {
@@ -230,19 +563,70 @@ public class DbSearchParser {
 	}
 
 	public static class DbSearch extends Search<String> {
-		public DbSearch (final String sql, final List<String> terms) {
-			super(sql, terms);
+		private final SortOrder sort;
+
+		DbSearch (final SqlBuilder sqlBuilder, final List<String> terms, final List<TermType> types, final Set<BigInteger> authIds, final boolean authParams, final SortOrder sort) {
+			super(sqlBuilder, terms, types, authIds, authParams);
+			this.sort = sort;
 		}
 
 		@Override
 		protected String parseRecord(final ResultSet rs) throws SQLException {
 			return rs.getString(1);
 		}
+
+		/**
+		 * Results that sort after the cursor, or from the start if cursor is null.
+		 * Unlike an OFFSET, this costs the same however far into the results the cursor is.
+		 */
+		public List<SearchCursor> executeAfter (final MediaDb db, final int maxResults, final SearchCursor after) throws SQLException {
+			return executeKeyset(db, maxResults, after, false);
+		}
+
+		/**
+		 * Results that sort before the cursor, nearest last, so in the same order as executeAfter().
+		 */
+		public List<SearchCursor> executeBefore (final MediaDb db, final int maxResults, final SearchCursor before) throws SQLException {
+			if (before == null) throw new IllegalArgumentException("before cursor must not be null.");
+			final List<SearchCursor> ret = executeKeyset(db, maxResults, before, true);
+			Collections.reverse(ret);
+			return ret;
+		}
+
+		private List<SearchCursor> executeKeyset (final MediaDb db, final int maxResults, final SearchCursor cursor, final boolean backwards) throws SQLException {
+			if (maxResults < 1) throw new IllegalArgumentException("maxResults must be positive: " + maxResults);
+			if (cursor != null && (cursor.getKey() instanceof Long) != this.sort.isNumeric()) {
+				throw new IllegalArgumentException("Cursor does not match sort order: " + cursor);
+			}
+
+			final IndexMatch indexMatch = matchWithIndex(db);
+			final WhereMode mode = indexMatch != null ? indexMatch.getMode() : WhereMode.SQL;
+			final String sql = keysetSql(getTerms(), getTypes(), getAuthIds(), !isAuthParams(), this.sort, cursor != null, backwards, mode);
+			try (final PooledConnection c = db.getReadConnection()) {
+				final PreparedStatement ps = c.prepare(sql);
+				int parmIn = bindParams(ps, db, indexMatch);
+				if (cursor != null) {
+					ps.setObject(parmIn++, cursor.getKey());
+					ps.setObject(parmIn++, cursor.getKey());
+					ps.setString(parmIn++, cursor.getId());
+				}
+				ps.setInt(parmIn++, maxResults);
+				ps.setMaxRows(maxResults);
+				try (final ResultSet rs = ps.executeQuery()) {
+					final List<SearchCursor> ret = new ArrayList<>();
+					while (rs.next()) {
+						final Object key = this.sort.isNumeric() ? (Object) rs.getLong(2) : rs.getString(2);
+						ret.add(new SearchCursor(rs.getString(1), key));
+					}
+					return ret;
+				}
+			}
+		}
 	}
 
 	public static class TagFrequencySearch extends Search<TagFrequency> {
-		public TagFrequencySearch (final String sql, final List<String> terms) {
-			super(sql, terms);
+		TagFrequencySearch (final SqlBuilder sqlBuilder, final List<String> terms, final List<TermType> types, final Set<BigInteger> authIds, final boolean authParams) {
+			super(sqlBuilder, terms, types, authIds, authParams);
 		}
 
 		@Override
@@ -253,12 +637,20 @@ public class DbSearchParser {
 
 	private abstract static class Search<T> {
 
+		private final SqlBuilder sqlBuilder;
 		private final String sql;
 		private final List<String> terms;
+		private final List<TermType> types;
+		private final Set<BigInteger> authIds;
+		private final boolean authParams;
 
-		public Search (final String sql, final List<String> terms) {
-			this.sql = sql;
+		public Search (final SqlBuilder sqlBuilder, final List<String> terms, final List<TermType> types, final Set<BigInteger> authIds, final boolean authParams) {
+			this.sqlBuilder = sqlBuilder;
+			this.sql = sqlBuilder.build(WhereMode.SQL);
 			this.terms = terms;
+			this.types = types;
+			this.authIds = authIds;
+			this.authParams = authParams;
 		}
 
 		String getSql() {
@@ -269,45 +661,31 @@ public class DbSearchParser {
 			return this.terms;
 		}
 
+		List<TermType> getTypes() {
+			return this.types;
+		}
+
+		Set<BigInteger> getAuthIds() {
+			return this.authIds;
+		}
+
+		boolean isAuthParams() {
+			return this.authParams;
+		}
+
 		public List<T> execute (final MediaDb db) throws SQLException {
 			return execute(db, -1, 0);
 		}
 
 		public List<T> execute (final MediaDb db, final int maxResults, final int offset) throws SQLException {
-			try (final PreparedStatement ps = db.prepare(maybeAddLimit(this.sql, maxResults, offset))) {
-				int parmIn = 1;
-				for (final String term : this.terms) {
-					if ("OR".equals(term)) continue;
-					if ("AND".equals(term)) continue;
-					if ("(".equals(term)) continue;
-					if (")".equals(term)) continue;
-					if (DbSearchSyntax.isFileMatchPartial(term) || DbSearchSyntax.isFileNotMatchPartial(term)
-							|| DbSearchSyntax.isTagMatchPartial(term) || DbSearchSyntax.isTagNotMatchPartial(term)) {
-						ps.setString(parmIn++, anchoredOrWildcardEnds(Sqlite.escapeSearch(QuoteRemover.unquote(DbSearchSyntax.removeMatchOperator(term)))));
-						ps.setString(parmIn++, Sqlite.SEARCH_ESC);
-					}
-					else if (DbSearchSyntax.isTypeMatchExactOrPartial(term)) {
-						String escapedTerm = Sqlite.escapeSearch(QuoteRemover.unquote(DbSearchSyntax.removeMatchOperator(term)));
-						if (DbSearchSyntax.isTypeMatchPartial(term)) escapedTerm += "%";
-						ps.setString(parmIn++, escapedTerm);
-						ps.setString(parmIn++, Sqlite.SEARCH_ESC);
-					}
-					else if (DbSearchSyntax.isTagMatchExact(term) || DbSearchSyntax.isTagNotMatchExact(term)) {
-						ps.setString(parmIn++, Sqlite.escapeSearch(QuoteRemover.unquote(DbSearchSyntax.removeMatchOperator(term))));
-						ps.setString(parmIn++, Sqlite.SEARCH_ESC);
-					}
-					else if (DbSearchSyntax.isTagCountLessThan(term) || DbSearchSyntax.isTagCountGreaterThan(term)
-							|| DbSearchSyntax.widthOrHeight(term) != null
-							|| DbSearchSyntax.isDupeCountGreaterThan(term)) {
-						ps.setInt(parmIn++, DbSearchSyntax.removeCountOperator(term));
-					}
-					else {
-						final String escapedTerm = Sqlite.escapeSearch(QuoteRemover.unquote(term));
-						ps.setString(parmIn++, "%" + escapedTerm + "%");
-						ps.setString(parmIn++, Sqlite.SEARCH_ESC);
-						ps.setString(parmIn++, "%" + escapedTerm + "%");
-						ps.setString(parmIn++, Sqlite.SEARCH_ESC);
-					}
+			final IndexMatch indexMatch = matchWithIndex(db);
+			final String sql = indexMatch != null ? this.sqlBuilder.build(indexMatch.getMode()) : this.sql;
+			try (final PooledConnection c = db.getReadConnection()) {
+				final PreparedStatement ps = c.prepare(maxResults < 0 ? sql : sql + " LIMIT ? OFFSET ?");
+				int parmIn = bindParams(ps, db, indexMatch);
+				if (maxResults >= 0) {
+					ps.setInt(parmIn++, maxResults);
+					ps.setInt(parmIn++, offset);
 				}
 				if (maxResults > 0) ps.setMaxRows(maxResults);
 				try (final ResultSet rs = ps.executeQuery()) {
@@ -316,9 +694,77 @@ public class DbSearchParser {
 			}
 		}
 
-		private static String maybeAddLimit(final String sql, final int maxResults, final int offset) {
-			if (maxResults < 0) return sql;
-			return String.format("%s LIMIT %d OFFSET %d", sql, maxResults, offset);
+		/**
+		 * Returns null if the search should use the per term SQL.
+		 */
+		protected IndexMatch matchWithIndex(final MediaDb db) {
+			final IndexMatch m = DbSearchParser.matchWithIndex(db.getTagIndex(), this.terms, this.types);
+			if (m == null) {
+				if (isTagOnly(this.types)) TAG_INDEX_FALLBACK_METRIC.inc();
+				return null;
+			}
+			if (m.files.cardinality() > MAX_INDEXED_FILES) {
+				TAG_INDEX_FALLBACK_METRIC.inc();
+				return null;
+			}
+			TAG_INDEX_HIT_METRIC.inc();
+			return m;
+		}
+
+		/**
+		 * Returns the index of the next parameter.
+		 */
+		protected int bindParams(final PreparedStatement ps, final MediaDb db, final IndexMatch indexMatch) throws SQLException {
+			int parmIn = 1;
+			if (this.authParams) parmIn = SqlFragments.setAuthParams(ps, parmIn, this.authIds);
+			if (indexMatch != null) {
+				ps.setString(parmIn++, toJsonArray(db.getTagIndex().idsFor(indexMatch.files)));
+				return parmIn;
+			}
+			for (int i = 0; i < this.terms.size(); i++) {
+				final String term = this.terms.get(i);
+				switch (this.types.get(i)) {
+				case OR:
+				case AND:
+				case OPEN:
+				case CLOSE:
+					break;
+				case FILE_PARTIAL:
+				case NOT_FILE_PARTIAL:
+				case TAG_PARTIAL:
+				case NOT_TAG_PARTIAL:
+					ps.setString(parmIn++, anchoredOrWildcardEnds(Sqlite.escapeSearch(QuoteRemover.unquote(DbSearchSyntax.removeMatchOperator(term)))));
+					ps.setString(parmIn++, Sqlite.SEARCH_ESC);
+					break;
+				case TYPE:
+					String escapedType = Sqlite.escapeSearch(QuoteRemover.unquote(DbSearchSyntax.removeMatchOperator(term)));
+					if (DbSearchSyntax.isTypeMatchPartial(term)) escapedType += "%";
+					ps.setString(parmIn++, escapedType);
+					ps.setString(parmIn++, Sqlite.SEARCH_ESC);
+					break;
+				case TAG_EXACT:
+				case NOT_TAG_EXACT:
+					ps.setString(parmIn++, Sqlite.escapeSearch(QuoteRemover.unquote(DbSearchSyntax.removeMatchOperator(term))));
+					ps.setString(parmIn++, Sqlite.SEARCH_ESC);
+					break;
+				case DUPE_COUNT_GREATER_THAN:
+					parmIn = SqlFragments.setAuthParams(ps, parmIn, this.authIds);
+					ps.setInt(parmIn++, DbSearchSyntax.removeCountOperator(term));
+					break;
+				case TAG_COUNT_LESS_THAN:
+				case TAG_COUNT_GREATER_THAN:
+				case WIDTH_OR_HEIGHT:
+					ps.setInt(parmIn++, DbSearchSyntax.removeCountOperator(term));
+					break;
+				default:
+					final String escapedTerm = Sqlite.escapeSearch(QuoteRemover.unquote(term));
+					ps.setString(parmIn++, "%" + escapedTerm + "%");
+					ps.setString(parmIn++, Sqlite.SEARCH_ESC);
+					ps.setString(parmIn++, "%" + escapedTerm + "%");
+					ps.setString(parmIn++, Sqlite.SEARCH_ESC);
+				}
+			}
+			return parmIn;
 		}
 
 		private List<T> parseRecordSet(final ResultSet rs) throws SQLException {
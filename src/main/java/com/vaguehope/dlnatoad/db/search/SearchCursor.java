@@ -0,0 +1,105 @@
+package com.vaguehope.dlnatoad.db.search;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * Position of one result in a DbSearch, as its ID and the value of its sort column.
+ * Used to page with keyset queries instead of OFFSET, which has to produce and discard every preceding row.
+ * Tokens are opaque and URL safe.
+ */
+public final class SearchCursor {
+
+	private static final char TYPE_NUMBER = 'n';
+	private static final char TYPE_STRING = 's';
+
+	private final String id;
+	private final Object key;
+
+	SearchCursor(final String id, final Object key) {
+		if (id == null) throw new IllegalArgumentException("id must not be null.");
+		if (!(key instanceof Long) && !(key instanceof String)) throw new IllegalArgumentException("Unsupported key: " + key);
+		this.id = id;
+		this.key = key;
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	Object getKey() {
+		return this.key;
+	}
+
+	public String toToken() {
+		final StringBuilder s = new StringBuilder();
+		if (this.key instanceof Long) {
+			s.append(TYPE_NUMBER).append(this.key);
+		}
+		else {
+			s.append(TYPE_STRING).append(encode((String) this.key));
+		}
+		return s.append('.').append(encode(this.id)).toString();
+	}
+
+	/**
+	 * @throws IllegalArgumentException if token is not valid.
+	 */
+	public static SearchCursor parse(final String token) {
+		if (token == null || token.length() < 3) throw new IllegalArgumentException("Invalid token: " + token);
+		final int x = token.indexOf('.');
+		if (x < 1) throw new IllegalArgumentException("Invalid token: " + token);
+
+		final String rawKey = token.substring(1, x);
+		final Object key;
+		switch (token.charAt(0)) {
+		case TYPE_NUMBER:
+			try {
+				key = Long.valueOf(rawKey);
+			}
+			catch (final NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid token: " + token, e);
+			}
+			break;
+		case TYPE_STRING:
+			key = decode(rawKey);
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid token: " + token);
+		}
+
+		final String id = decode(token.substring(x + 1));
+		if (id.isEmpty()) throw new IllegalArgumentException("Invalid token: " + token);
+		return new SearchCursor(id, key);
+	}
+
+	private static String encode(final String s) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String decode(final String s) {
+		return new String(Base64.getUrlDecoder().decode(s), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(this.id, this.key);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (obj == null) return false;
+		if (this == obj) return true;
+		if (!(obj instanceof SearchCursor)) return false;
+		final SearchCursor that = (SearchCursor) obj;
+		return Objects.equals(this.id, that.id)
+				&& Objects.equals(this.key, that.key);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SearchCursor{%s, %s}", this.id, this.key);
+	}
+
+}
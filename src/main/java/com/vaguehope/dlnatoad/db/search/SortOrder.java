@@ -2,33 +2,53 @@ package com.vaguehope.dlnatoad.db.search;
 
 public class SortOrder {
 
-	public static SortOrder FILE = new SortOrder("file COLLATE NOCASE");
-	public static SortOrder MODIFIED = new SortOrder("modified");
+	public static SortOrder FILE = new SortOrder("file", "COLLATE NOCASE", null, false);
+	public static SortOrder MODIFIED = new SortOrder("modified", null, null, true);
 
 	private final String column;
+	private final String collation;
 	private final String direction;
+	private final boolean numeric;
 
-	protected SortOrder(String column) {
-		this.column = column;
-		this.direction = null;
-	}
-
-	protected SortOrder(String column, String direction) {
+	protected SortOrder(final String column, final String collation, final String direction, final boolean numeric) {
 		this.column = column;
+		this.collation = collation;
 		this.direction = direction;
+		this.numeric = numeric;
 	}
 
 	public SortOrder asc() {
-		return new SortOrder(this.column, "ASC");
+		return new SortOrder(this.column, this.collation, "ASC", this.numeric);
 	}
 
 	public SortOrder desc() {
-		return new SortOrder(this.column, "DESC");
+		return new SortOrder(this.column, this.collation, "DESC", this.numeric);
 	}
 
 	public String toSql() {
 		if (this.direction == null) throw new IllegalStateException("direciton not set.");
-		return this.column + " " + this.direction;
+		return collated(this.column) + " " + this.direction;
+	}
+
+	/**
+	 * A file ID can have more than one row, so for keyset paging each ID is keyed on
+	 * the row that would sort first.
+	 */
+	String keyAggregateSql() {
+		return (isDescending() ? "MAX(" : "MIN(") + collated(this.column) + ")";
+	}
+
+	String collated(final String expr) {
+		return this.collation != null ? expr + " " + this.collation : expr;
+	}
+
+	boolean isDescending() {
+		if (this.direction == null) throw new IllegalStateException("direciton not set.");
+		return "DESC".equals(this.direction);
+	}
+
+	boolean isNumeric() {
+		return this.numeric;
 	}
 
 }
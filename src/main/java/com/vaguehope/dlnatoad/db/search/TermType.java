@@ -0,0 +1,51 @@
+package com.vaguehope.dlnatoad.db.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+enum TermType {
+	OPEN,
+	CLOSE,
+	OR,
+	AND,
+	FILE_PARTIAL,
+	NOT_FILE_PARTIAL,
+	TYPE,
+	TAG_PARTIAL,
+	TAG_EXACT,
+	NOT_TAG_PARTIAL,
+	NOT_TAG_EXACT,
+	TAG_COUNT_LESS_THAN,
+	TAG_COUNT_GREATER_THAN,
+	WIDTH_OR_HEIGHT,
+	DUPE_COUNT_GREATER_THAN,
+	FILE_OR_TAG;
+
+	public static TermType classify(final String term) {
+		if ("(".equals(term)) return OPEN;
+		if (")".equals(term)) return CLOSE;
+		if ("OR".equals(term)) return OR;
+		if ("AND".equals(term)) return AND;
+		if (DbSearchSyntax.isFileMatchPartial(term)) return FILE_PARTIAL;
+		if (DbSearchSyntax.isFileNotMatchPartial(term)) return NOT_FILE_PARTIAL;
+		if (DbSearchSyntax.isTypeMatchExactOrPartial(term)) return TYPE;
+		if (DbSearchSyntax.isTagMatchPartial(term)) return TAG_PARTIAL;
+		if (DbSearchSyntax.isTagMatchExact(term)) return TAG_EXACT;
+		if (DbSearchSyntax.isTagNotMatchPartial(term)) return NOT_TAG_PARTIAL;
+		if (DbSearchSyntax.isTagNotMatchExact(term)) return NOT_TAG_EXACT;
+		if (DbSearchSyntax.isTagCountLessThan(term)) return TAG_COUNT_LESS_THAN;
+		if (DbSearchSyntax.isTagCountGreaterThan(term)) return TAG_COUNT_GREATER_THAN;
+		if (DbSearchSyntax.widthOrHeight(term) != null) return WIDTH_OR_HEIGHT;
+		if (DbSearchSyntax.isDupeCountGreaterThan(term)) return DUPE_COUNT_GREATER_THAN;
+		return FILE_OR_TAG;
+	}
+
+	public static List<TermType> classify(final List<String> terms) {
+		final List<TermType> ret = new ArrayList<>(terms.size());
+		for (final String term : terms) {
+			ret.add(classify(term));
+		}
+		return ret;
+	}
+
+}
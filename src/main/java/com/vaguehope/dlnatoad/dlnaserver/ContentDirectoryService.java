@@ -1,8 +1,10 @@
 package com.vaguehope.dlnatoad.dlnaserver;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
@@ -15,15 +17,18 @@ import org.jupnp.support.model.BrowseFlag;
 import org.jupnp.support.model.BrowseResult;
 import org.jupnp.support.model.DIDLContent;
 import org.jupnp.support.model.SortCriterion;
-import org.jupnp.support.model.container.Container;
-import org.jupnp.support.model.item.Item;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.vaguehope.dlnatoad.media.ContentItem;
 import com.vaguehope.dlnatoad.media.ContentNode;
 import com.vaguehope.dlnatoad.media.ContentTree;
 
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.metrics.Counter;
+
 /**
  * Based on a class from WireMe and used under Apache 2 License. See
  * https://code.google.com/p/wireme/ for more details.
@@ -34,12 +39,26 @@ public class ContentDirectoryService extends AbstractContentDirectoryService {
 
 	private static final int MAX_RESULTS = 500;
 
+	private static final Counter SEARCH_RESULT_CACHE_METRIC = Counter.builder()
+			.name("dlna_search_result_cache")
+			.labelNames("result")
+			.help("count of search requests by whether the results were already cached from an earlier page.")
+			.register();
+	private static final CounterDataPoint SEARCH_RESULT_CACHE_HIT_METRIC = SEARCH_RESULT_CACHE_METRIC.labelValues("hit");
+	private static final CounterDataPoint SEARCH_RESULT_CACHE_MISS_METRIC = SEARCH_RESULT_CACHE_METRIC.labelValues("miss");
+
 	private final ContentTree contentTree;
 	private final NodeConverter nodeConverter;
 	private final SearchEngine searchEngine;
 	private final boolean printAccessLog;
 	private final Supplier<DIDLParser> parserSupplier;
 
+	// Renderers page through results by repeating the same search with a different firstResult.
+	private final Cache<SearchKey, SearchResult> searchResults = CacheBuilder.newBuilder()
+			.maximumSize(20L)
+			.expireAfterWrite(1, TimeUnit.MINUTES)
+			.build();
+
 	public ContentDirectoryService(final ContentTree contentTree, final NodeConverter nodeConverter, final SearchEngine searchEngine, final boolean printAccessLog) {
 		this(contentTree, nodeConverter, searchEngine, printAccessLog, () -> new DIDLParser());
 	}
@@ -70,9 +89,9 @@ public class ContentDirectoryService extends AbstractContentDirectoryService {
 					return new BrowseResult(this.parserSupplier.get().generate(didl), 1, 1);
 				}
 
-				final List<Container> containers = this.nodeConverter.makeSubContainersWithoutTheirSubContainers(node);
-				final List<Item> items = this.nodeConverter.makeItems(node);
-				return toRangedResult(containers, items, firstResult, maxResults);
+				final List<ContentNode> nodes = NodeConverter.listedNodes(node);
+				final List<ContentItem> items = NodeConverter.listedItems(node.getItems());
+				return toRangedResult(nodes, items, firstResult, maxResults);
 			}
 
 			final ContentItem item = this.contentTree.getItem(objectID);
@@ -108,11 +127,8 @@ public class ContentDirectoryService extends AbstractContentDirectoryService {
 			final ContentNode node = this.contentTree.getNode(containerId);
 			if (node == null) return new BrowseResult("", 0, 0);
 
-			// TODO cache search results to make pagination faster.
-
-			final List<ContentItem> results = this.searchEngine.search(node, searchCriteria, MAX_RESULTS, /* username= */null);
-			final List<Item> items = this.nodeConverter.makeItems(results);
-			return toRangedResult(Collections.<Container> emptyList(), items, firstResult, maxResults);
+			final List<String> ids = searchResultIds(node, searchCriteria, orderBy, /* username= */null);
+			return toRangedSearchResult(ids, firstResult, maxResults);
 		}
 		catch (final ContentDirectoryException e) {
 			LOG.warn(String.format("Failed to parse search request" +
@@ -135,23 +151,108 @@ public class ContentDirectoryService extends AbstractContentDirectoryService {
 		}
 	}
 
-	private BrowseResult toRangedResult (final List<Container> containers, final List<Item> items, final long firstResult, final long maxResultsParam) throws Exception {
-		final long maxResults = maxResultsParam == 0 ? containers.size() + items.size() : maxResultsParam;
+	/**
+	 * IDs of all matching items that will be listed, in order.
+	 */
+	private List<String> searchResultIds (final ContentNode node, final String searchCriteria, final SortCriterion[] orderBy, final String username) throws ContentDirectoryException {
+		// Read before searching so any change during the search makes the result stale.
+		final long changeCount = this.contentTree.getChangeCount();
+		final SearchKey key = new SearchKey(node.getId(), searchCriteria, Arrays.toString(orderBy), username);
+		final SearchResult cached = this.searchResults.getIfPresent(key);
+		if (cached != null && cached.changeCount == changeCount) {
+			SEARCH_RESULT_CACHE_HIT_METRIC.inc();
+			return cached.ids;
+		}
+		SEARCH_RESULT_CACHE_MISS_METRIC.inc();
+
+		final List<ContentItem> results = this.searchEngine.search(node, searchCriteria, MAX_RESULTS, username);
+		final List<String> ids = new ArrayList<>(results.size());
+		for (final ContentItem i : results) {
+			if (NodeConverter.isListedItem(i)) ids.add(i.getId());
+		}
+		this.searchResults.put(key, new SearchResult(changeCount, Collections.unmodifiableList(ids)));
+		return ids;
+	}
+
+	/**
+	 * Only the requested page is converted to DIDL.
+	 */
+	private BrowseResult toRangedSearchResult (final List<String> ids, final long firstResult, final long maxResultsParam) throws Exception {
+		final long maxResults = maxResultsParam == 0 ? ids.size() : maxResultsParam;
+		final int from = (int) Math.min(firstResult, ids.size());
+		final int to = (int) Math.min(firstResult + maxResults, ids.size());
+
+		final List<ContentItem> page = new ArrayList<>(to - from);
+		for (final String id : ids.subList(from, to)) {
+			final ContentItem item = this.contentTree.getItem(id);
+			if (item != null) page.add(item);
+		}
+
+		return new BrowseResult(this.nodeConverter.generateDidl(Collections.<ContentNode> emptyList(), page), page.size(), ids.size());
+	}
+
+	/**
+	 * Nodes are listed before items, and only the requested page of them is converted to DIDL.
+	 */
+	private BrowseResult toRangedResult (final List<ContentNode> nodes, final List<ContentItem> items, final long firstResult, final long maxResultsParam) throws Exception {
+		final long maxResults = maxResultsParam == 0 ? nodes.size() + items.size() : maxResultsParam;
+
+		final int nodesFrom = (int) Math.min(firstResult, nodes.size());
+		final int nodesTo = (int) Math.min(firstResult + maxResults, nodes.size());
+		final List<ContentNode> pageNodes = nodes.subList(nodesFrom, nodesTo);
+
+		final int itemsFrom = (int) Math.min(Math.max(firstResult - nodes.size(), 0), items.size());
+		final int itemsTo = (int) Math.min(itemsFrom + maxResults - pageNodes.size(), items.size());
+		final List<ContentItem> pageItems = items.subList(itemsFrom, itemsTo);
+
+		return new BrowseResult(this.nodeConverter.generateDidl(pageNodes, pageItems),
+				pageNodes.size() + pageItems.size(),
+				nodes.size() + items.size());
+	}
+
+	private static class SearchKey {
+
+		private final String containerId;
+		private final String searchCriteria;
+		private final String orderBy;
+		private final String username;
+
+		SearchKey (final String containerId, final String searchCriteria, final String orderBy, final String username) {
+			this.containerId = containerId;
+			this.searchCriteria = searchCriteria;
+			this.orderBy = orderBy;
+			this.username = username;
+		}
 
-		final DIDLContent didl = new DIDLContent();
-		if (containers.size() > firstResult) {
-			final int from = (int) firstResult;
-			final int to = Math.min((int) (firstResult + maxResults), containers.size());
-			didl.setContainers(containers.subList(from, to));
+		@Override
+		public int hashCode () {
+			return Objects.hash(this.containerId, this.searchCriteria, this.orderBy, this.username);
 		}
-		if (didl.getContainers().size() < maxResults) {
-			final int from = (int) Math.max(firstResult - containers.size(), 0);
-			final int to = Math.min(items.size(), from + (int) (maxResults - didl.getContainers().size()));
-			didl.setItems(items.subList(from, to));
+
+		@Override
+		public boolean equals (final Object obj) {
+			if (obj == null) return false;
+			if (obj == this) return true;
+			if (!(obj instanceof SearchKey)) return false;
+			final SearchKey that = (SearchKey) obj;
+			return Objects.equals(this.containerId, that.containerId)
+					&& Objects.equals(this.searchCriteria, that.searchCriteria)
+					&& Objects.equals(this.orderBy, that.orderBy)
+					&& Objects.equals(this.username, that.username);
 		}
-		return new BrowseResult(this.parserSupplier.get().generate(didl),
-				didl.getContainers().size() + didl.getItems().size(),
-				containers.size() + items.size());
+
+	}
+
+	private static class SearchResult {
+
+		final long changeCount;
+		final List<String> ids;
+
+		SearchResult (final long changeCount, final List<String> ids) {
+			this.changeCount = changeCount;
+			this.ids = ids;
+		}
+
 	}
 
 }
@@ -0,0 +1,197 @@
+package com.vaguehope.dlnatoad.dlnaserver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jupnp.model.ModelUtil;
+import org.jupnp.support.model.ProtocolInfo;
+import org.jupnp.support.model.WriteStatus;
+
+import com.vaguehope.dlnatoad.media.ContentItem;
+import com.vaguehope.dlnatoad.media.ContentNode;
+import com.vaguehope.dlnatoad.media.ExternalUrls;
+import com.vaguehope.dlnatoad.media.MetadataReader.Metadata;
+
+/**
+ * Writes the same XML that DIDLParser.generate() makes from NodeConverter's containers and items,
+ * but appends it straight to a string instead of building a DOM and jUPnP objects for every entry.
+ * Any change to what NodeConverter makes must be made here too, NodeConverterTest checks they match.
+ */
+class DidlWriter {
+
+	private static final String DIDL_OPEN = "<DIDL-Lite"
+			+ " xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL-Lite/\""
+			+ " xmlns:dc=\"http://purl.org/dc/elements/1.1/\""
+			+ " xmlns:sec=\"http://www.sec.co.kr/\""
+			+ " xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\"";
+	private static final String DIDL_CLOSE = "</DIDL-Lite>";
+
+	// Roughly how long each entry is, so the builder rarely needs to grow.
+	private static final int ENTRY_LENGTH_ESTIMATE = 400;
+
+	private final ExternalUrls externalUrls;
+	// Item fragments contain URLs, so are only reused by a writer with the same base.
+	private final String urlBase;
+
+	DidlWriter(final ExternalUrls externalUrls) {
+		this.externalUrls = externalUrls;
+		this.urlBase = externalUrls.contentUrl("");
+	}
+
+	String write(final List<ContentNode> nodes, final List<ContentItem> items) {
+		final StringBuilder sb = new StringBuilder(DIDL_OPEN.length() + DIDL_CLOSE.length() + (nodes.size() + items.size()) * ENTRY_LENGTH_ESTIMATE);
+		sb.append(DIDL_OPEN);
+		if (nodes.isEmpty() && items.isEmpty()) return sb.append("/>").toString();
+
+		sb.append('>');
+		for (final ContentNode n : nodes) {
+			appendContainer(sb, n);
+		}
+		for (final ContentItem i : items) {
+			appendItem(sb, i);
+		}
+		return sb.append(DIDL_CLOSE).toString();
+	}
+
+	private void appendContainer(final StringBuilder sb, final ContentNode n) {
+		sb.append("<container childCount=\"").append(n.getNodeAndItemCount()).append('"');
+		appendAttr(sb, "id", n.getId());
+		appendAttr(sb, "parentID", n.getParentId());
+		sb.append(" restricted=\"1\" searchable=\"1\">");
+
+		appendElement(sb, "dc:title", n.getTitle());
+		appendElement(sb, "upnp:writeStatus", WriteStatus.NOT_WRITABLE.name());
+		appendElement(sb, "upnp:class", "object.container");
+
+		final ContentItem art = n.getArt();
+		if (art != null) appendElement(sb, "upnp:albumArtURI", this.externalUrls.contentUrl(art.getId()));
+
+		sb.append("</container>");
+	}
+
+	/**
+	 * Items rarely change, so each one keeps its fragment for next time.
+	 */
+	private void appendItem(final StringBuilder sb, final ContentItem c) {
+		final String cached = c.getDidlFragment(this.urlBase);
+		if (cached != null) {
+			sb.append(cached);
+			return;
+		}
+
+		final long version = c.getDidlVersion();
+		final int start = sb.length();
+		appendNewItem(sb, c);
+		c.setDidlFragment(this.urlBase, version, sb.substring(start));
+	}
+
+	private void appendNewItem(final StringBuilder sb, final ContentItem c) {
+		final String clazz;
+		switch (c.getFormat().getContentGroup()) {
+		case VIDEO:
+			clazz = "object.item.videoItem";
+			break;
+		case IMAGE:
+			clazz = "object.item.imageItem";
+			break;
+		case AUDIO:
+			clazz = "object.item.audioItem";
+			break;
+		default:
+			throw new IllegalArgumentException();
+		}
+
+		sb.append("<item");
+		appendAttr(sb, "id", c.getId());
+		appendAttr(sb, "parentID", c.getParentId());
+		sb.append(" restricted=\"0\">");
+
+		appendElement(sb, "dc:title", c.getTitle());
+		sb.append("<dc:creator/>");
+		appendElement(sb, "upnp:class", clazz);
+
+		final ContentItem art = c.getArt();
+		final String artUri = art != null ? this.externalUrls.contentUrl(art.getId()) : null;
+		if (artUri != null) appendElement(sb, "upnp:albumArtURI", artUri);
+
+		final Metadata md = c.getMetadata();
+		if (md != null) {
+			if (md.getArtist() != null) appendElement(sb, "upnp:artist", md.getArtist());
+			if (md.getAlbum() != null) appendElement(sb, "upnp:album", md.getAlbum());
+		}
+
+		final long durationSeconds = TimeUnit.MILLISECONDS.toSeconds(c.getDurationMillis());
+		appendRes(sb, durationSeconds > 0 ? ModelUtil.toTimeString(durationSeconds) : null,
+				new ProtocolInfo(c.getFormat().asMimetype()).toString(), c.getFileLength(), this.externalUrls.contentUrl(c.getId()));
+
+		if (artUri != null) {
+			appendRes(sb, null, NodeConverter.makeProtocolInfo(art.getFormat().asMimetype()).toString(), art.getFileLength(), artUri);
+		}
+
+		if (c.hasAttachments()) {
+			c.withEachAttachment(a -> {
+				appendRes(sb, null, new ProtocolInfo(a.getFormat().asMimetype()).toString(), a.getFileLength(), this.externalUrls.contentUrl(a.getId()));
+			});
+		}
+
+		sb.append("</item>");
+	}
+
+	private static void appendRes(final StringBuilder sb, final String duration, final String protocolInfo, final long size, final String uri) {
+		sb.append("<res");
+		if (duration != null) appendAttr(sb, "duration", duration);
+		appendAttr(sb, "protocolInfo", protocolInfo);
+		sb.append(" size=\"").append(size).append("\">");
+		appendEscaped(sb, uri, false);
+		sb.append("</res>");
+	}
+
+	private static void appendAttr(final StringBuilder sb, final String name, final String value) {
+		sb.append(' ').append(name).append("=\"");
+		appendEscaped(sb, value, true);
+		sb.append('"');
+	}
+
+	private static void appendElement(final StringBuilder sb, final String name, final String text) {
+		sb.append('<').append(name).append('>');
+		appendEscaped(sb, text, false);
+		sb.append("</").append(name).append('>');
+	}
+
+	/**
+	 * Chars that are not allowed in XML 1.0 are dropped.
+	 */
+	private static void appendEscaped(final StringBuilder sb, final String s, final boolean attr) {
+		if (s == null) return;
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '"':
+				if (attr) {
+					sb.append("&quot;");
+				}
+				else {
+					sb.append(c);
+				}
+				break;
+			case '\t':
+			case '\n':
+			case '\r':
+				sb.append(c);
+				break;
+			default:
+				if (c >= 0x20 && c != 0xFFFE && c != 0xFFFF) sb.append(c);
+			}
+		}
+	}
+
+}
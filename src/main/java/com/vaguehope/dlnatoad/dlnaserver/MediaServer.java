@@ -45,7 +45,7 @@ public class MediaServer {
 		contDirSrv.setManager(new DefaultServiceManager<>(contDirSrv, ContentDirectoryService.class) {
 			@Override
 			protected ContentDirectoryService createServiceInstance () {
-				return new ContentDirectoryService(contentTree, nodeConverter, new SearchEngine(), printAccessLog);
+				return new ContentDirectoryService(contentTree, nodeConverter, new SearchEngine(contentTree), printAccessLog);
 			}
 		});
 
@@ -46,20 +46,64 @@ import com.vaguehope.dlnatoad.media.MetadataReader.Metadata;
 public class NodeConverter {
 
 	private final ExternalUrls externalUrls;
+	private final DidlWriter didlWriter;
 
 	public NodeConverter(final ExternalUrls externalUrls) {
 		this.externalUrls = externalUrls;
+		this.didlWriter = new DidlWriter(externalUrls);
 	}
 
 	public List<Container> makeSubContainersWithoutTheirSubContainers(final ContentNode n) {
 		final List<Container> ret = new ArrayList<>();
-		n.withEachNode(i -> {
-			if (i.hasAuthList()) return;
+		for (final ContentNode i : listedNodes(n)) {
 			ret.add(makeContainerWithoutSubContainers(i));
-		});
+		}
+		return ret;
+	}
+
+	/**
+	 * The sub nodes that makeSubContainersWithoutTheirSubContainers() would make containers for.
+	 */
+	public static List<ContentNode> listedNodes(final ContentNode n) {
+		final List<ContentNode> nodes = n.getNodes();
+		int listed = 0;
+		for (final ContentNode i : nodes) {
+			if (!i.hasAuthList()) listed += 1;
+		}
+		if (listed == nodes.size()) return nodes;
+
+		final List<ContentNode> ret = new ArrayList<>(listed);
+		for (final ContentNode i : nodes) {
+			if (!i.hasAuthList()) ret.add(i);
+		}
+		return ret;
+	}
+
+	/**
+	 * The items that makeItems() would make items for.
+	 */
+	public static List<ContentItem> listedItems(final List<ContentItem> items) {
+		int listed = 0;
+		for (final ContentItem i : items) {
+			if (isListedItem(i)) listed += 1;
+		}
+		if (listed == items.size()) return items;
+
+		final List<ContentItem> ret = new ArrayList<>(listed);
+		for (final ContentItem i : items) {
+			if (isListedItem(i)) ret.add(i);
+		}
 		return ret;
 	}
 
+	/**
+	 * Same XML that DIDLParser.generate() would make from containers and items made from these,
+	 * without making any of them.  Much cheaper for long lists.
+	 */
+	public String generateDidl(final List<ContentNode> nodes, final List<ContentItem> items) {
+		return this.didlWriter.write(nodes, items);
+	}
+
 	public Container makeContainerWithoutSubContainers(final ContentNode n) {
 		final Container c = new Container();
 		c.setClazz(new DIDLObject.Class("object.container"));
@@ -95,13 +139,20 @@ public class NodeConverter {
 	}
 
 	private void maybeMakeAndAddItem(final List<Item> ret, final ContentItem i) {
+		if (isListedItem(i)) ret.add(makeItem(i));
+	}
+
+	/**
+	 * Whether makeItems() will include this item.
+	 */
+	static boolean isListedItem(final ContentItem i) {
 		switch (i.getFormat().getContentGroup()) {
 		case VIDEO:
 		case IMAGE:
 		case AUDIO:
-			ret.add(makeItem(i));
-			break;
+			return true;
 		default:
+			return false;
 		}
 	}
 
@@ -154,7 +205,7 @@ public class NodeConverter {
 		return new Res(makeProtocolInfo(art.getFormat().asMimetype()), Long.valueOf(art.getFileLength()), artUri);
 	}
 
-	private static DLNAProtocolInfo makeProtocolInfo(final MimeType artMimeType) {
+	static DLNAProtocolInfo makeProtocolInfo(final MimeType artMimeType) {
 		final EnumMap<DLNAAttribute.Type, DLNAAttribute<?>> attributes = new EnumMap<>(DLNAAttribute.Type.class);
 
 		final DLNAProfiles dlnaThumbnailProfile = findDlnaThumbnailProfile(artMimeType);
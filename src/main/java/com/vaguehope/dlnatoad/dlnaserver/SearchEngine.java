@@ -1,10 +1,15 @@
 package com.vaguehope.dlnatoad.dlnaserver;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -25,6 +30,8 @@ import org.jupnp.support.model.item.VideoItem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.vaguehope.cdsc.CDSCBaseListener;
 import com.vaguehope.cdsc.CDSCLexer;
@@ -37,27 +44,96 @@ import com.vaguehope.dlnatoad.db.MediaDb;
 import com.vaguehope.dlnatoad.db.Sqlite;
 import com.vaguehope.dlnatoad.media.ContentGroup;
 import com.vaguehope.dlnatoad.media.ContentItem;
+import com.vaguehope.dlnatoad.media.ContentItemIndex;
 import com.vaguehope.dlnatoad.media.ContentNode;
+import com.vaguehope.dlnatoad.media.ContentTree;
 import com.vaguehope.dlnatoad.media.MetadataReader.Metadata;
 import com.vaguehope.dlnatoad.util.StringHelper;
 
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.metrics.Counter;
+
 public class SearchEngine {
 
 	private static final Logger LOG = LoggerFactory.getLogger(SearchEngine.class);
 
-	public SearchEngine () {}
+	private static final Counter CRITERIA_CACHE_METRIC = Counter.builder()
+			.name("dlna_search_criteria_cache")
+			.labelNames("result")
+			.help("count of search criteria lookups by whether the criteria had already been compiled.")
+			.register();
+	private static final CounterDataPoint CRITERIA_CACHE_HIT_METRIC = CRITERIA_CACHE_METRIC.labelValues("hit");
+	private static final CounterDataPoint CRITERIA_CACHE_MISS_METRIC = CRITERIA_CACHE_METRIC.labelValues("miss");
+
+	private static final Counter SEARCH_METHOD_METRIC = Counter.builder()
+			.name("dlna_search_method")
+			.labelNames("method")
+			.help("count of searches by whether matches were found from the ContentItemIndex or by walking the tree.")
+			.register();
+	private static final CounterDataPoint SEARCH_INDEX_METRIC = SEARCH_METHOD_METRIC.labelValues("index");
+	private static final CounterDataPoint SEARCH_SCAN_METRIC = SEARCH_METHOD_METRIC.labelValues("scan");
+
+	// Past this checking each candidate and sorting them costs more than walking the tree until maxResults are found.
+	private static final int MAX_INDEX_CANDIDATES = 20000;
+
+	// Index results are ordered by file so that every page of results sees the same order.
+	private static final Comparator<ContentItem> INDEX_RESULT_ORDER = Comparator
+			.comparing(ContentItem::getFile, Comparator.nullsLast(Comparator.naturalOrder()))
+			.thenComparing(ContentItem::getId);
+
+	private final ContentTree contentTree;
+
+	// Renderers repeat the same criteria for every page of results.
+	private final Cache<String, Predicate<ContentItem>> compiledCriteria = CacheBuilder.newBuilder()
+			.maximumSize(100L)
+			.build();
+
+	/**
+	 * Without a ContentTree every search walks the tree.
+	 */
+	public SearchEngine () {
+		this(null);
+	}
+
+	public SearchEngine (final ContentTree contentTree) {
+		this.contentTree = contentTree;
+	}
 
 	public List<ContentItem> search (final ContentNode node, final String searchCriteria, final int maxResults, final String username) throws ContentDirectoryException {
-		final long startTime = System.nanoTime();
-		final Predicate<ContentItem> predicate = criteriaToPredicate(searchCriteria);
-		if (predicate == null) throw new ContentDirectoryException(ContentDirectoryErrorCodes.UNSUPPORTED_SEARCH_CRITERIA, "Do not know how to parse: " + searchCriteria);
-		LOG.debug("'{}' => {} in {}ms.", searchCriteria, predicate, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+		final Predicate<ContentItem> predicate = compiledPredicate(searchCriteria);
+
+		if (this.contentTree != null) {
+			final Collection<ContentItem> candidates = candidates(predicate, this.contentTree.getItemIndex());
+			if (candidates != null && candidates.size() <= MAX_INDEX_CANDIDATES) {
+				SEARCH_INDEX_METRIC.inc();
+				return filterCandidates(candidates, node, predicate, maxResults, username);
+			}
+		}
 
+		SEARCH_SCAN_METRIC.inc();
 		final List<ContentItem> results = new ArrayList<>();
 		filterItems(node, predicate, maxResults, username, results);
 		return results;
 	}
 
+	private Predicate<ContentItem> compiledPredicate (final String searchCriteria) throws ContentDirectoryException {
+		final Predicate<ContentItem> cached = this.compiledCriteria.getIfPresent(searchCriteria);
+		if (cached != null) {
+			CRITERIA_CACHE_HIT_METRIC.inc();
+			return cached;
+		}
+		CRITERIA_CACHE_MISS_METRIC.inc();
+
+		final long startTime = System.nanoTime();
+		final Predicate<ContentItem> parsed = criteriaToPredicate(searchCriteria);
+		if (parsed == null) throw new ContentDirectoryException(ContentDirectoryErrorCodes.UNSUPPORTED_SEARCH_CRITERIA, "Do not know how to parse: " + searchCriteria);
+		final Predicate<ContentItem> compiled = compile(parsed);
+		LOG.debug("'{}' => {} in {}ms.", searchCriteria, compiled, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+
+		this.compiledCriteria.put(searchCriteria, compiled);
+		return compiled;
+	}
+
 	protected static Predicate<ContentItem> criteriaToPredicate (final String searchCriteria) {
 		final CriteriaListener listener = new CriteriaListener();
 		new ParseTreeWalker().walk(listener, new CDSCParser(
@@ -66,6 +142,133 @@ public class SearchEngine {
 		return listener.getPredicate();
 	}
 
+	/**
+	 * Flattens nested and/or into one level, drops duplicates and constant TRUE / FALSE terms,
+	 * so matching an item is one pass over an array.
+	 * Only for matching, the result does not give the same getWhere() as the input.
+	 */
+	protected static Predicate<ContentItem> compile (final Predicate<ContentItem> predicate) {
+		if (predicate instanceof And) {
+			final Set<Predicate<ContentItem>> terms = new LinkedHashSet<>();
+			for (final Predicate<ContentItem> p : ((And<ContentItem>) predicate).predicates) {
+				final Predicate<ContentItem> c = compile(p);
+				if (c instanceof Bool) {
+					if (!((Bool<ContentItem>) c).v) return c;
+				}
+				else if (c instanceof And) {
+					terms.addAll(((And<ContentItem>) c).predicates);
+				}
+				else {
+					terms.add(c);
+				}
+			}
+			if (terms.isEmpty()) return new Bool<>(true);
+			if (terms.size() == 1) return terms.iterator().next();
+			return new And<>(new ArrayList<>(terms));
+		}
+		if (predicate instanceof Or) {
+			final Set<Predicate<ContentItem>> terms = new LinkedHashSet<>();
+			for (final Predicate<ContentItem> p : ((Or<ContentItem>) predicate).predicates) {
+				final Predicate<ContentItem> c = compile(p);
+				if (c instanceof Bool) {
+					if (((Bool<ContentItem>) c).v) return c;
+				}
+				else if (c instanceof Or) {
+					terms.addAll(((Or<ContentItem>) c).predicates);
+				}
+				else {
+					terms.add(c);
+				}
+			}
+			if (terms.isEmpty()) return new Bool<>(false);
+			if (terms.size() == 1) return terms.iterator().next();
+			return new Or<>(new ArrayList<>(terms));
+		}
+		return predicate;
+	}
+
+	/**
+	 * Items that might match, or null if the index can not narrow it down.
+	 */
+	protected static Collection<ContentItem> candidates (final Predicate<ContentItem> predicate, final ContentItemIndex index) {
+		if (predicate instanceof ContentGroupIs) {
+			return index.getItemsInGroup(((ContentGroupIs) predicate).contentGroup);
+		}
+		if (predicate instanceof TitleContains) {
+			return index.getItemsWithTitleContaining(((TitleContains) predicate).lcaseSubString);
+		}
+		if (predicate instanceof ArtistContains) {
+			return index.getItemsWithArtistContaining(((ArtistContains) predicate).lcaseSubString);
+		}
+		if (predicate instanceof AlbumContains) {
+			return index.getItemsWithAlbumContaining(((AlbumContains) predicate).lcaseSubString);
+		}
+		if (predicate instanceof Bool) {
+			return ((Bool<ContentItem>) predicate).v ? null : Collections.emptyList();
+		}
+		if (predicate instanceof And) {
+			// Every term must match, so the fewest candidates of any term will do.
+			Collection<ContentItem> fewest = null;
+			for (final Predicate<ContentItem> p : ((And<ContentItem>) predicate).predicates) {
+				final Collection<ContentItem> c = candidates(p, index);
+				if (c != null && (fewest == null || c.size() < fewest.size())) fewest = c;
+			}
+			return fewest;
+		}
+		if (predicate instanceof Or) {
+			final Set<ContentItem> all = new HashSet<>();
+			for (final Predicate<ContentItem> p : ((Or<ContentItem>) predicate).predicates) {
+				final Collection<ContentItem> c = candidates(p, index);
+				if (c == null) return null;
+				all.addAll(c);
+			}
+			return all;
+		}
+		return null;
+	}
+
+	private List<ContentItem> filterCandidates (final Collection<ContentItem> candidates, final ContentNode searchNode, final Predicate<ContentItem> predicate, final int maxResults, final String username) {
+		final Map<String, Boolean> nodeVisible = new HashMap<>();
+		final List<ContentItem> results = new ArrayList<>();
+		for (final ContentItem item : candidates) {
+			if (!predicate.matches(item)) continue;
+
+			// Art and subtitles are in the tree but are not items of their parent.
+			final ContentNode parent = this.contentTree.getNode(item.getParentId());
+			if (parent == null || !parent.hasItemWithId(item.getId())) continue;
+			if (!isVisibleUnder(parent, searchNode, username, nodeVisible)) continue;
+
+			results.add(item);
+		}
+		results.sort(INDEX_RESULT_ORDER);
+		return results.size() > maxResults ? new ArrayList<>(results.subList(0, maxResults)) : results;
+	}
+
+	/**
+	 * Same rules as walking down from searchNode: every node on the way must allow the user and recent is skipped.
+	 */
+	private boolean isVisibleUnder (final ContentNode node, final ContentNode searchNode, final String username, final Map<String, Boolean> cache) {
+		final Boolean cached = cache.get(node.getId());
+		if (cached != null) return cached;
+
+		final boolean visible;
+		if (!node.isUserAuth(username)) {
+			visible = false;
+		}
+		else if (node.getId().equals(searchNode.getId())) {
+			visible = true;
+		}
+		else if (ContentGroup.RECENT.getId().equals(node.getId())) {
+			visible = false;
+		}
+		else {
+			final ContentNode parent = this.contentTree.getNode(node.getParentId());
+			visible = parent != null && isVisibleUnder(parent, searchNode, username, cache);
+		}
+		cache.put(node.getId(), visible);
+		return visible;
+	}
+
 	private static class CriteriaListener extends CDSCBaseListener {
 
 		private static final Set<String> TITLE_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
@@ -74,6 +277,9 @@ public class SearchEngine {
 		private static final Set<String> ARTIST_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
 				"dc:creator", "upnp:artist")));
 
+		private static final Set<String> ALBUM_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+				"upnp:album")));
+
 		private static final Set<String> TAG_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
 				"tag")));
 
@@ -209,6 +415,15 @@ public class SearchEngine {
 					predicate = new Bool<>(true);
 				}
 			}
+			else if (ALBUM_FIELDS.contains(propertyName)) {
+				if ("=".equals(op) || "contains".equalsIgnoreCase(op)) {
+					predicate = new AlbumContains(value);
+				}
+				else {
+					LOG.debug("Unsupported op for property {}: {}", propertyName, op);
+					predicate = new Bool<>(true);
+				}
+			}
 			else if (TAG_FIELDS.contains(propertyName)) {
 				if ("=".equals(op)) {
 					predicate = new TagPredicate(value, Operator.EQUAL);
@@ -261,25 +476,30 @@ public class SearchEngine {
 	}
 
 	/**
-	 * Lazy recursive impl.
+	 * Depth first walk in tree order, stopping once maxResults are found.
+	 * Only reads snapshots of each node's children so holds no locks.
 	 */
-	private static void filterItems (final ContentNode node, final Predicate<ContentItem> predicate, final int maxResults, final String username, final List<ContentItem> results) {
-		if (results.size() >= maxResults) return;
-		if (!node.isUserAuth(username)) return;
-
-		node.withEachItem(i -> {
-			if (results.size() >= maxResults) return;  // TODO is there a nicer way to stop iterating?
-			if (predicate.matches(i)) {
-				results.add(i);
+	private static void filterItems (final ContentNode startNode, final Predicate<ContentItem> predicate, final int maxResults, final String username, final List<ContentItem> results) {
+		final Deque<ContentNode> toVisit = new ArrayDeque<>();
+		toVisit.push(startNode);
+		while (!toVisit.isEmpty() && results.size() < maxResults) {
+			final ContentNode node = toVisit.pop();
+			if (!node.isUserAuth(username)) continue;
+
+			for (final ContentItem i : node.getItems()) {
+				if (predicate.matches(i)) {
+					results.add(i);
+					if (results.size() >= maxResults) return;
+				}
 			}
-		});
-
-		// FIXME this is recursive and acquires locks so may deadlock.
-		// TODO replace with non-recursive impl.
-		node.withEachNode(n -> {
-			if (ContentGroup.RECENT.getId().equals(n.getId())) return;  // Do not search in recent.
-			filterItems(n, predicate, maxResults, username, results);
-		});
+
+			final List<ContentNode> nodes = node.getNodes();
+			for (int x = nodes.size() - 1; x >= 0; x--) {
+				final ContentNode n = nodes.get(x);
+				if (ContentGroup.RECENT.getId().equals(n.getId())) continue;  // Do not search in recent.
+				toVisit.push(n);
+			}
+		}
 	}
 
 	private enum LogOp {
@@ -346,14 +566,17 @@ public class SearchEngine {
 	private static class Or<T> implements Predicate<T> {
 
 		private final Collection<Predicate<T>> predicates;
+		private final Predicate<T>[] array;  // So matching does not make an iterator per item.
 
+		@SuppressWarnings("unchecked")
 		public Or (final Collection<Predicate<T>> predicates) {
 			this.predicates = predicates;
+			this.array = predicates.toArray((Predicate<T>[]) new Predicate<?>[predicates.size()]);
 		}
 
 		@Override
 		public boolean matches (final T thing) {
-			for (final Predicate<T> p : this.predicates) {
+			for (final Predicate<T> p : this.array) {
 				if (p.matches(thing)) return true;
 			}
 			return false;
@@ -388,14 +611,17 @@ public class SearchEngine {
 	private static class And<T> implements Predicate<T> {
 
 		private final Collection<Predicate<T>> predicates;
+		private final Predicate<T>[] array;  // So matching does not make an iterator per item.
 
+		@SuppressWarnings("unchecked")
 		public And (final Collection<Predicate<T>> predicates) {
 			this.predicates = predicates;
+			this.array = predicates.toArray((Predicate<T>[]) new Predicate<?>[predicates.size()]);
 		}
 
 		@Override
 		public boolean matches (final T thing) {
-			for (final Predicate<T> p : this.predicates) {
+			for (final Predicate<T> p : this.array) {
 				if (!p.matches(thing)) return false;
 			}
 			return true;
@@ -476,7 +702,7 @@ public class SearchEngine {
 
 		@Override
 		public boolean matches (final ContentItem item) {
-			return item.getTitle().toLowerCase(Locale.ENGLISH).contains(this.lcaseSubString);
+			return StringHelper.containsIgnoreCase(item.getTitle(), this.lcaseSubString);
 		}
 
 		@Override
@@ -522,7 +748,7 @@ public class SearchEngine {
 			final String artist = md.getArtist();
 			if (artist == null) return false;
 
-			return artist.toLowerCase(Locale.ENGLISH).contains(this.lcaseSubString);
+			return StringHelper.containsIgnoreCase(artist, this.lcaseSubString);
 		}
 
 		@Override
@@ -552,6 +778,52 @@ public class SearchEngine {
 
 	}
 
+	private static class AlbumContains implements Predicate<ContentItem> {
+
+		private final String lcaseSubString;
+
+		public AlbumContains (final String subString) {
+			this.lcaseSubString = subString.toLowerCase(Locale.ENGLISH);
+		}
+
+		@Override
+		public boolean matches (final ContentItem item) {
+			final Metadata md = item.getMetadata();
+			if (md == null) return false;
+
+			final String album = md.getAlbum();
+			if (album == null) return false;
+
+			return StringHelper.containsIgnoreCase(album, this.lcaseSubString);
+		}
+
+		@Override
+		public String toString () {
+			return String.format("albumContains '%s'", this.lcaseSubString);
+		}
+
+		@Override
+		public Where getWhere() {
+			return new Where(MediaDb.COL_FILE + " LIKE ? ESCAPE ?",
+					Arrays.asList(Sqlite.escapeSearch(this.lcaseSubString), Sqlite.SEARCH_ESC));
+		}
+
+		@Override
+		public int hashCode () {
+			return this.lcaseSubString.hashCode();
+		}
+
+		@Override
+		public boolean equals (final Object obj) {
+			if (obj == null) return false;
+			if (obj == this) return true;
+			if (!(obj instanceof AlbumContains)) return false;
+			final AlbumContains that = (AlbumContains) obj;
+			return Objects.equals(this.lcaseSubString, that.lcaseSubString);
+		}
+
+	}
+
 	private static class TagPredicate implements Predicate<ContentItem> {
 
 		private final String val;
@@ -6,6 +6,7 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.vaguehope.dlnatoad.media.MetadataReader.Metadata;
 import com.vaguehope.dlnatoad.util.ExConsumer;
@@ -25,35 +26,60 @@ public class ContentItem extends AbstractContent {
 	private volatile long fileLength = 0L;
 	private volatile long lastModified = 0L;
 
+	// Incremented whenever anything shown in this item's DIDL changes.
+	private final AtomicInteger didlChangeCount = new AtomicInteger();
+	private volatile DidlFragment didlFragment;
+
 	public ContentItem(
 			final String id,
 			final String parentId,
 			final String title,
 			final File file,
 			final MediaFormat format) {
+		this(id, parentId, title, file, format, 0L, 0L);
+		reload();
+	}
+
+	/**
+	 * For restoring from a ContentTreeSnapshot without reading the file's length and modified time from disk.
+	 */
+	ContentItem(
+			final String id,
+			final String parentId,
+			final String title,
+			final File file,
+			final MediaFormat format,
+			final long fileLength,
+			final long lastModified) {
 		super(id, parentId, title);
 		if (parentId == null) throw new IllegalArgumentException("parentId must not be null.");
 		this.file = file;
 		this.format = format;
-		reload();
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
 	}
 
 	public void reload() {
 		if (this.file == null || !this.file.exists()) return;
+		final long prevLength = this.fileLength;
 		this.fileLength = this.file.length();
 		this.lastModified = this.file.lastModified();
+		if (this.fileLength != prevLength) this.didlChangeCount.incrementAndGet();
 	}
 
 	public void setDurationMillis(final long durationMillis) {
 		this.durationMillis = durationMillis;
+		this.didlChangeCount.incrementAndGet();
 	}
 
 	public void setArt(final ContentItem art) {
 		this.art = art;
+		this.didlChangeCount.incrementAndGet();
 	}
 
 	public void setMetadata(final Metadata metadata) {
 		this.metadata = metadata;
+		this.didlChangeCount.incrementAndGet();
 	}
 
 	public void setWidthAndHeight(int width, int height) {
@@ -71,6 +97,7 @@ public class ContentItem extends AbstractContent {
 				if (Objects.equals(a.getId(), attachment.getId())) return false;
 			}
 			this.attachments.add(attachment);
+			this.didlChangeCount.incrementAndGet();
 			return true;
 		}
 	}
@@ -82,6 +109,7 @@ public class ContentItem extends AbstractContent {
 			while (ittr.hasNext()) {
 				if (attachmentId.equals(ittr.next().getId())) {
 					ittr.remove();
+					this.didlChangeCount.incrementAndGet();
 					return true;
 				}
 			}
@@ -148,6 +176,41 @@ public class ContentItem extends AbstractContent {
 		return this.lastModified;
 	}
 
+	/**
+	 * Changes whenever anything shown in this item's DIDL changes, including the size of its art and attachments.
+	 * Changing which art or attachments it has changes the high half, so the low half only counts changes to the same ones.
+	 */
+	public long getDidlVersion() {
+		// Read first, so if the art or attachments are changed while reading them this is already out of date.
+		final int own = this.didlChangeCount.get();
+		int dependents = 0;
+		final ContentItem a = this.art;
+		if (a != null) dependents += a.didlChangeCount.get();
+		synchronized (this.attachments) {
+			for (final ContentItem item : this.attachments) {
+				dependents += item.didlChangeCount.get();
+			}
+		}
+		return ((long) own << 32) | (dependents & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns null if there is no fragment for this urlBase or the item has changed since it was made.
+	 */
+	public String getDidlFragment(final String urlBase) {
+		final DidlFragment f = this.didlFragment;
+		if (f == null || f.version != getDidlVersion() || !f.urlBase.equals(urlBase)) return null;
+		return f.xml;
+	}
+
+	/**
+	 * version must be read with getDidlVersion() before reading anything to make the fragment,
+	 * so any change made while making it leaves it already out of date.
+	 */
+	public void setDidlFragment(final String urlBase, final long version, final String xml) {
+		this.didlFragment = new DidlFragment(urlBase, version, xml);
+	}
+
 	@Override
 	public String toString() {
 		return String.format("ContentItem{%s, %s, %s, %s, %s}", this.id, this.parentId, this.title, this.file.getAbsolutePath(), this.format);
@@ -167,6 +230,20 @@ public class ContentItem extends AbstractContent {
 		return Objects.equals(this.id, that.id);
 	}
 
+	private static class DidlFragment {
+
+		final String urlBase;
+		final long version;
+		final String xml;
+
+		DidlFragment(final String urlBase, final long version, final String xml) {
+			this.urlBase = urlBase;
+			this.version = version;
+			this.xml = xml;
+		}
+
+	}
+
 	public enum Order implements Comparator<ContentItem> {
 		MODIFIED_DESC {
 			@Override
@@ -183,7 +260,7 @@ public class ContentItem extends AbstractContent {
 			public int compare(final ContentItem a, final ContentItem b) {
 				final String at = a.getTitle();
 				final String bt = b.getTitle();
-				int c = (at != null ? (bt != null ? at.compareToIgnoreCase(bt) : 1) : -1);
+				int c = at == bt ? 0 : (at != null ? (bt != null ? at.compareToIgnoreCase(bt) : 1) : -1);
 				if (c == 0) {
 					c = ID.compare(a, b);
 				}
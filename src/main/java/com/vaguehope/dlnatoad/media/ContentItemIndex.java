@@ -0,0 +1,200 @@
+package com.vaguehope.dlnatoad.media;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.vaguehope.dlnatoad.media.MetadataReader.Metadata;
+
+/**
+ * Finds items by ContentGroup and by words in their title, artist and album without walking the tree.
+ * Kept up to date by ContentTree as items are added and removed, so an item's metadata must be set before it is added.
+ * Lookups return candidates which may include items that do not match, callers must still check each item.
+ */
+public class ContentItemIndex {
+
+	// Shorter words are not indexed, so searches for them can not use the index.
+	private static final int MIN_WORD_LENGTH = 2;
+
+	private final Map<ContentGroup, Set<ContentItem>> byGroup = new EnumMap<>(ContentGroup.class);
+	private final Words titleWords = new Words();
+	private final Words artistWords = new Words();
+	private final Words albumWords = new Words();
+
+	ContentItemIndex() {
+		for (final ContentGroup g : ContentGroup.values()) {
+			this.byGroup.put(g, ConcurrentHashMap.newKeySet());
+		}
+	}
+
+	void add(final ContentItem item) {
+		if (item.getFormat() != null) this.byGroup.get(item.getFormat().getContentGroup()).add(item);
+		this.titleWords.add(item.getTitle(), item);
+		final Metadata md = item.getMetadata();
+		if (md != null) {
+			this.artistWords.add(md.getArtist(), item);
+			this.albumWords.add(md.getAlbum(), item);
+		}
+	}
+
+	void remove(final ContentItem item) {
+		if (item.getFormat() != null) this.byGroup.get(item.getFormat().getContentGroup()).remove(item);
+		this.titleWords.remove(item.getTitle(), item);
+		final Metadata md = item.getMetadata();
+		if (md != null) {
+			this.artistWords.remove(md.getArtist(), item);
+			this.albumWords.remove(md.getAlbum(), item);
+		}
+	}
+
+	/**
+	 * Live view, do not hold on to it.
+	 */
+	public Collection<ContentItem> getItemsInGroup(final ContentGroup group) {
+		return Collections.unmodifiableSet(this.byGroup.get(group));
+	}
+
+	/**
+	 * Returns null if the index can not help, e.g. the search string has no long enough words.
+	 */
+	public Collection<ContentItem> getItemsWithTitleContaining(final String lcaseSubString) {
+		return this.titleWords.itemsContaining(lcaseSubString);
+	}
+
+	/**
+	 * Returns null if the index can not help.
+	 */
+	public Collection<ContentItem> getItemsWithArtistContaining(final String lcaseSubString) {
+		return this.artistWords.itemsContaining(lcaseSubString);
+	}
+
+	/**
+	 * Returns null if the index can not help.
+	 */
+	public Collection<ContentItem> getItemsWithAlbumContaining(final String lcaseSubString) {
+		return this.albumWords.itemsContaining(lcaseSubString);
+	}
+
+	/**
+	 * A word is a run of letters and digits.
+	 * Any run of letters and digits in a search string must be inside a word of a matching string,
+	 * so the items under every word containing any one run in the search string are a superset of the matches.
+	 * Where the search string has other chars either side of a run the word must also start or end there,
+	 * which the sorted dictionary can answer without checking every word.
+	 */
+	private static class Words {
+
+		private final NavigableMap<String, Set<ContentItem>> items = new ConcurrentSkipListMap<>();
+
+		void add(final String s, final ContentItem item) {
+			if (s == null) return;
+			for (final String w : words(s)) {
+				this.items.compute(w, (k, set) -> {
+					final Set<ContentItem> ret = set != null ? set : ConcurrentHashMap.newKeySet();
+					ret.add(item);
+					return ret;
+				});
+			}
+		}
+
+		void remove(final String s, final ContentItem item) {
+			if (s == null) return;
+			for (final String w : words(s)) {
+				this.items.computeIfPresent(w, (k, set) -> {
+					set.remove(item);
+					return set.isEmpty() ? null : set;
+				});
+			}
+		}
+
+		Collection<ContentItem> itemsContaining(final String lcaseSubString) {
+			final String lcase = lcaseSubString.toLowerCase(Locale.ENGLISH);
+			Collection<Set<ContentItem>> fewest = null;
+			int fewestCount = Integer.MAX_VALUE;
+			String longestUnbounded = null;
+
+			int start = -1;
+			for (int i = 0; i <= lcase.length(); i++) {
+				final boolean wordChar = i < lcase.length() && Character.isLetterOrDigit(lcase.charAt(i));
+				if (wordChar) {
+					if (start < 0) start = i;
+					continue;
+				}
+				if (start < 0) continue;
+
+				final String run = lcase.substring(start, i);
+				final boolean boundedStart = start > 0;
+				final boolean boundedEnd = i < lcase.length();
+				start = -1;
+				if (run.length() < MIN_WORD_LENGTH) continue;
+
+				final Collection<Set<ContentItem>> sets;
+				if (boundedStart && boundedEnd) {
+					final Set<ContentItem> set = this.items.get(run);
+					sets = set != null ? Collections.singletonList(set) : Collections.emptyList();
+				}
+				else if (boundedStart) {
+					sets = this.items.subMap(run, true, run + Character.MAX_VALUE, false).values();
+				}
+				else {
+					if (longestUnbounded == null || run.length() > longestUnbounded.length()) longestUnbounded = run;
+					continue;
+				}
+
+				int count = 0;
+				for (final Set<ContentItem> set : sets) {
+					count += set.size();
+				}
+				if (count < fewestCount) {
+					fewest = sets;
+					fewestCount = count;
+				}
+			}
+
+			if (fewest == null) {
+				if (longestUnbounded == null) return null;
+				// Have to check every word.
+				final List<Set<ContentItem>> sets = new ArrayList<>();
+				for (final Entry<String, Set<ContentItem>> e : this.items.entrySet()) {
+					if (e.getKey().contains(longestUnbounded)) sets.add(e.getValue());
+				}
+				fewest = sets;
+			}
+
+			final Set<ContentItem> ret = new HashSet<>();
+			for (final Set<ContentItem> set : fewest) {
+				ret.addAll(set);
+			}
+			return ret;
+		}
+
+		private static Set<String> words(final String s) {
+			final Set<String> ret = new HashSet<>();
+			final String lcase = s.toLowerCase(Locale.ENGLISH);
+			int start = -1;
+			for (int i = 0; i <= lcase.length(); i++) {
+				final boolean wordChar = i < lcase.length() && Character.isLetterOrDigit(lcase.charAt(i));
+				if (wordChar) {
+					if (start < 0) start = i;
+				}
+				else if (start >= 0) {
+					if (i - start >= MIN_WORD_LENGTH) ret.add(lcase.substring(start, i));
+					start = -1;
+				}
+			}
+			return ret;
+		}
+
+	}
+
+}
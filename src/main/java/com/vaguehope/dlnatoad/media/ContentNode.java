@@ -6,27 +6,54 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.vaguehope.dlnatoad.auth.AuthList;
 import com.vaguehope.dlnatoad.auth.Permission;
 import com.vaguehope.dlnatoad.util.ExConsumer;
 
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.metrics.Counter;
+
 /**
  * Based on a class from WireMe and used under Apache 2 License. See
  * https://code.google.com/p/wireme/ for more details.
  */
 public class ContentNode extends AbstractContent {
 
+	private static final Counter SORTED_VIEW_METRIC = Counter.builder()
+			.name("content_node_sorted_view")
+			.labelNames("result")
+			.help("count of requests for a node's items in a non-default order by whether a cached view was used.")
+			.register();
+	private static final CounterDataPoint SORTED_VIEW_HIT_METRIC = SORTED_VIEW_METRIC.labelValues("hit");
+	private static final CounterDataPoint SORTED_VIEW_REBUILD_METRIC = SORTED_VIEW_METRIC.labelValues("rebuild");
+
 	private final String sortKey;
 	private final File file;
 	private final String path;
 	private final AuthList authList;
 
+	// Children are kept sorted as they are added, and their IDs indexed, so adding to a big directory stays cheap.
 	private final List<ContentNode> nodes = new ArrayList<>();
+	private final Set<String> nodeIds = new HashSet<>();
 	private final Collection<ContentItem> items;
+	private final Set<String> itemIds;  // Only if items is a List, other collections are assumed to order themselves.
+	private volatile int nodeCount = 0;
+	private volatile int itemCount = 0;
+
+	// Readers get immutable copies of the children so they never iterate while holding the lock.
+	// Writers only mark these stale (null), the next reader rebuilds them, so a burst of adds costs one copy.
+	private volatile List<ContentNode> nodesSnapshot;
+	private volatile List<ContentItem> itemsSnapshot;
+	private volatile long itemsVersion = 0L;
+	private final Map<ContentItem.Order, SortedView> sortedItems = new ConcurrentHashMap<>();
 
 	private volatile ContentItem art;
 	private volatile long lastModified = 0L;
@@ -47,6 +74,15 @@ public class ContentNode extends AbstractContent {
 		this.authList = authList;
 		this.sortKey = sortKey;
 		this.items = itemsCollection;
+		if (itemsCollection instanceof List) {
+			this.itemIds = new HashSet<>();
+			for (final ContentItem i : itemsCollection) {
+				this.itemIds.add(i.getId());
+			}
+		}
+		else {
+			this.itemIds = null;
+		}
 		reload();
 	}
 
@@ -78,28 +114,50 @@ public class ContentNode extends AbstractContent {
 	}
 
 	public List<ContentNode> nodesUserHasAuth(final String username) {
-		synchronized (this.nodes) {
-			final List<ContentNode> ret = new ArrayList<>(this.nodes.size());
-			for (final ContentNode node : this.nodes) {
-				if (node.isUserAuth(username)) ret.add(node);
-			}
-			return ret;
+		final List<ContentNode> all = getNodes();
+		final List<ContentNode> ret = new ArrayList<>(all.size());
+		for (final ContentNode node : all) {
+			if (node.isUserAuth(username)) ret.add(node);
 		}
+		return ret;
 	}
 
 	public <E extends Exception> void withEachNode (final ExConsumer<ContentNode, E> consumer) throws E {
-		synchronized (this.nodes) {
-			for (final ContentNode node : this.nodes) {
-				consumer.accept(node);
-			}
+		for (final ContentNode node : getNodes()) {
+			consumer.accept(node);
 		}
 	}
 
 	public <E extends Exception> void withEachItem (final ExConsumer<ContentItem, E> consumer) throws E {
+		for (final ContentItem item : getItems()) {
+			consumer.accept(item);
+		}
+	}
+
+	/**
+	 * Immutable snapshot in sort order, does not change when nodes are added or removed.
+	 */
+	public List<ContentNode> getNodes() {
+		final List<ContentNode> snapshot = this.nodesSnapshot;
+		if (snapshot != null) return snapshot;
+		synchronized (this.nodes) {
+			if (this.nodesSnapshot == null) this.nodesSnapshot = Collections.unmodifiableList(new ArrayList<>(this.nodes));
+			return this.nodesSnapshot;
+		}
+	}
+
+	/**
+	 * Immutable snapshot in sort order, does not change when items are added or removed.
+	 */
+	public List<ContentItem> getItems() {
+		final List<ContentItem> snapshot = this.itemsSnapshot;
+		if (snapshot != null) return snapshot;
 		synchronized (this.items) {
-			for (final ContentItem item : this.items) {
-				consumer.accept(item);
-			}
+			if (this.itemsSnapshot != null) return this.itemsSnapshot;
+			final List<ContentItem> copy = Collections.unmodifiableList(new ArrayList<>(this.items));
+			// Other collections can be changed without going through this node, so can not be cached.
+			if (this.itemIds != null) this.itemsSnapshot = copy;
+			return copy;
 		}
 	}
 
@@ -127,34 +185,72 @@ public class ContentNode extends AbstractContent {
 		return getNodeCount() + getItemCount();
 	}
 
-	public int getNodeCount() {
-		synchronized (this.nodes) {
-			return this.nodes.size();
+	/**
+	 * Immutable view of the items in the given order, kept until items are added, removed or invalidateSortedItems() is called.
+	 * null means the default order, same as getItems().
+	 */
+	public List<ContentItem> getItems(final ContentItem.Order order) {
+		if (order == null) return getItems();
+		if (this.itemIds == null) {
+			final List<ContentItem> copy = getCopyOfItems();
+			copy.sort(order);
+			return Collections.unmodifiableList(copy);
+		}
+
+		final long version = this.itemsVersion;
+		final SortedView cached = this.sortedItems.get(order);
+		if (cached != null && cached.version == version) {
+			SORTED_VIEW_HIT_METRIC.inc();
+			return cached.items;
 		}
+
+		// Sort outside the lock so writers are not held up.
+		// If items change while sorting the version will not match and the next read rebuilds again.
+		final List<ContentItem> copy = new ArrayList<>(getItems());
+		copy.sort(order);
+		final List<ContentItem> view = Collections.unmodifiableList(copy);
+		this.sortedItems.put(order, new SortedView(version, view));
+		SORTED_VIEW_REBUILD_METRIC.inc();
+		return view;
 	}
 
-	public int getItemCount() {
+	/**
+	 * For when an item has changed in a way that might change its order, eg its modified time.
+	 */
+	public void invalidateSortedItems() {
 		synchronized (this.items) {
-			return this.items.size();
+			this.itemsVersion += 1;
+			this.sortedItems.clear();
+		}
+	}
+
+	public int getNodeCount() {
+		return this.nodeCount;
+	}
+
+	public int getItemCount() {
+		if (this.itemIds == null) {
+			synchronized (this.items) {
+				return this.items.size();
+			}
 		}
+		return this.itemCount;
 	}
 
 	public long getTotalFileLength() {
 		long total = 0L;
-		synchronized (this.items) {
-			for (final ContentItem i : this.items) {
-				total += i.getFileLength();
-			}
+		for (final ContentItem i : getItems()) {
+			total += i.getFileLength();
 		}
 		return total;
 	}
 
 	public List<ContentNode> getCopyOfNodes() {
-		return new ArrayList<>(this.nodes);
+		return new ArrayList<>(getNodes());
 	}
 
 	public List<ContentItem> getCopyOfItems() {
-		return new ArrayList<>(this.items);
+		return new ArrayList<>(getItems());
 	}
 
 	public boolean addNodeIfAbsent(final ContentNode node) {
@@ -165,9 +261,9 @@ public class ContentNode extends AbstractContent {
 		}
 
 		synchronized (this.nodes) {
-			if (hasNodeWithId(node.getId())) return false;
-			this.nodes.add(node);
-			Collections.sort(this.nodes, Order.SORT_KEY);
+			if (!this.nodeIds.add(node.getId())) return false;
+			insertSorted(this.nodes, node, Order.SORT_KEY);
+			nodesChanged();
 			return true;
 		}
 	}
@@ -180,25 +276,74 @@ public class ContentNode extends AbstractContent {
 		}
 
 		synchronized (this.items) {
-			if (hasItemWithId(item.getId())) return false;
-			this.items.add(item);
-			if (this.items instanceof List) {
-				Collections.sort((List<ContentItem>) this.items, ContentItem.Order.TITLE_CASE_INSENSITIVE);
+			if (this.itemIds == null) {
+				if (hasItemWithId(item.getId())) return false;
+				this.items.add(item);
+				return true;
 			}
+			if (!this.itemIds.add(item.getId())) return false;
+			insertSorted((List<ContentItem>) this.items, item, ContentItem.Order.TITLE_CASE_INSENSITIVE);
+			itemsChanged();
 			return true;
 		}
 	}
 
+	/**
+	 * Files are usually found in name order, so check for appending before searching.
+	 */
+	private static <T> void insertSorted(final List<T> list, final T e, final Comparator<? super T> order) {
+		final int size = list.size();
+		if (size < 1 || order.compare(list.get(size - 1), e) <= 0) {
+			list.add(e);
+			return;
+		}
+		final int i = Collections.binarySearch(list, e, order);
+		list.add(i < 0 ? -i - 1 : i, e);
+	}
+
 	public boolean removeNode(final ContentNode toRemove) {
 		synchronized (this.nodes) {
-			return removeById(this.nodes, toRemove.getId());
+			if (!this.nodeIds.remove(toRemove.getId())) return false;
+			final boolean removed = removeSorted(this.nodes, toRemove, Order.SORT_KEY);
+			nodesChanged();
+			return removed;
 		}
 	}
 
 	public boolean removeItem(final ContentItem toRemove) {
 		synchronized (this.items) {
-			return removeById(this.items, toRemove.getId());
+			if (this.itemIds == null) return removeById(this.items, toRemove.getId());
+			if (!this.itemIds.remove(toRemove.getId())) return false;
+			final boolean removed = removeSorted((List<ContentItem>) this.items, toRemove, ContentItem.Order.TITLE_CASE_INSENSITIVE);
+			itemsChanged();
+			return removed;
+		}
+	}
+
+	// Must hold lock on nodes.
+	private void nodesChanged() {
+		this.nodeCount = this.nodes.size();
+		this.nodesSnapshot = null;
+	}
+
+	// Must hold lock on items.
+	private void itemsChanged() {
+		this.itemCount = this.items.size();
+		this.itemsSnapshot = null;
+		this.itemsVersion += 1;
+		this.sortedItems.clear();
+	}
+
+	/**
+	 * toRemove is usually the same instance as was added, if it is not and sorts differently fall back to a scan.
+	 */
+	private static <T extends AbstractContent> boolean removeSorted(final List<T> list, final T toRemove, final Comparator<? super T> order) {
+		final int i = Collections.binarySearch(list, toRemove, order);
+		if (i >= 0 && toRemove.getId().equals(list.get(i).getId())) {
+			list.remove(i);
+			return true;
 		}
+		return removeById(list, toRemove.getId());
 	}
 
 	private static <T extends AbstractContent> boolean removeById(final Collection<T> list, final String id) {
@@ -214,17 +359,15 @@ public class ContentNode extends AbstractContent {
 		return removed;
 	}
 
-	public boolean hasNodeWithId(final String idToRemove) {
+	public boolean hasNodeWithId(final String idToFind) {
 		synchronized (this.nodes) {
-			for (final ContentNode c : this.nodes) {
-				if (idToRemove.equals(c.getId())) return true;
-			}
+			return this.nodeIds.contains(idToFind);
 		}
-		return false;
 	}
 
 	public boolean hasItemWithId(final String idToFind) {
 		synchronized (this.items) {
+			if (this.itemIds != null) return this.itemIds.contains(idToFind);
 			for (final ContentItem i : this.items) {
 				if (idToFind.equals(i.getId())) return true;
 			}
@@ -259,12 +402,8 @@ public class ContentNode extends AbstractContent {
 		s.append(", ").append(this.parentId);
 		s.append(", ").append(this.title);
 		s.append(", ");
-		synchronized (this.nodes) {
-			s.append(this.nodes);
-		}
-		synchronized (this.items) {
-			s.append(this.items);
-		}
+		s.append(getNodes());
+		s.append(getItems());
 		return s.append("}").toString();
 	}
 
@@ -310,4 +449,14 @@ public class ContentNode extends AbstractContent {
 		public abstract int compare (ContentNode a, ContentNode b);
 	}
 
+	private static class SortedView {
+		final long version;
+		final List<ContentItem> items;
+
+		SortedView(final long version, final List<ContentItem> items) {
+			this.version = version;
+			this.items = items;
+		}
+	}
+
 }
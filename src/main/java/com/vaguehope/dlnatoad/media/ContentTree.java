@@ -3,14 +3,14 @@ package com.vaguehope.dlnatoad.media;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +47,12 @@ public class ContentTree {
 	private final Map<String, ContentNode> contentNodePaths = new ConcurrentHashMap<>();
 	private final ContentNode rootNode;
 	private final Map<String, ContentItem> contentItems = new ConcurrentHashMap<>();
+	// So removeFile() does not need to scan every node and item.  Lists are never modified, only replaced.
+	private final Map<File, List<ContentNode>> contentNodeFiles = new ConcurrentHashMap<>();
+	private final Map<File, List<ContentItem>> contentItemFiles = new ConcurrentHashMap<>();
+	private final ContentItemIndex itemIndex = new ContentItemIndex();
+	// Incremented every time a node or item is added or removed, so results derived from the tree know when to be redone.
+	private final AtomicLong changeCount = new AtomicLong();
 
 	private static final int MAX_RECENT_ITEMS = 200;
 	private final ContentNode recentNode;
@@ -54,6 +60,9 @@ public class ContentTree {
 	private final Object[] recentLock = new Object[] {};
 	private volatile long oldestRecentItem = 0L;
 
+	// Items restored from a ContentTreeSnapshot that have not yet been seen on disk again.
+	private final Set<ContentItem> unconfirmedItems = ConcurrentHashMap.newKeySet();
+
 	public ContentTree () {
 		this(true);
 	}
@@ -90,6 +99,13 @@ public class ContentTree {
 		return this.contentItems.size();
 	}
 
+	/**
+	 * Changes whenever a node or item is added to or removed from the tree.
+	 */
+	public long getChangeCount() {
+		return this.changeCount.get();
+	}
+
 	public ContentNode getRootNode () {
 		return this.rootNode;
 	}
@@ -109,8 +125,25 @@ public class ContentTree {
 
 	public void addNode (final ContentNode node) {
 		this.authSet.add(node.getAuthList());
-		this.contentNodes.put(node.getId(), node);
+		final ContentNode prev = this.contentNodes.put(node.getId(), node);
+		if (prev != null && prev != node) {
+			removeNodePath(prev);
+			removeFromFileIndex(this.contentNodeFiles, prev.getFile(), prev);
+		}
 		addNodePath(node);
+		addToFileIndex(this.contentNodeFiles, node.getFile(), node);
+		this.changeCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns false if node was not in the tree.
+	 */
+	private boolean forgetNode(final ContentNode node) {
+		if (!this.contentNodes.remove(node.getId(), node)) return false;
+		removeNodePath(node);
+		removeFromFileIndex(this.contentNodeFiles, node.getFile(), node);
+		this.changeCount.incrementAndGet();
+		return true;
 	}
 
 	public ContentNode getNodeByPath(final String path) {
@@ -133,14 +166,97 @@ public class ContentTree {
 		this.contentNodePaths.remove(node.getPath(), node);
 	}
 
+	public ContentItemIndex getItemIndex() {
+		return this.itemIndex;
+	}
+
 	public ContentItem getItem(final String id) {
 		if (id == null) throw new NullPointerException("Cannot get item with null id.");
 		return this.contentItems.get(id);
 	}
 
 	public void addItem(final ContentItem item) {
-		this.contentItems.put(item.getId(), item);
+		final ContentItem prev = this.contentItems.put(item.getId(), item);
+		if (prev != null && prev != item) {
+			removeFromFileIndex(this.contentItemFiles, prev.getFile(), prev);
+			this.itemIndex.remove(prev);
+		}
+		addToFileIndex(this.contentItemFiles, item.getFile(), item);
+		this.itemIndex.add(item);
 		maybeAddToRecent(item);
+		this.changeCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns false if item was not in the tree.
+	 */
+	private boolean forgetItem(final ContentItem item) {
+		if (!this.contentItems.remove(item.getId(), item)) return false;
+		removeFromFileIndex(this.contentItemFiles, item.getFile(), item);
+		this.itemIndex.remove(item);
+		removeFromRecent(item);
+		this.changeCount.incrementAndGet();
+		return true;
+	}
+
+	private static <T> void addToFileIndex(final Map<File, List<T>> index, final File file, final T value) {
+		if (file == null) return;
+		index.compute(file, (k, list) -> {
+			if (list == null) return Collections.singletonList(value);
+			final List<T> ret = new ArrayList<>(list.size() + 1);
+			ret.addAll(list);
+			ret.add(value);
+			return ret;
+		});
+	}
+
+	private static <T> void removeFromFileIndex(final Map<File, List<T>> index, final File file, final T value) {
+		if (file == null) return;
+		index.computeIfPresent(file, (k, list) -> {
+			final List<T> ret = new ArrayList<>(list.size());
+			for (final T t : list) {
+				if (t != value) ret.add(t);
+			}
+			if (ret.size() == list.size()) return list;
+			return ret.isEmpty() ? null : ret;
+		});
+	}
+
+	void addUnconfirmedItem(final ContentItem item) {
+		this.unconfirmedItems.add(item);
+	}
+
+	int getUnconfirmedItemCount() {
+		return this.unconfirmedItems.size();
+	}
+
+	/**
+	 * Returns the item if it was restored from a snapshot and this is the first time it has been seen since, otherwise null.
+	 */
+	ContentItem confirmItem(final String id) {
+		final ContentItem item = this.contentItems.get(id);
+		if (item == null || !this.unconfirmedItems.remove(item)) return null;
+		return item;
+	}
+
+	/**
+	 * To be called once the initial scan has seen every file.
+	 * Items restored from a snapshot that were not seen again are removed,
+	 * as are restored art and subtitles whose files are gone.
+	 * Returns number of items removed.
+	 */
+	public int removeUnconfirmedItems() {
+		int removeCount = 0;
+		for (final ContentItem item : new ArrayList<>(this.unconfirmedItems)) {
+			this.unconfirmedItems.remove(item);
+			final ContentNode parentNode = this.contentNodes.get(item.getParentId());
+			final boolean inParent = parentNode != null && parentNode.hasItemWithId(item.getId());
+			if (!inParent && item.hasExistantFile()) continue;
+			if (!forgetItem(item)) continue;
+			if (inParent) removeItemFromParent(item);
+			removeCount += 1;
+		}
+		return removeCount;
 	}
 
 	public List<ContentItem> getItemsForIds(final Collection<String> ids, final String username) {
@@ -165,27 +281,21 @@ public class ContentTree {
 		if (file == null) throw new IllegalArgumentException("file can not be null.");
 		int removeCount = 0;
 
-		// FIXME this is very lazy and not efficient.
-
-		final Iterator<Entry<String, ContentNode>> nodeIttr = this.contentNodes.entrySet().iterator();
-		while (nodeIttr.hasNext()) {
-			final Entry<String, ContentNode> e = nodeIttr.next();
-			if (file.equals(e.getValue().getFile())) {
-				nodeIttr.remove();
-				removeNodePath(e.getValue());
-				removeNodesAndItemsInNode(e.getValue());
-				removeNodeFromParent(e.getValue());
+		final List<ContentNode> nodes = this.contentNodeFiles.get(file);
+		if (nodes != null) {
+			for (final ContentNode node : nodes) {
+				if (!forgetNode(node)) continue;
+				removeNodesAndItemsInNode(node);
+				removeNodeFromParent(node);
 				removeCount += 1;
 			}
 		}
 
-		final Iterator<Entry<String, ContentItem>> itemIttr = this.contentItems.entrySet().iterator();
-		while (itemIttr.hasNext()) {
-			final Entry<String, ContentItem> e = itemIttr.next();
-			if (file.equals(e.getValue().getFile())) {
-				itemIttr.remove();
-				removeItemFromParent(e.getValue());
-				removeFromRecent(e.getValue());
+		final List<ContentItem> items = this.contentItemFiles.get(file);
+		if (items != null) {
+			for (final ContentItem item : items) {
+				if (!forgetItem(item)) continue;
+				removeItemFromParent(item);
 				removeCount += 1;
 			}
 		}
@@ -195,15 +305,11 @@ public class ContentTree {
 
 	private void removeNodesAndItemsInNode(final ContentNode node) {
 		node.withEachNode((n) -> {
-			this.contentNodes.remove(n.getId());
-			removeNodePath(n);
-
-			// in theory this recursively getting a lock on a node via withEachNode() while within a lock
-			// could deadlock, but lets see if that ever happens in practice before switching to a list copy.
+			forgetNode(n);
 			removeNodesAndItemsInNode(n);
 		});
 		node.withEachItem((i) -> {
-			this.contentItems.remove(i.getId());
+			forgetItem(i);
 		});
 	}
 
@@ -217,8 +323,7 @@ public class ContentTree {
 			LOG.error("Container '{}' not in its parent: '{}'.", node.getId(), node.getParentId());
 		}
 		if (isContainerEmptyAndRemoveable(parentNode)) {
-			this.contentNodes.remove(parentNode.getId());
-			removeNodePath(parentNode);
+			forgetNode(parentNode);
 			removeNodeFromParent(parentNode);
 		}
 	}
@@ -239,8 +344,7 @@ public class ContentTree {
 			LOG.error("Item '{}' not in its parent: '{}'.", item.getId(), item.getParentId());
 		}
 		if (isContainerEmptyAndRemoveable(parentNode)) {
-			this.contentNodes.remove(parentNode.getId());
-			removeNodePath(parentNode);
+			forgetNode(parentNode);
 			removeNodeFromParent(parentNode);
 		}
 	}
@@ -0,0 +1,371 @@
+package com.vaguehope.dlnatoad.media;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.dlnatoad.auth.AuthList;
+import com.vaguehope.dlnatoad.media.MediaIndex.HierarchyMode;
+import com.vaguehope.dlnatoad.media.MetadataReader.Metadata;
+
+/**
+ * Saves the ContentTree to a file so that on the next start it can be restored and browsed
+ * before the initial scan has got anywhere.
+ * Restored directories are only kept if they still exist and their AUTH is unchanged.
+ * Restored items are kept until the initial scan completes, then any it did not find are removed,
+ * see ContentTree.removeUnconfirmedItems().
+ */
+public class ContentTreeSnapshot {
+
+	private static final int MAGIC = 0x444C4E54;  // DLNT
+	private static final int VERSION = 1;
+
+	private static final byte END = 0;
+	private static final byte NODE = 1;
+	private static final byte ITEM = 2;
+
+	private static final byte NO_FILE = 0;
+	private static final byte FILE_IN_DIR = 1;
+	private static final byte FILE_PATH = 2;
+
+	private static final Logger LOG = LoggerFactory.getLogger(ContentTreeSnapshot.class);
+
+	private final File file;
+	private final ContentTree contentTree;
+	private final HierarchyMode hierarchyMode;
+	private volatile boolean initialScanComplete = false;
+
+	public ContentTreeSnapshot(final File file, final ContentTree contentTree, final HierarchyMode hierarchyMode) {
+		this.file = file;
+		this.contentTree = contentTree;
+		this.hierarchyMode = hierarchyMode;
+	}
+
+	/**
+	 * Must be called after MediaIndex has made its containers and before the Watcher starts.
+	 * Problems reading the file are logged and whatever was read so far is kept.
+	 */
+	public void load() {
+		if (!this.file.exists()) {
+			LOG.info("No content tree snapshot: {}", this.file.getAbsolutePath());
+			return;
+		}
+		final long startTime = System.nanoTime();
+		final Loader loader = new Loader();
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(this.file))))) {
+			loader.read(in);
+		}
+		catch (final IOException e) {
+			LOG.warn("Failed to read content tree snapshot {}: {}", this.file.getAbsolutePath(), e.toString());
+		}
+		loader.link();
+		LOG.info("Restored {} dirs and {} items from snapshot in {}ms, skipped {} dirs that are gone or have changed AUTH.",
+				loader.nodeCount, loader.itemCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), loader.skippedNodeCount);
+	}
+
+	/**
+	 * Call once the initial scan has found every file and they all have IDs.
+	 * Removes restored items that were not found and allows saving.
+	 */
+	public void initialScanComplete() {
+		final int removed = this.contentTree.removeUnconfirmedItems();
+		if (removed > 0) LOG.info("Removed {} items restored from snapshot that are no longer present.", removed);
+		this.initialScanComplete = true;
+	}
+
+	/**
+	 * Until the initial scan is complete the tree may be partial, so saving is skipped to keep the previous snapshot.
+	 */
+	public void saveIfReady() {
+		if (!this.initialScanComplete) return;
+		try {
+			save();
+		}
+		catch (final IOException e) {
+			LOG.warn("Failed to write content tree snapshot.", e);
+		}
+	}
+
+	public void save() throws IOException {
+		final long startTime = System.nanoTime();
+		final File tmpFile = new File(this.file.getPath() + ".tmp");
+		final int[] counts;
+		try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+			counts = write(out);
+		}
+		Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LOG.info("Wrote {} dirs and {} items to snapshot in {}ms.", counts[0], counts[1], TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+	}
+
+	private int[] write(final DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(this.hierarchyMode.name());
+
+		// Parents are always written before their children so they can be attached as they are read.
+		final int[] counts = new int[2];
+		writeNodeAndChildren(out, this.contentTree.getRootNode(), counts);
+
+		// Art and subtitles are in the tree but not in their parent's list of items.
+		for (final ContentItem item : this.contentTree.getItems()) {
+			final ContentNode parent = this.contentTree.getNode(item.getParentId());
+			if (parent == null || parent.hasItemWithId(item.getId())) continue;
+			writeItem(out, item, parent, false);
+			counts[1] += 1;
+		}
+
+		out.writeByte(END);
+		return counts;
+	}
+
+	private static void writeNodeAndChildren(final DataOutput out, final ContentNode node, final int[] counts) throws IOException {
+		for (final ContentItem item : node.getItems()) {
+			// The recent node lists items that belong to other nodes.
+			if (!node.getId().equals(item.getParentId())) continue;
+			writeItem(out, item, node, true);
+			counts[1] += 1;
+		}
+		for (final ContentNode child : node.getNodes()) {
+			// Containers that MediaIndex and ContentTree make for themselves.
+			if (!ContentGroup.incluesId(child.getId())) {
+				writeNode(out, child);
+				counts[0] += 1;
+			}
+			writeNodeAndChildren(out, child, counts);
+		}
+	}
+
+	private static void writeNode(final DataOutput out, final ContentNode node) throws IOException {
+		out.writeByte(NODE);
+		out.writeUTF(node.getId());
+		out.writeUTF(node.getParentId());
+		writeNullable(out, node.getTitle());
+		writeFile(out, node.getFile(), null);
+		writeNullable(out, node.getPath());
+		writeNullable(out, node.hasAuthList() ? node.getAuthId().toString(16) : null);
+		writeNullable(out, node.getSortKey());
+		writeNullable(out, node.getArt() != null ? node.getArt().getId() : null);
+	}
+
+	private static void writeItem(final DataOutput out, final ContentItem item, final ContentNode parent, final boolean inParent) throws IOException {
+		out.writeByte(ITEM);
+		out.writeUTF(item.getId());
+		out.writeUTF(item.getParentId());
+		out.writeBoolean(inParent);
+		writeNullable(out, item.getTitle());
+		writeFile(out, item.getFile(), parent.getFile());
+		out.writeUTF(item.getFormat().name());
+		out.writeLong(item.getFileLength());
+		out.writeLong(item.getLastModified());
+		out.writeLong(item.getDurationMillis());
+		out.writeInt(item.getWidth());
+		out.writeInt(item.getHeight());
+		writeNullable(out, item.getArt() != null ? item.getArt().getId() : null);
+
+		final Metadata md = item.getMetadata();
+		out.writeBoolean(md != null);
+		if (md != null) {
+			writeNullable(out, md.getArtist());
+			writeNullable(out, md.getAlbum());
+		}
+
+		final List<ContentItem> attachments = item.getCopyOfAttachments();
+		out.writeInt(attachments.size());
+		for (final ContentItem a : attachments) {
+			out.writeUTF(a.getId());
+		}
+	}
+
+	private static void writeNullable(final DataOutput out, final String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) out.writeUTF(s);
+	}
+
+	private static String readNullable(final DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Files in their parent's dir, which is almost all of them, are stored by name only.
+	 */
+	private static void writeFile(final DataOutput out, final File f, final File dir) throws IOException {
+		if (f == null) {
+			out.writeByte(NO_FILE);
+		}
+		else if (dir != null && dir.equals(f.getParentFile())) {
+			out.writeByte(FILE_IN_DIR);
+			out.writeUTF(f.getName());
+		}
+		else {
+			out.writeByte(FILE_PATH);
+			out.writeUTF(f.getPath());
+		}
+	}
+
+	private static File readFile(final DataInput in, final File dir) throws IOException {
+		final byte type = in.readByte();
+		switch (type) {
+			case NO_FILE:
+				return null;
+			case FILE_IN_DIR:
+				return new File(dir, in.readUTF());
+			case FILE_PATH:
+				return new File(in.readUTF());
+			default:
+				throw new IOException("Invalid file type: " + type);
+		}
+	}
+
+	private class Loader {
+		private final Map<ContentNode, String> nodeArt = new HashMap<>();
+		private final Map<ContentItem, String> itemArt = new HashMap<>();
+		private final Map<ContentItem, List<String>> attachments = new HashMap<>();
+		int nodeCount = 0;
+		int itemCount = 0;
+		int skippedNodeCount = 0;
+
+		void read(final DataInput in) throws IOException {
+			if (in.readInt() != MAGIC) throw new IOException("Not a content tree snapshot.");
+			final int version = in.readInt();
+			if (version != VERSION) throw new IOException("Unsupported version: " + version);
+			final String mode = in.readUTF();
+			if (!ContentTreeSnapshot.this.hierarchyMode.name().equals(mode)) throw new IOException("Snapshot is for hierarchy mode " + mode);
+
+			while (true) {
+				final byte type = in.readByte();
+				switch (type) {
+					case END:
+						return;
+					case NODE:
+						readNode(in);
+						break;
+					case ITEM:
+						readItem(in);
+						break;
+					default:
+						throw new IOException("Invalid record type: " + type);
+				}
+			}
+		}
+
+		private void readNode(final DataInput in) throws IOException {
+			final String id = in.readUTF();
+			final String parentId = in.readUTF();
+			final String title = readNullable(in);
+			final File dir = readFile(in, null);
+			final String path = readNullable(in);
+			final String authId = readNullable(in);
+			final String sortKey = readNullable(in);
+			final String artId = readNullable(in);
+
+			final ContentTree tree = ContentTreeSnapshot.this.contentTree;
+			final ContentNode parent = tree.getNode(parentId);
+			if (parent == null || tree.getNode(id) != null || dir == null || !dir.isDirectory()) {
+				this.skippedNodeCount += 1;
+				return;
+			}
+
+			// Item IDs depend on AUTH, so if it has changed everything under this dir must be found again.
+			final AuthList authList = AuthList.forDir(dir);
+			if (!Objects.equals(authId, authList != null ? authList.getId().toString(16) : null)) {
+				this.skippedNodeCount += 1;
+				return;
+			}
+
+			final ContentNode node = new ContentNode(id, parentId, title, dir, path, authList, sortKey);
+			if (!parent.addNodeIfAbsent(node)) return;
+			tree.addNode(node);
+			if (artId != null) this.nodeArt.put(node, artId);
+			this.nodeCount += 1;
+		}
+
+		private void readItem(final DataInput in) throws IOException {
+			final String id = in.readUTF();
+			final String parentId = in.readUTF();
+			final boolean inParent = in.readBoolean();
+			final String title = readNullable(in);
+
+			final ContentTree tree = ContentTreeSnapshot.this.contentTree;
+			final ContentNode parent = tree.getNode(parentId);
+			final File itemFile = readFile(in, parent != null ? parent.getFile() : null);
+			final String formatName = in.readUTF();
+			final long fileLength = in.readLong();
+			final long lastModified = in.readLong();
+			final long durationMillis = in.readLong();
+			final int width = in.readInt();
+			final int height = in.readInt();
+			final String artId = readNullable(in);
+			final Metadata metadata = in.readBoolean() ? new Metadata(readNullable(in), readNullable(in)) : null;
+			final int attachmentCount = in.readInt();
+			final List<String> attachmentIds = new ArrayList<>(attachmentCount);
+			for (int i = 0; i < attachmentCount; i++) {
+				attachmentIds.add(in.readUTF());
+			}
+
+			// Parent was skipped, or this item is already known.
+			if (parent == null || tree.getItem(id) != null) return;
+
+			final MediaFormat format;
+			try {
+				format = MediaFormat.valueOf(formatName);
+			}
+			catch (final IllegalArgumentException e) {
+				return;
+			}
+
+			final ContentItem item = new ContentItem(id, parentId, title, itemFile, format, fileLength, lastModified);
+			item.setDurationMillis(durationMillis);
+			item.setWidthAndHeight(width, height);
+			item.setMetadata(metadata);
+
+			if (inParent && !parent.addItemIfAbsent(item)) return;
+			tree.addItem(item);
+			tree.addUnconfirmedItem(item);
+			if (artId != null) this.itemArt.put(item, artId);
+			if (attachmentIds.size() > 0) this.attachments.put(item, attachmentIds);
+			this.itemCount += 1;
+		}
+
+		/**
+		 * Art and attachments may be read after the items that refer to them.
+		 */
+		void link() {
+			final ContentTree tree = ContentTreeSnapshot.this.contentTree;
+			for (final Map.Entry<ContentNode, String> e : this.nodeArt.entrySet()) {
+				final ContentItem art = tree.getItem(e.getValue());
+				if (art != null) e.getKey().setArt(art);
+			}
+			for (final Map.Entry<ContentItem, String> e : this.itemArt.entrySet()) {
+				final ContentItem art = tree.getItem(e.getValue());
+				if (art != null) e.getKey().setArt(art);
+			}
+			for (final Map.Entry<ContentItem, List<String>> e : this.attachments.entrySet()) {
+				for (final String id : e.getValue()) {
+					final ContentItem a = tree.getItem(id);
+					if (a != null) e.getKey().addAttachmentIfNotPresent(a);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.vaguehope.dlnatoad.media;
+
+import java.io.File;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.vaguehope.dlnatoad.media.CoverArtHelper.DirImages;
+
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.metrics.Counter;
+
+/**
+ * Remembers the images in each directory so that it is only listed once
+ * no matter how many files in it need art.
+ * Must be told when images are added or removed, see invalidate().
+ */
+public class CoverArtCache {
+
+	// Files are added a directory at a time, so only the recent ones are worth keeping.
+	static final long MAX_DIRS = 1000L;
+
+	private static final Counter CACHE_METRIC = Counter.builder()
+			.name("cover_art_dir_cache")
+			.labelNames("result")
+			.help("count of cover art lookups by whether the directory's images were already listed.")
+			.register();
+	private static final CounterDataPoint CACHE_HIT_METRIC = CACHE_METRIC.labelValues("hit");
+	private static final CounterDataPoint CACHE_MISS_METRIC = CACHE_METRIC.labelValues("miss");
+
+	// The cache only holds each dir's entry and the listing is done outside it,
+	// as Cache.invalidate() does nothing to a value that is still being loaded.
+	private final Cache<File, DirEntry> dirs = CacheBuilder.newBuilder()
+			.maximumSize(MAX_DIRS)
+			.build();
+
+	public File findCoverArt (final File file) {
+		final File dir = file.isDirectory() ? file : file.getParentFile();
+		final DirEntry entry = this.dirs.asMap().computeIfAbsent(dir, DirEntry::new);
+		return CoverArtHelper.findCoverArt(file, entry.getImages());
+	}
+
+	/**
+	 * Call with any file that has been added or removed.
+	 * Only images and directories affect the cache.
+	 * A listing in progress may have missed the change, but it is not kept.
+	 */
+	public void invalidate (final File file, final boolean isDir) {
+		if (isDir) {
+			this.dirs.invalidate(file);
+		}
+		else if (CoverArtHelper.isImage(file)) {
+			this.dirs.invalidate(file.getParentFile());
+		}
+	}
+
+	long size () {
+		return this.dirs.size();
+	}
+
+	private static class DirEntry {
+
+		private final File dir;
+		private volatile DirImages images;
+
+		DirEntry (final File dir) {
+			this.dir = dir;
+		}
+
+		DirImages getImages () {
+			DirImages i = this.images;
+			if (i != null) {
+				CACHE_HIT_METRIC.inc();
+				return i;
+			}
+			synchronized (this) {
+				i = this.images;
+				if (i == null) {
+					i = CoverArtHelper.listImages(this.dir);
+					this.images = i;
+					CACHE_MISS_METRIC.inc();
+				}
+				else {
+					CACHE_HIT_METRIC.inc();
+				}
+			}
+			return i;
+		}
+
+	}
+
+}
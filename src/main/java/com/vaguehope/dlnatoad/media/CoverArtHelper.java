@@ -15,11 +15,32 @@ public class CoverArtHelper {
 
 	public static File findCoverArt (final File file) {
 		final File dir = file.isDirectory() ? file : file.getParentFile();
+		return findCoverArt(file, listImages(dir));
+	}
 
+	/**
+	 * The images in dir and their lower case base names, which is all findCoverArt() needs from the dir.
+	 * Can be reused for every file in the same dir until the images in it change.
+	 */
+	static DirImages listImages (final File dir) {
 		final String[] imgNames = dir.list(ImgFilenameFilter.INSTANCE);
-		if (imgNames == null || imgNames.length < 1) return null;
+		if (imgNames == null || imgNames.length < 1) return new DirImages(dir, new String[0], new String[0]);
 		Arrays.sort(imgNames);
 
+		// Make lower case names without extensions of all the images.
+		final String[] lcaseImgBaseNames = new String[imgNames.length];
+		for (int i = 0; i < imgNames.length; i++) {
+			lcaseImgBaseNames[i] = fileBaseName(imgNames[i].toLowerCase(Locale.UK));
+		}
+		return new DirImages(dir, imgNames, lcaseImgBaseNames);
+	}
+
+	static File findCoverArt (final File file, final DirImages images) {
+		final File dir = images.dir;
+		final String[] imgNames = images.imgNames;
+		final String[] lcaseImgBaseNames = images.lcaseImgBaseNames;
+		if (imgNames.length < 1) return null;
+
 		final String baseName = file.isFile() ? fileBaseName(file) : null;
 
 		// Same name but with different extension.
@@ -29,12 +50,6 @@ public class CoverArtHelper {
 			}
 		}
 
-		// Make lower case names without extensions of all the images.
-		final String[] lcaseImgBaseNames = new String[imgNames.length];
-		for (int i = 0; i < imgNames.length; i++) {
-			lcaseImgBaseNames[i] = fileBaseName(imgNames[i].toLowerCase(Locale.UK));
-		}
-
 		if (baseName != null) {
 			final String lcaseBaseName = baseName.toLowerCase(Locale.UK);
 			// Same name but with different case and extension.
@@ -61,6 +76,10 @@ public class CoverArtHelper {
 		return null;
 	}
 
+	static boolean isImage (final File file) {
+		return ImgFilenameFilter.INSTANCE.accept(file.getParentFile(), file.getName());
+	}
+
 	private static String fileBaseName (final File file) {
 		return fileBaseName(file.getName());
 	}
@@ -94,4 +113,16 @@ public class CoverArtHelper {
 
 	}
 
+	static class DirImages {
+		final File dir;
+		final String[] imgNames;
+		final String[] lcaseImgBaseNames;
+
+		DirImages (final File dir, final String[] imgNames, final String[] lcaseImgBaseNames) {
+			this.dir = dir;
+			this.imgNames = imgNames;
+			this.lcaseImgBaseNames = lcaseImgBaseNames;
+		}
+	}
+
 }
@@ -12,4 +12,11 @@ public interface MediaIdCallback extends AsyncCallback<String, IOException> {
 	@Override
 	void onError(IOException e);
 
+	/**
+	 * Called after onResult() if the file was given a provisional ID that has since been replaced.
+	 */
+	default void onIdChanged(final String newMediaId) throws IOException {
+		// Callers that only need the first ID can ignore this.
+	}
+
 }
@@ -34,6 +34,7 @@ public class MediaIndex implements FileListener {
 	private final HierarchyMode hierarchyMode;
 	private final MediaId mediaId;
 	private final MediaInfo mediaInfo;
+	private final CoverArtCache coverArtCache = new CoverArtCache();
 
 	private final ContentNode videoContainer;
 	private final ContentNode imageContainer;
@@ -67,6 +68,7 @@ public class MediaIndex implements FileListener {
 	@Override
 	public EventResult fileFound(final File rootDir, final File file, final EventType eventType, final Runnable onUsed)
 			throws IOException {
+		this.coverArtCache.invalidate(file, false);
 		addFile(rootDir, file, new Runnable() {
 			@Override
 			public void run() {
@@ -112,9 +114,16 @@ public class MediaIndex implements FileListener {
 				}
 				else {
 					itemInTree.reload();
+					final ContentNode parent = MediaIndex.this.contentTree.getNode(itemInTree.getParentId());
+					if (parent != null) parent.invalidateSortedItems();
 				}
 			}
 
+			@Override
+			public void onIdChanged(final String newItemId) throws IOException {
+				onResult(newItemId);
+			}
+
 			@Override
 			public void onError(final IOException e) {
 				LOG.warn(String.format("Error processing file modified event for \"%s\"", file.getAbsolutePath()), e);
@@ -126,6 +135,8 @@ public class MediaIndex implements FileListener {
 
 	@Override
 	public void fileGone(final File file, final boolean isDir) throws IOException {
+		this.coverArtCache.invalidate(file, isDir);
+
 		final MediaFormat format = MediaFormat.identify(file);
 		if (format != null) {
 			switch (format.getContentGroup()) {
@@ -303,6 +314,13 @@ public class MediaIndex implements FileListener {
 				if (added) onComplete.run();
 			}
 
+			@Override
+			public void onIdChanged(final String newItemId) throws IOException {
+				MediaIndex.this.contentTree.removeFile(file);
+				makeItemInContainer(format, parent, file, title, newItemId);
+				LOG.info("File ID changed {}: {}", file.getAbsolutePath(), newItemId);
+			}
+
 			@Override
 			public void onError(final IOException e) {
 				if (e instanceof FileNotFoundException) {
@@ -318,12 +336,15 @@ public class MediaIndex implements FileListener {
 
 	private boolean makeItemInContainer(final MediaFormat format, final ContentNode parent, final File file,
 			final String title, final String id) throws IOException {
-		if (parent.hasItemWithId(id)) return false;  // Optimistic lock.
+		if (parent.hasItemWithId(id)) {  // Optimistic lock.
+			confirmRestoredItem(parent, id);
+			return false;
+		}
 
 		final ContentItem item = new ContentItem(id, parent.getId(), title, file, format);
+		findMetadata(file, item);  // Before adding so it is in the ContentItemIndex.
 		if (parent.addItemIfAbsent(item)) {
 			this.contentTree.addItem(item);
-			findMetadata(file, item);
 			findArt(file, format, item, parent);
 
 			final ContentGroup contentGroup = format.getContentGroup();
@@ -339,6 +360,18 @@ public class MediaIndex implements FileListener {
 		return false;
 	}
 
+	/**
+	 * Items restored from a ContentTreeSnapshot were not read from disk, so refresh them the first time they are found.
+	 */
+	private void confirmRestoredItem(final ContentNode parent, final String id) {
+		final ContentItem item = this.contentTree.confirmItem(id);
+		if (item == null) return;
+		final long prevLength = item.getFileLength();
+		final long prevModified = item.getLastModified();
+		item.reload();
+		if (item.getFileLength() != prevLength || item.getLastModified() != prevModified) parent.invalidateSortedItems();
+	}
+
 	private static void findMetadata(final File file, final ContentItem item) {
 		final Metadata md = MetadataReader.read(file);
 		if (md == null) return;
@@ -363,7 +396,7 @@ public class MediaIndex implements FileListener {
 	}
 
 	private void findArtItem(final File mediaFile, final ContentGroup mediaContentGroup, final ContentNode node, final AsyncCallback<ContentItem, IOException> callback) throws IOException {
-		final File artFile = CoverArtHelper.findCoverArt(mediaFile);
+		final File artFile = this.coverArtCache.findCoverArt(mediaFile);
 		if (artFile == null) return;
 
 		final MediaFormat artFormat = MediaFormat.identify(artFile);
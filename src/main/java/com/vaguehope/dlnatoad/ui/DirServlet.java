@@ -150,12 +150,9 @@ public class DirServlet extends HttpServlet {
 		final String listTitle = makeIndexTitle(node, nodesUserHasAuth);
 		final long nodeTotalFileLength = node.getTotalFileLength();
 
-		final List<ContentItem> allItems = node.getCopyOfItems();
 		final Order sort = sortModified ? ContentItem.Order.MODIFIED_DESC : parseSort(sortRaw);
 		final String sortParam = paramForSort(sort);
-		if (sort != null) {
-			allItems.sort(sort);
-		}
+		final List<ContentItem> allItems = node.getItems(sort);
 		final List<ContentItem> pageItems = allItems.subList(offset, Math.min(allItems.size(), offset + limit));
 
 		final String nextPagePath;
@@ -4,13 +4,16 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Base64.Encoder;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Supplier;
 
@@ -36,7 +39,9 @@ import com.vaguehope.dlnatoad.db.Tag;
 import com.vaguehope.dlnatoad.db.TagAutocompleter;
 import com.vaguehope.dlnatoad.db.WritableMediaDb;
 import com.vaguehope.dlnatoad.db.search.DbSearchParser;
+import com.vaguehope.dlnatoad.db.search.DbSearchParser.DbSearch;
 import com.vaguehope.dlnatoad.db.search.DbSearchSyntax;
+import com.vaguehope.dlnatoad.db.search.SearchCursor;
 import com.vaguehope.dlnatoad.media.ContentGroup;
 import com.vaguehope.dlnatoad.media.ContentItem;
 import com.vaguehope.dlnatoad.media.ContentItem.Order;
@@ -208,30 +213,43 @@ public class ItemServlet extends HttpServlet {
 		final String prevIdParam = ServletCommon.readParamWithDefault(req, resp, PARAM_PREV_ID, null);
 		final String nextIdParam = ServletCommon.readParamWithDefault(req, resp, PARAM_NEXT_ID, null);
 		final List<ContentItem> results;
-		final Integer searchOffset;
+		final Map<String, SearchCursor> searchCursors;
 		final String sortParam;
 		if (query != null) {
 			if (this.mediaDb == null) return "";
 
-			final Integer prevOffsetParam = ServletCommon.readIntParamWithDefault(req, resp, PARAM_PREV_OFFSET, null, i -> i >= 0);
-			final Integer nextOffsetParam = ServletCommon.readIntParamWithDefault(req, resp, PARAM_NEXT_OFFSET, null, i -> i >= 0);
-			if ((prevIdParam != null && prevOffsetParam != null) || (nextIdParam != null && nextOffsetParam != null)) {
-				return printPrevNextLinksHtml(pageScope, itemScope, query, null, null, prevIdParam, nextIdParam, prevOffsetParam, nextOffsetParam);
+			final String prevTokenParam = ServletCommon.readParamWithDefault(req, resp, PARAM_PREV_OFFSET, null);
+			final String nextTokenParam = ServletCommon.readParamWithDefault(req, resp, PARAM_NEXT_OFFSET, null);
+			if ((prevIdParam != null && prevTokenParam != null) || (nextIdParam != null && nextTokenParam != null)) {
+				return printPrevNextLinksHtml(pageScope, itemScope, query, null, null, prevIdParam, nextIdParam, prevTokenParam, nextTokenParam);
 			}
 
-			final Integer offsetParam = ServletCommon.readIntParamWithDefault(req, resp, SearchServlet.PARAM_PAGE_OFFSET, 0, i -> i >= 0);
-			if (offsetParam == null) return "";
-			itemScope.prevnext_title = String.valueOf(offsetParam + 1);
+			// Position is unknown without counting every preceding result, which is what keyset paging avoids.
+			itemScope.prevnext_title = item.getTitle();
 
-			searchOffset = Math.max(offsetParam - PREV_NEXT_SEARCH_DISTANCE, 0);
-			final List<String> ids;
+			final SearchCursor at = readCursorParam(req);
+			final List<SearchCursor> rows = new ArrayList<>();
 			try {
-				ids = DbSearchParser.parseSearch(query, authIds, SearchServlet.RESULT_SORT_ORDER)
-						.execute(this.mediaDb, PREV_NEXT_SEARCH_DISTANCE * 2, searchOffset);
+				final DbSearch search = DbSearchParser.parseSearch(query, authIds, SearchServlet.RESULT_SORT_ORDER);
+				if (at != null) {
+					rows.addAll(search.executeBefore(this.mediaDb, PREV_NEXT_SEARCH_DISTANCE, at));
+					rows.add(at);
+					rows.addAll(search.executeAfter(this.mediaDb, PREV_NEXT_SEARCH_DISTANCE, at));
+				}
+				else {
+					rows.addAll(search.executeAfter(this.mediaDb, PREV_NEXT_SEARCH_DISTANCE * 2, null));
+				}
 			}
 			catch (final SQLException e) {
 				throw new IOException("Failed to make prev/next links: " + StringEscapeUtils.escapeHtml4(e.toString()));
 			}
+
+			searchCursors = new HashMap<>();
+			final List<String> ids = new ArrayList<>(rows.size());
+			for (final SearchCursor row : rows) {
+				searchCursors.put(row.getId(), row);
+				ids.add(row.getId());
+			}
 			results = this.contentTree.getItemsForIds(ids, username);
 
 			sortParam = null;
@@ -246,12 +264,9 @@ public class ItemServlet extends HttpServlet {
 				return printPrevNextLinksHtml(pageScope, itemScope, null, sortParam, node, prevIdParam, nextIdParam, null, null);
 			}
 
-			results = node.getCopyOfItems();
-			if (sort != null) {
-				results.sort(sort);
-			}
+			results = node.getItems(sort);
 
-			searchOffset = null;
+			searchCursors = null;
 		}
 
 		int thisI = -1;
@@ -293,10 +308,24 @@ public class ItemServlet extends HttpServlet {
 
 		final String prevId = prevItem != null ? prevItem.getId() : null;
 		final String nextId = nextItem != null ? nextItem.getId() : null;
-		final Integer prevOffset = searchOffset != null ? searchOffset + prevI : null;
-		final Integer nextOffset = searchOffset != null ? searchOffset + nextI : null;
+		final String prevToken = searchCursors != null && prevId != null ? searchCursors.get(prevId).toToken() : null;
+		final String nextToken = searchCursors != null && nextId != null ? searchCursors.get(nextId).toToken() : null;
 
-		return printPrevNextLinksHtml(pageScope, itemScope, query, sortParam, node, prevId, nextId, prevOffset, nextOffset);
+		return printPrevNextLinksHtml(pageScope, itemScope, query, sortParam, node, prevId, nextId, prevToken, nextToken);
+	}
+
+	/**
+	 * Invalid tokens are ignored, the same as a missing one, as prev/next links are best effort.
+	 */
+	private static SearchCursor readCursorParam(final HttpServletRequest req) {
+		final String raw = StringUtils.trimToNull(req.getParameter(SearchServlet.PARAM_PAGE_OFFSET));
+		if (raw == null) return null;
+		try {
+			return SearchCursor.parse(raw);
+		}
+		catch (final IllegalArgumentException e) {
+			return null;
+		}
 	}
 
 	/**
@@ -310,8 +339,8 @@ public class ItemServlet extends HttpServlet {
 			final ContentNode node,
 			final String prevId,
 			final String nextId,
-			final Integer prevOffset,
-			final Integer nextOffset) {
+			final String prevToken,
+			final String nextToken) {
 		final StringBuilder editReqQueryParms = new StringBuilder();
 		final String linkQuery;
 		final String allPath;
@@ -343,19 +372,19 @@ public class ItemServlet extends HttpServlet {
 		if (prevId != null) {
 			itemScope.previous_path = prevId;
 			if (linkQuery != null) itemScope.previous_path += linkQuery;
-			if (prevOffset != null) itemScope.previous_path += prevOffset;
+			if (prevToken != null) itemScope.previous_path += prevToken;
 
 			editReqQueryParms.append("&").append(PARAM_PREV_ID).append("=").append(prevId);
-			if (prevOffset != null) editReqQueryParms.append("&").append(PARAM_PREV_OFFSET).append("=").append(prevOffset);
+			if (prevToken != null) editReqQueryParms.append("&").append(PARAM_PREV_OFFSET).append("=").append(prevToken);
 		}
 
 		if (nextId != null) {
 			itemScope.next_path = nextId;
 			if (linkQuery != null) itemScope.next_path += linkQuery;
-			if (nextOffset != null) itemScope.next_path += nextOffset;
+			if (nextToken != null) itemScope.next_path += nextToken;
 
 			editReqQueryParms.append("&").append(PARAM_NEXT_ID).append("=").append(nextId);
-			if (nextOffset != null) editReqQueryParms.append("&").append(PARAM_NEXT_OFFSET).append("=").append(nextOffset);
+			if (nextToken != null) editReqQueryParms.append("&").append(PARAM_NEXT_OFFSET).append("=").append(nextToken);
 		}
 
 		return editReqQueryParms.toString();
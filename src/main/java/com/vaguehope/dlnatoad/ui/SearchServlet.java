@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +53,7 @@ import com.vaguehope.dlnatoad.db.TagFrequency;
 import com.vaguehope.dlnatoad.db.search.DbSearchParser;
 import com.vaguehope.dlnatoad.db.search.DbSearchSyntax;
 import com.vaguehope.dlnatoad.db.search.DbSearchParser.DbSearch;
+import com.vaguehope.dlnatoad.db.search.SearchCursor;
 import com.vaguehope.dlnatoad.db.search.SortOrder;
 import com.vaguehope.dlnatoad.dlnaserver.SearchEngine;
 import com.vaguehope.dlnatoad.media.ContentGroup;
@@ -77,7 +79,7 @@ public class SearchServlet extends HttpServlet {
 	static final String PARAM_QUERY = "query";
 	static final String PARAM_EXTRA_QUERY = "extra_query";
 	static final String PARAM_PAGE_LIMIT = "limit";
-	static final String PARAM_PAGE_OFFSET = "offset";
+	static final String PARAM_PAGE_OFFSET = "offset";  // For searches this is a SearchCursor token.
 	static final String PARAM_REMOTE = "remote";
 	static final SortOrder RESULT_SORT_ORDER = SortOrder.MODIFIED.desc();
 
@@ -99,7 +101,7 @@ public class SearchServlet extends HttpServlet {
 	private final Supplier<Mustache> resultsTemplate;
 
 	public SearchServlet(final ServletCommon servletCommon, final ContentTree contentTree, ContentServlet contentServlet, final MediaDb mediaDb, final DbCache dbCache, final UpnpService upnpService, final RpcClient rpcClient, final ThumbnailGenerator thumbnailGenerator) {
-		this(servletCommon, contentTree, contentServlet, mediaDb, dbCache, upnpService, rpcClient, thumbnailGenerator, new SearchEngine());
+		this(servletCommon, contentTree, contentServlet, mediaDb, dbCache, upnpService, rpcClient, thumbnailGenerator, new SearchEngine(contentTree));
 	}
 
 	protected SearchServlet(final ServletCommon servletCommon, final ContentTree contentTree, ContentServlet contentServlet, final MediaDb mediaDb, final DbCache dbCache, final UpnpService upnpService, final RpcClient rpcClient, final ThumbnailGenerator thumbnailGenerator, final SearchEngine searchEngine) {
@@ -137,26 +139,40 @@ public class SearchServlet extends HttpServlet {
 			try {
 				final List<ContentItem> results;
 				final List<TagFrequency> tagResults;
-				final Integer offset;
+				final Map<String, SearchCursor> cursors;
 				final int nextLimit;
-				final int nextOffset;
+				final SearchCursor nextCursor;
 				if (this.mediaDb != null) {
 					final Set<BigInteger> authIds = this.contentTree.getAuthSet().authIdsForUser(username);
 
 					final Integer limit = ServletCommon.readIntParamWithDefault(req, resp, PARAM_PAGE_LIMIT, MAX_RESULTS, i -> i > 0);
 					if (limit == null) return;
-					offset = ServletCommon.readIntParamWithDefault(req, resp, PARAM_PAGE_OFFSET, 0, i -> i >= 0);
-					if (offset == null) return;
+					final String afterToken = ServletCommon.readParamWithDefault(req, resp, PARAM_PAGE_OFFSET, "");
+					if (afterToken == null) return;
+					final SearchCursor after;
+					try {
+						after = afterToken.length() > 0 ? SearchCursor.parse(afterToken) : null;
+					}
+					catch (final IllegalArgumentException e) {
+						ServletCommon.returnStatus(resp, HttpServletResponse.SC_BAD_REQUEST, "Param not valid: " + PARAM_PAGE_OFFSET);
+						return;
+					}
 
 					final DbSearch idsQuery = DbSearchParser.parseSearch(query, authIds, RESULT_SORT_ORDER);
 					stopwatch.start();
-					final List<String> ids = idsQuery.execute(this.mediaDb, limit, offset);
+					final List<SearchCursor> rows = idsQuery.executeAfter(this.mediaDb, limit, after);
 					debugFooter.append(String.format("file query: %s ms\n%s\n",
 							stopwatch.elapsed(TimeUnit.MILLISECONDS), idsQuery));
 
+					cursors = new HashMap<>();
+					final List<String> ids = new ArrayList<>(rows.size());
+					for (final SearchCursor row : rows) {
+						cursors.put(row.getId(), row);
+						ids.add(row.getId());
+					}
 					results = this.contentTree.getItemsForIds(ids, username);
 					nextLimit = limit;
-					nextOffset = ids.size() >= limit ? offset + limit : 0;
+					nextCursor = rows.size() >= limit ? rows.get(rows.size() - 1) : null;
 
 					stopwatch.reset().start();
 					tagResults = this.dbCache.searchTopTags(authIds, query);
@@ -165,9 +181,9 @@ public class SearchServlet extends HttpServlet {
 				else {
 					final ContentNode rootNode = this.contentTree.getNode(ContentGroup.ROOT.getId());
 					results = this.searchEngine.search(rootNode, upnpQuery, MAX_RESULTS, username);
-					offset = null;
+					cursors = Collections.emptyMap();
 					nextLimit = MAX_RESULTS;  // Not implemented.
-					nextOffset = 0;
+					nextCursor = null;
 					tagResults = Collections.emptyList();
 				}
 
@@ -175,8 +191,8 @@ public class SearchServlet extends HttpServlet {
 						+ StringEscapeUtils.escapeHtml4(UrlEscapers.urlFormParameterEscaper().escape(query));
 
 				final String nextPagePath;
-				if (nextOffset > 0) {
-					nextPagePath = linkQuery + "&" + PARAM_PAGE_LIMIT + "=" + nextLimit + "&" + PARAM_PAGE_OFFSET + "=" + nextOffset;
+				if (nextCursor != null) {
+					nextPagePath = linkQuery + "&" + PARAM_PAGE_LIMIT + "=" + nextLimit + "&" + PARAM_PAGE_OFFSET + "=" + nextCursor.toToken();
 				}
 				else {
 					nextPagePath = null;
@@ -184,7 +200,7 @@ public class SearchServlet extends HttpServlet {
 
 				final SearchResultsScope resultsScope = new SearchResultsScope(pageScope);
 				final ResultGroupScope resultGroup = resultsScope.addResultGroup("Local items: " + results.size(), nextPagePath);
-				appendItems(resultGroup, results, linkQuery, offset);
+				appendItems(resultGroup, results, linkQuery, cursors);
 				DirServlet.addTagFrequenciesToScope(resultGroup, null, tagResults);
 
 				// Only do remote search if local does not error.
@@ -222,13 +238,12 @@ public class SearchServlet extends HttpServlet {
 			final ResultGroupScope resultGroup,
 			final List<ContentItem> items,
 			final String linkQuery,
-			final Integer offset) throws IOException {
+			final Map<String, SearchCursor> cursors) throws IOException {
 
-		int x = 0;
 		for (final ContentItem i : items) {
-			final String q = offset != null ? linkQuery + "&" + PARAM_PAGE_OFFSET + "=" + (offset + x) : linkQuery;
+			final SearchCursor c = cursors.get(i.getId());
+			final String q = c != null ? linkQuery + "&" + PARAM_PAGE_OFFSET + "=" + c.toToken() : linkQuery;
 			resultGroup.addContentItem(i, q, this.thumbnailGenerator, false);
-			x += 1;
 		}
 	}
 
@@ -0,0 +1,503 @@
+package com.vaguehope.dlnatoad.util;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Set of non-negative ints, split into chunks of 2^16 values where each chunk is either
+ * a sorted array or a plain bitmap, whichever is smaller.
+ * This is the same layout as Roaring bitmaps, so sparse sets stay small and dense sets are fast to combine.
+ * Not thread safe.
+ */
+public class CompressedBitmap {
+
+	private static final int MAX_ARRAY_SIZE = 4096;  // Past this a 8 KB bitmap is smaller than the array.
+	private static final int BITMAP_WORDS = 1 << 10;
+
+	private int[] keys;  // High 16 bits of the values in the chunk, sorted.
+	private Chunk[] chunks;
+	private int size;
+
+	public CompressedBitmap() {
+		this(4);
+	}
+
+	private CompressedBitmap(final int capacity) {
+		this.keys = new int[capacity];
+		this.chunks = new Chunk[capacity];
+		this.size = 0;
+	}
+
+	public static CompressedBitmap of(final int... values) {
+		final CompressedBitmap ret = new CompressedBitmap();
+		for (final int v : values) {
+			ret.add(v);
+		}
+		return ret;
+	}
+
+	public void add(final int value) {
+		checkValue(value);
+		final int key = value >>> 16;
+		final int i = Arrays.binarySearch(this.keys, 0, this.size, key);
+		if (i >= 0) {
+			this.chunks[i] = this.chunks[i].add((char) value);
+		}
+		else {
+			insertChunk(-i - 1, key, new ArrayChunk().add((char) value));
+		}
+	}
+
+	public void remove(final int value) {
+		checkValue(value);
+		final int i = Arrays.binarySearch(this.keys, 0, this.size, value >>> 16);
+		if (i < 0) return;
+		final Chunk c = this.chunks[i].remove((char) value);
+		if (c.cardinality() < 1) {
+			removeChunk(i);
+		}
+		else {
+			this.chunks[i] = c;
+		}
+	}
+
+	public boolean contains(final int value) {
+		if (value < 0) return false;
+		final int i = Arrays.binarySearch(this.keys, 0, this.size, value >>> 16);
+		return i >= 0 && this.chunks[i].contains((char) value);
+	}
+
+	public int cardinality() {
+		int ret = 0;
+		for (int i = 0; i < this.size; i++) {
+			ret += this.chunks[i].cardinality();
+		}
+		return ret;
+	}
+
+	public boolean isEmpty() {
+		return this.size < 1;
+	}
+
+	/**
+	 * In ascending order.
+	 */
+	public void forEach(final IntConsumer consumer) {
+		for (int i = 0; i < this.size; i++) {
+			this.chunks[i].forEach(this.keys[i] << 16, consumer);
+		}
+	}
+
+	public CompressedBitmap copy() {
+		final CompressedBitmap ret = new CompressedBitmap(Math.max(this.size, 1));
+		for (int i = 0; i < this.size; i++) {
+			ret.appendChunk(this.keys[i], this.chunks[i].copy());
+		}
+		return ret;
+	}
+
+	public CompressedBitmap and(final CompressedBitmap other) {
+		final CompressedBitmap ret = new CompressedBitmap(Math.max(Math.min(this.size, other.size), 1));
+		int a = 0;
+		int b = 0;
+		while (a < this.size && b < other.size) {
+			if (this.keys[a] < other.keys[b]) {
+				a++;
+			}
+			else if (this.keys[a] > other.keys[b]) {
+				b++;
+			}
+			else {
+				final Chunk c = this.chunks[a].and(other.chunks[b]);
+				if (c.cardinality() > 0) ret.appendChunk(this.keys[a], c);
+				a++;
+				b++;
+			}
+		}
+		return ret;
+	}
+
+	public CompressedBitmap or(final CompressedBitmap other) {
+		final CompressedBitmap ret = new CompressedBitmap(Math.max(this.size + other.size, 1));
+		int a = 0;
+		int b = 0;
+		while (a < this.size || b < other.size) {
+			if (b >= other.size || (a < this.size && this.keys[a] < other.keys[b])) {
+				ret.appendChunk(this.keys[a], this.chunks[a].copy());
+				a++;
+			}
+			else if (a >= this.size || this.keys[a] > other.keys[b]) {
+				ret.appendChunk(other.keys[b], other.chunks[b].copy());
+				b++;
+			}
+			else {
+				ret.appendChunk(this.keys[a], this.chunks[a].or(other.chunks[b]));
+				a++;
+				b++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Values in this that are not in other.
+	 */
+	public CompressedBitmap andNot(final CompressedBitmap other) {
+		final CompressedBitmap ret = new CompressedBitmap(Math.max(this.size, 1));
+		int b = 0;
+		for (int a = 0; a < this.size; a++) {
+			while (b < other.size && other.keys[b] < this.keys[a]) {
+				b++;
+			}
+			if (b < other.size && other.keys[b] == this.keys[a]) {
+				final Chunk c = this.chunks[a].andNot(other.chunks[b]);
+				if (c.cardinality() > 0) ret.appendChunk(this.keys[a], c);
+			}
+			else {
+				ret.appendChunk(this.keys[a], this.chunks[a].copy());
+			}
+		}
+		return ret;
+	}
+
+	private static void checkValue(final int value) {
+		if (value < 0) throw new IllegalArgumentException("Value must not be negative: " + value);
+	}
+
+	private void insertChunk(final int i, final int key, final Chunk chunk) {
+		if (this.size == this.keys.length) grow();
+		System.arraycopy(this.keys, i, this.keys, i + 1, this.size - i);
+		System.arraycopy(this.chunks, i, this.chunks, i + 1, this.size - i);
+		this.keys[i] = key;
+		this.chunks[i] = chunk;
+		this.size += 1;
+	}
+
+	private void appendChunk(final int key, final Chunk chunk) {
+		if (this.size == this.keys.length) grow();
+		this.keys[this.size] = key;
+		this.chunks[this.size] = chunk;
+		this.size += 1;
+	}
+
+	private void removeChunk(final int i) {
+		System.arraycopy(this.keys, i + 1, this.keys, i, this.size - i - 1);
+		System.arraycopy(this.chunks, i + 1, this.chunks, i, this.size - i - 1);
+		this.size -= 1;
+		this.chunks[this.size] = null;
+	}
+
+	private void grow() {
+		final int newCapacity = Math.max(this.keys.length * 2, 4);
+		this.keys = Arrays.copyOf(this.keys, newCapacity);
+		this.chunks = Arrays.copyOf(this.chunks, newCapacity);
+	}
+
+	@Override
+	public int hashCode() {
+		final int[] h = new int[] { 1 };
+		forEach(v -> h[0] = 31 * h[0] + v);
+		return h[0];
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (obj == null) return false;
+		if (this == obj) return true;
+		if (!(obj instanceof CompressedBitmap)) return false;
+		final CompressedBitmap that = (CompressedBitmap) obj;
+		if (this.size != that.size) return false;
+		for (int i = 0; i < this.size; i++) {
+			if (this.keys[i] != that.keys[i]) return false;
+			if (!Arrays.equals(this.chunks[i].toArray(), that.chunks[i].toArray())) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder s = new StringBuilder("CompressedBitmap{");
+		forEach(v -> {
+			if (s.length() > 17) s.append(",");
+			s.append(v);
+		});
+		return s.append("}").toString();
+	}
+
+//	- - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+
+	/**
+	 * Mutators return the chunk to use from then on, as chunks switch between array and bitmap as they fill and empty.
+	 */
+	private interface Chunk {
+		Chunk add(char value);
+		Chunk remove(char value);
+		boolean contains(char value);
+		int cardinality();
+		void forEach(int high, IntConsumer consumer);
+		char[] toArray();
+		Chunk copy();
+		Chunk and(Chunk other);
+		Chunk or(Chunk other);
+		Chunk andNot(Chunk other);
+	}
+
+	private static final class ArrayChunk implements Chunk {
+
+		private char[] values;
+		private int cardinality;
+
+		ArrayChunk() {
+			this(new char[4], 0);
+		}
+
+		ArrayChunk(final char[] values, final int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		public Chunk add(final char value) {
+			final int i = Arrays.binarySearch(this.values, 0, this.cardinality, value);
+			if (i >= 0) return this;
+			if (this.cardinality >= MAX_ARRAY_SIZE) return toBitmap().add(value);
+			final int at = -i - 1;
+			if (this.cardinality == this.values.length) {
+				this.values = Arrays.copyOf(this.values, Math.min(this.values.length * 2, MAX_ARRAY_SIZE));
+			}
+			System.arraycopy(this.values, at, this.values, at + 1, this.cardinality - at);
+			this.values[at] = value;
+			this.cardinality += 1;
+			return this;
+		}
+
+		@Override
+		public Chunk remove(final char value) {
+			final int i = Arrays.binarySearch(this.values, 0, this.cardinality, value);
+			if (i < 0) return this;
+			System.arraycopy(this.values, i + 1, this.values, i, this.cardinality - i - 1);
+			this.cardinality -= 1;
+			return this;
+		}
+
+		@Override
+		public boolean contains(final char value) {
+			return Arrays.binarySearch(this.values, 0, this.cardinality, value) >= 0;
+		}
+
+		@Override
+		public int cardinality() {
+			return this.cardinality;
+		}
+
+		@Override
+		public void forEach(final int high, final IntConsumer consumer) {
+			for (int i = 0; i < this.cardinality; i++) {
+				consumer.accept(high | this.values[i]);
+			}
+		}
+
+		@Override
+		public char[] toArray() {
+			return Arrays.copyOf(this.values, this.cardinality);
+		}
+
+		@Override
+		public Chunk copy() {
+			return new ArrayChunk(toArray(), this.cardinality);
+		}
+
+		BitmapChunk toBitmap() {
+			final BitmapChunk b = new BitmapChunk();
+			for (int i = 0; i < this.cardinality; i++) {
+				b.add(this.values[i]);
+			}
+			return b;
+		}
+
+		@Override
+		public Chunk and(final Chunk other) {
+			final char[] ret = new char[this.cardinality];
+			int n = 0;
+			for (int i = 0; i < this.cardinality; i++) {
+				if (other.contains(this.values[i])) ret[n++] = this.values[i];
+			}
+			return new ArrayChunk(ret, n);
+		}
+
+		@Override
+		public Chunk or(final Chunk other) {
+			if (other instanceof BitmapChunk) return other.or(this);
+			final ArrayChunk that = (ArrayChunk) other;
+			final char[] ret = new char[this.cardinality + that.cardinality];
+			int a = 0;
+			int b = 0;
+			int n = 0;
+			while (a < this.cardinality || b < that.cardinality) {
+				if (b >= that.cardinality || (a < this.cardinality && this.values[a] < that.values[b])) {
+					ret[n++] = this.values[a++];
+				}
+				else if (a >= this.cardinality || this.values[a] > that.values[b]) {
+					ret[n++] = that.values[b++];
+				}
+				else {
+					ret[n++] = this.values[a++];
+					b++;
+				}
+			}
+			final ArrayChunk merged = new ArrayChunk(ret, n);
+			return n > MAX_ARRAY_SIZE ? merged.toBitmap() : merged;
+		}
+
+		@Override
+		public Chunk andNot(final Chunk other) {
+			final char[] ret = new char[this.cardinality];
+			int n = 0;
+			for (int i = 0; i < this.cardinality; i++) {
+				if (!other.contains(this.values[i])) ret[n++] = this.values[i];
+			}
+			return new ArrayChunk(ret, n);
+		}
+
+	}
+
+	private static final class BitmapChunk implements Chunk {
+
+		private final long[] words;
+		private int cardinality;
+
+		BitmapChunk() {
+			this(new long[BITMAP_WORDS], 0);
+		}
+
+		BitmapChunk(final long[] words, final int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		public Chunk add(final char value) {
+			final long before = this.words[value >>> 6];
+			final long after = before | (1L << value);
+			if (before != after) {
+				this.words[value >>> 6] = after;
+				this.cardinality += 1;
+			}
+			return this;
+		}
+
+		@Override
+		public Chunk remove(final char value) {
+			final long before = this.words[value >>> 6];
+			final long after = before & ~(1L << value);
+			if (before != after) {
+				this.words[value >>> 6] = after;
+				this.cardinality -= 1;
+			}
+			return this.cardinality <= MAX_ARRAY_SIZE ? toArrayChunk() : this;
+		}
+
+		@Override
+		public boolean contains(final char value) {
+			return (this.words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		public int cardinality() {
+			return this.cardinality;
+		}
+
+		@Override
+		public void forEach(final int high, final IntConsumer consumer) {
+			for (int w = 0; w < this.words.length; w++) {
+				long word = this.words[w];
+				while (word != 0) {
+					consumer.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+
+		@Override
+		public char[] toArray() {
+			final char[] ret = new char[this.cardinality];
+			final int[] n = new int[] { 0 };
+			forEach(0, v -> ret[n[0]++] = (char) v);
+			return ret;
+		}
+
+		@Override
+		public Chunk copy() {
+			return new BitmapChunk(this.words.clone(), this.cardinality);
+		}
+
+		ArrayChunk toArrayChunk() {
+			return new ArrayChunk(toArray(), this.cardinality);
+		}
+
+		@Override
+		public Chunk and(final Chunk other) {
+			if (other instanceof ArrayChunk) return other.and(this);
+			final BitmapChunk that = (BitmapChunk) other;
+			final long[] ret = new long[BITMAP_WORDS];
+			int card = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				ret[i] = this.words[i] & that.words[i];
+				card += Long.bitCount(ret[i]);
+			}
+			return normalise(ret, card);
+		}
+
+		@Override
+		public Chunk or(final Chunk other) {
+			final long[] ret = this.words.clone();
+			if (other instanceof ArrayChunk) {
+				final BitmapChunk b = new BitmapChunk(ret, this.cardinality);
+				final ArrayChunk that = (ArrayChunk) other;
+				for (int i = 0; i < that.cardinality; i++) {
+					b.add(that.values[i]);
+				}
+				return b;
+			}
+			final BitmapChunk that = (BitmapChunk) other;
+			int card = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				ret[i] |= that.words[i];
+				card += Long.bitCount(ret[i]);
+			}
+			return new BitmapChunk(ret, card);
+		}
+
+		@Override
+		public Chunk andNot(final Chunk other) {
+			final long[] ret = this.words.clone();
+			int card = 0;
+			if (other instanceof ArrayChunk) {
+				final ArrayChunk that = (ArrayChunk) other;
+				card = this.cardinality;
+				for (int i = 0; i < that.cardinality; i++) {
+					final char v = that.values[i];
+					if ((ret[v >>> 6] & (1L << v)) != 0) {
+						ret[v >>> 6] &= ~(1L << v);
+						card -= 1;
+					}
+				}
+			}
+			else {
+				final BitmapChunk that = (BitmapChunk) other;
+				for (int i = 0; i < BITMAP_WORDS; i++) {
+					ret[i] &= ~that.words[i];
+					card += Long.bitCount(ret[i]);
+				}
+			}
+			return normalise(ret, card);
+		}
+
+		private static Chunk normalise(final long[] words, final int cardinality) {
+			final BitmapChunk b = new BitmapChunk(words, cardinality);
+			return cardinality <= MAX_ARRAY_SIZE ? b.toArrayChunk() : b;
+		}
+
+	}
+
+}
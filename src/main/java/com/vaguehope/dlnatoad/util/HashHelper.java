@@ -4,20 +4,52 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.ref.Cleaner;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class HashHelper {
 
 	static final int BUFFERSIZE = 1024 * 64; // 64kb.
+	static final long MIN_MAPPED_FILE_SIZE = 1024L * 1024L; // 1mb, smaller files are quicker to just read.
+	public static final long MAX_MAP_WINDOW = 1024L * 1024L * 1024L; // 1gb, a single map() can not be over 2gb.
+	static final long MAP_BUDGET = 1024L * 1024L * 1024L * 2L; // 2gb.
+	static final int QUICK_SAMPLE_SIZE = 1024 * 1024; // 1mb.
+
+	/**
+	 * Bytes that can still be mapped by all hashing threads together.
+	 * When a window does not fit in the budget that part of the file is read through the buffer instead.
+	 * A window stays mapped until its buffer is garbage collected, so its bytes are only given back then.
+	 */
+	static final AtomicLong MAP_BUDGET_REMAINING = new AtomicLong(MAP_BUDGET);
+	private static final Cleaner MAP_CLEANER = Cleaner.create();
+
+	private static volatile long mapWindow = 0;
 
 	private HashHelper() {
 	}
 
+	/**
+	 * Files of at least MIN_MAPPED_FILE_SIZE are memory mapped this many bytes at a time
+	 * instead of being copied through the buffer, which saves a copy per read for large files.
+	 * 0 (the default) disables mapping.
+	 */
+	public static void setMapWindow(final long bytes) {
+		if (bytes < 0 || bytes > MAX_MAP_WINDOW) throw new IllegalArgumentException("Map window must be between 0 and " + MAX_MAP_WINDOW + ": " + bytes);
+		mapWindow = bytes;
+	}
+
+	public static long getMapWindow() {
+		return mapWindow;
+	}
+
 	public static ByteBuffer createByteBuffer() {
 		return ByteBuffer.allocateDirect(BUFFERSIZE);
 	}
@@ -84,6 +116,34 @@ public final class HashHelper {
 		return new Md5AndSha1(new BigInteger(1, md5.digest()), new BigInteger(1, sha1.digest()));
 	}
 
+	/**
+	 * SHA1 of the file's size and a sample from its start, middle and end.
+	 * Reads at most 3 samples however big the file is, so it is only good enough for a provisional identity,
+	 * files with different content can have the same fingerprint.
+	 */
+	public static BigInteger quickFingerprint(final File file) throws IOException {
+		final MessageDigest md = SHA1_FACTORY.get();
+		final ByteBuffer buffer = createByteBuffer();
+		try (final FileInputStream is = new FileInputStream(file)) {
+			try (final FileChannel fc = is.getChannel()) {
+				final long size = fc.size();
+				buffer.putLong(size);
+				buffer.flip();
+				md.update(buffer);
+				digestSample(fc, 0, size, buffer, md);
+				digestSample(fc, size / 2 - QUICK_SAMPLE_SIZE / 2, size, buffer, md);
+				digestSample(fc, size - QUICK_SAMPLE_SIZE, size, buffer, md);
+			}
+		}
+		return new BigInteger(1, md.digest());
+	}
+
+	private static void digestSample(final FileChannel fc, final long start, final long size, final ByteBuffer buffer, final MessageDigest md) throws IOException {
+		final long from = Math.max(start, 0);
+		fc.position(from);
+		digestRead(fc, Math.min(from + QUICK_SAMPLE_SIZE, size), buffer, md);
+	}
+
 	private static BigInteger hashFile(final File file, final ByteBuffer buffer, final ThreadLocal<MessageDigest> mdFactory) throws FileNotFoundException, IOException {
 		final MessageDigest md = mdFactory.get();
 		singleMd(file, buffer, md);
@@ -91,30 +151,95 @@ public final class HashHelper {
 	}
 
 	private static void singleMd(final File file, final ByteBuffer buffer, final MessageDigest md) throws IOException {
+		digestFile(file, buffer, md);
+	}
+
+	private static void multiMd(final File file, final ByteBuffer buffer, final MessageDigest md0, final MessageDigest md1) throws IOException {
+		digestFile(file, buffer, md0, md1);
+	}
+
+	private static void digestFile(final File file, final ByteBuffer buffer, final MessageDigest... mds) throws IOException {
 		try (final FileInputStream is = new FileInputStream(file)) {
 			try (final FileChannel fc = is.getChannel()) {
-				while (fc.position() < fc.size()) {
-					buffer.clear();
-					fc.read(buffer);
-					buffer.flip();
-					md.update(buffer);
+				final long size = fc.size();
+				final long window = mapWindow;
+				if (window > 0 && size >= MIN_MAPPED_FILE_SIZE) {
+					digestMapped(file, fc, size, window, buffer, mds);
+				}
+				else {
+					digestRead(fc, size, buffer, mds);
 				}
 			}
 		}
 	}
 
-	private static void multiMd(final File file, final ByteBuffer buffer, final MessageDigest md0, final MessageDigest md1) throws IOException {
-		try (final FileInputStream is = new FileInputStream(file)) {
-			try (final FileChannel fc = is.getChannel()) {
-				while (fc.position() < fc.size()) {
-					buffer.clear();
-					fc.read(buffer);
-					buffer.flip();
-					md0.update(buffer);
-					buffer.rewind();
-					md1.update(buffer);
+	/**
+	 * Reads from the channel's position up to end.
+	 */
+	private static void digestRead(final FileChannel fc, final long end, final ByteBuffer buffer, final MessageDigest... mds) throws IOException {
+		while (fc.position() < end) {
+			buffer.clear();
+			final long remaining = end - fc.position();
+			if (remaining < buffer.capacity()) buffer.limit((int) remaining);
+			if (fc.read(buffer) < 0) break;  // File got shorter.
+			buffer.flip();
+			update(buffer, mds);
+		}
+	}
+
+	private static void digestMapped(final File file, final FileChannel fc, final long size, final long window, final ByteBuffer buffer, final MessageDigest... mds) throws IOException {
+		long pos = 0;
+		while (pos < size) {
+			final long len = Math.min(window, size - pos);
+			final MappedByteBuffer mapped = mapWithinBudget(fc, pos, len);
+			if (mapped != null) {
+				try {
+					update(mapped, mds);
 				}
+				catch (final InternalError e) {
+					// Reading a mapped page that was truncated away faults.
+					throw new IOException("File changed while hashing: " + file.getAbsolutePath(), e);
+				}
+			}
+			else {
+				fc.position(pos);
+				digestRead(fc, pos + len, buffer, mds);
 			}
+			pos += len;
+		}
+	}
+
+	/**
+	 * Returns null if the window does not fit in the remaining budget.
+	 * The budget is given back when the returned buffer is collected, which is when the JDK unmaps it.
+	 */
+	static MappedByteBuffer mapWithinBudget(final FileChannel fc, final long pos, final long len) throws IOException {
+		if (!reserveMapBudget(len)) return null;
+		final MappedByteBuffer mapped;
+		try {
+			mapped = fc.map(MapMode.READ_ONLY, pos, len);
+		}
+		catch (final IOException | RuntimeException e) {
+			MAP_BUDGET_REMAINING.addAndGet(len);
+			throw e;
+		}
+		MAP_CLEANER.register(mapped, () -> MAP_BUDGET_REMAINING.addAndGet(len));
+		return mapped;
+	}
+
+	private static boolean reserveMapBudget(final long len) {
+		while (true) {
+			final long remaining = MAP_BUDGET_REMAINING.get();
+			if (remaining < len) return false;
+			if (MAP_BUDGET_REMAINING.compareAndSet(remaining, remaining - len)) return true;
+		}
+	}
+
+	private static void update(final ByteBuffer buffer, final MessageDigest... mds) {
+		final int start = buffer.position();
+		for (final MessageDigest md : mds) {
+			buffer.position(start);
+			md.update(buffer);
 		}
 	}
 
@@ -92,4 +92,23 @@ public final class StringHelper {
 		return s;
 	}
 
+	/**
+	 * Same as s.toLowerCase(Locale.ENGLISH).contains(lcaseSub) without copying s.
+	 * lcaseSub must already be lower case.
+	 */
+	public static boolean containsIgnoreCase(final String s, final String lcaseSub) {
+		final int subLen = lcaseSub.length();
+		if (subLen == 0) return true;
+		final char first = lcaseSub.charAt(0);
+		final int max = s.length() - subLen;
+		outer: for (int i = 0; i <= max; i++) {
+			if (Character.toLowerCase(s.charAt(i)) != first) continue;
+			for (int j = 1; j < subLen; j++) {
+				if (Character.toLowerCase(s.charAt(i + j)) != lcaseSub.charAt(j)) continue outer;
+			}
+			return true;
+		}
+		return false;
+	}
+
 }
@@ -3,70 +3,176 @@ package com.vaguehope.dlnatoad.util;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.comparator.NameFileComparator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Breadth first walk calling onDirWithFiles() for each dir in the same order whatever the parallelism.
+ * With parallelism above 1 dirs are listed on that many threads at once, which helps on storage where
+ * each listing is slow but many can be in progress at once, eg network shares.
+ * In that case onDir() and the FileFilter are called on the listing threads and so must be thread safe,
+ * onDirWithFiles() and onUnreadableDir() are still only called on the thread that called walk().
+ */
 public class TreeWalker {
 
+	private static final int LISTINGS_IN_FLIGHT_PER_THREAD = 4;
+
 	private final List<File> roots;
 	private final FileFilter fileFilter;
 	private final Hiker hiker;
+	private final int parallelism;
 
 	public TreeWalker (final File root, final FileFilter fileFilter, final Hiker hiker) {
-		this.roots = Collections.singletonList(root);
-		this.fileFilter = fileFilter;
-		this.hiker = hiker;
+		this(Collections.singletonList(root), fileFilter, hiker, 1);
 	}
 
 	public TreeWalker (final List<File> roots, final FileFilter fileFilter, final Hiker hiker) {
+		this(roots, fileFilter, hiker, 1);
+	}
+
+	public TreeWalker (final List<File> roots, final FileFilter fileFilter, final Hiker hiker, final int parallelism) {
+		if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
 		this.roots = roots;
 		this.fileFilter = fileFilter;
 		this.hiker = hiker;
+		this.parallelism = parallelism;
 	}
 
 	public void walk () throws IOException {
-		final Queue<File> dirs = new LinkedList<>();
-		for (File root : this.roots) {
-			dirs.add(root);
+		if (this.parallelism > 1) {
+			walkParallel();
 		}
+		else {
+			walkSequential();
+		}
+	}
 
+	private void walkSequential () throws IOException {
+		final Queue<File> dirs = new ArrayDeque<>(this.roots);
 		while (!dirs.isEmpty()) {
 			final File dir = dirs.poll();
 			this.hiker.onDir(dir);
+			report(list(dir), dirs);
+		}
+	}
 
-			final File[] listFiles = dir.listFiles();
-			if (listFiles != null) {
-				Arrays.sort(listFiles, NameFileComparator.NAME_INSENSITIVE_COMPARATOR);
-				List<File> keepFiles = null;
-				for (final File file : listFiles) {
-					if (file.getName().startsWith(".")) {
-						continue;
-					}
-					else if (file.isDirectory()) {
-						dirs.add(file);
-					}
-					else if (file.isFile() && this.fileFilter.accept(file)) {
-						if (keepFiles == null) keepFiles = new ArrayList<>();
-						keepFiles.add(file);
-					}
-				}
-				if (keepFiles != null) {
-					this.hiker.onDirWithFiles(dir, keepFiles);
-					keepFiles = null;
+	/**
+	 * Dirs are started in the same order walkSequential() would visit them, and results are
+	 * reported in that order too, so only the listing itself happens out of order.
+	 * The number of listings in progress or waiting to be reported is bounded so that
+	 * a huge tree is not held in memory faster than it can be reported.
+	 */
+	private void walkParallel () throws IOException {
+		final ExecutorService ex = Executors.newFixedThreadPool(this.parallelism, new DaemonThreadFactory("treewalk"));
+		try {
+			final Queue<File> dirs = new ArrayDeque<>(this.roots);
+			final Queue<Future<Listing>> listings = new ArrayDeque<>();
+			final int maxInFlight = this.parallelism * LISTINGS_IN_FLIGHT_PER_THREAD;
+			while (!dirs.isEmpty() || !listings.isEmpty()) {
+				while (listings.size() < maxInFlight && !dirs.isEmpty()) {
+					final File dir = dirs.poll();
+					listings.add(ex.submit(() -> {
+						this.hiker.onDir(dir);
+						return list(dir);
+					}));
 				}
+				report(waitFor(listings.poll()), dirs);
 			}
-			else {
-				this.hiker.onUnreadableDir(dir);
+		}
+		finally {
+			ex.shutdownNow();
+		}
+	}
+
+	private static Listing waitFor (final Future<Listing> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while walking tree.");
+		}
+		catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private void report (final Listing listing, final Queue<File> dirs) throws IOException {
+		if (listing.dirs == null) {
+			this.hiker.onUnreadableDir(listing.dir);
+			return;
+		}
+		dirs.addAll(listing.dirs);
+		if (listing.files.size() > 0) {
+			this.hiker.onDirWithFiles(listing.dir, listing.files);
+		}
+	}
+
+	/**
+	 * One readAttributes() per entry instead of separate isDirectory() and isFile() calls.
+	 */
+	private Listing list (final File dir) {
+		final List<File> subDirs = new ArrayList<>();
+		final List<File> files = new ArrayList<>();
+		try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+			for (final Path path : stream) {
+				if (path.getFileName().toString().startsWith(".")) continue;
+
+				final BasicFileAttributes attr;
+				try {
+					attr = Files.readAttributes(path, BasicFileAttributes.class);
+				}
+				catch (final IOException e) {
+					continue;  // eg broken symlink, which is neither a file nor a dir.
+				}
+
+				if (attr.isDirectory()) {
+					subDirs.add(path.toFile());
+				}
+				else if (attr.isRegularFile()) {
+					final File file = path.toFile();
+					if (this.fileFilter.accept(file)) files.add(file);
+				}
 			}
 		}
+		catch (final IOException | DirectoryIteratorException e) {
+			return new Listing(dir, null, null);
+		}
+		subDirs.sort(NameFileComparator.NAME_INSENSITIVE_COMPARATOR);
+		files.sort(NameFileComparator.NAME_INSENSITIVE_COMPARATOR);
+		return new Listing(dir, subDirs, files);
+	}
+
+	private static class Listing {
+		final File dir;
+		final List<File> dirs;  // null if dir could not be read.
+		final List<File> files;
+
+		Listing (final File dir, final List<File> dirs, final List<File> files) {
+			this.dir = dir;
+			this.dirs = dirs;
+			this.files = files;
+		}
 	}
 
 	public abstract static class Hiker {
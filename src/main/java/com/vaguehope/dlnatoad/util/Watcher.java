@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -12,10 +13,14 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.DelayQueue;
@@ -29,9 +34,12 @@ import org.slf4j.LoggerFactory;
 import com.vaguehope.dlnatoad.util.TreeWalker.Hiker;
 
 import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.datapoints.DistributionDataPoint;
 import io.prometheus.metrics.core.metrics.Counter;
 import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.core.metrics.Histogram;
 import io.prometheus.metrics.model.registry.PrometheusRegistry;
+import io.prometheus.metrics.model.snapshots.Unit;
 
 public class Watcher {
 
@@ -60,6 +68,22 @@ public class Watcher {
 	private static final CounterDataPoint FILES_FOUND_SCAN_METRIC = FILES_FOUND_METRIC.labelValues("scan");
 	private static final CounterDataPoint FILES_FOUND_NOTIFY_METRIC = FILES_FOUND_METRIC.labelValues("notify");
 
+	private static final Counter COALESCED_METRIC = Counter.builder()
+			.name("watch_events_coalesced")
+			.help("count of watch events merged into an event already waiting for the same path.")
+			.register();
+
+	private static final Histogram LATENCY_METRIC = Histogram.builder()
+			.name("watch_event_latency")
+			.labelNames("event")
+			.unit(Unit.SECONDS)
+			.classicExponentialUpperBounds(0.001, 4, 10)  // [0.001, 0.004, 0.016, 0.064, 0.256, 1.024, 4.096, 16.384, 65.536, 262.144]
+			.help("Time from a watch event being read to the listener being called, including waiting for the file to stop changing.")
+			.register();
+	private static final DistributionDataPoint LATENCY_FOUND_METRIC = LATENCY_METRIC.labelValues("found");
+	private static final DistributionDataPoint LATENCY_MODIFIED_METRIC = LATENCY_METRIC.labelValues("modified");
+	private static final DistributionDataPoint LATENCY_GONE_METRIC = LATENCY_METRIC.labelValues("gone");
+
 	private static final Counter FILES_GONE_METRIC = Counter.builder()
 			.name("files_gone")
 			.help("count of files deleted or moved.")
@@ -70,7 +94,7 @@ public class Watcher {
 	private final GaugeWithCallback filesWaitingMetric = GaugeWithCallback.builder()
 			.name("files_waiting")
 			.help("number of files that are inaccessable or very recently modified.")
-			.callback((cb) -> cb.call(this.waitingFiles.size()))
+			.callback((cb) -> cb.call(this.waitingByPath.size()))
 			.register();
 
 	/**
@@ -90,29 +114,47 @@ public class Watcher {
 	private final FileListener listener;
 	private final Time time;
 	private final long pollIntervalMillis;
+	private final int scanThreads;
 
 	private final List<Runnable> onPrescanComplete = new CopyOnWriteArrayList<>();
 	private final CountDownLatch prescanComplete = new CountDownLatch(1);
 	private final AtomicLong watchEvents = new AtomicLong(0);
 
 	private final WatchService watchService;
-	private final Map<WatchKey, Path> watchKeys = new HashMap<>();
-	private final Map<WatchKey, File> watchKeyRoots = new HashMap<>();
+	// Concurrent as dirs are registered from TreeWalker's threads during a parallel prescan.
+	private final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+	private final Map<WatchKey, File> watchKeyRoots = new ConcurrentHashMap<>();
+	// Reverse of watchKeys, sorted so that all the dirs under a dir can be found without a full scan.
+	private final NavigableMap<String, WatchKey> watchedDirs = new ConcurrentSkipListMap<>();
 	private final Queue<WaitingFile> waitingFiles = new DelayQueue<>();
+	// Latest WaitingFile for each path, any other for the same path still in waitingFiles has been superseded.
+	private final Map<Path, WaitingFile> waitingByPath = new ConcurrentHashMap<>();
 
 	private volatile boolean running = true;
 
 	public Watcher (final List<File> roots, final FileFilter filter, final FileListener listener) throws IOException {
-		this(roots, filter, listener, Time.DEFAULT, TimeUnit.SECONDS.toMillis(5));
+		this(roots, filter, listener, 1);
+	}
+
+	/**
+	 * @param scanThreads how many dirs to list at once while walking each root during the initial scan.
+	 */
+	public Watcher (final List<File> roots, final FileFilter filter, final FileListener listener, final int scanThreads) throws IOException {
+		this(roots, filter, listener, Time.DEFAULT, TimeUnit.SECONDS.toMillis(5), scanThreads);
 	}
 
-	@SuppressWarnings("resource")
 	Watcher (final List<File> roots, final FileFilter filter, final FileListener listener, final Time time, final long pollIntervalMillis) throws IOException {
+		this(roots, filter, listener, time, pollIntervalMillis, 1);
+	}
+
+	@SuppressWarnings("resource")
+	Watcher (final List<File> roots, final FileFilter filter, final FileListener listener, final Time time, final long pollIntervalMillis, final int scanThreads) throws IOException {
 		this.roots = roots;
 		this.filter = filter;
 		this.listener = listener;
 		this.time = time;
 		this.pollIntervalMillis = pollIntervalMillis;
+		this.scanThreads = scanThreads;
 		this.watchService = FileSystems.getDefault().newWatchService();
 	}
 
@@ -121,7 +163,7 @@ public class Watcher {
 			long totalFiles = 0L;
 			final long startTime = System.nanoTime();
 			for (final File root : this.roots) {
-				totalFiles += registerRecursive(root, root);
+				totalFiles += registerRecursive(root, root, this.scanThreads);
 			}
 			final long scanTime = System.nanoTime() - startTime;
 			LOG.info("Found {} media files in {} seconds.", totalFiles, TimeUnit.NANOSECONDS.toSeconds(scanTime));
@@ -154,12 +196,18 @@ public class Watcher {
 	public void shutdown () {
 		PrometheusRegistry.defaultRegistry.unregister(this.filesWaitingMetric);
 		this.running = false;
+		try {
+			this.watchService.close();  // Wake watch() if it is blocked waiting for an event.
+		}
+		catch (final IOException e) {
+			LOG.warn("Failed to close watch service: {}", e.toString());
+		}
 	}
 
 	protected void register (final File rootDir, final Path dir) throws IOException {
 		if (!Files.isReadable(dir)) {
 			LOG.debug("Waiting for access to register: {}", dir);
-			this.waitingFiles.add(new WaitingFile(dir, rootDir, StandardWatchEventKinds.ENTRY_CREATE, this.time));
+			waitFor(dir, rootDir, StandardWatchEventKinds.ENTRY_CREATE);
 			return;
 		}
 
@@ -168,85 +216,183 @@ public class Watcher {
 				StandardWatchEventKinds.ENTRY_CREATE,
 				StandardWatchEventKinds.ENTRY_MODIFY,
 				StandardWatchEventKinds.ENTRY_DELETE);
+		addWatchKey(rootDir, dir, watchKey);
+		LOG.debug("Register complete: {}", dir);
+	}
+
+	void addWatchKey (final File rootDir, final Path dir, final WatchKey watchKey) {
 		this.watchKeys.put(watchKey, dir);
 		this.watchKeyRoots.put(watchKey, rootDir);
-		LOG.debug("Register complete: {}", dir);
+		this.watchedDirs.put(dir.toString(), watchKey);
+	}
+
+	private void removeWatchKey (final WatchKey key) {
+		final Path dir = this.watchKeys.remove(key);
+		this.watchKeyRoots.remove(key);
+		if (dir != null) this.watchedDirs.remove(dir.toString(), key);
+	}
+
+	boolean isWatchedDir (final Path path) {
+		return this.watchedDirs.containsKey(path.toString());
+	}
+
+	int watchedDirCount () {
+		return this.watchedDirs.size();
+	}
+
+	/**
+	 * Cancels the watch on a deleted dir and on every dir that was under it,
+	 * rather than waiting for each of their keys to be found invalid one at a time.
+	 */
+	private void forgetDirTree (final Path dir) {
+		final String prefix = dir.toString();
+		final List<WatchKey> keys = new ArrayList<>(
+				this.watchedDirs.subMap(prefix + File.separatorChar, true, prefix + (char) (File.separatorChar + 1), false).values());
+		final WatchKey dirKey = this.watchedDirs.get(prefix);
+		if (dirKey != null) keys.add(dirKey);
+		for (final WatchKey key : keys) {
+			key.cancel();
+			removeWatchKey(key);
+		}
+		if (keys.size() > 0) LOG.debug("Stopped watching {} dirs under: {}", keys.size(), dir);
 	}
 
 	/**
 	 * Returns number of files found during initial scan.
 	 */
-	private long registerRecursive (final File rootDir, final File dir) throws IOException {
+	private long registerRecursive (final File rootDir, final File dir, final int parallelism) throws IOException {
 		if (!dir.exists()) throw new FileNotFoundException("Unable to watch dir '" + dir + "' as it does not exist.");
 		final RegisterRecursiveHiker hiker = new RegisterRecursiveHiker(this, rootDir);
-		new TreeWalker(dir, this.filter, hiker).walk();
+		new TreeWalker(Collections.singletonList(dir), this.filter, hiker, parallelism).walk();
 		return hiker.getTotalFiles();
 	}
 
 	private void watch () {
-		while (this.running) {
-			WaitingFile modFile;
-			while ((modFile = this.waitingFiles.poll()) != null) {
-				if (modFile.isReady()) {
-					try {
-						readReadyPath(modFile.getEventKind(), modFile.getPath(), modFile.getFile().isDirectory(), modFile.getRootDir());
-					}
-					catch (final Exception e) {
-						LOG.warn("Failed to process waiting file that should have been ready: {} {}: {}",
-								modFile.getEventKind().name(), modFile.getFile().getAbsolutePath(), e);
+		try {
+			while (this.running) {
+				final WatchKey firstKey = waitForEvent();
+				if (firstKey != null) {
+					if (!processWatchKey(firstKey)) return;
+
+					// Read every event already queued before checking waiting files, as any of them could be a further change to one.
+					// Bounded so that a constant stream of events does not hold up files that are ready.
+					final long readUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.pollIntervalMillis);
+					WatchKey key;
+					while (System.nanoTime() - readUntil < 0 && (key = this.watchService.poll()) != null) {
+						if (!processWatchKey(key)) return;
 					}
 				}
-				else if (modFile.exists()) {
-					LOG.info("File not ready: {}", modFile.getFile());
-					this.waitingFiles.add(modFile.renew());
-				}
-			}
 
-			final WatchKey key = this.watchService.poll();
-			if (key == null) {
-				try {
-					TimeUnit.MILLISECONDS.sleep(this.pollIntervalMillis);
-				}
-				catch (final InterruptedException e) {
-					LOG.debug("Interrupted, terminating watcher...");
-					this.running = false;
-					return;
-				}
-				continue;
+				releaseReadyWaitingFiles();
 			}
+		}
+		catch (final InterruptedException e) {
+			LOG.debug("Interrupted, terminating watcher...");
+			this.running = false;
+		}
+		catch (final ClosedWatchServiceException e) {
+			LOG.debug("Watch service closed, terminating watcher...");
+			this.running = false;
+		}
+	}
 
-			final Path dir = this.watchKeys.get(key);
-			if (dir == null) {
-				LOG.error("WatchKey not known: {}", key);
-				continue;
-			}
+	/**
+	 * Blocks until there is an event or the next waiting file is due to be checked.
+	 * With nothing waiting this blocks until there is an event, shutdown() closes the WatchService to end it.
+	 * Waits at most pollIntervalMillis while files are waiting as they are timed with this.time,
+	 * which may not be the system clock.
+	 * Returns null if there was no event.
+	 */
+	private WatchKey waitForEvent () throws InterruptedException {
+		final WaitingFile next = this.waitingFiles.peek();
+		if (next == null) return this.watchService.take();
 
-			final File rootDir = this.watchKeyRoots.get(key);
-			if (rootDir == null) {
-				LOG.error("WatchKey root not found: {}", key);
-				continue;
-			}
+		final long waitNanos = Math.min(next.getDelay(TimeUnit.NANOSECONDS), TimeUnit.MILLISECONDS.toNanos(this.pollIntervalMillis));
+		if (waitNanos <= 0) return this.watchService.poll();
+		return this.watchService.poll(waitNanos, TimeUnit.NANOSECONDS);
+	}
 
-			try {
-				readWatchKey(rootDir, dir, key);
-			}
-			catch (final Exception e) { // NOSONAR
-				LOG.warn("Failed to process '{}': {}", key, e.toString());
+	/**
+	 * Returns false if there is nothing left to watch.
+	 */
+	private boolean processWatchKey (final WatchKey key) {
+		final Path dir = this.watchKeys.get(key);
+		if (dir == null) {
+			// Keys cancelled by forgetDirTree() may already have been queued.
+			if (key.isValid()) LOG.error("WatchKey not known: {}", key);
+			return true;
+		}
+
+		final File rootDir = this.watchKeyRoots.get(key);
+		if (rootDir == null) {
+			LOG.error("WatchKey root not found: {}", key);
+			return true;
+		}
+
+		try {
+			readWatchKey(rootDir, dir, key);
+		}
+		catch (final Exception e) { // NOSONAR
+			LOG.warn("Failed to process '{}': {}", key, e.toString());
+		}
+
+		if (!key.reset()) {
+			LOG.info("WatchKey no longer valid: {}", dir);
+			removeWatchKey(key);
+			if (this.watchKeys.isEmpty()) {
+				this.running = false;
+				return false;
 			}
+		}
+		return true;
+	}
 
-			if (!key.reset()) {
-				LOG.info("WatchKey no longer valid: {}", dir);
-				this.watchKeys.remove(key);
-				this.watchKeyRoots.remove(key);
-				if (this.watchKeys.isEmpty()) {
-					this.running = false;
-					return;
+	/**
+	 * Wait for the file to stop changing and be readable.
+	 * If the path is already waiting the two are merged: a create followed by modifies is still a create,
+	 * and the wait starts again from the latest event as the file is still changing.
+	 */
+	private void waitFor (final Path path, final File rootDir, final Kind<Path> kind) {
+		final WaitingFile prev = this.waitingByPath.get(path);
+		if (prev == null) {
+			putWaitingFile(new WaitingFile(path, rootDir, kind, this.time));
+			return;
+		}
+		final Kind<Path> mergedKind = prev.getEventKind() == StandardWatchEventKinds.ENTRY_CREATE
+				? StandardWatchEventKinds.ENTRY_CREATE
+				: kind;
+		putWaitingFile(prev.merge(mergedKind));
+		COALESCED_METRIC.inc();
+	}
+
+	private void putWaitingFile (final WaitingFile waitingFile) {
+		this.waitingByPath.put(waitingFile.getPath(), waitingFile);
+		this.waitingFiles.add(waitingFile);
+	}
+
+	private void releaseReadyWaitingFiles () {
+		WaitingFile modFile;
+		while ((modFile = this.waitingFiles.poll()) != null) {
+			if (!this.waitingByPath.remove(modFile.getPath(), modFile)) continue;  // Superseded.
+
+			if (modFile.isReady()) {
+				try {
+					readReadyPath(modFile.getEventKind(), modFile.getPath(), modFile.getFile().isDirectory(), modFile.getRootDir(), modFile.getFirstSeenTime());
+				}
+				catch (final Exception e) {
+					LOG.warn("Failed to process waiting file that should have been ready: {} {}: {}",
+							modFile.getEventKind().name(), modFile.getFile().getAbsolutePath(), e);
 				}
 			}
+			else if (modFile.exists()) {
+				LOG.info("File not ready: {}", modFile.getFile());
+				putWaitingFile(modFile.renew());
+			}
 		}
 	}
 
-	private void readWatchKey (final File rootDir, final Path dir, final WatchKey key) throws IOException {
+	void readWatchKey (final File rootDir, final Path dir, final WatchKey key) throws IOException {
+		final long seenTime = this.time.now();
 		for (final WatchEvent<?> event : key.pollEvents()) {
 			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
 				LOG.warn("Overflow WatchEvent!");
@@ -258,8 +404,7 @@ public class Watcher {
 			LOG.debug("Event: {} {}", ev.kind().name(), path);
 
 			// Files.isDirectory() will return false for deleted dirs.
-			// containsValue() is a linear search.
-			final boolean isDir = Files.isDirectory(path) || this.watchKeys.containsValue(path);
+			final boolean isDir = Files.isDirectory(path) || isWatchedDir(path);
 
 			// TODO ignore . files
 			if (!isDir && !this.filter.accept(path.toFile())) {
@@ -272,18 +417,22 @@ public class Watcher {
 				|| ev.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
 				if (!Files.isReadable(path)) {
 					LOG.debug("Waiting for access: {}", path);
-					this.waitingFiles.add(new WaitingFile(path, rootDir, ev.kind(), this.time)); // Wait for file to be accessible.
+					waitFor(path, rootDir, ev.kind()); // Wait for file to be accessible.
 				}
 				else if (Files.isDirectory(path)) {
-					readReadyPath(ev.kind(), path, isDir, rootDir);
+					readReadyPath(ev.kind(), path, isDir, rootDir, seenTime);
 				}
 				else {
 					LOG.debug("Waiting for ready: {} {}", path, ev.kind());
-					this.waitingFiles.add(new WaitingFile(path, rootDir, ev.kind(), this.time)); // Wait for the file to stop changing.
+					waitFor(path, rootDir, ev.kind()); // Wait for the file to stop changing.
 				}
 			}
 			else if (ev.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
-				readReadyPath(ev.kind(), path, isDir, rootDir);
+				if (isDir) forgetDirTree(path);
+				// Still tell the listener even if it was never told about this create,
+				// as the create may have been a rename over a file it already has.
+				if (this.waitingByPath.remove(path) != null) COALESCED_METRIC.inc();
+				readReadyPath(ev.kind(), path, isDir, rootDir, seenTime);
 			}
 			else {
 				LOG.error("Unexpected event type: {}", ev.kind());
@@ -294,12 +443,12 @@ public class Watcher {
 		}
 	}
 
-	private void readReadyPath(final Kind<Path> kind, final Path path, boolean isDir, final File rootDir) throws IOException {
+	private void readReadyPath(final Kind<Path> kind, final Path path, boolean isDir, final File rootDir, final long seenTime) throws IOException {
 		if (Files.isDirectory(path) && kind == StandardWatchEventKinds.ENTRY_CREATE) {
-			registerRecursive(rootDir, path.toFile());
+			registerRecursive(rootDir, path.toFile(), 1);
 		}
 		else {
-			callListener(kind, path.toFile(), isDir, rootDir, EventType.NOTIFY);
+			callListener(kind, path.toFile(), isDir, rootDir, EventType.NOTIFY, seenTime);
 		}
 	}
 
@@ -308,26 +457,30 @@ public class Watcher {
 		for (final File file : files) {
 			if (!file.canRead()) {
 				LOG.debug("Waiting for access: {}", file);
-				this.waitingFiles.add(new WaitingFile(file.toPath(), rootDir, kind, this.time)); // Wait for file to be accessible.
+				waitFor(file.toPath(), rootDir, kind); // Wait for file to be accessible.
 			}
 			else {
-				callListener(kind, file, file.isDirectory(), rootDir, EventType.SCAN);
+				callListener(kind, file, file.isDirectory(), rootDir, EventType.SCAN, this.time.now());
 			}
 		}
 	}
 
-	private void callListener (final Kind<Path> kind, final File file, boolean isDir, final File rootDir, final EventType eventType) {
+	private void callListener (final Kind<Path> kind, final File file, boolean isDir, final File rootDir, final EventType eventType, final long seenTime) {
 		LOG.debug("Calling listener: {} {}", file.getAbsolutePath(), kind);
+		final double latency = Unit.nanosToSeconds(this.time.now() - seenTime);
 		try {
 			if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
 				incFoundMetric(eventType, isDir);
+				if (eventType == EventType.NOTIFY) LATENCY_FOUND_METRIC.observe(latency);
 				this.listener.fileFound(rootDir, file, eventType, null);
 			}
 			else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+				LATENCY_MODIFIED_METRIC.observe(latency);
 				this.listener.fileModified(rootDir, file, null);
 			}
 			else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
 				incGoneMetric(isDir);
+				LATENCY_GONE_METRIC.observe(latency);
 				this.listener.fileGone(file, isDir);
 			}
 		}
@@ -389,6 +542,8 @@ public class Watcher {
 
 	private static class WaitingFile implements Delayed {
 
+		private static final AtomicLong SEQUENCE = new AtomicLong(0L);
+
 		private final Path path;
 		private final File file;
 		private final File rootDir;
@@ -399,8 +554,14 @@ public class Watcher {
 		private final long lastLength;
 
 		private final long readyAtTime;
+		private final long firstSeenTime;
+		private final long sequence = SEQUENCE.getAndIncrement();  // So files ready at the same time stay in the order they were seen.
 
 		public WaitingFile (final Path path, final File rootDir, final Kind<Path> eventKind, final Time time) {
+			this(path, rootDir, eventKind, time, readyAtTime(path, time), time.now());
+		}
+
+		private WaitingFile (final Path path, final File rootDir, final Kind<Path> eventKind, final Time time, final long readyAtTime, final long firstSeenTime) {
 			this.path = path;
 			this.file = path.toFile();
 			this.rootDir = rootDir;
@@ -410,14 +571,27 @@ public class Watcher {
 			this.lastModifiedMillis = this.file.lastModified();
 			this.lastLength = this.file.length();
 
+			this.readyAtTime = readyAtTime;
+			this.firstSeenTime = firstSeenTime;
+		}
+
+		private static long readyAtTime (final Path path, final Time time) {
 			final long delay = Files.isReadable(path)
 					? MODIFIED_TIMEOUT_NANOS
 					: INACCESSABLE_TIMEOUT_NANOS;
-			this.readyAtTime = delay + time.now();
+			return delay + time.now();
 		}
 
 		public WaitingFile renew() {
-			return new WaitingFile(this.path, this.rootDir, this.eventKind, this.time);
+			return new WaitingFile(this.path, this.rootDir, this.eventKind, this.time, readyAtTime(this.path, this.time), this.firstSeenTime);
+		}
+
+		public WaitingFile merge(final Kind<Path> newEventKind) {
+			return new WaitingFile(this.path, this.rootDir, newEventKind, this.time, readyAtTime(this.path, this.time), this.firstSeenTime);
+		}
+
+		public long getFirstSeenTime() {
+			return this.firstSeenTime;
 		}
 
 		public boolean isReady () {
@@ -455,6 +629,7 @@ public class Watcher {
 		public int compareTo (final Delayed o) {
 			if (o == this) return 0;
 			final long d = (getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS));
+			if (d == 0 && o instanceof WaitingFile) return Long.compare(this.sequence, ((WaitingFile) o).sequence);
 			return (d == 0) ? 0 : ((d < 0) ? -1 : 1);
 		}
 
@@ -10,6 +10,10 @@ import org.junit.Assert;
 import io.prometheus.metrics.model.registry.PrometheusRegistry;
 import io.prometheus.metrics.model.snapshots.CounterSnapshot;
 import io.prometheus.metrics.model.snapshots.CounterSnapshot.CounterDataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.GaugeSnapshot;
+import io.prometheus.metrics.model.snapshots.GaugeSnapshot.GaugeDataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.HistogramSnapshot;
+import io.prometheus.metrics.model.snapshots.HistogramSnapshot.HistogramDataPointSnapshot;
 import io.prometheus.metrics.model.snapshots.Labels;
 import io.prometheus.metrics.model.snapshots.MetricSnapshot;
 import io.prometheus.metrics.model.snapshots.MetricSnapshots;
@@ -33,6 +37,32 @@ public class MetricAssert {
 		assertEquals(expectedValue, delta, 0);
 	}
 
+	public void assertHistogramCount(final String name, final Labels labels, final long expectedCount) {
+		final MetricSnapshot before = findMetricSnapshot(this.beforeSnapshots, name);
+		final MetricSnapshot now = findMetricSnapshot(PrometheusRegistry.defaultRegistry.scrape(), name);
+
+		final HistogramDataPointSnapshot beforeDp = readHistogram(before, labels);
+		final HistogramDataPointSnapshot nowDp = readHistogram(now, labels);
+
+		assertEquals(expectedCount, nowDp.getCount() - beforeDp.getCount());
+	}
+
+	/**
+	 * Gauges are checked as they are now, not as a change since this was made.
+	 * Null expectedValue asserts the labels are not present.
+	 */
+	public void assertGauge(final String name, final Labels labels, final Double expectedValue) {
+		final MetricSnapshot now = findMetricSnapshot(PrometheusRegistry.defaultRegistry.scrape(), name);
+		if (!(now instanceof GaugeSnapshot)) Assert.fail("metric is not a gauge type.");
+		final List<GaugeDataPointSnapshot> dps = ((GaugeSnapshot) now).getDataPoints().stream().filter(d -> labels.equals(d.getLabels())).collect(Collectors.toList());
+		if (expectedValue == null) {
+			assertEquals("Labels '" + labels + "' found.", 0, dps.size());
+			return;
+		}
+		if (dps.size() != 1) Assert.fail("Labels '" + labels + "' not found exactly once.");
+		assertEquals(expectedValue, dps.get(0).getValue(), 0);
+	}
+
 	private static MetricSnapshot findMetricSnapshot(MetricSnapshots ss, final String name) {
 		final List<MetricSnapshot> matches = ss.stream().filter(s -> name.equals(s.getMetadata().getName())).collect(Collectors.toList());
 		if (matches.size() != 1) Assert.fail("metric '" + name + "' not found exactly once.");
@@ -48,4 +78,13 @@ public class MetricAssert {
 		return dps.get(0);
 	}
 
+	private static HistogramDataPointSnapshot readHistogram(final MetricSnapshot ss, final Labels labels) {
+		if (!(ss instanceof HistogramSnapshot)) Assert.fail("metric is not a histogram type.");
+		final HistogramSnapshot hss = (HistogramSnapshot) ss;
+
+		final List<HistogramDataPointSnapshot> dps = hss.getDataPoints().stream().filter(d -> labels.equals(d.getLabels())).collect(Collectors.toList());
+		if (dps.size() != 1) Assert.fail("Labels '" + labels + "' not found exactly once.");
+		return dps.get(0);
+	}
+
 }
@@ -0,0 +1,124 @@
+package com.vaguehope.dlnatoad.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaguehope.dlnatoad.MetricAssert;
+
+import io.prometheus.metrics.model.snapshots.Labels;
+
+public class ConnectionPoolTest {
+
+	private AtomicInteger connectionsMade;
+	private ConnectionPool undertest;
+
+	@Before
+	public void before() throws Exception {
+		this.connectionsMade = new AtomicInteger(0);
+		this.undertest = makePool("test-db");
+	}
+
+	private ConnectionPool makePool(final String db) {
+		return new ConnectionPool(db, "test", 2, () -> {
+			this.connectionsMade.incrementAndGet();
+			final Connection c = mock(Connection.class);
+			when(c.prepareStatement("SELECT 1;")).thenReturn(mock(PreparedStatement.class));
+			return c;
+		});
+	}
+
+	@After
+	public void after() throws Exception {
+		this.undertest.close();
+	}
+
+	@Test
+	public void itReusesReturnedConnections() throws Exception {
+		final Connection first;
+		try (final PooledConnection c = this.undertest.borrow()) {
+			first = c.getConnection();
+		}
+		try (final PooledConnection c = this.undertest.borrow()) {
+			assertSame(first, c.getConnection());
+		}
+		assertEquals(1, this.connectionsMade.get());
+	}
+
+	@Test
+	public void itOpensMoreConnectionsWhenAllAreBorrowed() throws Exception {
+		try (final PooledConnection a = this.undertest.borrow(); final PooledConnection b = this.undertest.borrow()) {
+			assertNotSame(a.getConnection(), b.getConnection());
+		}
+		assertEquals(2, this.connectionsMade.get());
+	}
+
+	@Test
+	public void itCachesStatementsPerConnection() throws Exception {
+		final PreparedStatement first;
+		final Connection conn;
+		try (final PooledConnection c = this.undertest.borrow()) {
+			conn = c.getConnection();
+			first = c.prepare("SELECT 1;");
+		}
+		try (final PooledConnection c = this.undertest.borrow()) {
+			assertSame(first, c.prepare("SELECT 1;"));
+		}
+		verify(conn, times(1)).prepareStatement("SELECT 1;");
+	}
+
+	@Test
+	public void itClosesIdleConnectionsWhenClosed() throws Exception {
+		final Connection conn;
+		try (final PooledConnection c = this.undertest.borrow()) {
+			conn = c.getConnection();
+		}
+		this.undertest.close();
+		verify(conn).close();
+	}
+
+	@Test
+	public void itClosesBorrowedConnectionsWhenReturnedAfterClose() throws Exception {
+		final Connection conn;
+		try (final PooledConnection c = this.undertest.borrow()) {
+			conn = c.getConnection();
+			this.undertest.close();
+		}
+		verify(conn).close();
+	}
+
+	@Test(expected = SQLException.class)
+	public void itDoesNotLendOnceClosed() throws Exception {
+		this.undertest.close();
+		this.undertest.borrow();
+	}
+
+	@Test
+	public void itKeepsPoolsWithTheSameNameForDifferentDbsApart() throws Exception {
+		final MetricAssert metricAssert = new MetricAssert();
+		final ConnectionPool other = makePool("other-db");
+		try (final PooledConnection a = this.undertest.borrow(); final PooledConnection b = this.undertest.borrow()) {
+			try (final PooledConnection c = other.borrow()) {
+				metricAssert.assertGauge("db_connection_pool_size", Labels.of("db", "test-db", "name", "test", "state", "active"), 2d);
+				metricAssert.assertGauge("db_connection_pool_size", Labels.of("db", "other-db", "name", "test", "state", "active"), 1d);
+			}
+		}
+		other.close();
+		metricAssert.assertGauge("db_connection_pool_size", Labels.of("db", "test-db", "name", "test", "state", "idle"), 2d);
+		metricAssert.assertGauge("db_connection_pool_size", Labels.of("db", "other-db", "name", "test", "state", "idle"), null);
+	}
+
+}
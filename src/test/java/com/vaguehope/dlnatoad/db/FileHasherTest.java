@@ -0,0 +1,174 @@
+package com.vaguehope.dlnatoad.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vaguehope.dlnatoad.MetricAssert;
+
+import io.prometheus.metrics.model.snapshots.Labels;
+
+public class FileHasherTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private List<Runnable> submitted;
+	private List<FileData> results;
+	private List<IOException> errors;
+	private FileHasher.Callback callback;
+
+	@Before
+	public void before() throws Exception {
+		this.submitted = new ArrayList<>();
+		this.results = new ArrayList<>();
+		this.errors = new ArrayList<>();
+		this.callback = new FileHasher.Callback() {
+			@Override
+			public void onResult(final FileData fileData) {
+				FileHasherTest.this.results.add(fileData);
+			}
+
+			@Override
+			public void onError(final IOException e) {
+				FileHasherTest.this.errors.add(e);
+			}
+		};
+	}
+
+	@Test
+	public void itLimitsFilesHashedAtOnceOnOneDevice() throws Exception {
+		final FileHasher undertest = new FileHasher(collectingExecutor(), 2);
+		final MetricAssert metrics = new MetricAssert();
+
+		for (int i = 0; i < 3; i++) {
+			undertest.hash(makeFile("file" + i, "content" + i), this.callback);
+		}
+		assertEquals(2, this.submitted.size());
+		assertEquals(3, undertest.pendingCount());
+
+		this.submitted.remove(0).run();
+		assertEquals(1, this.results.size());
+		assertEquals(2, this.submitted.size());
+		assertEquals(2, undertest.pendingCount());
+
+		runAll();
+		assertEquals(3, this.results.size());
+		assertThat(this.errors, empty());
+		assertEquals(0, undertest.pendingCount());
+		metrics.assertCounter("db_hash_files", Labels.EMPTY, 3);
+		metrics.assertCounter("db_hash_bytes", Labels.EMPTY, 24);
+	}
+
+	@Test
+	public void itReportsErrorAndStartsNextFile() throws Exception {
+		final FileHasher undertest = new FileHasher(collectingExecutor(), 1);
+		final File gone = makeFile("gone", "x");
+		undertest.hash(gone, this.callback);
+		undertest.hash(makeFile("ok", "y"), this.callback);
+		FileUtils.forceDelete(gone);
+
+		runAll();
+		assertEquals(1, this.errors.size());
+		assertEquals(1, this.results.size());
+		assertEquals(0, undertest.pendingCount());
+	}
+
+	@Test
+	public void itOnlyStartsBackgroundFilesWhenNothingElseIsWaiting() throws Exception {
+		final FileHasher undertest = new FileHasher(collectingExecutor(), 1);
+		undertest.hash(makeFile("first", "1"), this.callback);
+		undertest.hashInBackground(makeFile("background", "22"), this.callback);
+		undertest.hashQuick(makeFile("quick", "333"), this.callback);
+		assertEquals(3, undertest.pendingCount());
+
+		runAll();
+		assertThat(this.errors, empty());
+		assertEquals(3, this.results.size());
+		assertEquals(1, this.results.get(0).getSize());
+		assertEquals(3, this.results.get(1).getSize());
+		assertTrue(this.results.get(1).isProvisional());
+		assertEquals(2, this.results.get(2).getSize());
+		assertFalse(this.results.get(2).isProvisional());
+	}
+
+	@Test
+	public void itReportsErrorAndKeepsInterruptWhenInterruptedWaitingToReturnResult() throws Exception {
+		final FileHasher undertest = new FileHasher(collectingExecutor(), 1);
+		final BlockingQueue<FileData> full = new ArrayBlockingQueue<>(1);
+		full.add(FileData.forFile(makeFile("other", "0")));
+		final FileHasher.Callback blockingCallback = new FileHasher.Callback() {
+			@Override
+			public void onResult(final FileData fileData) throws InterruptedException {
+				full.put(fileData);  // Blocks, like a full hashedQueue.
+			}
+
+			@Override
+			public void onError(final IOException e) {
+				FileHasherTest.this.errors.add(e);
+			}
+		};
+		undertest.hash(makeFile("file", "content"), blockingCallback);
+
+		final AtomicBoolean interruptKept = new AtomicBoolean(false);
+		final Thread t = new Thread(() -> {
+			this.submitted.remove(0).run();
+			interruptKept.set(Thread.currentThread().isInterrupted());
+		});
+		t.start();
+		while (t.getState() != Thread.State.WAITING) {
+			Thread.sleep(10);
+		}
+		t.interrupt();
+		t.join(TimeUnit.SECONDS.toMillis(10));
+
+		assertEquals(1, this.errors.size());
+		assertThat(this.errors.get(0).getCause(), instanceOf(InterruptedException.class));
+		assertTrue(interruptKept.get());
+		assertEquals(0, undertest.pendingCount());
+	}
+
+	private void runAll() {
+		while (this.submitted.size() > 0) {
+			this.submitted.remove(0).run();
+		}
+	}
+
+	private ExecutorService collectingExecutor() {
+		final ExecutorService ex = mock(ExecutorService.class);
+		doAnswer(inv -> {
+			this.submitted.add(inv.getArgument(0, Runnable.class));
+			return null;
+		}).when(ex).execute(any(Runnable.class));
+		return ex;
+	}
+
+	private File makeFile(final String name, final String content) throws IOException {
+		final File f = this.tmp.newFile(name);
+		FileUtils.writeStringToFile(f, content, "UTF-8");
+		return f;
+	}
+
+}
@@ -14,6 +14,7 @@ import java.sql.SQLException;
 import java.util.Collection;
 import java.util.List;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -36,11 +37,28 @@ public class MediaDbTest {
 		this.undertest = new MediaDb(this.dbFile);
 	}
 
+	@After
+	public void after () throws Exception {
+		this.undertest.close();
+	}
+
 	@Test
 	public void itDoesNotErrorOnEmptyTransaction() throws Exception {
 		this.undertest.getWritable().close();
 	}
 
+	@Test(expected = SQLException.class)
+	public void itClosesReadPool() throws Exception {
+		this.undertest.close();
+		this.undertest.getReadConnection();
+	}
+
+	@Test(expected = SQLException.class)
+	public void itClosesWritePool() throws Exception {
+		this.undertest.close();
+		this.undertest.getWritable();
+	}
+
 	@Test
 	public void itStoresFileData() throws Exception {
 		final File file = new File("/media/foo.wav");
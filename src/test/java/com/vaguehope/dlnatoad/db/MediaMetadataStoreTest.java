@@ -1,6 +1,7 @@
 package com.vaguehope.dlnatoad.db;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
@@ -10,9 +11,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.File;
@@ -20,7 +26,11 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -34,6 +44,7 @@ import org.mockito.ArgumentCaptor;
 
 import com.vaguehope.dlnatoad.FakeScheduledExecutorService;
 import com.vaguehope.dlnatoad.media.StoringMediaIdCallback;
+import com.vaguehope.dlnatoad.util.HashHelper;
 
 public class MediaMetadataStoreTest {
 
@@ -370,6 +381,131 @@ public class MediaMetadataStoreTest {
 		assertEquals(12345678901234L, this.undertest.readFileInfo(id, f1).getDurationMillis());
 	}
 
+	@Test
+	public void itGivesProvisionalIdToBigFilesAndKeepsItOnceFullyHashed() throws Exception {
+		this.undertest.setQuickHashMinFileSize(0);
+		final File f1 = mockMediaFile("media-1.ext");
+		final IdChangeCallback cb = new IdChangeCallback();
+		this.undertest.idForFile(f1, BigInteger.ZERO, cb);
+		final String id1 = cb.getMediaId();
+		assertNull(cb.changedId);
+
+		final FileData fd = getFileData(f1);
+		assertFalse(fd.isProvisional());
+		assertEquals(HashHelper.sha1(f1).toString(16), fd.getHash());
+		assertEquals(HashHelper.md5(f1).toString(16), fd.getMd5());
+		assertEquals(id1, fd.getId());
+		assertEquals(id1, this.undertest.getMediaDb().canonicalIdForHash(fd.getHash()));
+		assertEquals(id1, callIdForFile(f1));
+	}
+
+	@Test
+	public void itMergesProvisionalIdIntoMovedFilesIdOnceFullyHashed() throws Exception {
+		final File f1 = mockMediaFile("media-1.ext");
+		final String id1 = callIdForFile(f1);
+
+		this.undertest.setQuickHashMinFileSize(0);
+		final File f2 = new File(this.tmp.getRoot(), "media-01.ext");
+		assertTrue(f1.renameTo(f2));
+		final IdChangeCallback cb = new IdChangeCallback();
+		this.undertest.idForFile(f2, BigInteger.ZERO, cb);
+		final String provisionalId = cb.getMediaId();
+		assertNotEquals(id1, provisionalId);
+		assertEquals(id1, cb.changedId);
+
+		assertEquals(id1, getFileData(f2).getId());
+		assertNull(getFileData(f1));
+		assertEquals(id1, callIdForFile(f2));
+		assertEquals(id1, cb.changedId);
+	}
+
+	@Test
+	public void itMovesTagsFromProvisionalIdOnceFullyHashed() throws Exception {
+		final File f1 = mockMediaFile("media-1.ext");
+		final String id1 = callIdForFile(f1);
+
+		final List<Runnable> hashJobs = new ArrayList<>();
+		final ExecutorService fsEx = mock(ExecutorService.class);
+		doAnswer(inv -> hashJobs.add(inv.getArgument(0, Runnable.class))).when(fsEx).execute(any(Runnable.class));
+		this.undertest = new MediaMetadataStore(this.undertest.getMediaDb(), this.fakeEx, fsEx, true);
+		this.undertest.setQuickHashMinFileSize(0);
+
+		final File f2 = new File(this.tmp.getRoot(), "media-01.ext");
+		assertTrue(f1.renameTo(f2));
+		final IdChangeCallback cb = new IdChangeCallback();
+		this.undertest.idForFile(f2, BigInteger.ZERO, cb);
+		hashJobs.remove(0).run();  // Quick hash only, the full hash is left queued.
+		final String provisionalId = cb.getMediaId();
+		assertNotEquals(id1, provisionalId);
+
+		try (final WritableMediaDb w = this.undertest.getMediaDb().getWritable()) {
+			w.addTag(provisionalId, "my-tag", 1234567890123L);
+		}
+
+		while (hashJobs.size() > 0) {
+			hashJobs.remove(0).run();
+		}
+		assertEquals(id1, cb.changedId);
+
+		final MediaDb db = this.undertest.getMediaDb();
+		assertThat(db.getTags(provisionalId, true, true), empty());
+		assertEquals("my-tag", db.getTags(id1, true, false).iterator().next().getTag());
+		assertEquals(Arrays.asList(id1), db.getTagIndex().idsFor(db.getTagIndex().filesWithTag("my-tag")));
+	}
+
+	@Test
+	public void itChangesToSameIdForIdenticalFilesOnceFullyHashed() throws Exception {
+		this.undertest.setQuickHashMinFileSize(0);
+		final File f1 = mockMediaFile("media-1.ext");
+		final File f2 = this.tmp.newFile("media-2.ext");
+		FileUtils.copyFile(f1, f2, false);
+		final IdChangeCallback cb1 = new IdChangeCallback();
+		this.undertest.idForFile(f1, BigInteger.ZERO, cb1);
+		final IdChangeCallback cb2 = new IdChangeCallback();
+		this.undertest.idForFile(f2, BigInteger.ZERO, cb2);
+
+		final String id1 = cb1.getMediaId();
+		assertNotEquals(id1, cb2.getMediaId());
+		assertNull(cb1.changedId);
+		assertEquals(id1, cb2.changedId);
+		assertFalse(getFileData(f2).isProvisional());
+	}
+
+	@Test
+	public void itUsesStatSnapshotForUnchangedFilesWithoutQueueing() throws Exception {
+		final File f1 = mockMediaFile("media-1.mp4");
+		final File f2 = mockMediaFile("media-2.mp4");
+		final File f3 = mockMediaFile("media-3.mp4");
+		final String id1 = callIdForFile(f1);
+		final String id2 = callIdForFile(f2);
+		final String id3 = callIdForFile(f3);
+
+		this.undertest.loadStatSnapshot();
+		fillFile(f2);
+		clearInvocations(this.fakeEx);
+
+		assertEquals(id1, callIdForFile(f1));
+		verify(this.fakeEx, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+		assertEquals(id2, callIdForFile(f2));
+		assertEquals(id3, callIdForFile(f3, BigInteger.ONE));
+		verify(this.fakeEx, times(2)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+		assertEquals(BigInteger.ONE, this.undertest.getMediaDb().readFileAuth(f3));
+
+		this.undertest.discardStatSnapshot();
+		assertEquals(id1, callIdForFile(f1));
+		verify(this.fakeEx, times(3)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+	}
+
+	private static class IdChangeCallback extends StoringMediaIdCallback {
+		volatile String changedId;
+
+		@Override
+		public void onIdChanged(final String newMediaId) {
+			this.changedId = newMediaId;
+		}
+	}
+
 	private File mockMediaFile (final String name) throws IOException {
 		final File f = this.tmp.newFile(name);
 		fillFile(f);
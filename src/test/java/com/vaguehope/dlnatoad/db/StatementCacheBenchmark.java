@@ -0,0 +1,98 @@
+package com.vaguehope.dlnatoad.db;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares preparing the file lookup query on every call against reusing it from a StatementCache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatementCacheBenchmark {
+
+	private static final int FILE_COUNT = 100000;
+	private static final String SQL = "SELECT size, modified, hash, md5, mimetype, id, auth, missing FROM files WHERE file=?;";
+
+	private MediaDb db;
+	private PooledConnection conn;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this.db = new InMemoryMediaDb();
+		try (final WritableMediaDb w = this.db.getWritable()) {
+			for (int i = 0; i < FILE_COUNT; i++) {
+				final String id = "id" + i;
+				w.storeFileData(fileForIndex(i), new FileData(i, i, "hash" + i, "md5" + i, "video/mp4", id, BigInteger.ZERO, false));
+				w.storeCanonicalId("hash" + i, id);
+			}
+		}
+		this.conn = this.db.getReadConnection();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.conn.close();
+	}
+
+	@Benchmark
+	public String prepareEachCall() throws SQLException {
+		try (final PreparedStatement st = this.conn.getConnection().prepareStatement(SQL)) {
+			return readId(st);
+		}
+	}
+
+	@Benchmark
+	public String cachedStatement() throws SQLException {
+		return readId(this.conn.prepare(SQL));
+	}
+
+	@Benchmark
+	public FileData readFileDataFromConn() throws SQLException {
+		return MediaDb.readFileDataFromConn(this.conn.getStatements(), randomFile());
+	}
+
+	private static String readId(final PreparedStatement st) throws SQLException {
+		st.setString(1, randomFile().getAbsolutePath());
+		st.setMaxRows(2);
+		try (final ResultSet rs = st.executeQuery()) {
+			return rs.next() ? rs.getString(6) : null;
+		}
+	}
+
+	private static File randomFile() {
+		return fileForIndex(ThreadLocalRandom.current().nextInt(FILE_COUNT));
+	}
+
+	private static File fileForIndex(final int i) {
+		return new File(String.format("/media/dir%03d/file%07d.mp4", i % 1000, i));
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(StatementCacheBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
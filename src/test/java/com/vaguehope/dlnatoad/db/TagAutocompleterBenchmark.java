@@ -0,0 +1,93 @@
+package com.vaguehope.dlnatoad.db;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Suggestion latency percentiles against a million distinct tags, and the cost of a count change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TagAutocompleterBenchmark {
+
+	private static final int TAG_COUNT = 1000000;
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz_";
+
+	private TagAutocompleter undertest;
+	private String[] tags;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		final Random rnd = new Random(42);
+		final Set<String> distinct = new HashSet<>();
+		while (distinct.size() < TAG_COUNT) {
+			distinct.add(randomString(rnd, 4 + rnd.nextInt(16)));
+		}
+		this.tags = distinct.toArray(new String[distinct.size()]);
+
+		final List<TagFrequency> freqs = new ArrayList<>(TAG_COUNT);
+		for (final String tag : this.tags) {
+			freqs.add(new TagFrequency(tag, 1 + (int) (1000 * Math.pow(rnd.nextDouble(), 8))));
+		}
+		this.undertest = new TagAutocompleter(null, null);
+		this.undertest.generateIndex(freqs);
+	}
+
+	private static String randomString(final Random rnd, final int length) {
+		final StringBuilder s = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			s.append(ALPHABET.charAt(rnd.nextInt(ALPHABET.length())));
+		}
+		return s.toString();
+	}
+
+	private String randomPrefix() {
+		final ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		final String tag = this.tags[rnd.nextInt(this.tags.length)];
+		return tag.substring(0, 1 + rnd.nextInt(3));
+	}
+
+	@Benchmark
+	public List<TagFrequency> suggestTags() {
+		return this.undertest.suggestTags(randomPrefix());
+	}
+
+	@Benchmark
+	public List<TagFrequency> suggestFragments() {
+		return this.undertest.suggestFragments(randomPrefix());
+	}
+
+	@Benchmark
+	public void changeTagCount() {
+		final ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		this.undertest.applyTagCountChange(this.tags[rnd.nextInt(this.tags.length)], rnd.nextBoolean() ? 1 : -1);
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(TagAutocompleterBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
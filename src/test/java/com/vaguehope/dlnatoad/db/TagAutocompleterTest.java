@@ -23,7 +23,6 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import com.vaguehope.dlnatoad.db.MockMediaMetadataStore.Batch;
-import com.vaguehope.dlnatoad.db.TagAutocompleter.FragmentAndTag;
 
 public class TagAutocompleterTest {
 
@@ -54,14 +53,8 @@ public class TagAutocompleterTest {
 
 	@Test
 	public void itMakesFragments() throws Exception {
-		final List<FragmentAndTag> actual = TagAutocompleter.makeFragments("foobar", "foobar", 10);
-		assertThat(actual, contains(
-				new FragmentAndTag("oobar", "foobar", 10),
-				new FragmentAndTag("obar", "foobar", 10),
-				new FragmentAndTag("bar", "foobar", 10),
-				new FragmentAndTag("ar", "foobar", 10),
-				new FragmentAndTag("r", "foobar", 10)
-				));
+		assertThat(TagAutocompleter.makeFragments("foobar"), contains("oobar", "obar", "bar", "ar", "r"));
+		assertThat(TagAutocompleter.makeFragments("foo bar"), contains("oo bar", "o bar", "bar", "ar", "r"));
 	}
 
 	@Test
@@ -105,7 +98,13 @@ public class TagAutocompleterTest {
 				new TagFrequency("dooob", 6),
 				new TagFrequency("eooob", 6),
 				new TagFrequency("fooob", 6),
-				new TagFrequency("gooob", 6)
+				new TagFrequency("gooob", 6),
+				new TagFrequency("aooc", 5),
+				new TagFrequency("booc", 5),
+				new TagFrequency("cooc", 5),
+				new TagFrequency("dooc", 5),
+				new TagFrequency("eooc", 5),
+				new TagFrequency("fooc", 5)
 				), actual);
 	}
 
@@ -161,12 +160,12 @@ public class TagAutocompleterTest {
 		// insert but prefix is an existing entry.
 		this.undertest.addOrIncrementTag("fff");
 		assertEquals(Arrays.asList(new TagFrequency("fff", 1)), this.undertest.suggestTags("fff"));
-		assertEquals(Arrays.asList(new TagFrequency("ff", 2)), this.undertest.suggestFragments("f"));
+		assertEquals(Arrays.asList(new TagFrequency("ff", 2), new TagFrequency("fff", 1)), this.undertest.suggestFragments("f"));
 
 		// insert at end.
 		this.undertest.addOrIncrementTag("zzz");
 		assertEquals(Arrays.asList(new TagFrequency("zzz", 1)), this.undertest.suggestTags("zzz"));
-		assertEquals(Arrays.asList(new TagFrequency("zz", 1)), this.undertest.suggestFragments("z"));
+		assertEquals(Arrays.asList(new TagFrequency("zz", 1), new TagFrequency("zzz", 1)), this.undertest.suggestFragments("z"));
 
 		// more complex, importantly "23" is repeated creating 2 fragments with the same prefix.
 		assertEquals(Arrays.asList(new TagFrequency("123923", 1)), this.undertest.suggestFragments("9"));
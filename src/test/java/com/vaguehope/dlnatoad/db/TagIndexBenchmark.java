@@ -0,0 +1,101 @@
+package com.vaguehope.dlnatoad.db;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.vaguehope.dlnatoad.db.search.DbSearchParser;
+import com.vaguehope.dlnatoad.db.search.DbSearchParser.DbSearch;
+import com.vaguehope.dlnatoad.db.search.SortOrder;
+
+/**
+ * Compares tag only searches answered by the per term SQL subqueries against the TagIndex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TagIndexBenchmark {
+
+	private static final int FILE_COUNT = 100000;
+	private static final int TAG_COUNT = 2000;
+	private static final int TAGS_PER_FILE = 5;
+	private static final int PAGE_SIZE = 500;  // Same as SearchServlet.MAX_RESULTS.
+
+	@Param({
+		"t=tag1 t=tag2",
+		"( t=tag1 OR t=tag3 ) -t=tag2",
+		"t~^tag12",
+	})
+	public String query;
+
+	private MediaDb indexedDb;
+	private MediaDb sqlOnlyDb;
+	private DbSearch search;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this.indexedDb = new InMemoryMediaDb();
+		this.sqlOnlyDb = new InMemoryMediaDb() {
+			@Override
+			public TagIndex getTagIndex() {
+				return null;
+			}
+		};
+		fill(this.indexedDb);
+		fill(this.sqlOnlyDb);
+		this.search = DbSearchParser.parseSearch(this.query, null, SortOrder.MODIFIED.desc());
+	}
+
+	private static void fill(final MediaDb db) throws Exception {
+		final Random rnd = new Random(42);
+		try (final WritableMediaDb w = db.getWritable()) {
+			for (int i = 0; i < FILE_COUNT; i++) {
+				final String id = "id" + i;
+				final File file = new File(String.format("/media/dir%03d/file%07d.jpg", i % 1000, i));
+				w.storeFileData(file, new FileData(i, i, "hash" + i, "md5" + i, "image/jpeg", id, BigInteger.ZERO, false));
+				w.storeCanonicalId("hash" + i, id);
+				for (int t = 0; t < TAGS_PER_FILE; t++) {
+					// Skewed towards low numbers so some tags are common and most are rare.
+					final int tag = (int) (TAG_COUNT * Math.pow(rnd.nextDouble(), 3));
+					w.addTag(id, "tag" + tag, i);
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public List<String> sql() throws SQLException {
+		return this.search.execute(this.sqlOnlyDb, PAGE_SIZE, 0);
+	}
+
+	@Benchmark
+	public List<String> tagIndex() throws SQLException {
+		return this.search.execute(this.indexedDb, PAGE_SIZE, 0);
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(TagIndexBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.vaguehope.dlnatoad.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaguehope.dlnatoad.util.CompressedBitmap;
+
+public class TagIndexTest {
+
+	private MediaDb db;
+
+	@Before
+	public void before() throws Exception {
+		this.db = new InMemoryMediaDb();
+	}
+
+	@Test
+	public void itIndexesAddedTagsIgnoringCase() throws Exception {
+		try (final WritableMediaDb w = this.db.getWritable()) {
+			w.addTag("id1", "Foo", 1L);
+			w.addTag("id2", "foo", "cls", 1L);
+			w.addTag("id2", "bar", 1L);
+		}
+
+		final TagIndex undertest = this.db.getTagIndex();
+		assertThat(ids(undertest.filesWithTag("FOO")), containsInAnyOrder("id1", "id2"));
+		assertThat(ids(undertest.filesWithTag("bar")), contains("id2"));
+		assertThat(ids(undertest.filesWithTagMatching("o", false, false)), containsInAnyOrder("id1", "id2"));
+		assertThat(ids(undertest.filesWithTagMatching("b", true, false)), contains("id2"));
+		assertThat(ids(undertest.filesWithTagMatching("b", false, true)), empty());
+	}
+
+	@Test
+	public void itRemovesDeletedTags() throws Exception {
+		try (final WritableMediaDb w = this.db.getWritable()) {
+			w.addTag("id1", "foo", 1L);
+			w.addTag("id1", "foo", "cls", 1L);
+		}
+		try (final WritableMediaDb w = this.db.getWritable()) {
+			w.setTagModifiedAndDeleted("id1", "foo", "", true, 2L);
+		}
+		assertThat(ids(this.db.getTagIndex().filesWithTag("foo")), contains("id1"));  // Still has cls variant.
+
+		try (final WritableMediaDb w = this.db.getWritable()) {
+			w.setTagModifiedAndDeleted("id1", "foo", "CLS", true, 2L);
+		}
+		assertThat(ids(this.db.getTagIndex().filesWithTag("foo")), empty());
+		assertEquals(0, this.db.getTagIndex().tagCount());
+	}
+
+	@Test
+	public void itDoesNotIndexTagsInsertedAsDeleted() throws Exception {
+		try (final WritableMediaDb w = this.db.getWritable()) {
+			w.mergeTag("id1", "foo", "", 1L, true);
+		}
+		assertThat(ids(this.db.getTagIndex().filesWithTag("foo")), empty());
+	}
+
+	@Test
+	public void itLoadsExistingTags() throws Exception {
+		try (final WritableMediaDb w = this.db.getWritable()) {
+			w.addTag("id1", "foo", 1L);
+			w.mergeTag("id2", "foo", "", 1L, true);
+		}
+		final TagIndex undertest = new TagIndex();
+		try (final PooledConnection c = this.db.getReadConnection()) {
+			undertest.load(c.getConnection());
+		}
+		assertThat(ids(undertest, undertest.filesWithTag("foo")), contains("id1"));
+	}
+
+	private List<String> ids(final CompressedBitmap files) {
+		return ids(this.db.getTagIndex(), files);
+	}
+
+	private static List<String> ids(final TagIndex index, final CompressedBitmap files) {
+		return index.idsFor(files);
+	}
+
+}
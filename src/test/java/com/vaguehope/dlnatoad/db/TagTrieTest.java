@@ -0,0 +1,122 @@
+package com.vaguehope.dlnatoad.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vaguehope.dlnatoad.db.TagTrie.TagCount;
+
+public class TagTrieTest {
+
+	@Test
+	public void itSuggestsByPrefixAcrossSplitNodes() throws Exception {
+		final TagTrie undertest = new TagTrie(2);
+		final TagCount foo = new TagCount("foo", 1);
+		final TagCount foobar = new TagCount("foobar", 3);
+		final TagCount fob = new TagCount("fob", 2);
+		undertest.add("foo", foo);
+		undertest.add("foobar", foobar);
+		undertest.add("fob", fob);
+
+		assertEquals(Arrays.asList(new TagFrequency("foobar", 3), new TagFrequency("fob", 2)), undertest.suggest("f"));
+		assertEquals(Arrays.asList(new TagFrequency("foobar", 3), new TagFrequency("foo", 1)), undertest.suggest("foo"));
+		assertEquals(Arrays.asList(new TagFrequency("foobar", 3)), undertest.suggest("foob"));
+		assertThat(undertest.suggest("fooc"), empty());
+		assertThat(undertest.suggest("x"), empty());
+		assertEquals(3, undertest.keyCount());
+	}
+
+	@Test
+	public void itRefillsFullTopListWhenCountDrops() throws Exception {
+		final TagTrie undertest = new TagTrie(2);
+		final TagCount a = new TagCount("aa", 5);
+		final TagCount b = new TagCount("ab", 4);
+		final TagCount c = new TagCount("ac", 3);
+		undertest.add("aa", a);
+		undertest.add("ab", b);
+		undertest.add("ac", c);
+		assertEquals(Arrays.asList(new TagFrequency("aa", 5), new TagFrequency("ab", 4)), undertest.suggest("a"));
+
+		a.count = 1;
+		undertest.countChanged("aa", a, false);
+		assertEquals(Arrays.asList(new TagFrequency("ab", 4), new TagFrequency("ac", 3)), undertest.suggest("a"));
+
+		a.count = 10;
+		undertest.countChanged("aa", a, true);
+		assertEquals(Arrays.asList(new TagFrequency("aa", 10), new TagFrequency("ab", 4)), undertest.suggest("a"));
+	}
+
+	@Test
+	public void itMatchesBruteForceAfterRandomChanges() throws Exception {
+		final Random rnd = new Random(1234);
+		final int topSize = 5;
+		final Map<String, TagCount> counts = new HashMap<>();
+		final TagTrie bulk = new TagTrie(topSize);
+		for (int i = 0; i < 300; i++) {
+			final String tag = randomKey(rnd);
+			if (counts.containsKey(tag)) continue;
+			final TagCount c = new TagCount(tag, rnd.nextInt(20));
+			counts.put(tag, c);
+			bulk.putWithoutTops(tag, c);
+		}
+		bulk.rebuildTops();
+
+		final TagTrie incremental = new TagTrie(topSize);
+		final Map<String, TagCount> incCounts = new HashMap<>();
+		for (final TagCount c : counts.values()) {
+			final TagCount copy = new TagCount(c.tag, c.count);
+			incCounts.put(c.tag, copy);
+			incremental.add(c.tag, copy);
+		}
+
+		final List<String> tags = new ArrayList<>(counts.keySet());
+		for (int i = 0; i < 2000; i++) {
+			final String tag = tags.get(rnd.nextInt(tags.size()));
+			final int delta = rnd.nextInt(11) - 5;
+			for (final Map<String, TagCount> m : Arrays.asList(counts, incCounts)) {
+				final TagCount c = m.get(tag);
+				final int old = c.count;
+				c.count = Math.max(old + delta, 0);
+				if (c.count == old) continue;
+				(m == counts ? bulk : incremental).countChanged(tag, c, c.count > old);
+			}
+
+			final String prefix = randomKey(rnd).substring(0, 1 + rnd.nextInt(2));
+			final List<TagFrequency> expected = bruteForce(counts, prefix, topSize);
+			assertEquals(expected, bulk.suggest(prefix));
+			assertEquals(expected, incremental.suggest(prefix));
+		}
+	}
+
+	private static String randomKey(final Random rnd) {
+		final int len = 2 + rnd.nextInt(4);
+		final StringBuilder s = new StringBuilder();
+		for (int i = 0; i < len; i++) {
+			s.append((char) ('a' + rnd.nextInt(4)));
+		}
+		return s.toString();
+	}
+
+	private static List<TagFrequency> bruteForce(final Map<String, TagCount> counts, final String prefix, final int topSize) {
+		final List<TagCount> matches = new ArrayList<>();
+		for (final TagCount c : counts.values()) {
+			if (c.tag.startsWith(prefix)) matches.add(c);
+		}
+		matches.sort(TagCount.Order.COUNT_DESC);
+		final List<TagFrequency> ret = new ArrayList<>();
+		for (int i = 0; i < matches.size() && i < topSize; i++) {
+			ret.add(new TagFrequency(matches.get(i).tag, matches.get(i).count));
+		}
+		return ret;
+	}
+
+}
@@ -3,8 +3,12 @@ package com.vaguehope.dlnatoad.db.search;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
 
 import java.math.BigInteger;
 import java.sql.SQLException;
@@ -52,6 +56,20 @@ public class DbSearchParserTest {
 				"hello");
 	}
 
+	@Test
+	public void itBindsAuthIdsAsParameters() throws Exception {
+		final DbSearch a = DbSearchParser.parseSearch("t=foo", ImmutableSet.of(BigInteger.valueOf(0x1234L), BigInteger.valueOf(0x5678L)), SortOrder.FILE.asc());
+		final DbSearch b = DbSearchParser.parseSearch("t=bar", ImmutableSet.of(BigInteger.valueOf(0xabcdL), BigInteger.valueOf(0xef01L)), SortOrder.FILE.asc());
+		assertEquals(
+				"SELECT DISTINCT id FROM files INNER JOIN hashes USING (id) WHERE" +
+				" missing=0" +
+				" AND auth IN ('0',?,?)" +
+				" AND (  (id IN (SELECT file_id FROM tags WHERE tag LIKE ? ESCAPE ? AND deleted=0)) ) " +
+				" ORDER BY file COLLATE NOCASE ASC",
+				a.getSql());
+		assertSame(a.getSql(), b.getSql());
+	}
+
 	@Test
 	public void itSearchesWithSingleTermQuery() throws Exception {
 		final String id = this.mockMediaMetadataStore.addFileWithTags("hello", "how", "are", "you");
@@ -75,6 +93,86 @@ public class DbSearchParserTest {
 		assertThat(page1, contains(ids.subList(50, 60).toArray(new String[] {})));
 	}
 
+	@Test
+	public void itPagesSearchResultsWithCursors() throws Exception {
+		final List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 60; i++) {
+			ids.add(this.mockMediaMetadataStore.addFileWithNameAndTags(String.format("file%07d", i), "thing" + i));
+		}
+
+		final DbSearch parsed = DbSearchParser.parseSearch("t~^thing", null, SortOrder.FILE.asc());
+
+		final List<SearchCursor> page0 = parsed.executeAfter(this.mediaDb, 25, null);
+		assertThat(cursorIds(page0), contains(ids.subList(0, 25).toArray(new String[] {})));
+
+		final SearchCursor after = SearchCursor.parse(page0.get(24).toToken());
+		final List<SearchCursor> page1 = parsed.executeAfter(this.mediaDb, 25, after);
+		assertThat(cursorIds(page1), contains(ids.subList(25, 50).toArray(new String[] {})));
+
+		final List<SearchCursor> page2 = parsed.executeAfter(this.mediaDb, 25, page1.get(24));
+		assertThat(cursorIds(page2), contains(ids.subList(50, 60).toArray(new String[] {})));
+
+		final List<SearchCursor> before = parsed.executeBefore(this.mediaDb, 5, page1.get(0));
+		assertThat(cursorIds(before), contains(ids.subList(20, 25).toArray(new String[] {})));
+	}
+
+	@Test
+	public void itPagesWithCursorsInDescendingOrderAndBreaksTiesById() throws Exception {
+		final List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			ids.add(this.mockMediaMetadataStore.addFileWithNameAndTags(String.format("file%07d", i), "thing"));
+		}
+
+		final DbSearch parsed = DbSearchParser.parseSearch("t=thing", null, SortOrder.MODIFIED.desc());
+		final List<SearchCursor> all = parsed.executeAfter(this.mediaDb, 100, null);
+		assertThat(cursorIds(all), containsInAnyOrder(ids.toArray(new String[] {})));
+
+		final List<String> paged = new ArrayList<>();
+		SearchCursor cursor = null;
+		while (true) {
+			final List<SearchCursor> page = parsed.executeAfter(this.mediaDb, 3, cursor);
+			if (page.isEmpty()) break;
+			paged.addAll(cursorIds(page));
+			cursor = page.get(page.size() - 1);
+		}
+		assertEquals(cursorIds(all), paged);
+
+		assertEquals(all.subList(3, 7), parsed.executeBefore(this.mediaDb, 4, all.get(7)));
+	}
+
+	@Test
+	public void itAnswersTagOnlySearchesFromIndexTheSameAsSql() throws Exception {
+		final String ab = this.mockMediaMetadataStore.addFileWithTags("alpha", "Beta");
+		final String bc = this.mockMediaMetadataStore.addFileWithTags("beta", "gamma");
+		final String c = this.mockMediaMetadataStore.addFileWithTags("gamma");
+		this.mockMediaMetadataStore.addFileWithTags();
+		final MediaDb sqlOnly = spy(this.mediaDb);
+		doReturn(null).when(sqlOnly).getTagIndex();
+
+		final String[] queries = new String[] {
+				"t=alpha t=beta",
+				"t=alpha OR t=gamma",
+				"t=alpha OR t=beta t=gamma",
+				"( t=alpha OR t=beta ) t=gamma",
+				"-t=beta",
+				"-t=alpha -t=gamma",
+				"-t=alpha OR -t=beta",
+				"t=beta OR -t=gamma",
+				"t~^gam",
+				"t~ta$",
+				"-t~et",
+				"t=gamma AND ( -t=beta OR t=alpha",
+		};
+		for (final String q : queries) {
+			final DbSearch parsed = DbSearchParser.parseSearch(q, null, SortOrder.FILE.asc());
+			assertThat(q, DbSearchParser.matchWithIndex(this.mediaDb.getTagIndex(), parsed.getTerms(), TermType.classify(parsed.getTerms())), notNullValue());
+			assertThat(q, parsed.execute(this.mediaDb), containsInAnyOrder(parsed.execute(sqlOnly).toArray()));
+		}
+
+		runQuery("t=alpha OR t=gamma", ab, bc, c);
+		runQuery("t~^gam", bc, c);
+	}
+
 	@Test
 	public void itSeachesMatchingAuth() throws Exception {
 		final String noauth = this.mockMediaMetadataStore.addFileWithAuthAndTags(BigInteger.ZERO, "hello");
@@ -578,6 +676,14 @@ public class DbSearchParserTest {
 
 // Template tests.
 
+	private static List<String> cursorIds(final List<SearchCursor> cursors) {
+		final List<String> ret = new ArrayList<>();
+		for (final SearchCursor c : cursors) {
+			ret.add(c.getId());
+		}
+		return ret;
+	}
+
 	private static void runParser(final String input, final String expectedSql, final String... expectedTerms) {
 		final DbSearch parsed = DbSearchParser.parseSearch(input, null, SortOrder.FILE.asc());
 		if (expectedSql != null) assertEquals(expectedSql, parsed.getSql());
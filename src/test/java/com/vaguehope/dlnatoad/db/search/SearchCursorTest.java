@@ -0,0 +1,39 @@
+package com.vaguehope.dlnatoad.db.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SearchCursorTest {
+
+	@Test
+	public void itRoundTripsNumberKeys() throws Exception {
+		final SearchCursor c = new SearchCursor("some-id", 1234567890123L);
+		assertEquals(c, SearchCursor.parse(c.toToken()));
+	}
+
+	@Test
+	public void itRoundTripsStringKeys() throws Exception {
+		final SearchCursor c = new SearchCursor("some.id", "/media/some dir/file & ?.mp4");
+		final String token = c.toToken();
+		assertTrue(token, token.matches("[A-Za-z0-9_.-]+"));
+		assertEquals(c, SearchCursor.parse(token));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itRejectsPlainOffsets() throws Exception {
+		SearchCursor.parse("500");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itRejectsInvalidNumbers() throws Exception {
+		SearchCursor.parse("nabc.Zm9v");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itRejectsMissingId() throws Exception {
+		SearchCursor.parse("n123.");
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.vaguehope.dlnatoad.dlnaserver;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jupnp.support.model.BrowseFlag;
+import org.jupnp.support.model.BrowseResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.vaguehope.dlnatoad.media.ContentItem;
+import com.vaguehope.dlnatoad.media.ContentNode;
+import com.vaguehope.dlnatoad.media.ContentTree;
+import com.vaguehope.dlnatoad.media.ExternalUrls;
+import com.vaguehope.dlnatoad.media.MediaFormat;
+
+/**
+ * A TV paging through one huge directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentDirectoryServiceBenchmark {
+
+	@Param({ "5000", "30000" })
+	public int itemCount;
+
+	@Param({ "20", "200" })
+	public int pageSize;
+
+	private ContentDirectoryService undertest;
+	private String dirId;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		final Random rnd = new Random(42);
+		final ContentTree tree = new ContentTree(false);
+		final File dir = new File("/media/dir");
+		final ContentNode node = new ContentNode("dir", tree.getRootNode().getId(), dir.getName(), dir, "dir", null, null);
+		tree.addNode(node);
+		tree.getRootNode().addNodeIfAbsent(node);
+		for (int i = 0; i < this.itemCount; i++) {
+			final String title = String.format("VID_%08d.mp4", rnd.nextInt(100000000));
+			final ContentItem item = new ContentItem("id" + i, node.getId(), title, new File(dir, title), MediaFormat.MP4);
+			tree.addItem(item);
+			node.addItemIfAbsent(item);
+		}
+		this.dirId = node.getId();
+		this.undertest = new ContentDirectoryService(tree, new NodeConverter(new ExternalUrls("http://192.168.1.2:8192")), new SearchEngine(tree), false);
+	}
+
+	@Benchmark
+	public BrowseResult browseMiddlePage() throws Exception {
+		return this.undertest.browse(this.dirId, BrowseFlag.DIRECT_CHILDREN, "*", this.itemCount / 2, this.pageSize, null);
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(ContentDirectoryServiceBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
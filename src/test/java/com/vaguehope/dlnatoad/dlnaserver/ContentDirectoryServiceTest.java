@@ -5,6 +5,8 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -19,17 +21,21 @@ import org.jupnp.support.contentdirectory.DIDLParser;
 import org.jupnp.support.model.BrowseFlag;
 import org.jupnp.support.model.BrowseResult;
 import org.jupnp.support.model.DIDLContent;
+import org.jupnp.support.model.DIDLObject;
 import org.jupnp.support.model.container.Container;
 import org.jupnp.support.model.item.Item;
-import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 
+import com.vaguehope.dlnatoad.MetricAssert;
 import com.vaguehope.dlnatoad.media.ContentItem;
 import com.vaguehope.dlnatoad.media.ContentNode;
 import com.vaguehope.dlnatoad.media.ContentTree;
 import com.vaguehope.dlnatoad.media.ExternalUrls;
+import com.vaguehope.dlnatoad.media.MetadataReader.Metadata;
 import com.vaguehope.dlnatoad.media.MockContent;
 
+import io.prometheus.metrics.model.snapshots.Labels;
+
 public class ContentDirectoryServiceTest {
 
 	private static final String DIDL_XML = "didl xml";
@@ -63,7 +69,7 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 0, 0, null);
 
 		assertCorrectResult(ret, 6, 6);
-		assertParserMarshaled(dirs, items);
+		assertListed(ret, dirs, items);
 	}
 
 	@Test
@@ -75,7 +81,7 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 0, 10, null);
 
 		assertCorrectResult(ret, 6, 6);
-		assertParserMarshaled(dirs, items);
+		assertListed(ret, dirs, items);
 	}
 
 	@Test
@@ -87,7 +93,7 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 0, 20, null);
 
 		assertCorrectResult(ret, 6, 6);
-		assertParserMarshaled(dirs, items);
+		assertListed(ret, dirs, items);
 	}
 
 	@Test
@@ -97,7 +103,7 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 0, 3, null);
 
 		assertCorrectResult(ret, 3, 5);
-		assertParserMarshaled(dirs.subList(0, 3), null);
+		assertListed(ret, dirs.subList(0, 3), null);
 	}
 
 	@Test
@@ -107,7 +113,7 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 0, 3, null);
 
 		assertCorrectResult(ret, 3, 10);
-		assertParserMarshaled(null, items.subList(0, 3));
+		assertListed(ret, null, items.subList(0, 3));
 	}
 
 	@Test
@@ -118,7 +124,7 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 0, 10, null);
 
 		assertCorrectResult(ret, 10, 15);
-		assertParserMarshaled(dirs, items.subList(0, 5));
+		assertListed(ret, dirs, items.subList(0, 5));
 	}
 
 	@Test
@@ -129,7 +135,7 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 3, 3, null);
 
 		assertCorrectResult(ret, 3, 20);
-		assertParserMarshaled(dirs.subList(3, 6), null);
+		assertListed(ret, dirs.subList(3, 6), null);
 	}
 
 	@Test
@@ -140,7 +146,7 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 5, 10, null);
 
 		assertCorrectResult(ret, 10, 20);
-		assertParserMarshaled(dirs.subList(5, 10), items.subList(0, 5));
+		assertListed(ret, dirs.subList(5, 10), items.subList(0, 5));
 	}
 
 	@Test
@@ -151,7 +157,7 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 14, 2, null);
 
 		assertCorrectResult(ret, 2, 20);
-		assertParserMarshaled(null, items.subList(4, 6));
+		assertListed(ret, null, items.subList(4, 6));
 	}
 
 	@Test
@@ -162,7 +168,7 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 15, 5, null);
 
 		assertCorrectResult(ret, 5, 20);
-		assertParserMarshaled(null, items.subList(5, 10));
+		assertListed(ret, null, items.subList(5, 10));
 	}
 
 	@Test
@@ -173,7 +179,43 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.browse(rootDirs.get(0).getId(), BrowseFlag.DIRECT_CHILDREN, null, 0, 10, null);
 
 		assertCorrectResult(ret, 10, 15);
-		assertParserMarshaled(null, items.subList(0, 10));
+		assertListed(ret, null, items.subList(0, 10));
+	}
+
+	@Test
+	public void itListsWithoutBuildingADom () throws Exception {
+		final List<ContentNode> dirs = this.mockContent.givenMockDirs(10);
+		final List<ContentItem> items = this.mockContent.givenMockItems(100);
+
+		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 5, 60, null);
+
+		assertCorrectResult(ret, 60, 110);
+		assertListed(ret, dirs.subList(5, 10), items.subList(0, 55));
+		verify(this.didlParser, never()).generate(isA(DIDLContent.class));
+	}
+
+	@Test
+	public void itReusesItemDidlUntilItemChanges () throws Exception {
+		final ContentItem item = this.mockContent.givenMockItems(1).get(0);
+		final String rootId = this.contentTree.getRootNode().getId();
+
+		final String first = this.undertest.browse(rootId, BrowseFlag.DIRECT_CHILDREN, null, 0, 10, null).getResult();
+		assertEquals(first, this.undertest.browse(rootId, BrowseFlag.DIRECT_CHILDREN, null, 0, 10, null).getResult());
+
+		item.setMetadata(new Metadata("some artist", "some album"));
+		final DIDLContent changed = new DIDLParser().parse(this.undertest.browse(rootId, BrowseFlag.DIRECT_CHILDREN, null, 0, 10, null).getResult());
+		assertEquals("some album", changed.getItems().get(0).getFirstPropertyValue(DIDLObject.Property.UPNP.ALBUM.class));
+	}
+
+	@Test
+	public void itReturnsNothingWhenFirstResultIsPastTheEnd () throws Exception {
+		this.mockContent.givenMockDirs(3);
+		this.mockContent.givenMockItems(3);
+
+		final BrowseResult ret = this.undertest.browse(this.contentTree.getRootNode().getId(), BrowseFlag.DIRECT_CHILDREN, null, 10, 5, null);
+
+		assertCorrectResult(ret, 0, 6);
+		assertListed(ret, null, null);
 	}
 
 	@Test
@@ -185,7 +227,45 @@ public class ContentDirectoryServiceTest {
 		final BrowseResult ret = this.undertest.search(this.contentTree.getRootNode().getId(), "some search query", "*", 0, 3, null);
 
 		assertCorrectResult(ret, 1, 1);
-		assertParserMarshaled(null, items.subList(3, 4));
+		assertListed(ret, null, items.subList(3, 4));
+	}
+
+	@Test
+	public void itReturnsRequestedPageOfSearchResults () throws Exception {
+		final List<ContentItem> items = this.mockContent.givenMockItems(10);
+		when(this.searchEngine.search(eq(this.contentTree.getRootNode()), eq("some search query"), anyInt(), eq(null))).thenReturn(items);
+
+		final BrowseResult ret = this.undertest.search(this.contentTree.getRootNode().getId(), "some search query", "*", 3, 3, null);
+
+		assertCorrectResult(ret, 3, 10);
+		assertListed(ret, null, items.subList(3, 6));
+	}
+
+	@Test
+	public void itReusesSearchResultsForLaterPages () throws Exception {
+		final List<ContentItem> items = this.mockContent.givenMockItems(10);
+		when(this.searchEngine.search(eq(this.contentTree.getRootNode()), eq("some search query"), anyInt(), eq(null))).thenReturn(items);
+		final MetricAssert metrics = new MetricAssert();
+
+		assertCorrectResult(this.undertest.search(this.contentTree.getRootNode().getId(), "some search query", "*", 0, 4, null), 4, 10);
+		assertCorrectResult(this.undertest.search(this.contentTree.getRootNode().getId(), "some search query", "*", 4, 4, null), 4, 10);
+		assertCorrectResult(this.undertest.search(this.contentTree.getRootNode().getId(), "some search query", "*", 8, 4, null), 2, 10);
+
+		verify(this.searchEngine, times(1)).search(eq(this.contentTree.getRootNode()), eq("some search query"), anyInt(), eq(null));
+		metrics.assertCounter("dlna_search_result_cache", Labels.of("result", "miss"), 1);
+		metrics.assertCounter("dlna_search_result_cache", Labels.of("result", "hit"), 2);
+	}
+
+	@Test
+	public void itSearchesAgainWhenTreeChanges () throws Exception {
+		final List<ContentItem> items = this.mockContent.givenMockItems(10);
+		when(this.searchEngine.search(eq(this.contentTree.getRootNode()), eq("some search query"), anyInt(), eq(null))).thenReturn(items);
+
+		this.undertest.search(this.contentTree.getRootNode().getId(), "some search query", "*", 0, 4, null);
+		this.mockContent.givenMockItems(1);
+		this.undertest.search(this.contentTree.getRootNode().getId(), "some search query", "*", 4, 4, null);
+
+		verify(this.searchEngine, times(2)).search(eq(this.contentTree.getRootNode()), eq("some search query"), anyInt(), eq(null));
 	}
 
 //	- - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
@@ -199,14 +279,12 @@ public class ContentDirectoryServiceTest {
 	private static void assertCorrectResult (final BrowseResult ret, final long count, final long totalMatches) {
 		assertEquals(count, ret.getCountLong());
 		assertEquals(totalMatches, ret.getTotalMatchesLong());
-		assertEquals(DIDL_XML, ret.getResult());
 	}
 
-	private void assertParserMarshaled (final List<ContentNode> dirs, final List<ContentItem> items) throws Exception {
-		final ArgumentCaptor<DIDLContent> cap = ArgumentCaptor.forClass(DIDLContent.class);
-		verify(this.didlParser).generate(cap.capture());
-		assertEquals(MockContent.contentIds(dirs), containerIds(cap.getValue().getContainers()));
-		assertEquals(MockContent.contentIds(items), itemIds(cap.getValue().getItems()));
+	private static void assertListed (final BrowseResult ret, final List<ContentNode> dirs, final List<ContentItem> items) throws Exception {
+		final DIDLContent didl = new DIDLParser().parse(ret.getResult());
+		assertEquals(MockContent.contentIds(dirs), containerIds(didl.getContainers()));
+		assertEquals(MockContent.contentIds(items), itemIds(didl.getItems()));
 	}
 
 
@@ -1,6 +1,7 @@
 package com.vaguehope.dlnatoad.dlnaserver;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.junit.Assert.assertEquals;
@@ -9,11 +10,15 @@ import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.jupnp.support.contentdirectory.DIDLParser;
+import org.jupnp.support.model.DIDLContent;
 import org.jupnp.support.model.DIDLObject;
 import org.jupnp.support.model.DIDLObject.Property;
 import org.jupnp.support.model.PersonWithRole;
@@ -138,6 +143,69 @@ public class NodeConverterTest {
 		assertEquals("album", albumProp.getValue());
 	}
 
+	@Test
+	public void itGeneratesSameDidlAsDidlParser() throws Exception {
+		final File artFile = mock(File.class);
+		when(artFile.exists()).thenReturn(true);
+		when(artFile.length()).thenReturn(222L);
+		final ContentItem art = new ContentItem("art", "id-of-art-container", null, artFile, MediaFormat.JPEG);
+
+		final ContentNode dir = new ContentNode("dir", "pid", "Some & <odd> \"dir\"", null);
+		dir.setArt(art);
+		final ContentNode emptyDir = new ContentNode("empty", "pid", "\u00e9mpty\tdir", null);
+
+		final ContentItem song = new ContentItem("song", "dir", "It's a <song> & \"more\"", mock(File.class), MediaFormat.MP3);
+		song.setMetadata(new Metadata("Some & Artist", "<Album>"));
+		song.setDurationMillis(TimeUnit.MINUTES.toMillis(90));
+		song.setArt(art);
+		dir.addItemIfAbsent(song);
+
+		final ContentItem video = new ContentItem("video", "dir", "\u65e5\u672c video", mock(File.class), MediaFormat.MKV);
+		video.addAttachmentIfNotPresent(new ContentItem("subtitles", "dir", null, mock(File.class), MediaFormat.SRT));
+		video.setMetadata(new Metadata(null, "only album"));
+		final ContentItem image = new ContentItem("image", "dir", "image", mock(File.class), MediaFormat.PNG);
+
+		final List<ContentNode> nodes = Arrays.asList(dir, emptyDir);
+		final List<ContentItem> items = Arrays.asList(song, video, image);
+
+		final DIDLContent didl = new DIDLContent();
+		for (final ContentNode n : nodes) {
+			didl.addContainer(this.undertest.makeContainerWithoutSubContainers(n));
+		}
+		didl.setItems(this.undertest.makeItems(items));
+		assertEquals(new DIDLParser().generate(didl), this.undertest.generateDidl(nodes, items));
+
+		assertEquals(new DIDLParser().generate(new DIDLContent()), this.undertest.generateDidl(Collections.emptyList(), Collections.emptyList()));
+	}
+
+	@Test
+	public void itRegeneratesItemDidlWhenItsArtChanges() throws Exception {
+		final File artFile = mock(File.class);
+		when(artFile.exists()).thenReturn(true);
+		when(artFile.length()).thenReturn(222L);
+		final ContentItem art = new ContentItem("art", "id-of-art-container", null, artFile, MediaFormat.JPEG);
+		final ContentItem song = new ContentItem("song", "dir", "song", mock(File.class), MediaFormat.MP3);
+		song.setArt(art);
+		final List<ContentItem> items = Collections.singletonList(song);
+
+		final String before = this.undertest.generateDidl(Collections.emptyList(), items);
+		when(artFile.length()).thenReturn(333L);
+		art.reload();
+		final String after = this.undertest.generateDidl(Collections.emptyList(), items);
+
+		assertThat(before, containsString("size=\"222\""));
+		assertThat(after, containsString("size=\"333\""));
+	}
+
+	@Test
+	public void itDoesNotReuseItemDidlForOtherUrls() throws Exception {
+		final List<ContentItem> items = Collections.singletonList(new ContentItem("song", "dir", "song", mock(File.class), MediaFormat.MP3));
+		this.undertest.generateDidl(Collections.emptyList(), items);
+
+		final String other = new NodeConverter(new ExternalUrls("http://bar:456")).generateDidl(Collections.emptyList(), items);
+		assertThat(other, containsString("http://bar:456/c/song"));
+	}
+
 	@Test
 	public void itIgnoresNonPlayerableTypes() throws Exception {
 		final ContentNode node = new ContentNode("pid", "node", "title", null);
@@ -0,0 +1,101 @@
+package com.vaguehope.dlnatoad.dlnaserver;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.vaguehope.dlnatoad.media.ContentItem;
+import com.vaguehope.dlnatoad.media.ContentNode;
+import com.vaguehope.dlnatoad.media.ContentTree;
+import com.vaguehope.dlnatoad.media.MediaFormat;
+import com.vaguehope.dlnatoad.media.MetadataReader.Metadata;
+
+/**
+ * A renderer paging through search results over a 200k item library, so the same criteria is searched again and again.
+ * fresh is the cost when nothing is cached and the criteria has to be parsed again.
+ * indexed is the same search answered from the ContentItemIndex instead of walking the tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchEngineBenchmark {
+
+	private static final int DIRS = 2000;
+	private static final int ITEMS_PER_DIR = 100;
+	private static final int MAX_RESULTS = 500;
+
+	@Param({
+		"(upnp:class derivedfrom \"object.item.audioItem\" and (dc:creator contains \"Artist 42\" or upnp:artist contains \"Artist 42\"))",
+		"(upnp:class derivedfrom \"object.item.videoItem\" and dc:title contains \"Holiday 1999\")",
+	})
+	public String criteria;
+
+	private ContentTree tree;
+	private SearchEngine cached;
+	private SearchEngine indexed;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		final Random rnd = new Random(42);
+		this.tree = new ContentTree(false);
+		final ContentNode root = this.tree.getRootNode();
+		for (int d = 0; d < DIRS; d++) {
+			final File dir = new File("/media/dir" + d);
+			final ContentNode node = new ContentNode("d" + d, root.getId(), dir.getName(), dir, "dir" + d, null, null);
+			this.tree.addNode(node);
+			root.addNodeIfAbsent(node);
+			final boolean audio = d % 2 == 0;
+			final String artist = "Artist " + rnd.nextInt(1000);
+			for (int i = 0; i < ITEMS_PER_DIR; i++) {
+				final String title = audio
+						? String.format("%02d %s - Some Track Title %d.mp3", i, artist, rnd.nextInt(100000))
+						: String.format("VID_%d Holiday %d clip %d.mp4", rnd.nextInt(100000000), 1950 + rnd.nextInt(70), i);
+				final ContentItem item = new ContentItem("d" + d + "i" + i, node.getId(), title, new File(dir, title), audio ? MediaFormat.MP3 : MediaFormat.MP4);
+				if (audio) item.setMetadata(new Metadata(artist, "Album " + d));
+				this.tree.addItem(item);
+				node.addItemIfAbsent(item);
+			}
+		}
+		this.cached = new SearchEngine();
+		this.indexed = new SearchEngine(this.tree);
+	}
+
+	@Benchmark
+	public List<ContentItem> search() throws Exception {
+		return this.cached.search(this.tree.getRootNode(), this.criteria, MAX_RESULTS, null);
+	}
+
+	@Benchmark
+	public List<ContentItem> fresh() throws Exception {
+		return new SearchEngine().search(this.tree.getRootNode(), this.criteria, MAX_RESULTS, null);
+	}
+
+	@Benchmark
+	public List<ContentItem> indexed() throws Exception {
+		return this.indexed.search(this.tree.getRootNode(), this.criteria, MAX_RESULTS, null);
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(SearchEngineBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
@@ -7,12 +7,16 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.vaguehope.dlnatoad.MetricAssert;
 import com.vaguehope.dlnatoad.auth.AuthList;
 import com.vaguehope.dlnatoad.dlnaserver.SearchEngine.Predicate;
 import com.vaguehope.dlnatoad.dlnaserver.SearchEngine.Where;
@@ -20,8 +24,11 @@ import com.vaguehope.dlnatoad.media.ContentItem;
 import com.vaguehope.dlnatoad.media.ContentNode;
 import com.vaguehope.dlnatoad.media.ContentTree;
 import com.vaguehope.dlnatoad.media.MediaFormat;
+import com.vaguehope.dlnatoad.media.MetadataReader.Metadata;
 import com.vaguehope.dlnatoad.media.MockContent;
 
+import io.prometheus.metrics.model.snapshots.Labels;
+
 public class SearchEngineTest {
 
 	private ContentTree contentTree;
@@ -88,6 +95,117 @@ public class SearchEngineTest {
 		assertEquals(Arrays.asList(openItems.get(3), protecItems.get(4)), protecRet);
 	}
 
+	@Test
+	public void itReusesCompiledCriteria () throws Exception {
+		final List<ContentItem> items = this.mockContent.givenMockItems(MediaFormat.MP4, 10);
+		when(items.get(3).getTitle()).thenReturn("some file FOO song.mp4");
+		final MetricAssert metrics = new MetricAssert();
+
+		for (int i = 0; i < 3; i++) {
+			final List<ContentItem> ret = this.undertest.search(this.contentTree.getRootNode(),
+					"(upnp:class derivedfrom \"object.item.videoItem\" and dc:title contains \"foo\")",
+					10, null);
+			assertEquals(items.subList(3, 4), ret);
+		}
+		metrics.assertCounter("dlna_search_criteria_cache", Labels.of("result", "miss"), 1);
+		metrics.assertCounter("dlna_search_criteria_cache", Labels.of("result", "hit"), 2);
+	}
+
+	@Test
+	public void itFlattensNestedOrs () throws Exception {
+		final Predicate<ContentItem> p = SearchEngine.compile(SearchEngine.criteriaToPredicate(
+				"(dc:title contains \"foo\" or dc:creator contains \"daa\" or upnp:artist contains \"daa\")"));
+		assertThat(p, hasToString("(titleContains 'foo' or artistContains 'daa')"));
+	}
+
+	@Test
+	public void itDropsTrueTermsFromAnd () throws Exception {
+		final Predicate<ContentItem> p = SearchEngine.compile(SearchEngine.criteriaToPredicate(
+				"(upnp:class = \"object.container.album.musicAlbum\" and dc:title contains \"daa\")"));
+		assertThat(p, hasToString("titleContains 'daa'"));
+	}
+
+	@Test
+	public void itCollapsesOrWithTrueTerm () throws Exception {
+		final Predicate<ContentItem> p = SearchEngine.compile(SearchEngine.criteriaToPredicate(
+				"((dc:title contains \"foo\" or upnp:class = \"object.container.album.musicAlbum\") and upnp:class derivedfrom \"object.item.videoItem\")"));
+		assertThat(p, hasToString("contentGroupIs VIDEO"));
+	}
+
+	@Test
+	public void itSearchesUsingIndex () throws Exception {
+		final SearchEngine indexed = new SearchEngine(this.contentTree);
+		final ContentNode dir = this.mockContent.addMockDir("dir");
+		addItem(dir, "a", "Some Foo\"Bar Song.mp4", MediaFormat.MP4, null);
+		final ContentItem b = addItem(dir, "b", "Other song.mp3", MediaFormat.MP3, new Metadata("Foo Fighters", "Album"));
+		addItem(dir, "c", "Other foo.mp3", MediaFormat.MP3, null);
+		final MetricAssert metrics = new MetricAssert();
+
+		final List<ContentItem> ret = indexed.search(this.contentTree.getRootNode(),
+				"(upnp:class derivedfrom \"object.item.audioItem\" and (dc:creator contains \"fighters\" or upnp:artist contains \"fighters\"))",
+				10, null);
+		assertEquals(Arrays.asList(b), ret);
+		metrics.assertCounter("dlna_search_method", Labels.of("method", "index"), 1);
+		metrics.assertCounter("dlna_search_method", Labels.of("method", "scan"), 0);
+	}
+
+	@Test
+	public void itFindsSameItemsUsingIndexAsWalkingTree () throws Exception {
+		final SearchEngine indexed = new SearchEngine(this.contentTree);
+		final Random rnd = new Random(42);
+		final String[] words = new String[] { "foo", "Bar", "baz", "FOOBAR", "bat-man", "123" };
+		final List<ContentNode> dirs = this.mockContent.givenMockDirs(5);
+		for (int i = 0; i < 200; i++) {
+			final ContentNode dir = dirs.get(rnd.nextInt(dirs.size()));
+			final String title = words[rnd.nextInt(words.length)] + " " + words[rnd.nextInt(words.length)] + i;
+			final Metadata md = rnd.nextBoolean() ? new Metadata(words[rnd.nextInt(words.length)], words[rnd.nextInt(words.length)]) : null;
+			addItem(dir, "i" + i, title, rnd.nextBoolean() ? MediaFormat.MP4 : MediaFormat.MP3, md);
+		}
+
+		for (final String criteria : new String[] {
+				"dc:title contains \"oo\"",
+				"dc:title contains \"bar baz\"",
+				"dc:title contains \"t-m\"",
+				"(upnp:class derivedfrom \"object.item.audioItem\" and dc:title contains \"foo\")",
+				"(upnp:artist contains \"bar\" or upnp:album contains \"baz\")",
+				"(upnp:class derivedfrom \"object.item.videoItem\" or dc:title contains \"12\")",
+		}) {
+			final List<ContentItem> expected = this.undertest.search(this.contentTree.getRootNode(), criteria, 1000, null);
+			final List<ContentItem> actual = indexed.search(this.contentTree.getRootNode(), criteria, 1000, null);
+			assertEquals(criteria, new HashSet<>(expected), new HashSet<>(actual));
+		}
+	}
+
+	@Test
+	public void itEnforcesAuthListsUsingIndex () throws Exception {
+		final SearchEngine indexed = new SearchEngine(this.contentTree);
+		final ContentNode root = this.mockContent.givenMockDirs(1).get(0);
+		final ContentNode openDir = this.mockContent.addMockDir("dir-open", root);
+		final ContentItem openItem = addItem(openDir, "open", "some open file foobar song.mp4", MediaFormat.MP4, null);
+
+		final AuthList authlist = mock(AuthList.class);
+		when(authlist.hasUser("shork")).thenReturn(true);
+		final ContentNode protecDir = this.mockContent.addMockDir("dir-protec", root, authlist);
+		final ContentNode protecSubDir = this.mockContent.addMockDir("dir-protec-sub", protecDir);
+		final ContentItem protecItem = addItem(protecSubDir, "protec", "some protec file foobar song.mp4", MediaFormat.MP4, null);
+
+		assertEquals(Arrays.asList(openItem), indexed.search(this.contentTree.getRootNode(), "dc:title contains \"foobar\"", 100, null));
+		assertEquals(Arrays.asList(openItem, protecItem), indexed.search(this.contentTree.getRootNode(), "dc:title contains \"foobar\"", 100, "shork"));
+		assertEquals(Arrays.asList(openItem), indexed.search(openDir, "dc:title contains \"foobar\"", 100, "shork"));
+	}
+
+	@Test
+	public void itDoesNotReturnArtFromIndex () throws Exception {
+		final SearchEngine indexed = new SearchEngine(this.contentTree);
+		final ContentNode dir = this.mockContent.addMockDir("dir");
+		final ContentItem song = addItem(dir, "song", "song.mp3", MediaFormat.MP3, null);
+		final ContentItem art = new ContentItem("art", dir.getId(), "song.jpg", new File("/mock/song.jpg"), MediaFormat.JPEG);
+		this.contentTree.addItem(art);
+		song.setArt(art);
+
+		assertEquals(Arrays.asList(song), indexed.search(this.contentTree.getRootNode(), "dc:title contains \"song\"", 100, null));
+	}
+
 	@Test
 	public void itParsesVideoWithTitle () throws Exception {
 		final Predicate<ContentItem> p = SearchEngine.criteriaToPredicate("(upnp:class derivedfrom \"object.item.videoItem\" and dc:title contains \"daa\")");
@@ -182,6 +300,14 @@ public class SearchEngineTest {
 		assertWhere(p, "TRUE");
 	}
 
+	private ContentItem addItem(final ContentNode dir, final String id, final String title, final MediaFormat format, final Metadata metadata) {
+		final ContentItem item = new ContentItem(id, dir.getId(), title, new File("/mock/" + dir.getId() + "/" + title), format);
+		item.setMetadata(metadata);
+		this.contentTree.addItem(item);
+		dir.addItemIfAbsent(item);
+		return item;
+	}
+
 	private static void assertWhere(final Predicate<ContentItem> p, final String clause, final String... params) {
 		final Where w = p.getWhere();
 		assertEquals(clause, w.clause);
@@ -0,0 +1,72 @@
+package com.vaguehope.dlnatoad.media;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Filling one huge directory, both in the name order TreeWalker finds files in and in random order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentNodeBenchmark {
+
+	@Param({ "10000", "50000" })
+	public int itemCount;
+
+	@Param({ "name", "random" })
+	public String order;
+
+	private List<ContentItem> items;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		final Random rnd = new Random(42);
+		this.items = new ArrayList<>(this.itemCount);
+		for (int i = 0; i < this.itemCount; i++) {
+			this.items.add(new ContentItem("id" + i, "dir", String.format("IMG_%08d", rnd.nextInt(100000000)), null, MediaFormat.JPEG));
+		}
+		if ("name".equals(this.order)) {
+			this.items.sort(ContentItem.Order.TITLE_CASE_INSENSITIVE);
+		}
+		else {
+			Collections.shuffle(this.items, rnd);
+		}
+	}
+
+	@Benchmark
+	public ContentNode populate() {
+		final ContentNode node = new ContentNode("dir", "0", "dir", new File("/media/dir"), null, null, null);
+		for (final ContentItem item : this.items) {
+			node.addItemIfAbsent(item);
+		}
+		return node;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(ContentNodeBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
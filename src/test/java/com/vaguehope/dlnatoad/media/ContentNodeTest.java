@@ -3,12 +3,17 @@ package com.vaguehope.dlnatoad.media;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -52,6 +57,111 @@ public class ContentNodeTest {
 		assertThat(actual, contains("1", "2", "a", "B", "c"));
 	}
 
+	@Test
+	public void itKeepsItemsSortedWhateverOrderTheyAreAddedAndRemovedIn() throws Exception {
+		final ContentNode n = new ContentNode("id", ContentGroup.AUDIO.getId(), "title", new File(""), null, null, null);
+		final Random rnd = new Random(1);
+		final List<ContentItem> expected = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			expected.add(new ContentItem("i" + i, n.getId(), RandomStringUtils.random(1 + rnd.nextInt(3), 0, 0, true, false, null, rnd), null, null));
+		}
+		final List<ContentItem> toAdd = new ArrayList<>(expected);
+		Collections.shuffle(toAdd, rnd);
+		for (final ContentItem i : toAdd) {
+			assertTrue(n.addItemIfAbsent(i));
+		}
+		assertFalse(n.addItemIfAbsent(new ContentItem("i0", n.getId(), "other", null, null)));
+
+		for (int i = 0; i < 100; i++) {
+			final ContentItem r = expected.remove(rnd.nextInt(expected.size()));
+			assertTrue(n.removeItem(r));
+			assertFalse(n.hasItemWithId(r.getId()));
+			assertFalse(n.removeItem(r));
+		}
+
+		expected.sort(ContentItem.Order.TITLE_CASE_INSENSITIVE);
+		assertEquals(expected, n.getCopyOfItems());
+		assertTrue(n.hasItemWithId(expected.get(0).getId()));
+	}
+
+	@Test
+	public void itRemovesNodesAndAllowsThemBack() throws Exception {
+		final ContentNode n = new ContentNode("id", ContentGroup.AUDIO.getId(), "title", new File(""), null, null, null);
+		final ContentNode a = new ContentNode("a", n.getId(), "a", "a");
+		final ContentNode b = new ContentNode("b", n.getId(), "b", "b");
+		assertTrue(n.addNodeIfAbsent(b));
+		assertTrue(n.addNodeIfAbsent(a));
+		assertFalse(n.addNodeIfAbsent(a));
+
+		assertTrue(n.removeNode(a));
+		assertFalse(n.hasNodeWithId("a"));
+		assertFalse(n.removeNode(a));
+		assertTrue(n.addNodeIfAbsent(a));
+		assertThat(n.getCopyOfNodes(), contains(a, b));
+	}
+
+	@Test
+	public void itReturnsSnapshotsThatDoNotChangeWhenItemsAreAdded() throws Exception {
+		final ContentNode n = new ContentNode("id", ContentGroup.AUDIO.getId(), "title", new File(""), null, null, null);
+		final ContentItem b = new ContentItem("b", n.getId(), "b", null, null);
+		n.addItemIfAbsent(b);
+
+		final List<ContentItem> before = n.getItems();
+		assertSame(before, n.getItems());
+
+		final ContentItem a = new ContentItem("a", n.getId(), "a", null, null);
+		n.addItemIfAbsent(a);
+		assertThat(before, contains(b));
+		assertThat(n.getItems(), contains(a, b));
+		assertEquals(2, n.getItemCount());
+
+		n.removeItem(b);
+		assertThat(n.getItems(), contains(a));
+		assertEquals(1, n.getItemCount());
+	}
+
+	@Test
+	public void itReturnsSnapshotsThatDoNotChangeWhenNodesAreAdded() throws Exception {
+		final ContentNode n = new ContentNode("id", ContentGroup.AUDIO.getId(), "title", new File(""), null, null, null);
+		final ContentNode b = new ContentNode("b", n.getId(), "b", "b");
+		n.addNodeIfAbsent(b);
+
+		final List<ContentNode> before = n.getNodes();
+		final ContentNode a = new ContentNode("a", n.getId(), "a", "a");
+		n.addNodeIfAbsent(a);
+		assertThat(before, contains(b));
+		assertThat(n.getNodes(), contains(a, b));
+		assertEquals(2, n.getNodeCount());
+	}
+
+	@Test
+	public void itCachesSortedViewsUntilItemsChange() throws Exception {
+		final ContentNode n = new ContentNode("id", ContentGroup.AUDIO.getId(), "title", new File(""), null, null, null);
+		final ContentItem i1 = new ContentItem("1", n.getId(), "b", null, null);
+		final ContentItem i2 = new ContentItem("2", n.getId(), "a", null, null);
+		n.addItemIfAbsent(i1);
+		n.addItemIfAbsent(i2);
+
+		final List<ContentItem> byId = n.getItems(ContentItem.Order.ID);
+		assertThat(byId, contains(i1, i2));
+		assertSame(byId, n.getItems(ContentItem.Order.ID));
+		assertSame(n.getItems(), n.getItems(null));
+
+		final ContentItem i3 = new ContentItem("3", n.getId(), "c", null, null);
+		n.addItemIfAbsent(i3);
+		assertThat(n.getItems(ContentItem.Order.ID), contains(i1, i2, i3));
+
+		final List<ContentItem> afterAdd = n.getItems(ContentItem.Order.ID);
+		n.invalidateSortedItems();
+		assertNotSame(afterAdd, n.getItems(ContentItem.Order.ID));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void itDoesNotAllowSnapshotToBeModified() throws Exception {
+		final ContentNode n = new ContentNode("id", ContentGroup.AUDIO.getId(), "title", new File(""), null, null, null);
+		n.getItems().add(new ContentItem("a", n.getId(), "a", null, null));
+	}
+
 	@Ignore("Micro benchmark for checking performance of sort on insert.")
 	@Test
 	public void itAddsManyRandomItems() throws Exception {
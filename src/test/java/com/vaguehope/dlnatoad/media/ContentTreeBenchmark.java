@@ -0,0 +1,95 @@
+package com.vaguehope.dlnatoad.media;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Removing a batch of files from a large tree, as happens when many files are moved at once.
+ * Each invocation puts the batch back afterwards so the tree stays the same size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ContentTreeBenchmark {
+
+	private static final int ITEMS_PER_DIR = 100;
+
+	@Param({ "100000", "1000000" })
+	public int itemCount;
+
+	@Param({ "1000" })
+	public int batchSize;
+
+	private ContentTree tree;
+	private List<ContentNode> dirs;
+	private List<ContentItem> batch;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this.tree = new ContentTree(false);
+		this.dirs = new ArrayList<>();
+		final List<ContentItem> items = new ArrayList<>(this.itemCount);
+		final ContentNode root = this.tree.getRootNode();
+		for (int d = 0; d * ITEMS_PER_DIR < this.itemCount; d++) {
+			final File dir = new File("/media/dir" + d);
+			final ContentNode node = new ContentNode("d" + d, root.getId(), dir.getName(), dir, "dir" + d, null, null);
+			this.tree.addNode(node);
+			root.addNodeIfAbsent(node);
+			this.dirs.add(node);
+			for (int i = 0; i < ITEMS_PER_DIR && items.size() < this.itemCount; i++) {
+				final File file = new File(dir, "file" + i + ".mp4");
+				final ContentItem item = new ContentItem("d" + d + "i" + i, node.getId(), file.getName(), file, MediaFormat.MP4);
+				this.tree.addItem(item);
+				node.addItemIfAbsent(item);
+				items.add(item);
+			}
+		}
+		Collections.shuffle(items, new Random(42));
+		this.batch = new ArrayList<>(items.subList(0, this.batchSize));
+	}
+
+	@Benchmark
+	public int removeBatch() {
+		int removed = 0;
+		for (final ContentItem item : this.batch) {
+			removed += this.tree.removeFile(item.getFile());
+		}
+		for (final ContentItem item : this.batch) {
+			final ContentNode parent = this.dirs.get(Integer.parseInt(item.getParentId().substring(1)));
+			if (this.tree.getNode(parent.getId()) == null) {
+				this.tree.addNode(parent);
+				this.tree.getRootNode().addNodeIfAbsent(parent);
+			}
+			this.tree.addItem(item);
+			parent.addItemIfAbsent(item);
+		}
+		return removed;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(ContentTreeBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.vaguehope.dlnatoad.media;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vaguehope.dlnatoad.auth.AuthList;
+import com.vaguehope.dlnatoad.media.MediaIndex.HierarchyMode;
+import com.vaguehope.dlnatoad.media.MetadataReader.Metadata;
+
+public class ContentTreeSnapshotTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File mediaDir;
+	private File snapshotFile;
+	private ContentTree savedTree;
+	private MediaIndex savedIndex;
+
+	@Before
+	public void before() throws Exception {
+		this.mediaDir = this.tmp.newFolder("media");
+		this.snapshotFile = new File(this.tmp.getRoot(), "tree.snapshot");
+		this.savedTree = new ContentTree();
+		this.savedIndex = new MediaIndex(this.savedTree, HierarchyMode.PRESERVE, new MediaId(null), new MediaInfo());
+	}
+
+	@Test
+	public void itRestoresNodesItemsAndTheirDetails() throws Exception {
+		final File album = new File(this.mediaDir, "album");
+		final File track = mockFile(album, "track.mp3");
+		final File art = mockFile(album, "cover.jpg");
+		final File video = mockFile(this.mediaDir, "video.mkv");
+		final File subs = mockFile(this.mediaDir, "video.srt");
+		scan(track, art, video, subs);
+
+		final ContentItem savedTrack = itemForFile(this.savedTree, track);
+		savedTrack.setDurationMillis(123456L);
+		savedTrack.setWidthAndHeight(640, 480);
+		savedTrack.setMetadata(new Metadata("artist", "album"));
+		new ContentTreeSnapshot(this.snapshotFile, this.savedTree, HierarchyMode.PRESERVE).save();
+
+		final ContentTree restored = restore();
+		assertEquals(this.savedTree.getNodeCount(), restored.getNodeCount());
+		assertEquals(this.savedTree.getItemCount(), restored.getItemCount());
+
+		final ContentItem restoredTrack = restored.getItem(savedTrack.getId());
+		assertEquals(track, restoredTrack.getFile());
+		assertEquals(MediaFormat.MP3, restoredTrack.getFormat());
+		assertEquals(savedTrack.getFileLength(), restoredTrack.getFileLength());
+		assertEquals(savedTrack.getLastModified(), restoredTrack.getLastModified());
+		assertEquals(123456L, restoredTrack.getDurationMillis());
+		assertEquals(640, restoredTrack.getWidth());
+		assertEquals(480, restoredTrack.getHeight());
+		assertEquals(new Metadata("artist", "album"), restoredTrack.getMetadata());
+		assertSame(restored.getItem(savedTrack.getArt().getId()), restoredTrack.getArt());
+
+		final ContentNode restoredAlbum = restored.getNode(savedTrack.getParentId());
+		assertEquals(album, restoredAlbum.getFile());
+		assertTrue(restoredAlbum.getItems().contains(restoredTrack));
+		assertNotNull(restoredAlbum.getArt());
+		assertNotNull(restored.getNodeByPath(restoredAlbum.getPath()));
+
+		final ContentItem restoredVideo = itemForFile(restored, video);
+		assertEquals(subs, restoredVideo.getCopyOfAttachments().get(0).getFile());
+		assertEquals(this.savedTree.getRecent().size(), restored.getRecent().size());
+	}
+
+	@Test
+	public void itRemovesRestoredItemsTheScanDoesNotFind() throws Exception {
+		final File kept = mockFile(this.mediaDir, "kept.mkv");
+		final File gone = mockFile(new File(this.mediaDir, "dir"), "gone.mkv");
+		scan(kept, gone);
+		final String goneDirId = itemForFile(this.savedTree, gone).getParentId();
+		final ContentTreeSnapshot saved = new ContentTreeSnapshot(this.snapshotFile, this.savedTree, HierarchyMode.PRESERVE);
+		saved.save();
+		FileUtils.forceDelete(gone);
+
+		final ContentTree restored = new ContentTree();
+		final MediaIndex index = new MediaIndex(restored, HierarchyMode.PRESERVE, new MediaId(null), new MediaInfo());
+		final ContentTreeSnapshot undertest = new ContentTreeSnapshot(this.snapshotFile, restored, HierarchyMode.PRESERVE);
+		undertest.load();
+		final ContentItem restoredKept = itemForFile(restored, kept);
+		assertNotNull(itemForFile(restored, gone));
+		assertEquals(2, restored.getUnconfirmedItemCount());
+
+		index.fileFound(this.mediaDir, kept, null, null);
+		assertEquals(1, restored.getUnconfirmedItemCount());
+
+		undertest.initialScanComplete();
+		assertSame(restoredKept, itemForFile(restored, kept));
+		assertNull(itemForFile(restored, gone));
+		assertNull(restored.getNode(goneDirId));
+		assertEquals(0, restored.getUnconfirmedItemCount());
+	}
+
+	@Test
+	public void itSkipsDirsWhoseAuthHasChanged() throws Exception {
+		final File open = mockFile(this.mediaDir, "open.mkv");
+		final File secret = mockFile(new File(this.mediaDir, "secret"), "secret.mkv");
+		scan(open);
+
+		// As if the AUTH file was removed since the snapshot was written.
+		final ContentNode mediaNode = this.savedTree.getNode(itemForFile(this.savedTree, open).getParentId());
+		final ContentNode secretNode = new ContentNode("secret", mediaNode.getId(), "secret", secret.getParentFile(), "media/secret", AuthList.ofNames("someone"), null);
+		mediaNode.addNodeIfAbsent(secretNode);
+		this.savedTree.addNode(secretNode);
+		final ContentItem secretItem = new ContentItem("secret-item", secretNode.getId(), "secret.mkv", secret, MediaFormat.MKV);
+		secretNode.addItemIfAbsent(secretItem);
+		this.savedTree.addItem(secretItem);
+		new ContentTreeSnapshot(this.snapshotFile, this.savedTree, HierarchyMode.PRESERVE).save();
+
+		final ContentTree restored = restore();
+		assertNotNull(itemForFile(restored, open));
+		assertNull(restored.getItem(secretItem.getId()));
+		assertNull(restored.getNode(secretNode.getId()));
+	}
+
+	@Test
+	public void itIgnoresSnapshotForOtherHierarchyMode() throws Exception {
+		scan(mockFile(this.mediaDir, "video.mkv"));
+		new ContentTreeSnapshot(this.snapshotFile, this.savedTree, HierarchyMode.PRESERVE).save();
+
+		final ContentTree restored = new ContentTree();
+		new MediaIndex(restored, HierarchyMode.FLATTERN, new MediaId(null), new MediaInfo());
+		final int nodeCount = restored.getNodeCount();
+		new ContentTreeSnapshot(this.snapshotFile, restored, HierarchyMode.FLATTERN).load();
+		assertEquals(nodeCount, restored.getNodeCount());
+		assertEquals(0, restored.getItemCount());
+	}
+
+	private void scan(final File... files) throws IOException {
+		for (final File f : files) {
+			this.savedIndex.fileFound(this.mediaDir, f, null, null);
+		}
+	}
+
+	private ContentTree restore() throws IOException {
+		final ContentTree tree = new ContentTree();
+		new MediaIndex(tree, HierarchyMode.PRESERVE, new MediaId(null), new MediaInfo());
+		new ContentTreeSnapshot(this.snapshotFile, tree, HierarchyMode.PRESERVE).load();
+		return tree;
+	}
+
+	private static ContentItem itemForFile(final ContentTree tree, final File file) {
+		for (final ContentItem i : tree.getItems()) {
+			if (file.equals(i.getFile())) return i;
+		}
+		return null;
+	}
+
+	private static File mockFile(final File dir, final String name) throws IOException {
+		final File f = new File(dir, name);
+		FileUtils.write(f, f.getAbsolutePath(), Charset.defaultCharset());
+		return f;
+	}
+
+}
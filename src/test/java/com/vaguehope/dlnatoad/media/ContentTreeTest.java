@@ -84,6 +84,63 @@ public class ContentTreeTest {
 		assertThat(this.undertest.getItems(), not(hasItem(b)));
 	}
 
+	@Test
+	public void itRemovesEveryNodeForTheSameDir() throws Exception {
+		final File dir = this.tmp.newFolder("dir");
+		final ContentNode a = new ContentNode("id-a", this.undertest.getRootNode().getId(), "a", dir, null, null, null);
+		final ContentNode b = new ContentNode("id-b", this.undertest.getRootNode().getId(), "b", dir, null, null, null);
+		for (final ContentNode n : new ContentNode[] { a, b }) {
+			this.undertest.addNode(n);
+			this.undertest.getRootNode().addNodeIfAbsent(n);
+		}
+
+		assertEquals(2, this.undertest.removeFile(new File(dir.getAbsolutePath())));
+		assertThat(this.undertest.getNodes(), not(hasItem(a)));
+		assertThat(this.undertest.getNodes(), not(hasItem(b)));
+		assertEquals(0, this.undertest.removeFile(dir));
+	}
+
+	@Test
+	public void itRemovesByFileOfReplacementItemWithSameId() throws Exception {
+		final ContentNode aa = this.mockContent.addMockDir("aa");
+		final ContentItem first = this.mockContent.addMockItem("b", aa);
+		aa.removeItem(first);
+		final File otherFile = this.tmp.newFile("other.mp4");
+		final ContentItem second = new ContentItem(first.getId(), aa.getId(), "b", otherFile, MediaFormat.MP4);
+		this.undertest.addItem(second);
+		aa.addItemIfAbsent(second);
+
+		assertEquals(0, this.undertest.removeFile(first.getFile()));
+		assertEquals(second, this.undertest.getItem(first.getId()));
+		assertEquals(1, this.undertest.removeFile(otherFile));
+		assertEquals(null, this.undertest.getItem(first.getId()));
+	}
+
+	@Test
+	public void itKeepsItemIndexUpToDate() throws Exception {
+		final ContentNode aa = this.mockContent.addMockDir("aa");
+		final ContentItem song = new ContentItem("song", aa.getId(), "Some Song.mp3", this.tmp.newFile("song.mp3"), MediaFormat.MP3);
+		song.setMetadata(new MetadataReader.Metadata("The Artist", "The Album"));
+		this.undertest.addItem(song);
+		aa.addItemIfAbsent(song);
+
+		final ContentItemIndex index = this.undertest.getItemIndex();
+		assertThat(index.getItemsInGroup(ContentGroup.AUDIO), hasItem(song));
+		assertThat(index.getItemsWithTitleContaining("ong"), hasItem(song));
+		assertThat(index.getItemsWithTitleContaining("some song"), hasItem(song));
+		assertThat(index.getItemsWithTitleContaining("ome so"), hasItem(song));
+		assertThat(index.getItemsWithTitleContaining("some songs"), not(hasItem(song)));
+		assertThat(index.getItemsWithTitleContaining("other"), not(hasItem(song)));
+		assertThat(index.getItemsWithArtistContaining("artist"), hasItem(song));
+		assertThat(index.getItemsWithAlbumContaining("album"), hasItem(song));
+		assertEquals(null, index.getItemsWithTitleContaining(" s "));
+
+		this.undertest.removeFile(song.getFile());
+		assertThat(index.getItemsInGroup(ContentGroup.AUDIO), not(hasItem(song)));
+		assertThat(index.getItemsWithTitleContaining("song"), not(hasItem(song)));
+		assertThat(index.getItemsWithArtistContaining("artist"), not(hasItem(song)));
+	}
+
 	@Test
 	public void itGetsNodeByPath() throws Exception {
 		final ContentNode a = this.mockContent.addMockDir("aa");
@@ -221,6 +278,16 @@ public class ContentTreeTest {
 		assertThat(this.undertest.getRecent(), hasSize(0));
 	}
 
+	@Test
+	public void itRemovesItemsInGoneDirsFromRecent() throws Exception {
+		final ContentNode aa = this.mockContent.addMockDir("aa");
+		this.mockContent.addMockItem("b", aa);
+		assertThat(this.undertest.getRecent(), hasSize(1));
+
+		this.undertest.removeFile(aa.getFile());
+		assertThat(this.undertest.getRecent(), hasSize(0));
+	}
+
 	private static Consumer<File> sequentialTimeStamps() {
 		return new Consumer<>() {
 			@Override
@@ -0,0 +1,93 @@
+package com.vaguehope.dlnatoad.media;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Finding art for every track of a synthetic music library, as happens during the initial scan.
+ * Each album has a cover and a few other images.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoverArtBenchmark {
+
+	private static final int ALBUMS = 50;
+
+	@Param({ "20", "200" })
+	public int tracksPerAlbum;
+
+	private File root;
+	private List<File> tracks;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this.root = Files.createTempDirectory("coverart").toFile();
+		this.tracks = new ArrayList<>();
+		for (int a = 0; a < ALBUMS; a++) {
+			final File album = new File(this.root, "album" + a);
+			album.mkdir();
+			new File(album, "cover.jpg").createNewFile();
+			for (int i = 0; i < 5; i++) {
+				new File(album, "scan" + i + ".png").createNewFile();
+			}
+			for (int t = 0; t < this.tracksPerAlbum; t++) {
+				final File track = new File(album, String.format("%03d - Track %d.ogg", t, t));
+				track.createNewFile();
+				this.tracks.add(track);
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(this.root);
+	}
+
+	@Benchmark
+	public int uncached() {
+		int found = 0;
+		for (final File track : this.tracks) {
+			if (CoverArtHelper.findCoverArt(track) != null) found += 1;
+		}
+		return found;
+	}
+
+	@Benchmark
+	public int cached() {
+		final CoverArtCache cache = new CoverArtCache();
+		int found = 0;
+		for (final File track : this.tracks) {
+			if (cache.findCoverArt(track) != null) found += 1;
+		}
+		return found;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(CoverArtBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.vaguehope.dlnatoad.media;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CoverArtCacheTest {
+
+	@Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+	private CoverArtCache undertest;
+
+	@Before
+	public void before () throws Exception {
+		this.undertest = new CoverArtCache();
+	}
+
+	@Test
+	public void itListsEachDirOnce () throws Exception {
+		final File track1 = this.tmp.newFile("track1.ogg");
+		final File track2 = this.tmp.newFile("track2.ogg");
+		final File cover = this.tmp.newFile("cover.jpg");
+
+		assertEquals(cover, this.undertest.findCoverArt(track1));
+		this.tmp.newFile("track2.jpg");
+		assertEquals(cover, this.undertest.findCoverArt(track2));
+		assertEquals(1, this.undertest.size());
+	}
+
+	@Test
+	public void itRelistsDirWhenImageIsAdded () throws Exception {
+		final File track = this.tmp.newFile("track.ogg");
+		this.tmp.newFile("cover.jpg");
+		this.undertest.findCoverArt(track);
+
+		final File art = this.tmp.newFile("track.jpg");
+		this.undertest.invalidate(art, false);
+		assertEquals(art, this.undertest.findCoverArt(track));
+	}
+
+	@Test
+	public void itRelistsDirWhenImageIsRemoved () throws Exception {
+		final File track = this.tmp.newFile("track.ogg");
+		final File cover = this.tmp.newFile("cover.jpg");
+		final File art = this.tmp.newFile("track.jpg");
+		assertEquals(art, this.undertest.findCoverArt(track));
+
+		art.delete();
+		this.undertest.invalidate(art, false);
+		assertEquals(cover, this.undertest.findCoverArt(track));
+	}
+
+	@Test
+	public void itIgnoresFilesThatAreNotImages () throws Exception {
+		final File track = this.tmp.newFile("track.ogg");
+		this.undertest.findCoverArt(track);
+		this.undertest.invalidate(this.tmp.newFile("other.ogg"), false);
+		assertEquals(1, this.undertest.size());
+	}
+
+	@Test
+	public void itForgetsDirWhenItIsRemoved () throws Exception {
+		final File dir = this.tmp.newFolder("album");
+		final File track = new File(dir, "track.ogg");
+		track.createNewFile();
+		this.undertest.findCoverArt(track);
+		assertEquals(1, this.undertest.size());
+
+		this.undertest.invalidate(dir, true);
+		assertEquals(0, this.undertest.size());
+	}
+
+	@Test
+	public void itKeepsABoundedNumberOfDirs () throws Exception {
+		for (int i = 0; i < CoverArtCache.MAX_DIRS * 2; i++) {
+			final File dir = this.tmp.newFolder("album" + i);
+			this.undertest.findCoverArt(new File(dir, "track.ogg"));
+		}
+		assertTrue("size=" + this.undertest.size(), this.undertest.size() <= CoverArtCache.MAX_DIRS);
+	}
+
+}
@@ -4,6 +4,7 @@ import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.spy;
@@ -371,15 +372,37 @@ public class MediaIndexTest {
 		assertEquals("image.jpeg", item.getTitle());
 	}
 
+	@Test
+	public void itWritesABulkImportInAFewTransactions() throws Exception {
+		final List<File> files = mockFiles(1000, ".mkv");
+		final long writesBefore = this.mediaMetadataStore.getMediaDb().getWriteCount();
+
+		// As the Watcher hands them on, one at a time.
+		for (final File file : files) {
+			this.undertest.fileFound(this.tmp.getRoot(), file, null, null);
+		}
+		waitForEmptyQueue(TimeUnit.MINUTES.toNanos(1));
+
+		final List<ContentNode> videoDirs = this.contentTree.getNode(ContentGroup.VIDEO.getId()).getCopyOfNodes();
+		assertEquals(files.size(), this.contentTree.getNode(videoDirs.get(0).getId()).getItemCount());
+		final long writes = this.mediaMetadataStore.getMediaDb().getWriteCount() - writesBefore;
+		System.out.println("Write transactions for " + files.size() + " files: " + writes);
+		assertThat(writes, lessThanOrEqualTo(20L));  // Was 5 to 7, one per file would be 1000 or more.
+	}
+
 //	- - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
 
 	private void waitForEmptyQueue() throws InterruptedException, SecurityException, ReflectiveOperationException {
+		waitForEmptyQueue(TEST_TIMEOUT_NANOS);
+	}
+
+	private void waitForEmptyQueue(final long timeoutNanos) throws InterruptedException, SecurityException, ReflectiveOperationException {
 		assertEquals(1, this.schEx.getCorePoolSize());
 		this.schEx.execute(() -> {});  // no-op item so that when queue is empty all useful work is complete.
 
 		final long start = System.nanoTime();
 		List<Runnable> tasks = null;
-		while (System.nanoTime() - start < TEST_TIMEOUT_NANOS) {
+		while (System.nanoTime() - start < timeoutNanos) {
 			tasks = new ArrayList<>();
 			for (final Runnable r : this.schEx.getQueue()) {
 				if (r instanceof RunnableScheduledFuture && ((RunnableScheduledFuture<?>) r).isPeriodic()) continue;
@@ -11,6 +11,7 @@ import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.util.Collections;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -23,6 +24,8 @@ import org.teleal.common.mock.http.MockHttpServletResponse;
 import com.vaguehope.dlnatoad.db.DbCache;
 import com.vaguehope.dlnatoad.db.MediaDb;
 import com.vaguehope.dlnatoad.db.MockMediaMetadataStore;
+import com.vaguehope.dlnatoad.db.search.DbSearchParser;
+import com.vaguehope.dlnatoad.db.search.SearchCursor;
 import com.vaguehope.dlnatoad.dlnaserver.SearchEngine;
 import com.vaguehope.dlnatoad.media.ContentItem;
 import com.vaguehope.dlnatoad.media.ContentServingHistory;
@@ -81,7 +84,7 @@ public class SearchServletTest {
 		assertEquals(200, this.resp.getStatus());
 		assertThat(this.resp.getContentAsString(), containsString("<h3>Local items: 1</h3>"));
 		assertThat(this.resp.getContentAsString(), containsString("<input type=\"text\" id=\"search\" name=\"query\" value=\"t&#61;foo\" "));
-		assertPageContainsItem(i0, "", "?query&#61;t%3Dfoo&amp;offset&#61;0");
+		assertPageContainsItem(i0, "", "?query&#61;t%3Dfoo&amp;offset&#61;" + tokenFor("t=foo", i0));
 	}
 
 	@Test
@@ -105,7 +108,37 @@ public class SearchServletTest {
 		assertEquals(200, this.resp.getStatus());
 		assertThat(this.resp.getContentAsString(), containsString("<h3>Local items: 1</h3>"));
 		assertThat(this.resp.getContentAsString(), containsString("<input type=\"text\" id=\"search\" name=\"query\" value=\"t&#61;foo\" "));
-		assertPageContainsItem(i0, "../", "?query&#61;t%3Dfoo&amp;offset&#61;0");
+		assertPageContainsItem(i0, "../", "?query&#61;t%3Dfoo&amp;offset&#61;" + tokenFor("t=foo", i0));
+	}
+
+	@Test
+	public void itLinksToNextPageWithCursor() throws Exception {
+		mockItem("thing 0", "foo");
+		mockItem("thing 1", "foo");
+		mockItem("thing 2", "foo");
+		final List<SearchCursor> all = DbSearchParser.parseSearch("t=foo", null, SearchServlet.RESULT_SORT_ORDER).executeAfter(this.db, 10, null);
+
+		this.req.setParameter("query", "t=foo");
+		this.req.setParameter("limit", "2");
+		this.undertest.doGet(this.req, this.resp);
+		assertEquals(200, this.resp.getStatus());
+		assertThat(this.resp.getContentAsString(), containsString("<h3>Local items: 2</h3>"));
+		assertThat(this.resp.getContentAsString(), containsString("<a class=\"nextpage\" href=\"?query=t%3Dfoo&limit=2&offset=" + all.get(1).toToken() + "\">Next Page</a>"));
+
+		this.resp = new MockHttpServletResponse();
+		this.req.setParameter("offset", all.get(1).toToken());
+		this.undertest.doGet(this.req, this.resp);
+		assertEquals(200, this.resp.getStatus());
+		assertThat(this.resp.getContentAsString(), containsString("<h3>Local items: 1</h3>"));
+		assertPageContainsItem(this.contentTree.getItem(all.get(2).getId()), "", "?query&#61;t%3Dfoo&amp;offset&#61;" + all.get(2).toToken());
+	}
+
+	@Test
+	public void itRejectsInvalidCursor() throws Exception {
+		this.req.setParameter("query", "t=foo");
+		this.req.setParameter("offset", "123");
+		this.undertest.doGet(this.req, this.resp);
+		assertEquals(400, this.resp.getStatus());
 	}
 
 	@Test
@@ -121,6 +154,13 @@ public class SearchServletTest {
 		verify(this.contentServlet).service(this.req, this.resp);
 	}
 
+	private String tokenFor(final String query, final ContentItem item) throws Exception {
+		for (final SearchCursor c : DbSearchParser.parseSearch(query, null, SearchServlet.RESULT_SORT_ORDER).executeAfter(this.db, 100, null)) {
+			if (c.getId().equals(item.getId())) return c.toToken();
+		}
+		throw new IllegalStateException("Not found: " + item);
+	}
+
 	private void assertPageContainsItem(final ContentItem i, final String pathPrefix, final String itemQueryString) {
 		assertThat(this.resp.getContentAsString(), containsString(
 				"<li><a href=\"" + pathPrefix + "i/" + i.getId() + itemQueryString + "\" autofocus>"
@@ -0,0 +1,98 @@
+package com.vaguehope.dlnatoad.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class CompressedBitmapTest {
+
+	@Test
+	public void itAddsAndRemoves() throws Exception {
+		final CompressedBitmap b = CompressedBitmap.of(5, 70000, 3);
+		assertTrue(b.contains(3));
+		assertTrue(b.contains(70000));
+		assertFalse(b.contains(4));
+		assertEquals(3, b.cardinality());
+		assertEquals("CompressedBitmap{3,5,70000}", b.toString());
+
+		b.remove(70000);
+		b.remove(70001);
+		assertFalse(b.contains(70000));
+		assertEquals(CompressedBitmap.of(3, 5), b);
+	}
+
+	@Test
+	public void itSwitchesBetweenArrayAndBitmapChunks() throws Exception {
+		final CompressedBitmap b = new CompressedBitmap();
+		for (int i = 0; i < 10000; i++) {
+			b.add(i * 2);
+		}
+		assertEquals(10000, b.cardinality());
+		assertTrue(b.contains(19998));
+		assertFalse(b.contains(19999));
+
+		for (int i = 0; i < 9000; i++) {
+			b.remove(i * 2);
+		}
+		assertEquals(1000, b.cardinality());
+		assertTrue(b.contains(18000));
+		assertFalse(b.contains(17998));
+	}
+
+	@Test
+	public void itMatchesReferenceSetOperations() throws Exception {
+		final Random rnd = new Random(42);
+		for (int round = 0; round < 20; round++) {
+			// Mix of sparse and dense ranges so both chunk types meet each other.
+			final TreeSet<Integer> ra = randomSet(rnd, round % 2 == 0 ? 200 : 20000);
+			final TreeSet<Integer> rb = randomSet(rnd, round % 3 == 0 ? 200 : 20000);
+			final CompressedBitmap a = toBitmap(ra);
+			final CompressedBitmap b = toBitmap(rb);
+
+			final TreeSet<Integer> and = new TreeSet<>(ra);
+			and.retainAll(rb);
+			assertEquals(new ArrayList<>(and), toList(a.and(b)));
+
+			final TreeSet<Integer> or = new TreeSet<>(ra);
+			or.addAll(rb);
+			assertEquals(new ArrayList<>(or), toList(a.or(b)));
+
+			final TreeSet<Integer> andNot = new TreeSet<>(ra);
+			andNot.removeAll(rb);
+			assertEquals(new ArrayList<>(andNot), toList(a.andNot(b)));
+			assertEquals(andNot.size(), a.andNot(b).cardinality());
+
+			assertEquals(new ArrayList<>(ra), toList(a));  // Operations do not modify inputs.
+		}
+	}
+
+	private static TreeSet<Integer> randomSet(final Random rnd, final int count) {
+		final TreeSet<Integer> ret = new TreeSet<>();
+		for (int i = 0; i < count; i++) {
+			ret.add(rnd.nextInt(3 * 65536));
+		}
+		return ret;
+	}
+
+	private static CompressedBitmap toBitmap(final TreeSet<Integer> set) {
+		final CompressedBitmap ret = new CompressedBitmap();
+		for (final Integer i : set) {
+			ret.add(i);
+		}
+		return ret;
+	}
+
+	private static List<Integer> toList(final CompressedBitmap b) {
+		final List<Integer> ret = new ArrayList<>();
+		b.forEach(ret::add);
+		return ret;
+	}
+
+}
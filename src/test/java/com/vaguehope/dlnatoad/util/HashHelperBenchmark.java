@@ -0,0 +1,111 @@
+package com.vaguehope.dlnatoad.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.vaguehope.dlnatoad.util.HashHelper.Md5AndSha1;
+
+/**
+ * Compares MD5+SHA1 of a whole file read through direct and heap buffers of different sizes against mmap windows.
+ * The file is written once per trial so is likely in the page cache, which measures CPU and copy cost rather than the disk.
+ * 4 GB needs that much free space in java.io.tmpdir, use -p fileSizeMb=1,100 to skip it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class HashHelperBenchmark {
+
+	@Param({ "1", "100", "4096" })
+	public int fileSizeMb;
+
+	@Param({ "direct-64k", "heap-64k", "direct-1m", "heap-1m", "mmap-64m", "mmap-1g" })
+	public String reader;
+
+	private File file;
+	private ByteBuffer buffer;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.file = File.createTempFile("hashbenchmark", ".bin");
+		final byte[] block = new byte[1024 * 1024];
+		new Random(1).nextBytes(block);
+		try (final OutputStream os = new FileOutputStream(this.file)) {
+			for (int i = 0; i < this.fileSizeMb; i++) {
+				os.write(block);
+			}
+		}
+
+		final String[] parts = this.reader.split("-");
+		final int size = parseSize(parts[1]);
+		switch (parts[0]) {
+		case "direct":
+			this.buffer = ByteBuffer.allocateDirect(size);
+			HashHelper.setMapWindow(0);
+			break;
+		case "heap":
+			this.buffer = ByteBuffer.allocate(size);
+			HashHelper.setMapWindow(0);
+			break;
+		case "mmap":
+			this.buffer = HashHelper.createByteBuffer();
+			HashHelper.setMapWindow(size);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown reader: " + this.reader);
+		}
+	}
+
+	private static int parseSize(final String s) {
+		final int n = Integer.parseInt(s.substring(0, s.length() - 1));
+		switch (s.charAt(s.length() - 1)) {
+		case 'k':
+			return n * 1024;
+		case 'm':
+			return n * 1024 * 1024;
+		case 'g':
+			return n * 1024 * 1024 * 1024;
+		default:
+			throw new IllegalArgumentException("Unknown size: " + s);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		HashHelper.setMapWindow(0);
+		this.file.delete();
+	}
+
+	@Benchmark
+	public Md5AndSha1 md5AndSha1() throws IOException {
+		return HashHelper.generateMd5AndSha1(this.file, this.buffer);
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(HashHelperBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
@@ -3,13 +3,21 @@ package com.vaguehope.dlnatoad.util;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Rule;
@@ -75,4 +83,98 @@ public class HashHelperTest {
 		assertEquals(FOOBAR_100000_SHA1, actual.getSha1().toString(16));
 	}
 
+	@Test
+	public void itMd5AndSha1ALargeFileMappedInWindows() throws Exception {
+		final File f = this.tmp.newFile();
+		final byte[] data = new byte[(int) (HashHelper.MIN_MAPPED_FILE_SIZE * 3 + 12345)];
+		new Random(1).nextBytes(data);
+		FileUtils.writeByteArrayToFile(f, data);
+		final Md5AndSha1 expected = HashHelper.generateMd5AndSha1(f);
+		assertEquals(new BigInteger(1, MessageDigest.getInstance("MD5").digest(data)), expected.getMd5());
+		assertEquals(new BigInteger(1, MessageDigest.getInstance("SHA1").digest(data)), expected.getSha1());
+
+		try {
+			HashHelper.setMapWindow(HashHelper.MIN_MAPPED_FILE_SIZE);
+			assertMd5AndSha1(expected, HashHelper.generateMd5AndSha1(f));
+
+			// Over budget, so read through the buffer instead.
+			HashHelper.MAP_BUDGET_REMAINING.addAndGet(-HashHelper.MAP_BUDGET);
+			assertMd5AndSha1(expected, HashHelper.generateMd5AndSha1(f));
+		}
+		finally {
+			HashHelper.MAP_BUDGET_REMAINING.addAndGet(HashHelper.MAP_BUDGET);
+			HashHelper.setMapWindow(0);
+		}
+	}
+
+	@Test
+	public void itHoldsMapBudgetUntilTheWindowIsCollected() throws Exception {
+		final File f = this.tmp.newFile();
+		final long len = HashHelper.MIN_MAPPED_FILE_SIZE;
+		FileUtils.writeByteArrayToFile(f, new byte[(int) len]);
+		waitForFullMapBudget();
+
+		MappedByteBuffer mapped;
+		try (final FileInputStream is = new FileInputStream(f); final FileChannel fc = is.getChannel()) {
+			mapped = HashHelper.mapWithinBudget(fc, 0, len);
+		}
+		System.gc();
+		assertEquals(HashHelper.MAP_BUDGET - len, HashHelper.MAP_BUDGET_REMAINING.get());
+		assertEquals(len, mapped.capacity());
+
+		mapped = null;
+		waitForFullMapBudget();
+	}
+
+	@Test
+	public void itQuickFingerprintsSizeAndSamples() throws Exception {
+		final int sample = HashHelper.QUICK_SAMPLE_SIZE;
+		final byte[] data = new byte[sample * 5];
+		new Random(1).nextBytes(data);
+		final File f = this.tmp.newFile();
+		FileUtils.writeByteArrayToFile(f, data);
+
+		final MessageDigest md = MessageDigest.getInstance("SHA1");
+		md.update(ByteBuffer.allocate(8).putLong(0, data.length));
+		md.update(data, 0, sample);
+		md.update(data, data.length / 2 - sample / 2, sample);
+		md.update(data, data.length - sample, sample);
+		final BigInteger expected = new BigInteger(1, md.digest());
+		assertEquals(expected, HashHelper.quickFingerprint(f));
+
+		data[sample + 1] ^= 1;  // Between samples.
+		FileUtils.writeByteArrayToFile(f, data);
+		assertEquals(expected, HashHelper.quickFingerprint(f));
+
+		data[data.length / 2] ^= 1;
+		FileUtils.writeByteArrayToFile(f, data);
+		assertNotEquals(expected, HashHelper.quickFingerprint(f));
+	}
+
+	@Test
+	public void itQuickFingerprintsSmallFile() throws Exception {
+		final File f = this.tmp.newFile();
+		FileUtils.writeStringToFile(f, "foobar", StandardCharsets.UTF_8);
+		final MessageDigest md = MessageDigest.getInstance("SHA1");
+		md.update(ByteBuffer.allocate(8).putLong(0, 6));
+		for (int i = 0; i < 3; i++) {
+			md.update("foobar".getBytes(StandardCharsets.UTF_8));
+		}
+		assertEquals(new BigInteger(1, md.digest()), HashHelper.quickFingerprint(f));
+	}
+
+	private static void assertMd5AndSha1(final Md5AndSha1 expected, final Md5AndSha1 actual) {
+		assertEquals(expected.getMd5(), actual.getMd5());
+		assertEquals(expected.getSha1(), actual.getSha1());
+	}
+
+	private static void waitForFullMapBudget() throws InterruptedException {
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (HashHelper.MAP_BUDGET_REMAINING.get() != HashHelper.MAP_BUDGET && System.nanoTime() < end) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(HashHelper.MAP_BUDGET, HashHelper.MAP_BUDGET_REMAINING.get());
+	}
+
 }
@@ -49,4 +49,17 @@ public class StringHelperTest {
 		assertEquals(null, StringHelper.removeSuffix(null, "/"));
 	}
 
+	@Test
+	public void itChecksContainsIgnoringCase() throws Exception {
+		assertTrue(StringHelper.containsIgnoreCase("Some Foo\"Bar Song.mp4", "foo\"bar"));
+		assertTrue(StringHelper.containsIgnoreCase("FOO", "foo"));
+		assertTrue(StringHelper.containsIgnoreCase("xfoo", "foo"));
+		assertTrue(StringHelper.containsIgnoreCase("foo", ""));
+		assertTrue(StringHelper.containsIgnoreCase("", ""));
+
+		assertFalse(StringHelper.containsIgnoreCase("fo", "foo"));
+		assertFalse(StringHelper.containsIgnoreCase("fofo", "foo"));
+		assertFalse(StringHelper.containsIgnoreCase("", "foo"));
+	}
+
 }
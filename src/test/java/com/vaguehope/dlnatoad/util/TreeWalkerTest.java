@@ -1,5 +1,6 @@
 package com.vaguehope.dlnatoad.util;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.isA;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
@@ -9,7 +10,10 @@ import java.io.File;
 import java.io.FileFilter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -46,4 +50,43 @@ public class TreeWalkerTest {
 		o.verifyNoMoreInteractions();
 	}
 
+	@Test
+	public void itWalksTreeInSameOrderInParallel () throws Exception {
+		for (int a = 0; a < 5; a++) {
+			final File dirA = this.tmp.newFolder("Dir_" + a);
+			new File(dirA, ".hidden").createNewFile();
+			for (int b = 0; b < 5; b++) {
+				final File dirB = new File(dirA, "dir_" + b);
+				dirB.mkdir();
+				for (int f = 0; f < 3; f++) {
+					new File(dirB, "file_" + f).createNewFile();
+				}
+			}
+			new File(dirA, "file_a").createNewFile();
+		}
+
+		final List<String> sequential = walkAndRecord(1);
+		assertEquals(30, sequential.size());
+		assertEquals(sequential, walkAndRecord(4));
+	}
+
+	private List<String> walkAndRecord (final int parallelism) throws Exception {
+		final List<String> ret = new ArrayList<>();
+		final Set<File> dirs = ConcurrentHashMap.newKeySet();
+		final Hiker hiker = new Hiker() {
+			@Override
+			public void onDir (final File dir) {
+				dirs.add(dir);
+			}
+
+			@Override
+			public void onDirWithFiles (final File dir, final List<File> files) {
+				ret.add(dir + "=" + files);
+			}
+		};
+		new TreeWalker(Collections.singletonList(this.tmp.getRoot()), f -> true, hiker, parallelism).walk();
+		assertEquals(31, dirs.size());
+		return ret;
+	}
+
 }
@@ -0,0 +1,142 @@
+package com.vaguehope.dlnatoad.util;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Reading delete events for files that were never shared while many dirs are watched.
+ * Every such event has to check whether the path was a watched dir.
+ * The watched dirs do not exist so no real watches are needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WatcherBenchmark {
+
+	private static final int EVENTS_PER_KEY = 100;
+
+	@Param({ "100000" })
+	public int watchedDirs;
+
+	private File root;
+	private Watcher watcher;
+	private Path eventDir;
+	private FakeWatchKey eventKey;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this.root = new File("/benchmark-watched-root");
+		this.watcher = new Watcher(Collections.singletonList(this.root), f -> false, null);
+		for (int i = 0; i < this.watchedDirs; i++) {
+			final Path dir = Paths.get(this.root.getPath(), "dir" + (i / 1000), "dir" + i);
+			this.watcher.addWatchKey(this.root, dir, new FakeWatchKey(Collections.emptyList()));
+		}
+
+		this.eventDir = Paths.get(this.root.getPath(), "dir0", "dir0");
+		final List<WatchEvent<?>> events = new ArrayList<>();
+		for (int i = 0; i < EVENTS_PER_KEY; i++) {
+			events.add(new FakeWatchEvent(Paths.get("file" + i + ".tmp")));
+		}
+		this.eventKey = new FakeWatchKey(events);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		this.watcher.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENTS_PER_KEY)
+	public long readEvents() throws Exception {
+		this.watcher.readWatchKey(this.root, this.eventDir, this.eventKey);
+		return this.watcher.getWatchEventCount();
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(WatcherBenchmark.class.getSimpleName()).build()).run();
+	}
+
+	private static class FakeWatchKey implements WatchKey {
+		private final List<WatchEvent<?>> events;
+
+		FakeWatchKey(final List<WatchEvent<?>> events) {
+			this.events = events;
+		}
+
+		@Override
+		public boolean isValid() {
+			return true;
+		}
+
+		@Override
+		public List<WatchEvent<?>> pollEvents() {
+			return this.events;
+		}
+
+		@Override
+		public boolean reset() {
+			return true;
+		}
+
+		@Override
+		public void cancel() {}
+
+		@Override
+		public Watchable watchable() {
+			return null;
+		}
+	}
+
+	private static class FakeWatchEvent implements WatchEvent<Path> {
+		private final Path context;
+
+		FakeWatchEvent(final Path context) {
+			this.context = context;
+		}
+
+		@Override
+		public Kind<Path> kind() {
+			return StandardWatchEventKinds.ENTRY_DELETE;
+		}
+
+		@Override
+		public int count() {
+			return 1;
+		}
+
+		@Override
+		public Path context() {
+			return this.context;
+		}
+	}
+
+}
@@ -1,5 +1,7 @@
 package com.vaguehope.dlnatoad.util;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
@@ -45,6 +47,8 @@ public class WatcherTest {
 	private ExecutorService schEx;
 	@Rule
 	public TemporaryFolder tmp = new TemporaryFolder();
+	@Rule
+	public TemporaryFolder otherTmp = new TemporaryFolder();
 	private File tmpRoot;
 	private FileListener listener;
 	private Time.FakeTime time;
@@ -107,6 +111,13 @@ public class WatcherTest {
 		}
 	}
 
+	/**
+	 * For tests that wait for a particular callback themselves, after() stops the watcher.
+	 */
+	private void startWatcherAndKeepRunning(final int timeoutSeconds) throws Exception {
+		startWatcher(Integer.MAX_VALUE, timeoutSeconds);
+	}
+
 	private void waitForWatcher(final int timeoutSeconds) throws Exception {
 		this.undertestRunFuture.get(timeoutSeconds, TimeUnit.SECONDS);
 	}
@@ -156,6 +167,7 @@ public class WatcherTest {
 		verify(this.listener).fileFound(this.tmpRoot, f1, EventType.NOTIFY, null);
 
 		this.metricAssert.assertCounter("files_found", Labels.of("event", "notify"), 1);
+		this.metricAssert.assertHistogramCount("watch_event_latency_seconds", Labels.of("event", "found"), 1);
 	}
 
 	@Test
@@ -196,7 +208,7 @@ public class WatcherTest {
 		startWatcher(2, 10);  // Overall, wait for 2 file callbacks.
 		verify(this.listener).fileFound(this.tmpRoot, f1, EventType.SCAN, null);
 
-		FileUtils.write(f1, "data", "UTF-8");
+		FileUtils.write(f1, "data", "UTF-8", true);  // Append, as truncating is a second modify event.
 		waitForTotalWatchEventCount(1, 10);  // Event count does not include existing files.
 
 		this.time.advance(29, TimeUnit.SECONDS);
@@ -218,6 +230,7 @@ public class WatcherTest {
 		verify(this.listener, timeout(10000)).fileGone(f1, false);
 
 		this.metricAssert.assertCounter("files_gone", Labels.of(), 1);
+		this.metricAssert.assertHistogramCount("watch_event_latency_seconds", Labels.of("event", "gone"), 1);
 	}
 
 	@Test
@@ -244,4 +257,79 @@ public class WatcherTest {
 		verifyNoMoreInteractions(this.listener);
 	}
 
+	@Test
+	public void itStopsWatchingDirsUnderADirThatIsMovedAway() throws Exception {
+		final File d1 = this.tmp.newFolder("dir1");
+		final File d2 = new File(d1, "dir2");
+		if (!d2.mkdir()) fail("Failed ot mkdir: " + d2);
+		final File d3 = new File(d2, "dir3");
+		if (!d3.mkdir()) fail("Failed ot mkdir: " + d3);
+		final File f1 = new File(d3, "file1.mp4");
+		FileUtils.touch(f1);
+
+		startWatcherAndKeepRunning(10);
+		verify(this.listener).fileFound(this.tmpRoot, f1, EventType.SCAN, null);
+		assertEquals(4, this.undertest.watchedDirCount());
+
+		if (!d1.renameTo(new File(this.otherTmp.getRoot(), "dir1"))) fail("Rename failed.");
+
+		// What is waited for is fileGone() for d1, the watches on the dirs under it are dropped while handling that same event.
+		verify(this.listener, timeout(10000)).fileGone(d1, true);
+		assertEquals(1, this.undertest.watchedDirCount());
+		assertFalse(this.undertest.isWatchedDir(d3.toPath()));
+	}
+
+	@Test
+	public void itMergesCreateAndModifyIntoOneFoundEvent() throws Exception {
+		startWatcher(1, 10);
+
+		final File f1 = this.tmp.newFile("file1.mp4");
+		FileUtils.write(f1, "data", "UTF-8", true);
+		waitForTotalWatchEventCount(2, 10);
+
+		this.time.advance(31, TimeUnit.SECONDS);
+		waitForWatcher(10);
+		verify(this.listener).fileFound(this.tmpRoot, f1, EventType.NOTIFY, null);
+		verifyNoMoreInteractions(this.listener);
+	}
+
+	@Test
+	public void itWaitsAgainWhenANewFileIsModifiedWhileWaiting() throws Exception {
+		startWatcher(1, 10);
+
+		final File f1 = this.tmp.newFile("file1.mp4");
+		waitForTotalWatchEventCount(1, 10);
+
+		this.time.advance(29, TimeUnit.SECONDS);
+		FileUtils.write(f1, "data", "UTF-8", true);
+		waitForTotalWatchEventCount(2, 10);
+
+		this.time.advance(2, TimeUnit.SECONDS);
+		Thread.sleep(200);  // Several poll intervals, so the watcher has checked the waiting file.
+		verifyNoInteractions(this.listener);
+
+		this.time.advance(29, TimeUnit.SECONDS);
+		waitForWatcher(10);
+		verify(this.listener).fileFound(this.tmpRoot, f1, EventType.NOTIFY, null);
+		verifyNoMoreInteractions(this.listener);
+	}
+
+	@Test
+	public void itReportsDeleteOfFileThatWasNotReadyAndDropsItsCreate() throws Exception {
+		startWatcher(2, 10);
+
+		final File f1 = this.tmp.newFile("file1.mp4");
+		waitForTotalWatchEventCount(1, 10);
+		if (!f1.delete()) fail("Delete failed.");
+		waitForTotalWatchEventCount(2, 10);
+		final File f2 = this.tmp.newFile("file2.mp4");
+		waitForTotalWatchEventCount(3, 10);
+
+		this.time.advance(31, TimeUnit.SECONDS);
+		waitForWatcher(10);
+		verify(this.listener).fileGone(f1, false);
+		verify(this.listener).fileFound(this.tmpRoot, f2, EventType.NOTIFY, null);
+		verifyNoMoreInteractions(this.listener);
+	}
+
 }